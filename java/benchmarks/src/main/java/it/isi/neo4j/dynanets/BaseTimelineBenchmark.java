@@ -0,0 +1,113 @@
+/**
+ * Copyright (C) 2008-2010 Istituto per l'Interscambio Scientifico I.S.I.
+ * You can contact us by email (isi@isi.it) or write to:
+ * ISI Foundation, Viale S. Severo 65, 10133 Torino, Italy.
+ *
+ * This program was written by André Panisson <panisson@gmail.com>
+ *
+ */
+package it.isi.neo4j.dynanets;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Transaction;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The insert and lookup paths of {@link BaseTimeline}. Writes run in a
+ * transaction that is rolled back, so that the timeline keeps its size and
+ * the timeline code is measured without the commit.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BaseTimelineBenchmark {
+
+	// the number of frames read by the range benchmarks
+	static final int RANGE = 100;
+
+	@Benchmark
+	public void addNodeInOrder(TimelineState state) {
+		addNode(state, TimelineState.getTimestamp(state.size));
+	}
+
+	@Benchmark
+	public void addNodeOutOfOrder(TimelineState state) {
+		// between two frames, so that a time node is spliced in
+		addNode(state, TimelineState.getTimestamp(state.randomIndex())
+				+ 1 + ThreadLocalRandom.current().nextLong(TimelineState.FRAME - 1));
+	}
+
+	@Benchmark
+	public void addNodeDuplicate(TimelineState state) {
+		addNode(state, TimelineState.getTimestamp(state.randomIndex()));
+	}
+
+	static void addNode(TimelineState state, long timestamp) {
+		Transaction tx = state.graphDb.beginTx();
+		try {
+			state.timeline.addNode(state.graphDb.createNode(), timestamp);
+		} finally {
+			tx.close();
+		}
+	}
+
+	@Benchmark
+	public void removeNode(TimelineState state) {
+		Transaction tx = state.graphDb.beginTx();
+		try {
+			state.timeline.removeNode(state.getNode(state.randomIndex()));
+		} finally {
+			tx.close();
+		}
+	}
+
+	@Benchmark
+	public int getNodes(TimelineState state) {
+		Transaction tx = state.graphDb.beginTx();
+		try {
+			return count(state.timeline.getNodes(TimelineState.getTimestamp(state.randomIndex())));
+		} finally {
+			tx.close();
+		}
+	}
+
+	@Benchmark
+	public int getAllNodesBetween(TimelineState state) {
+		long start = TimelineState.getTimestamp(state.randomIndex());
+		Transaction tx = state.graphDb.beginTx();
+		try {
+			return count(state.timeline.getAllNodesBetween(start - 1, start + RANGE * TimelineState.FRAME));
+		} finally {
+			tx.close();
+		}
+	}
+
+	@Benchmark
+	public long getTimestampForNode(TimelineState state) {
+		Transaction tx = state.graphDb.beginTx();
+		try {
+			return state.timeline.getTimestampForNode(state.getNode(state.randomIndex()));
+		} finally {
+			tx.close();
+		}
+	}
+
+	static int count(Iterable<Node> nodes) {
+		int count = 0;
+		for (Node node: nodes) {
+			if (node != null) count++;
+		}
+		return count;
+	}
+}
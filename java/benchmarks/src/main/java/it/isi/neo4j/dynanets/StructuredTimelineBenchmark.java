@@ -0,0 +1,77 @@
+/**
+ * Copyright (C) 2008-2010 Istituto per l'Interscambio Scientifico I.S.I.
+ * You can contact us by email (isi@isi.it) or write to:
+ * ISI Foundation, Viale S. Severo 65, 10133 Torino, Italy.
+ *
+ * This program was written by André Panisson <panisson@gmail.com>
+ *
+ */
+package it.isi.neo4j.dynanets;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.neo4j.graphdb.Transaction;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The insert and lookup paths of {@link StructuredTimeline}, which also
+ * maintain and read the hour buckets. Writes are rolled back as in
+ * {@link BaseTimelineBenchmark}.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class StructuredTimelineBenchmark {
+
+	@Benchmark
+	public void addNodeInOrder(StructuredTimelineState state) {
+		BaseTimelineBenchmark.addNode(state, TimelineState.getTimestamp(state.size));
+	}
+
+	@Benchmark
+	public void addNodeOutOfOrder(StructuredTimelineState state) {
+		BaseTimelineBenchmark.addNode(state, TimelineState.getTimestamp(state.randomIndex())
+				+ 1 + ThreadLocalRandom.current().nextLong(TimelineState.FRAME - 1));
+	}
+
+	@Benchmark
+	public void removeNode(StructuredTimelineState state) {
+		Transaction tx = state.graphDb.beginTx();
+		try {
+			state.timeline.removeNode(state.getNode(state.randomIndex()));
+		} finally {
+			tx.close();
+		}
+	}
+
+	@Benchmark
+	public int getNodes(StructuredTimelineState state) {
+		Transaction tx = state.graphDb.beginTx();
+		try {
+			return BaseTimelineBenchmark.count(state.timeline.getNodes(TimelineState.getTimestamp(state.randomIndex())));
+		} finally {
+			tx.close();
+		}
+	}
+
+	@Benchmark
+	public int getNodesBetween(StructuredTimelineState state) {
+		long start = TimelineState.getTimestamp(state.randomIndex());
+		Transaction tx = state.graphDb.beginTx();
+		try {
+			return BaseTimelineBenchmark.count(state.getTimeline().getNodesBetween(start,
+					start + BaseTimelineBenchmark.RANGE * TimelineState.FRAME));
+		} finally {
+			tx.close();
+		}
+	}
+}
@@ -0,0 +1,29 @@
+/**
+ * Copyright (C) 2008-2010 Istituto per l'Interscambio Scientifico I.S.I.
+ * You can contact us by email (isi@isi.it) or write to:
+ * ISI Foundation, Viale S. Severo 65, 10133 Torino, Italy.
+ *
+ * This program was written by André Panisson <panisson@gmail.com>
+ *
+ */
+package it.isi.neo4j.dynanets;
+
+import org.neo4j.graphdb.Node;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * A {@link TimelineState} read through a {@link StructuredTimeline}.
+ */
+@State(Scope.Benchmark)
+public class StructuredTimelineState extends TimelineState {
+
+	@Override
+	protected BaseTimeline createTimeline(Node root) {
+		return new StructuredTimeline(NAME, root, TIME_ZONE, graphDb);
+	}
+
+	StructuredTimeline getTimeline() {
+		return (StructuredTimeline) timeline;
+	}
+}
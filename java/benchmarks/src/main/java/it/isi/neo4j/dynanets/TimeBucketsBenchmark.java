@@ -0,0 +1,68 @@
+/**
+ * Copyright (C) 2008-2010 Istituto per l'Interscambio Scientifico I.S.I.
+ * You can contact us by email (isi@isi.it) or write to:
+ * ISI Foundation, Viale S. Severo 65, 10133 Torino, Italy.
+ *
+ * This program was written by André Panisson <panisson@gmail.com>
+ *
+ */
+package it.isi.neo4j.dynanets;
+
+import java.util.Calendar;
+import java.util.GregorianCalendar;
+import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The decomposition of timestamps into hour buckets by {@link TimeBuckets},
+ * against the GregorianCalendar it replaced, over frames in time order as
+ * written by a run.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class TimeBucketsBenchmark {
+
+	@Param({ "UTC", "Europe/Rome", "America/Sao_Paulo" })
+	public String zone;
+
+	private TimeBuckets buckets;
+	private Calendar calendar;
+	private long timestamp;
+
+	@Setup
+	public void setUp() {
+		buckets = TimeBuckets.forZone(zone);
+		calendar = new GregorianCalendar(TimeZone.getTimeZone(zone));
+		timestamp = TimelineState.START;
+	}
+
+	@Benchmark
+	public int hourKey() {
+		timestamp += TimelineState.FRAME;
+		return buckets.hourKey(timestamp);
+	}
+
+	@Benchmark
+	public int calendarHourKey() {
+		timestamp += TimelineState.FRAME;
+		calendar.setTimeInMillis(timestamp * 1000);
+		return calendar.get(Calendar.YEAR) * 1000000 + (calendar.get(Calendar.MONTH) + 1) * 10000
+				+ calendar.get(Calendar.DAY_OF_MONTH) * 100 + calendar.get(Calendar.HOUR_OF_DAY);
+	}
+}
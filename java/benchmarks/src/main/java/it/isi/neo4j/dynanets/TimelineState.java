@@ -0,0 +1,117 @@
+/**
+ * Copyright (C) 2008-2010 Istituto per l'Interscambio Scientifico I.S.I.
+ * You can contact us by email (isi@isi.it) or write to:
+ * ISI Foundation, Viale S. Severo 65, 10133 Torino, Italy.
+ *
+ * This program was written by André Panisson <panisson@gmail.com>
+ *
+ */
+package it.isi.neo4j.dynanets;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.graphdb.factory.GraphDatabaseFactory;
+import org.neo4j.unsafe.batchinsert.BatchInserter;
+import org.neo4j.unsafe.batchinsert.BatchInserters;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * An embedded database in a temporary directory, deleted after the trial,
+ * holding a structured timeline of <CODE>size</CODE> nodes one frame apart,
+ * as imported for a run. Subclasses choose the timeline class reading it.
+ */
+@State(Scope.Benchmark)
+public class TimelineState {
+
+	static final long START = 1246406400L;
+	static final long FRAME = 20;
+	static final String NAME = "bench";
+	static final String TIME_ZONE = "UTC";
+
+	@Param({ "1000", "10000", "100000", "1000000" })
+	public int size;
+
+	private File storeDir;
+	GraphDatabaseService graphDb;
+	BaseTimeline timeline;
+	// the nodes of the timeline, the i-th one at START + i * FRAME
+	long[] nodeIds;
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		storeDir = Files.createTempDirectory("dynanets-bench").toFile();
+		// written offline as by the importer, which takes seconds for
+		// 10^6 nodes instead of minutes
+		long rootId;
+		nodeIds = new long[size];
+		BatchInserter inserter = BatchInserters.inserter(storeDir);
+		try {
+			Map<String, Object> noProperties = Collections.emptyMap();
+			rootId = inserter.createNode(noProperties);
+			BatchTimelineWriter writer = new BatchTimelineWriter(inserter, rootId, NAME, TIME_ZONE);
+			for (int i = 0; i < size; i++) {
+				nodeIds[i] = inserter.createNode(noProperties);
+				writer.append(nodeIds[i], getTimestamp(i));
+			}
+			writer.close();
+		} finally {
+			inserter.shutdown();
+		}
+		graphDb = new GraphDatabaseFactory().newEmbeddedDatabase(storeDir);
+		Transaction tx = graphDb.beginTx();
+		try {
+			timeline = createTimeline(graphDb.getNodeById(rootId));
+			tx.success();
+		} finally {
+			tx.close();
+		}
+	}
+
+	protected BaseTimeline createTimeline(Node root) {
+		return new BaseTimeline(NAME, root, graphDb);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		graphDb.shutdown();
+		delete(storeDir);
+	}
+
+	private static void delete(File file) {
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child: children) {
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+
+	static long getTimestamp(int index) {
+		return START + index * FRAME;
+	}
+
+	/**
+	 * Returns the index of a random node of the timeline.
+	 */
+	int randomIndex() {
+		return ThreadLocalRandom.current().nextInt(size);
+	}
+
+	Node getNode(int index) {
+		return graphDb.getNodeById(nodeIds[index]);
+	}
+}
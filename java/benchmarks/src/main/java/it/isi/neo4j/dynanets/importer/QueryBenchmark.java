@@ -0,0 +1,246 @@
+/**
+ * Copyright (C) 2008-2010 Istituto per l'Interscambio Scientifico I.S.I.
+ * You can contact us by email (isi@isi.it) or write to:
+ * ISI Foundation, Viale S. Severo 65, 10133 Torino, Italy.
+ *
+ * This program was written by André Panisson <panisson@gmail.com>
+ *
+ */
+package it.isi.neo4j.dynanets.importer;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+import org.HdrHistogram.Histogram;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.graphdb.factory.GraphDatabaseFactory;
+
+/**
+ * Times the queries of <CODE>cypher_query_timing.py</CODE>, in Cypher and
+ * native, on an embedded store, offline. If the store directory does not
+ * exist, a {@link SyntheticRun} is written into it first, so the same seed
+ * and parameters give the same run on every machine and for every commit;
+ * an existing store is reused as is, e.g. an imported SocioPatterns run.
+ *
+ * Each query is warmed up, then run by 1, 2, ... concurrent clients for a
+ * fixed time, each execution in its own transaction. The latencies of all
+ * clients go into an HDR histogram, reported with the throughput; with
+ * <CODE>-Dit.isi.neo4j.dynanets.bench.hgrm_dir</CODE> the full percentile
+ * distributions are written as <CODE>.hgrm</CODE> files, in microseconds.
+ *
+ * Usage: <CODE>QueryBenchmark &lt;store dir&gt; [seed] [actors] [days]
+ * [frame duration]</CODE> (default: 42, 100 actors, 4 days, 20 s), with
+ * <CODE>-Dit.isi.neo4j.dynanets.bench.clients=1,4</CODE>,
+ * <CODE>.seconds=5</CODE>, <CODE>.warmup=2</CODE> (seconds per query) and
+ * <CODE>.queries=&lt;regular expression&gt;</CODE>.
+ */
+public class QueryBenchmark {
+
+	private static final String PROPERTY_PREFIX = "it.isi.neo4j.dynanets.bench.";
+	private static final String RUN_NAME = "synthetic";
+
+	private final GraphDatabaseService graphDb;
+	private final long warmupNanos;
+	private final long durationNanos;
+	private File histogramDir = null;
+
+	public QueryBenchmark(GraphDatabaseService graphDb, long warmup, long duration) {
+		this.graphDb = graphDb;
+		this.warmupNanos = TimeUnit.SECONDS.toNanos(warmup);
+		this.durationNanos = TimeUnit.SECONDS.toNanos(duration);
+	}
+
+	/**
+	 * Writes the percentile distribution of every measurement into a
+	 * directory.
+	 */
+	public void setHistogramDir(File histogramDir) {
+		this.histogramDir = histogramDir;
+	}
+
+	/**
+	 * Warms a query up, then runs it with each number of clients and prints
+	 * a line per run.
+	 */
+	public void run(String api, RunQueries.Query query, int[] clients) throws InterruptedException, IOException {
+		measure(query, 1, warmupNanos);
+		for (int n: clients) {
+			long start = System.nanoTime();
+			Histogram latencies = measure(query, n, durationNanos);
+			double seconds = (System.nanoTime() - start) / 1e9;
+			System.out.printf("%-9s %-7s %3d %10.1f %10.3f %10.3f %10.3f %10.3f %10.3f%n", query.getName(), api, n,
+					latencies.getTotalCount() / seconds, latencies.getMean() / 1e6,
+					latencies.getValueAtPercentile(50) / 1e6, latencies.getValueAtPercentile(95) / 1e6,
+					latencies.getValueAtPercentile(99) / 1e6, latencies.getMaxValue() / 1e6);
+			if (histogramDir != null) {
+				writeHistogram(latencies, new File(histogramDir, query.getName() + "-" + api + "-" + n + ".hgrm"));
+			}
+		}
+	}
+
+	public static void printHeader() {
+		System.out.printf("%-9s %-7s %3s %10s %10s %10s %10s %10s %10s%n", "query", "api", "cl", "ops/s",
+				"mean ms", "p50 ms", "p95 ms", "p99 ms", "max ms");
+	}
+
+	/**
+	 * Runs a query from <CODE>clients</CODE> threads until the time is up,
+	 * each thread at least once.
+	 *
+	 * @return the latencies of all the executions, in nanoseconds
+	 */
+	private Histogram measure(final RunQueries.Query query, int clients, long nanos)
+			throws InterruptedException {
+		final CountDownLatch start = new CountDownLatch(1);
+		final long[] deadline = new long[1];
+		final Histogram[] histograms = new Histogram[clients];
+		final Throwable[] failure = new Throwable[1];
+		Thread[] threads = new Thread[clients];
+		for (int i = 0; i < clients; i++) {
+			final Histogram histogram = new Histogram(3);
+			histograms[i] = histogram;
+			threads[i] = new Thread(new Runnable() {
+				public void run() {
+					try {
+						start.await();
+						do {
+							long begin = System.nanoTime();
+							execute(query);
+							histogram.recordValue(System.nanoTime() - begin);
+						} while (System.nanoTime() < deadline[0]);
+					} catch (Throwable e) {
+						synchronized (failure) {
+							failure[0] = e;
+						}
+					}
+				}
+			}, "QueryBenchmark-" + i);
+			threads[i].start();
+		}
+		deadline[0] = System.nanoTime() + nanos;
+		start.countDown();
+		for (Thread thread: threads) {
+			thread.join();
+		}
+		synchronized (failure) {
+			if (failure[0] != null) {
+				throw new RuntimeException("Query " + query.getName() + " failed", failure[0]);
+			}
+		}
+		Histogram latencies = new Histogram(3);
+		for (Histogram histogram: histograms) {
+			latencies.add(histogram);
+		}
+		return latencies;
+	}
+
+	private int execute(RunQueries.Query query) {
+		Transaction tx = graphDb.beginTx();
+		try {
+			int rows = query.execute();
+			tx.success();
+			return rows;
+		} finally {
+			tx.close();
+		}
+	}
+
+	private static void writeHistogram(Histogram histogram, File file) throws FileNotFoundException {
+		PrintStream out = new PrintStream(file);
+		try {
+			histogram.outputPercentileDistribution(out, 1000.0);
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Returns the first RUN node of the store.
+	 */
+	private static Node findRun(GraphDatabaseService graphDb) {
+		for (Node node: graphDb.getAllNodes()) {
+			if ("RUN".equals(node.getProperty("type", null))) return node;
+		}
+		throw new IllegalArgumentException("No run in the store");
+	}
+
+	private static int[] parseClients(String clients) {
+		String[] values = clients.split(",");
+		int[] result = new int[values.length];
+		for (int i = 0; i < values.length; i++) {
+			result[i] = Integer.parseInt(values[i].trim());
+		}
+		return result;
+	}
+
+	public static void main(String[] args) throws IOException, InterruptedException {
+		if (args.length < 1 || args.length > 5) {
+			System.err.println("Usage: QueryBenchmark <store dir> [seed] [actors] [days] [frame duration]");
+			System.exit(1);
+		}
+		File storeDir = new File(args[0]);
+		if (!storeDir.exists()) {
+			long seed = (args.length > 1) ? Long.parseLong(args[1]) : 42;
+			int actors = (args.length > 2) ? Integer.parseInt(args[2]) : 100;
+			int days = (args.length > 3) ? Integer.parseInt(args[3]) : 4;
+			long frameLength = (args.length > 4) ? Long.parseLong(args[4]) : 20;
+			long start = System.nanoTime();
+			new SyntheticRun(seed, actors, days, frameLength).write(storeDir, RUN_NAME, ContactLinks.FRAMES);
+			System.out.printf("Wrote a synthetic run (seed %d, %d actors, %d days, %d s frames) in %.1f s%n",
+					seed, actors, days, frameLength, (System.nanoTime() - start) / 1e9);
+		}
+
+		int[] clients = parseClients(System.getProperty(PROPERTY_PREFIX + "clients", "1,4"));
+		Pattern selected = Pattern.compile(System.getProperty(PROPERTY_PREFIX + "queries", ".*"));
+		GraphDatabaseService graphDb = new GraphDatabaseFactory().newEmbeddedDatabase(storeDir);
+		try {
+			QueryBenchmark benchmark = new QueryBenchmark(graphDb,
+					Long.getLong(PROPERTY_PREFIX + "warmup", 2), Long.getLong(PROPERTY_PREFIX + "seconds", 5));
+			String histogramDir = System.getProperty(PROPERTY_PREFIX + "hgrm_dir");
+			if (histogramDir != null) {
+				benchmark.setHistogramDir(new File(histogramDir));
+				new File(histogramDir).mkdirs();
+			}
+
+			List<RunQueries.Query> cypherQueries;
+			List<RunQueries.Query> nativeQueries;
+			Transaction tx = graphDb.beginTx();
+			try {
+				RunQueries queries = new RunQueries(graphDb, findRun(graphDb));
+				System.out.println("Inputs: " + queries.describe());
+				cypherQueries = queries.getCypherQueries();
+				nativeQueries = queries.getNativeQueries();
+				tx.success();
+			} finally {
+				tx.close();
+			}
+
+			// both versions of a query must agree before they are compared
+			for (int i = 0; i < cypherQueries.size(); i++) {
+				RunQueries.Query cypher = cypherQueries.get(i);
+				if (!selected.matcher(cypher.getName()).matches()) continue;
+				int cypherRows = benchmark.execute(cypher);
+				int nativeRows = benchmark.execute(nativeQueries.get(i));
+				System.out.printf("%-9s %d rows%s%n", cypher.getName(), cypherRows,
+						(cypherRows == nativeRows) ? "" : " (native: " + nativeRows + " rows)");
+			}
+
+			printHeader();
+			for (int i = 0; i < cypherQueries.size(); i++) {
+				if (!selected.matcher(cypherQueries.get(i).getName()).matches()) continue;
+				benchmark.run("cypher", cypherQueries.get(i), clients);
+				benchmark.run("native", nativeQueries.get(i), clients);
+			}
+		} finally {
+			graphDb.shutdown();
+		}
+	}
+}
@@ -0,0 +1,470 @@
+/**
+ * Copyright (C) 2008-2010 Istituto per l'Interscambio Scientifico I.S.I.
+ * You can contact us by email (isi@isi.it) or write to:
+ * ISI Foundation, Viale S. Severo 65, 10133 Torino, Italy.
+ *
+ * This program was written by André Panisson <panisson@gmail.com>
+ *
+ */
+package it.isi.neo4j.dynanets.importer;
+
+import it.isi.neo4j.dynanets.StructuredTimeline;
+
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.neo4j.graphdb.Direction;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.graphdb.RelationshipType;
+import org.neo4j.graphdb.Result;
+import org.neo4j.helpers.collection.MapUtil;
+
+/**
+ * The queries of <CODE>cypher_query_timing.py</CODE> on a run, in Cypher and
+ * through the core API. Instead of the fixed frame, actors and hour of the
+ * script, the busiest frame, the two actors with the most interactions and
+ * the hour and day of that frame are chosen, so the queries can run on any
+ * run, including a {@link SyntheticRun}.
+ *
+ * The Cypher queries are those of the script in the current syntax, with
+ * parameters, and walk the NEXT_LEVEL tree of a {@link StructuredTimeline},
+ * whose hour nodes reach their frames through one more level. QUERY1 starts
+ * from the RUN node instead of the reference node. The native queries
+ * return the same rows, reading the timeline and activity bitmaps where
+ * that is the fast path.
+ *
+ * The queries must be executed within a transaction.
+ */
+public class RunQueries {
+
+	// the frame count above which QUERY5 reports an actor
+	private static final int MIN_FREQUENCY = 1000;
+
+	private static final RelationshipType TIMELINE_INSTANCE = RelationshipType.withName("TIMELINE_INSTANCE");
+	private static final RelationshipType NEXT_LEVEL = RelationshipType.withName("NEXT_LEVEL");
+
+	/**
+	 * A query on the run, in Cypher or native.
+	 */
+	public static abstract class Query {
+
+		private final String name;
+
+		Query(String name) {
+			this.name = name;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		/**
+		 * Runs the query and consumes its result.
+		 *
+		 * @return the number of rows
+		 */
+		public abstract int execute();
+	}
+
+	private final GraphDatabaseService graphDb;
+	private final Node run;
+	private final StructuredTimeline timeline;
+	private final RunActivity activity;
+	private final ZoneId zone;
+
+	private Node frame;
+	private Node actor1;
+	private Node actor2;
+	private Node hourNode;
+	private int year;
+	private int month;
+	private int day;
+	private int hour;
+
+	/**
+	 * Chooses the inputs of the queries; must be called within a transaction.
+	 *
+	 * @param run the RUN node, which must have at least one interaction
+	 */
+	public RunQueries(GraphDatabaseService graphDb, Node run) {
+		this.graphDb = graphDb;
+		this.run = run;
+		Node timelineNode = run.getSingleRelationship(RunRelTypes.HAS_TIMELINE, Direction.OUTGOING).getEndNode();
+		timeline = new StructuredTimeline((String) timelineNode.getProperty("timeline_name"), timelineNode, graphDb);
+		activity = new RunActivity(run);
+		zone = ZoneId.of(timeline.getTimeZone());
+
+		int maxInteractions = -1;
+		for (Relationship rel: run.getRelationships(Direction.OUTGOING, RunRelTypes.RUN_FRAME)) {
+			int interactions = rel.getEndNode().getDegree(RunRelTypes.FRAME_INTERACTION, Direction.OUTGOING);
+			if (interactions > maxInteractions) {
+				frame = rel.getEndNode();
+				maxInteractions = interactions;
+			}
+		}
+		int[] maxDegrees = { -1, -1 };
+		for (Relationship rel: run.getRelationships(Direction.OUTGOING, RunRelTypes.RUN_ACTOR)) {
+			Node actor = rel.getEndNode();
+			int degree = actor.getDegree(RunRelTypes.INTERACTION_ACTOR, Direction.INCOMING);
+			if (degree > maxDegrees[0]) {
+				actor2 = actor1;
+				maxDegrees[1] = maxDegrees[0];
+				actor1 = actor;
+				maxDegrees[0] = degree;
+			} else if (degree > maxDegrees[1]) {
+				actor2 = actor;
+				maxDegrees[1] = degree;
+			}
+		}
+		if (maxInteractions <= 0 || actor2 == null) {
+			throw new IllegalArgumentException("Run " + run.getProperty("name") + " has no interactions");
+		}
+		year = ((Number) frame.getProperty("year")).intValue();
+		month = ((Number) frame.getProperty("month")).intValue();
+		day = ((Number) frame.getProperty("day")).intValue();
+		hour = ((Number) frame.getProperty("hour")).intValue();
+		Node timeNode = frame.getSingleRelationship(TIMELINE_INSTANCE, Direction.INCOMING).getStartNode();
+		hourNode = timeNode.getSingleRelationship(NEXT_LEVEL, Direction.INCOMING).getStartNode();
+	}
+
+	/**
+	 * Describes the inputs of the queries.
+	 */
+	public String describe() {
+		return String.format("frame %s, actors %s and %s, hour %02d of %d-%02d-%02d",
+				frame.getProperty("frame_id"), actor1.getProperty("actor"), actor2.getProperty("actor"),
+				hour, year, month, day);
+	}
+
+	public Map<String, Object> getParameters() {
+		return MapUtil.map("run", run.getId(), "frame", frame.getId(), "actor1", actor1.getId(),
+				"actor2", actor2.getId(), "hourNode", hourNode.getId(), "year", year, "month", month,
+				"day", day, "hour", hour, "minFrequency", MIN_FREQUENCY);
+	}
+
+	public List<Query> getCypherQueries() {
+		List<Query> queries = new ArrayList<Query>();
+		queries.add(cypher("QUERY1",
+				"MATCH (run)-[:HAS_TIMELINE]->()-[y:NEXT_LEVEL]->()-[m:NEXT_LEVEL]->()-[d:NEXT_LEVEL]->()"
+				+ "-[h:NEXT_LEVEL]->()-[:NEXT_LEVEL]->()-[:TIMELINE_INSTANCE]->(frame) "
+				+ "WHERE id(run) = $run AND y.year = $year AND m.month = $month AND d.day = $day "
+				+ "AND h.hour >= 9 AND h.hour < 13 "
+				+ "RETURN frame ORDER BY frame.timestamp"));
+		queries.add(cypher("QUERY2",
+				"MATCH (frame)-[:FRAME_ACTOR]-(actor) WHERE id(frame) = $frame "
+				+ "RETURN actor.name"));
+		queries.add(cypher("QUERY3",
+				"MATCH (frame)-[r:FRAME_INTERACTION]-(interaction) WHERE id(frame) = $frame AND r.weight > 0 "
+				+ "RETURN interaction.actor1, interaction.actor2, r.weight"));
+		queries.add(cypher("QUERY4",
+				"MATCH (run)-[:RUN_ACTOR]->(actor)<-[r:FRAME_ACTOR]-() WHERE id(run) = $run "
+				+ "RETURN actor.name, count(r)"));
+		queries.add(cypher("QUERY5",
+				"MATCH (run)-[:RUN_ACTOR]->(actor)<-[r:FRAME_ACTOR]-() WHERE id(run) = $run "
+				+ "WITH actor.name AS name, count(r) AS freq WHERE freq > $minFrequency "
+				+ "RETURN name, freq ORDER BY freq DESC"));
+		queries.add(cypher("QUERY5b",
+				"MATCH (run)-[:RUN_ACTOR]-(actor) WHERE id(run) = $run "
+				+ "WITH actor MATCH ()-[r:FRAME_ACTOR]-(actor) "
+				+ "WITH actor.name AS name, count(r) AS freq WHERE freq > $minFrequency "
+				+ "RETURN name, freq ORDER BY freq DESC"));
+		queries.add(cypher("QUERY6",
+				"MATCH ()-[d:NEXT_LEVEL]->()-[:NEXT_LEVEL]->()-[:NEXT_LEVEL]->()-[:TIMELINE_INSTANCE]-()"
+				+ "-[:FRAME_ACTOR]-(actor) WHERE id(actor) = $actor1 "
+				+ "RETURN DISTINCT d.day"));
+		queries.add(cypher("QUERY6b",
+				"MATCH (frame)-[:FRAME_ACTOR]-(actor) WHERE id(actor) = $actor1 "
+				+ "RETURN DISTINCT frame.day"));
+		queries.add(cypher("QUERY7",
+				"MATCH (actor1)<-[:INTERACTION_ACTOR]-()-[:INTERACTION_ACTOR]->(actor2) WHERE id(actor1) = $actor1 "
+				+ "RETURN actor2.name ORDER BY actor2.name"));
+		queries.add(cypher("QUERY8",
+				"MATCH (actor1)<-[:INTERACTION_ACTOR]-(interaction)-[:INTERACTION_ACTOR]->(actor2) "
+				+ "WHERE id(actor1) = $actor1 "
+				+ "WITH interaction, actor2 "
+				+ "MATCH ()-[d:NEXT_LEVEL]->()-[:NEXT_LEVEL]->()-[:NEXT_LEVEL]->()-[:TIMELINE_INSTANCE]-()"
+				+ "-[:FRAME_INTERACTION]-(interaction) WHERE d.day = $day "
+				+ "RETURN DISTINCT actor2.name"));
+		queries.add(cypher("QUERY9",
+				"MATCH (actor1)<-[:INTERACTION_ACTOR]-()-[:INTERACTION_ACTOR]->(actor) WHERE id(actor1) = $actor1 "
+				+ "WITH collect(actor) AS neighs1 "
+				+ "MATCH (actor2)<-[:INTERACTION_ACTOR]-()-[:INTERACTION_ACTOR]->(actor) "
+				+ "WHERE id(actor2) = $actor2 AND actor IN neighs1 "
+				+ "RETURN actor"));
+		queries.add(cypher("QUERY9b",
+				"MATCH (actor1)<-[:INTERACTION_ACTOR]-()-[:INTERACTION_ACTOR]->(actor)"
+				+ "<-[:INTERACTION_ACTOR]-()-[:INTERACTION_ACTOR]->(actor2) "
+				+ "WHERE id(actor1) = $actor1 AND id(actor2) = $actor2 "
+				+ "RETURN actor"));
+		queries.add(cypher("QUERY10",
+				"MATCH (run)-[:RUN_ACTOR]-(actor)-[r:INTERACTION_ACTOR]-() WHERE id(run) = $run "
+				+ "RETURN actor.name, count(r) ORDER BY count(r) DESC"));
+		String hourFrames = "()-[d%1$d:NEXT_LEVEL]->()-[h%1$d:NEXT_LEVEL]->()-[:NEXT_LEVEL]->()"
+				+ "-[:TIMELINE_INSTANCE]-()-[:FRAME_INTERACTION]-(interaction%1$d) "
+				+ "WHERE d%1$d.day = $day AND h%1$d.hour = $hour ";
+		queries.add(cypher("QUERY11a",
+				"MATCH (neigh1)<-[:INTERACTION_ACTOR]-(interaction1)-[:INTERACTION_ACTOR]->(actor), "
+				+ String.format(hourFrames, 1) + "AND id(actor) = $actor1 "
+				+ "WITH DISTINCT neigh1, actor "
+				+ "MATCH (neigh2)<-[:INTERACTION_ACTOR]-(interaction2)-[:INTERACTION_ACTOR]->(actor), "
+				+ String.format(hourFrames, 2)
+				+ "WITH DISTINCT neigh2, neigh1 "
+				+ "MATCH (neigh1)<-[:INTERACTION_ACTOR]-(interaction3)-[:INTERACTION_ACTOR]->(neigh2), "
+				+ String.format(hourFrames, 3)
+				+ "RETURN DISTINCT neigh1.actor, neigh2.actor ORDER BY neigh1.actor, neigh2.actor"));
+		String nodeFrames = "(hour)-[:NEXT_LEVEL]->()-[:TIMELINE_INSTANCE]->()-[:FRAME_INTERACTION]->(interaction%d) ";
+		queries.add(cypher("QUERY11b",
+				"MATCH (neigh1)<-[:INTERACTION_ACTOR]-(interaction1)-[:INTERACTION_ACTOR]->(actor), "
+				+ String.format(nodeFrames, 1) + "WHERE id(actor) = $actor1 AND id(hour) = $hourNode "
+				+ "WITH DISTINCT hour, neigh1, actor "
+				+ "MATCH (neigh2)<-[:INTERACTION_ACTOR]-(interaction2)-[:INTERACTION_ACTOR]->(actor), "
+				+ String.format(nodeFrames, 2)
+				+ "WITH DISTINCT hour, neigh1, neigh2 "
+				+ "MATCH (neigh1)<-[:INTERACTION_ACTOR]-(interaction3)-[:INTERACTION_ACTOR]->(neigh2), "
+				+ String.format(nodeFrames, 3)
+				+ "RETURN DISTINCT neigh1.actor, neigh2.actor ORDER BY neigh1.actor, neigh2.actor"));
+		String propertyFrames = "(frame%1$d)-[:FRAME_INTERACTION]->(interaction%1$d) "
+				+ "WHERE frame%1$d.day = $day AND frame%1$d.hour = $hour ";
+		queries.add(cypher("QUERY11c",
+				"MATCH (neigh1)<-[:INTERACTION_ACTOR]-(interaction1)-[:INTERACTION_ACTOR]->(actor), "
+				+ String.format(propertyFrames, 1) + "AND id(actor) = $actor1 "
+				+ "WITH DISTINCT neigh1, actor "
+				+ "MATCH (neigh2)<-[:INTERACTION_ACTOR]-(interaction2)-[:INTERACTION_ACTOR]->(actor), "
+				+ String.format(propertyFrames, 2)
+				+ "WITH DISTINCT neigh1, neigh2 "
+				+ "MATCH (neigh1)<-[:INTERACTION_ACTOR]-(interaction3)-[:INTERACTION_ACTOR]->(neigh2), "
+				+ String.format(propertyFrames, 3)
+				+ "RETURN DISTINCT neigh1.actor, neigh2.actor ORDER BY neigh1.actor, neigh2.actor"));
+		return queries;
+	}
+
+	private Query cypher(String name, final String query) {
+		final Map<String, Object> parameters = getParameters();
+		return new Query(name) {
+			public int execute() {
+				Result result = graphDb.execute(query, parameters);
+				try {
+					int rows = 0;
+					while (result.hasNext()) {
+						result.next();
+						rows++;
+					}
+					return rows;
+				} finally {
+					result.close();
+				}
+			}
+		};
+	}
+
+	/**
+	 * Returns a native query for each Cypher query, with the same name.
+	 */
+	public List<Query> getNativeQueries() {
+		List<Query> queries = new ArrayList<Query>();
+		queries.add(new Query("QUERY1") {
+			public int execute() {
+				long start = ZonedDateTime.of(year, month, day, 9, 0, 0, 0, zone).toEpochSecond();
+				long end = ZonedDateTime.of(year, month, day, 13, 0, 0, 0, zone).toEpochSecond();
+				int rows = 0;
+				for (Node frame: timeline.getNodesBetween(start, end)) {
+					frame.getProperty("timestamp");
+					rows++;
+				}
+				return rows;
+			}
+		});
+		queries.add(new Query("QUERY2") {
+			public int execute() {
+				int rows = 0;
+				for (Relationship rel: frame.getRelationships(Direction.OUTGOING, RunRelTypes.FRAME_ACTOR)) {
+					rel.getEndNode().getProperty("name");
+					rows++;
+				}
+				return rows;
+			}
+		});
+		queries.add(new Query("QUERY3") {
+			public int execute() {
+				int rows = 0;
+				for (Relationship rel: frame.getRelationships(Direction.OUTGOING, RunRelTypes.FRAME_INTERACTION)) {
+					if (((Number) rel.getProperty("weight", 0)).doubleValue() > 0) {
+						Node interaction = rel.getEndNode();
+						interaction.getProperty("actor1");
+						interaction.getProperty("actor2");
+						rows++;
+					}
+				}
+				return rows;
+			}
+		});
+		queries.add(new Query("QUERY4") {
+			public int execute() {
+				return getActorFrequencies(0).size();
+			}
+		});
+		queries.add(new Query("QUERY5") {
+			public int execute() {
+				return getActorFrequencies(MIN_FREQUENCY + 1).size();
+			}
+		});
+		queries.add(new Query("QUERY5b") {
+			public int execute() {
+				return getActorFrequencies(MIN_FREQUENCY + 1).size();
+			}
+		});
+		queries.add(new Query("QUERY6") {
+			public int execute() {
+				// from the activity bitmap, without reading the frames
+				return getDays(activity.getActiveTimes(actor1)).size();
+			}
+		});
+		queries.add(new Query("QUERY6b") {
+			public int execute() {
+				Set<Object> days = new HashSet<Object>();
+				for (Relationship rel: actor1.getRelationships(Direction.INCOMING, RunRelTypes.FRAME_ACTOR)) {
+					days.add(rel.getStartNode().getProperty("day"));
+				}
+				return days.size();
+			}
+		});
+		queries.add(new Query("QUERY7") {
+			public int execute() {
+				TreeSet<String> names = new TreeSet<String>();
+				for (Node neighbour: getNeighbours(actor1)) {
+					names.add((String) neighbour.getProperty("name"));
+				}
+				return names.size();
+			}
+		});
+		queries.add(new Query("QUERY8") {
+			public int execute() {
+				int rows = 0;
+				for (Relationship rel: actor1.getRelationships(Direction.INCOMING, RunRelTypes.INTERACTION_ACTOR)) {
+					Node interaction = rel.getStartNode();
+					if (activity.isActiveOnDay(interaction, year, month, day)) {
+						getOtherActor(interaction, actor1).getProperty("name");
+						rows++;
+					}
+				}
+				return rows;
+			}
+		});
+		Query commonNeighbours = new Query("QUERY9") {
+			public int execute() {
+				Set<Node> neighbours = getNeighbours(actor1);
+				neighbours.retainAll(getNeighbours(actor2));
+				return neighbours.size();
+			}
+		};
+		queries.add(commonNeighbours);
+		queries.add(rename("QUERY9b", commonNeighbours));
+		queries.add(new Query("QUERY10") {
+			public int execute() {
+				List<Object[]> degrees = new ArrayList<Object[]>();
+				for (Relationship rel: run.getRelationships(Direction.OUTGOING, RunRelTypes.RUN_ACTOR)) {
+					Node actor = rel.getEndNode();
+					degrees.add(new Object[] { actor.getProperty("name"),
+							actor.getDegree(RunRelTypes.INTERACTION_ACTOR, Direction.INCOMING) });
+				}
+				degrees.sort(new Comparator<Object[]>() {
+					public int compare(Object[] a, Object[] b) {
+						return Integer.compare((Integer) b[1], (Integer) a[1]);
+					}
+				});
+				return degrees.size();
+			}
+		});
+		Query triangles = new Query("QUERY11a") {
+			public int execute() {
+				return getHourTriangles().size();
+			}
+		};
+		queries.add(triangles);
+		queries.add(rename("QUERY11b", triangles));
+		queries.add(rename("QUERY11c", triangles));
+		return queries;
+	}
+
+	private static Query rename(String name, final Query query) {
+		return new Query(name) {
+			public int execute() {
+				return query.execute();
+			}
+		};
+	}
+
+	/**
+	 * Returns the number of frames of each actor with at least
+	 * <CODE>minFrequency</CODE> frames, by name, from the relationship
+	 * counts of the actor nodes.
+	 */
+	private Map<String, Integer> getActorFrequencies(int minFrequency) {
+		Map<String, Integer> frequencies = new HashMap<String, Integer>();
+		for (Relationship rel: run.getRelationships(Direction.OUTGOING, RunRelTypes.RUN_ACTOR)) {
+			Node actor = rel.getEndNode();
+			int frequency = actor.getDegree(RunRelTypes.FRAME_ACTOR, Direction.INCOMING);
+			if (frequency > 0 && frequency >= minFrequency) {
+				frequencies.put((String) actor.getProperty("name"), frequency);
+			}
+		}
+		return frequencies;
+	}
+
+	private Set<Integer> getDays(long[] times) {
+		Set<Integer> days = new HashSet<Integer>();
+		for (long time: times) {
+			days.add(ZonedDateTime.ofInstant(Instant.ofEpochSecond(time), zone).getDayOfMonth());
+		}
+		return days;
+	}
+
+	private static Set<Node> getNeighbours(Node actor) {
+		Set<Node> neighbours = new HashSet<Node>();
+		for (Relationship rel: actor.getRelationships(Direction.INCOMING, RunRelTypes.INTERACTION_ACTOR)) {
+			neighbours.add(getOtherActor(rel.getStartNode(), actor));
+		}
+		return neighbours;
+	}
+
+	private static Node getOtherActor(Node interaction, Node actor) {
+		for (Relationship rel: interaction.getRelationships(Direction.OUTGOING, RunRelTypes.INTERACTION_ACTOR)) {
+			if (!rel.getEndNode().equals(actor)) return rel.getEndNode();
+		}
+		return actor;
+	}
+
+	/**
+	 * Returns the ordered pairs of neighbours of <CODE>actor1</CODE> in
+	 * contact with it and with each other during the hour, as the actor
+	 * numbers of QUERY11.
+	 */
+	private Set<List<Object>> getHourTriangles() {
+		long start = ZonedDateTime.of(year, month, day, hour, 0, 0, 0, zone).toEpochSecond();
+		long end = start + 3600;
+		Set<Node> neighbours = new HashSet<Node>(activity.getActiveNeighbours(actor1, start, end));
+		Set<List<Object>> pairs = new HashSet<List<Object>>();
+		for (Node neigh1: neighbours) {
+			for (Node neigh2: activity.getActiveNeighbours(neigh1, start, end)) {
+				if (neighbours.contains(neigh2)) {
+					List<Object> pair = new ArrayList<Object>(2);
+					pair.add(neigh1.getProperty("actor"));
+					pair.add(neigh2.getProperty("actor"));
+					pairs.add(pair);
+				}
+			}
+		}
+		return pairs;
+	}
+}
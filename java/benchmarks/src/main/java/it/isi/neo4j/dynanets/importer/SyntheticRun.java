@@ -0,0 +1,140 @@
+/**
+ * Copyright (C) 2008-2010 Istituto per l'Interscambio Scientifico I.S.I.
+ * You can contact us by email (isi@isi.it) or write to:
+ * ISI Foundation, Viale S. Severo 65, 10133 Torino, Italy.
+ *
+ * This program was written by André Panisson <panisson@gmail.com>
+ *
+ */
+package it.isi.neo4j.dynanets.importer;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+import org.neo4j.unsafe.batchinsert.BatchInserter;
+import org.neo4j.unsafe.batchinsert.BatchInserters;
+
+/**
+ * A reproducible run shaped like a SocioPatterns deployment: actors meet
+ * only during the open hours of each day, some actors and pairs are much
+ * more active than others, and contact durations are heavy-tailed, so that
+ * most contacts last one frame and a few last many minutes. The same seed
+ * and parameters always give the same spells, hence the same graph.
+ *
+ * Each pair of actors starts a contact in a frame with a probability
+ * proportional to the product of the activities of the two actors, drawn
+ * from a log-normal distribution, and the contact lasts a number of frames
+ * drawn from a discrete power law, at most until closing time. Actors are
+ * numbered from {@link #FIRST_ACTOR} and are present while in contact.
+ */
+public class SyntheticRun {
+
+	/** Wed Jul 1 00:00:00 2009 UTC, the day of the queries of <CODE>cypher_query_timing.py</CODE>. */
+	public static final long START_TIME = 1246406400L;
+	public static final int FIRST_ACTOR = 1000;
+
+	private static final int OPENING_HOUR = 8;
+	private static final int CLOSING_HOUR = 18;
+	// exponent of the contact duration distribution, as measured on
+	// face-to-face proximity data
+	private static final double DURATION_EXPONENT = 2.5;
+
+	private final long seed;
+	private final int actors;
+	private final int days;
+	private final long frameLength;
+	private double contactProbability = 0.003;
+
+	/**
+	 * @param seed the seed of the random generator
+	 * @param actors the number of actors
+	 * @param days the number of days of the run
+	 * @param frameLength the duration of a frame, in seconds, which must
+	 *            divide an hour
+	 */
+	public SyntheticRun(long seed, int actors, int days, long frameLength) {
+		if (actors < 2 || days < 1 || frameLength < 1 || 3600 % frameLength != 0) {
+			throw new IllegalArgumentException("Invalid run parameters");
+		}
+		this.seed = seed;
+		this.actors = actors;
+		this.days = days;
+		this.frameLength = frameLength;
+	}
+
+	/**
+	 * Sets the mean probability that a pair of actors starts a contact in a
+	 * frame of the open hours (default: 0.003, which with 100 actors and
+	 * 20 s frames gives about as many frame memberships per day as the
+	 * sample run).
+	 */
+	public void setContactProbability(double contactProbability) {
+		this.contactProbability = contactProbability;
+	}
+
+	/**
+	 * Adds the spells of the run to an importer created with
+	 * {@link #START_TIME} and the frame duration of this run.
+	 *
+	 * @return the number of contacts
+	 */
+	public int generate(GexfImporter importer) {
+		Random random = new Random(seed);
+		double[] activity = new double[actors];
+		for (int i = 0; i < actors; i++) {
+			activity[i] = Math.exp(random.nextGaussian());
+		}
+		// E[a_i a_j] of independent log-normal activities is e^1
+		double scale = contactProbability / Math.E;
+
+		int framesPerDay = (int) ((CLOSING_HOUR - OPENING_HOUR) * 3600 / frameLength);
+		int openFrames = framesPerDay * days;
+		int contacts = 0;
+		for (int i = 0; i < actors; i++) {
+			for (int j = i + 1; j < actors; j++) {
+				double p = Math.min(0.5, scale * activity[i] * activity[j]);
+				double logNoContact = Math.log1p(-p);
+				int frame = 0;
+				while (true) {
+					// frames without a new contact before the next one
+					frame += (int) Math.min(openFrames, Math.floor(Math.log(1 - random.nextDouble()) / logNoContact));
+					if (frame >= openFrames) break;
+					int duration = (int) Math.floor(Math.pow(1 - random.nextDouble(), -1 / (DURATION_EXPONENT - 1)));
+					duration = Math.min(duration, framesPerDay - frame % framesPerDay);
+					long start = getTimestamp(frame, framesPerDay);
+					long end = getTimestamp(frame + duration - 1, framesPerDay) + frameLength;
+					importer.addInteractionSpell(FIRST_ACTOR + i, FIRST_ACTOR + j, start, end);
+					importer.addActorSpell(FIRST_ACTOR + i, start, end);
+					importer.addActorSpell(FIRST_ACTOR + j, start, end);
+					contacts++;
+					// contacts of a pair are at least a frame apart
+					frame += duration + 1;
+				}
+			}
+		}
+		return contacts;
+	}
+
+	/**
+	 * Writes the run into a new store directory, in UTC.
+	 *
+	 * @return the id of the RUN node
+	 */
+	public long write(File storeDir, String runName, ContactLinks contactLinks) throws IOException {
+		BatchInserter inserter = BatchInserters.inserter(storeDir);
+		try {
+			GexfImporter importer = new GexfImporter(inserter, runName, START_TIME, frameLength, "UTC");
+			importer.setContactLinks(contactLinks);
+			generate(importer);
+			return importer.write();
+		} finally {
+			inserter.shutdown();
+		}
+	}
+
+	private long getTimestamp(int openFrame, int framesPerDay) {
+		int day = openFrame / framesPerDay;
+		return START_TIME + day * 86400L + OPENING_HOUR * 3600L + (openFrame % framesPerDay) * frameLength;
+	}
+}
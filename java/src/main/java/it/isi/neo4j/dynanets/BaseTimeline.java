@@ -20,27 +20,44 @@
 package it.isi.neo4j.dynanets;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.Iterator;
 import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 
 import org.neo4j.graphdb.Direction;
 import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Lock;
 import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.NotFoundException;
 import org.neo4j.graphdb.Relationship;
 import org.neo4j.graphdb.RelationshipType;
-import org.neo4j.graphdb.ReturnableEvaluator;
-import org.neo4j.graphdb.StopEvaluator;
 import org.neo4j.graphdb.Transaction;
-import org.neo4j.graphdb.TraversalPosition;
-import org.neo4j.graphdb.Traverser;
-import org.neo4j.graphdb.Traverser.Order;
-//import org.neo4j.kernel.AbstractGraphDatabase;
 
 
 /**
- * An implementation of {@link TimelineIndex} on top of Neo4j, using
- * {@link BTree} for indexing. Note: this implementation is not thread-safe
- * (yet).
+ * An implementation of {@link TimelineIndex} on top of Neo4j, using a
+ * probabilistic skip list of <CODE>TIMELINE_SKIP_n</CODE> relationships over
+ * the time node chain for indexing.
+ * 
+ * Concurrent writers are supported, also sharing one instance. A writer
+ * first finds the place of its timestamp in the chain and in the skip list
+ * without locks, then write-locks the time nodes whose relationships it is
+ * going to change (and the node being added or removed) in node id order,
+ * and checks that these relationships are still the ones it found; if they
+ * are not, the locks are released and the place is looked up again. Writers
+ * at different places of the chain only contend on the express predecessors
+ * they share, while all appends at the end contend on the underlying node.
+ * Locks are held until the enclosing transaction commits, so callers
+ * writing many nodes in one transaction may still get a
+ * {@link org.neo4j.kernel.DeadlockDetectedException} and must retry it.
+ * {@link #addNodes(Iterable, long[], int)}, {@link #buildIndex()} and
+ * {@link #delete()} are bulk operations not meant to run with other writers.
  * 
  * Nodes added to a timeline will get a {@link Relationship} created to it so if
  * you delete such a node later on you'll have to remove it from the timeline
@@ -60,15 +77,86 @@ public class BaseTimeline //implements TimelineIndex
 
     protected static final String TIMESTAMP = "timestamp";
     protected static final String TIMELINE_NAME = "timeline_name";
-    
+    protected static final String SKIP_LEVELS = "skip_levels";
+
+    // skip list parameters: a time node is promoted to the next level with
+    // probability 1/SKIP_FANOUT, up to MAX_SKIP_LEVEL express lanes
+    protected static final int MAX_SKIP_LEVEL = 16;
+    protected static final int DEFAULT_BATCH_SIZE = 10000;
+    private static final int SKIP_FANOUT = 4;
+
+    // time nodes read per transaction by the lazy chain scans
+    static final int SCAN_PAGE_SIZE = 1000;
+
+    static final RelationshipType[] SKIP_TYPES =
+            new RelationshipType[MAX_SKIP_LEVEL + 1];
+    static
+    {
+        for ( int level = 1; level <= MAX_SKIP_LEVEL; level++ )
+        {
+            SKIP_TYPES[level] = RelationshipType.withName(
+                    "TIMELINE_SKIP_" + level );
+        }
+    }
+
+    // see TimelineMetrics: hops are those taken to locate a timestamp, and
+    // each insert is counted once, by the way its place was found
+    private static final TimelineMetrics METRICS = TimelineMetrics.get();
+    private static final TimelineMetrics.Histogram ADD_NODE_LATENCY =
+            METRICS.latency( "add_node" );
+    private static final TimelineMetrics.Histogram APPEND_NODE_LATENCY =
+            METRICS.latency( "append_node" );
+    private static final TimelineMetrics.Histogram ADD_NODES_LATENCY =
+            METRICS.latency( "add_nodes" );
+    private static final TimelineMetrics.Histogram REMOVE_NODE_LATENCY =
+            METRICS.latency( "remove_node" );
+    private static final TimelineMetrics.Histogram GET_NODES_LATENCY =
+            METRICS.latency( "get_nodes" );
+    private static final TimelineMetrics.Histogram SCAN_PAGE_LATENCY =
+            METRICS.latency( "scan_page" );
+    private static final TimelineMetrics.Histogram GET_PAGE_LATENCY =
+            METRICS.latency( "get_page" );
+    private static final TimelineMetrics.Histogram GET_TIMESTAMPS_LATENCY =
+            METRICS.latency( "get_timestamps" );
+    private static final TimelineMetrics.Histogram DELETE_BATCH_LATENCY =
+            METRICS.latency( "delete_batch" );
+    private static final TimelineMetrics.Histogram INSERT_HOPS =
+            METRICS.histogram( "insert.chain_hops" );
+    private static final TimelineMetrics.Counter CHAIN_HOPS =
+            METRICS.counter( "chain_hops" );
+    private static final TimelineMetrics.Counter SKIP_HOPS =
+            METRICS.counter( "skip_hops" );
+    private static final TimelineMetrics.Counter INSERT_APPEND =
+            METRICS.counter( "insert.append" );
+    private static final TimelineMetrics.Counter INSERT_TAIL =
+            METRICS.counter( "insert.tail" );
+    private static final TimelineMetrics.Counter INSERT_SEARCH =
+            METRICS.counter( "insert.search" );
+    private static final TimelineMetrics.Counter INSERT_MERGE =
+            METRICS.counter( "insert.merge" );
+    private static final TimelineMetrics.Counter INSERT_EXISTING =
+            METRICS.counter( "insert.existing_time_node" );
+    private static final TimelineMetrics.Counter INSERT_RETRIES =
+            METRICS.counter( "insert.retries" );
+    private static final TimelineMetrics.Counter APPEND_FALLBACKS =
+            METRICS.counter( "append.fallbacks" );
+    private static final TimelineMetrics.Counter REMOVE_RETRIES =
+            METRICS.counter( "remove.retries" );
+
+    private final Random random = new Random();
 
     protected final Node underlyingNode;
     protected final String name;
     protected final GraphDatabaseService graphDb;
 
-    // lazy init cache holders for first and last
-    protected Node firstNode;
-    protected Node lastNode;
+    // lazy init cache holders for first and last, cleared by the writers
+    protected volatile Node firstNode;
+    protected volatile Node lastNode;
+
+    // append mode state, primed by the first appendNode call: the end of the
+    // chain and of every skip list level. It is replaced as a whole, and
+    // checked under lock before use, since other writers may move the end
+    private volatile Position appendPosition;
 
     /**
      * Creates/loads a timeline. The <CODE>underlyingNode</CODE> can either be a
@@ -101,7 +189,7 @@ public class BaseTimeline //implements TimelineIndex
         }
         finally
         {
-            tx.finish();
+            tx.close();
         }
     }
 
@@ -175,117 +263,977 @@ public class BaseTimeline //implements TimelineIndex
         {
             throw new IllegalArgumentException( "Null node" );
         }
+        long start = TimelineMetrics.startTime();
         Transaction tx = graphDb.beginTx();
         try
         {
-            for ( Relationship rel : nodeToAdd.getRelationships( RelTypes.TIMELINE_INSTANCE ) )
+            insert( tx, nodeToAdd, timestamp, null, null );
+            tx.success();
+        }
+        finally
+        {
+            tx.close();
+            ADD_NODE_LATENCY.recordSince( start );
+        }
+    }
+
+    /**
+     * Inserts a node into the chain, creating its time node if needed, and
+     * returns the place where it was inserted. The place of the timestamp
+     * is looked up from <CODE>from</CODE> and <CODE>skipPredecessors</CODE>
+     * when given (see {@link #findPosition(long, int, Node, Node[])}) and
+     * looked up again from scratch whenever other writers changed it before
+     * its nodes were locked.
+     */
+    private Position insert( Transaction tx, Node nodeToAdd, long timestamp,
+            Node from, Node[] skipPredecessors )
+    {
+        int level = randomSkipLevel();
+        while ( true )
+        {
+            Position position;
+            boolean existing;
+            try
+            {
+                position = findPosition( timestamp, level, from,
+                        skipPredecessors );
+                Node next = position.successors[0];
+                existing = next != null && !next.equals( underlyingNode )
+                           && (Long) next.getProperty( TIMESTAMP ) == timestamp;
+            }
+            catch ( NotFoundException e )
+            {
+                // a node on the way was removed meanwhile
+                INSERT_RETRIES.increment();
+                from = null;
+                skipPredecessors = null;
+                continue;
+            }
+            // an instance of an existing time node only changes that node,
+            // which cannot be removed while its predecessor is locked
+            int lockedLevel = existing ? 0 : level;
+            List<Lock> locks = lockPosition( tx, position, lockedLevel,
+                    nodeToAdd );
+            if ( !isLinked( position, lockedLevel ) )
+            {
+                release( locks );
+                INSERT_RETRIES.increment();
+                from = null;
+                skipPredecessors = null;
+                continue;
+            }
+            assertNotInTimeline( nodeToAdd );
+            position.path.increment();
+            INSERT_HOPS.record( position.hops );
+            if ( existing )
             {
-                if ( rel.getProperty( TIMELINE_NAME, "" ).equals( name ) )
+                INSERT_EXISTING.increment();
+                createInstance( position.successors[0], nodeToAdd, timestamp );
+                return position;
+            }
+            Node node = createNewTimeNode( timestamp, nodeToAdd );
+            linkTimeNode( node, position, level );
+            if ( position.predecessors[0].equals( underlyingNode ) )
+            {
+                firstNode = null;
+            }
+            if ( position.successors[0] == null
+                 || position.successors[0].equals( underlyingNode ) )
+            {
+                lastNode = null;
+            }
+            return position;
+        }
+    }
+
+    /**
+     * The place of a timestamp in the chain (level 0) and in the skip list
+     * levels up to <CODE>level</CODE>: for every level, the last node before
+     * the timestamp (or the underlying node) and the node its relationship
+     * of that level leads to, or <CODE>null</CODE> if it has none.
+     */
+    private static final class Position
+    {
+        final int level;
+        final Node[] predecessors;
+        final Node[] successors;
+        // for the end of the chain, the timestamp of the tail
+        long tailTime;
+        // how the place was found, and the chain hops it took
+        TimelineMetrics.Counter path;
+        int hops;
+
+        Position( int level )
+        {
+            this.level = level;
+            this.predecessors = new Node[level + 1];
+            this.successors = new Node[level + 1];
+        }
+    }
+
+    private static RelationshipType getLevelType( int level )
+    {
+        return level == 0 ? RelTypes.TIMELINE_NEXT_ENTRY : SKIP_TYPES[level];
+    }
+
+    /**
+     * Returns the node the relationship of the given level of a node leads
+     * to, or <CODE>null</CODE>.
+     */
+    private static Node getFollowing( Node node, int level )
+    {
+        Relationship rel = node.getSingleRelationship( getLevelType( level ),
+                Direction.OUTGOING );
+        return rel == null ? null : rel.getEndNode();
+    }
+
+    /**
+     * Finds the place of a timestamp without locking. The chain is walked
+     * from <CODE>from</CODE>, a node known to come before the timestamp,
+     * or else from the tail or the first time node at or after the
+     * timestamp; the skip list predecessors are advanced from
+     * <CODE>skipPredecessors</CODE> when given, or else searched from the
+     * underlying node.
+     */
+    private Position findPosition( long timestamp, int level, Node from,
+            Node[] skipPredecessors )
+    {
+        Node previous = from;
+        TimelineMetrics.Counter path = INSERT_MERGE;
+        if ( previous == null )
+        {
+            Relationship last = underlyingNode.getSingleRelationship(
+                    RelTypes.TIMELINE_NEXT_ENTRY, Direction.INCOMING );
+            path = INSERT_TAIL;
+            if ( last == null )
+            {
+                // timeline is empty
+                previous = underlyingNode;
+            }
+            else if ( (Long) last.getStartNode().getProperty( TIMESTAMP ) < timestamp )
+            {
+                // add it last in chain
+                previous = last.getStartNode();
+            }
+            else
+            {
+                // find where to insert
+                path = INSERT_SEARCH;
+                Node next = getFirstTimeNodeFrom( timestamp );
+                Relationship rel = ( next == null ) ? null
+                        : next.getSingleRelationship(
+                                RelTypes.TIMELINE_NEXT_ENTRY,
+                                Direction.INCOMING );
+                previous = ( rel == null ) ? null : rel.getStartNode();
+                if ( previous == null
+                     || ( !previous.equals( underlyingNode ) && (Long) previous.getProperty( TIMESTAMP ) >= timestamp ) )
                 {
-                    throw new IllegalArgumentException(
-                            "Node[" + nodeToAdd.getId()
-                                    + "] already connected to Timeline[" + name
-                                    + "]" );
+                    // the chain changed between the two reads
+                    previous = findSkipPredecessors( timestamp )[1];
                 }
             }
-            Relationship rel = underlyingNode.getSingleRelationship(
-                    RelTypes.TIMELINE_NEXT_ENTRY, Direction.INCOMING );
-            if ( rel == null )
+        }
+        Node next = getFollowing( previous, 0 );
+        int hops = 0;
+        while ( next != null && !next.equals( underlyingNode )
+                && (Long) next.getProperty( TIMESTAMP ) < timestamp )
+        {
+            previous = next;
+            next = getFollowing( next, 0 );
+            hops++;
+        }
+        CHAIN_HOPS.add( hops );
+        Position position = new Position( level );
+        position.predecessors[0] = previous;
+        position.successors[0] = next;
+        position.path = path;
+        position.hops = hops;
+        if ( level > 0 )
+        {
+            if ( skipPredecessors == null )
             {
-                // timeline was empty
-                Node node = createNewTimeNode( timestamp, nodeToAdd );
-                underlyingNode.createRelationshipTo( node,
-                        RelTypes.TIMELINE_NEXT_ENTRY );
-                node.createRelationshipTo( underlyingNode,
-                        RelTypes.TIMELINE_NEXT_ENTRY );
-                firstNode = nodeToAdd;
-                lastNode = nodeToAdd;
+                skipPredecessors = findSkipPredecessors( timestamp );
             }
             else
             {
-                Node previousLast = rel.getStartNode();
-                long previousTime = (Long) previousLast.getProperty( TIMESTAMP );
-                if ( timestamp > previousTime )
+                advanceSkipPredecessors( skipPredecessors, timestamp );
+            }
+            for ( int i = 1; i <= level; i++ )
+            {
+                position.predecessors[i] = skipPredecessors[i];
+                position.successors[i] = getFollowing( skipPredecessors[i], i );
+            }
+        }
+        return position;
+    }
+
+    /**
+     * Write-locks the nodes of a place up to the given level and the other
+     * given nodes, in node id order, so that writers locking overlapping places
+     * never wait for each other in a cycle.
+     */
+    private List<Lock> lockPosition( Transaction tx, Position position,
+            int level, Node... others )
+    {
+        List<Node> nodes = new ArrayList<Node>( Arrays.asList( others ) );
+        for ( int i = 0; i <= level; i++ )
+        {
+            nodes.add( position.predecessors[i] );
+            if ( position.successors[i] != null )
+            {
+                nodes.add( position.successors[i] );
+            }
+        }
+        return lockNodes( tx, nodes );
+    }
+
+    private List<Lock> lockNodes( Transaction tx, List<Node> nodes )
+    {
+        Node[] sorted = nodes.toArray( new Node[nodes.size()] );
+        Arrays.sort( sorted, new Comparator<Node>()
+        {
+            public int compare( Node n1, Node n2 )
+            {
+                return Long.compare( n1.getId(), n2.getId() );
+            }
+        } );
+        List<Lock> locks = new ArrayList<Lock>( sorted.length );
+        for ( int i = 0; i < sorted.length; i++ )
+        {
+            if ( i == 0 || !sorted[i].equals( sorted[i - 1] ) )
+            {
+                locks.add( tx.acquireWriteLock( sorted[i] ) );
+            }
+        }
+        return locks;
+    }
+
+    /**
+     * Write-locks a node until the enclosing transaction ends.
+     */
+    protected void lockNode( Node node )
+    {
+        Transaction tx = graphDb.beginTx();
+        try
+        {
+            tx.acquireWriteLock( node );
+            tx.success();
+        }
+        finally
+        {
+            tx.close();
+        }
+    }
+
+    private static void release( List<Lock> locks )
+    {
+        for ( Lock lock : locks )
+        {
+            lock.release();
+        }
+    }
+
+    /**
+     * Checks, once its nodes are locked, that every predecessor of a place
+     * up to the given level still leads to its successor.
+     */
+    private static boolean isLinked( Position position, int level )
+    {
+        try
+        {
+            for ( int i = 0; i <= level; i++ )
+            {
+                Node following = getFollowing( position.predecessors[i], i );
+                Node successor = position.successors[i];
+                if ( following == null ? successor != null
+                        : !following.equals( successor ) )
+                {
+                    return false;
+                }
+            }
+            return true;
+        }
+        catch ( NotFoundException e )
+        {
+            // the predecessor was removed
+            return false;
+        }
+    }
+
+    private void assertNotInTimeline( Node nodeToAdd )
+    {
+        for ( Relationship rel : nodeToAdd.getRelationships( RelTypes.TIMELINE_INSTANCE ) )
+        {
+            if ( rel.getProperty( TIMELINE_NAME, "" ).equals( name ) )
+            {
+                throw new IllegalArgumentException(
+                        "Node[" + nodeToAdd.getId()
+                                + "] already connected to Timeline[" + name
+                                + "]" );
+            }
+        }
+    }
+
+    public void addNodes( Iterable<Node> nodesToAdd, long[] timestamps )
+    {
+        addNodes( nodesToAdd, timestamps, DEFAULT_BATCH_SIZE );
+    }
+
+    /**
+     * Adds a batch of nodes to the timeline. The nodes are sorted by
+     * timestamp and merged into the existing chain in a single pass,
+     * committing every <CODE>batchSize</CODE> nodes.
+     * 
+     * @param nodesToAdd the nodes to add
+     * @param timestamps the timestamps of the nodes, in the same order
+     * @param batchSize the number of nodes added per transaction
+     */
+    public void addNodes( Iterable<Node> nodesToAdd, final long[] timestamps,
+            int batchSize )
+    {
+        if ( nodesToAdd == null || timestamps == null )
+        {
+            throw new IllegalArgumentException( "Null parameter." );
+        }
+        if ( batchSize < 1 )
+        {
+            throw new IllegalArgumentException( "Batch size must be positive" );
+        }
+        List<Node> nodes = new ArrayList<Node>( timestamps.length );
+        for ( Node node : nodesToAdd )
+        {
+            if ( node == null )
+            {
+                throw new IllegalArgumentException( "Null node" );
+            }
+            nodes.add( node );
+        }
+        if ( nodes.size() != timestamps.length )
+        {
+            throw new IllegalArgumentException( nodes.size() + " nodes but "
+                                                + timestamps.length
+                                                + " timestamps" );
+        }
+        long start = TimelineMetrics.startTime();
+        Integer[] order = new Integer[timestamps.length];
+        for ( int i = 0; i < order.length; i++ )
+        {
+            order[i] = i;
+        }
+        Arrays.sort( order, new Comparator<Integer>()
+        {
+            public int compare( Integer i1, Integer i2 )
+            {
+                long t1 = timestamps[i1];
+                long t2 = timestamps[i2];
+                return t1 < t2 ? -1 : ( t1 == t2 ? 0 : 1 );
+            }
+        } );
+
+        Transaction tx = graphDb.beginTx();
+        try
+        {
+            // each place is looked up from the previous one, so that the
+            // chain and the skip list are walked once
+            Node[] skipPredecessors = findSkipPredecessors( Long.MIN_VALUE );
+            Node previous = null;
+            int count = 0;
+            for ( int index : order )
+            {
+                Position position = insert( tx, nodes.get( index ),
+                        timestamps[index], previous, skipPredecessors );
+                previous = position.predecessors[0];
+                if ( ++count % batchSize == 0 )
+                {
+                    batchAdded();
+                    tx.success();
+                    tx.close();
+                    tx = graphDb.beginTx();
+                }
+            }
+            batchAdded();
+            firstNode = null;
+            lastNode = null;
+            tx.success();
+        }
+        finally
+        {
+            tx.close();
+            ADD_NODES_LATENCY.recordSince( start );
+        }
+    }
+
+    /**
+     * Returns the time node following the given one in the chain, or
+     * <CODE>null</CODE> if it is the last one.
+     */
+    private Node getNextTimeNode( Node timeNode )
+    {
+        Relationship rel = timeNode.getSingleRelationship(
+                RelTypes.TIMELINE_NEXT_ENTRY, Direction.OUTGOING );
+        if ( rel == null || rel.getEndNode().equals( underlyingNode ) )
+        {
+            return null;
+        }
+        return rel.getEndNode();
+    }
+
+    /**
+     * Returns the first time node with a timestamp greater or equal to the
+     * given one, or <CODE>null</CODE> if there is none.
+     */
+    protected Node getFirstTimeNodeFrom( long timestamp )
+    {
+        Node timeNode = getIndexedStartNode( timestamp );
+        if ( timeNode.equals( underlyingNode ) )
+        {
+            Relationship rel = underlyingNode.getSingleRelationship(
+                    RelTypes.TIMELINE_NEXT_ENTRY, Direction.OUTGOING );
+            timeNode = ( rel == null ) ? null : rel.getEndNode();
+        }
+        int hops = 0;
+        while ( timeNode != null
+                && (Long) timeNode.getProperty( TIMESTAMP ) < timestamp )
+        {
+            timeNode = getNextTimeNode( timeNode );
+            hops++;
+        }
+        CHAIN_HOPS.add( hops );
+        return timeNode;
+    }
+
+    /**
+     * Returns one page of the nodes with a timestamp in
+     * [<CODE>startTime</CODE>, <CODE>endTime</CODE>), in timestamp order and
+     * by id for equal timestamps.
+     * 
+     * @param startTime the (inclusive) start of the range
+     * @param endTime the (exclusive) end of the range
+     * @param cursor the cursor returned with the previous page, or
+     *            <CODE>null</CODE> for the first page
+     * @param pageSize the maximum number of nodes in the page
+     */
+    public TimelinePage getPage( long startTime, long endTime, String cursor,
+            int pageSize )
+    {
+        if ( startTime >= endTime )
+        {
+            throw new IllegalArgumentException(
+                    "Start time greater or equal to end time" );
+        }
+        if ( pageSize < 1 )
+        {
+            throw new IllegalArgumentException( "Page size must be positive" );
+        }
+        long cursorTime = Long.MIN_VALUE;
+        long cursorId = -1;
+        if ( cursor != null )
+        {
+            long[] position = TimelinePage.parseCursor( cursor );
+            cursorTime = position[0];
+            cursorId = position[1];
+        }
+        long start = TimelineMetrics.startTime();
+        TimelinePage page = new TimelinePage( pageSize );
+        Node timeNode = getFirstTimeNodeFrom( Math.max( startTime, cursorTime ) );
+        while ( timeNode != null )
+        {
+            long time = (Long) timeNode.getProperty( TIMESTAMP );
+            if ( time >= endTime )
+            {
+                break;
+            }
+            for ( long nodeId : getInstanceIds( timeNode ) )
+            {
+                if ( time == cursorTime && nodeId <= cursorId )
                 {
-                    // add it last in chain
-                    Node node = createNewTimeNode( timestamp, nodeToAdd );
-                    rel.delete();
-                    previousLast.createRelationshipTo( node,
-                            RelTypes.TIMELINE_NEXT_ENTRY );
-                    node.createRelationshipTo( underlyingNode,
-                            RelTypes.TIMELINE_NEXT_ENTRY );
-                    lastNode = nodeToAdd;
+                    continue;
                 }
-                else if ( timestamp == previousTime )
+                if ( page.isFull() )
                 {
-                	Relationship instanceRel = previousLast.createRelationshipTo( nodeToAdd,
-                            RelTypes.TIMELINE_INSTANCE );
-                	instanceRel.setProperty( TIMELINE_NAME, name );
+                    page.setHasMore();
+                    GET_PAGE_LATENCY.recordSince( start );
+                    return page;
                 }
-                else
+                page.add( nodeId, time );
+            }
+            timeNode = getNextTimeNode( timeNode );
+        }
+        GET_PAGE_LATENCY.recordSince( start );
+        return page;
+    }
+
+    private long[] getInstanceIds( Node timeNode )
+    {
+        List<Relationship> rels = new ArrayList<Relationship>();
+        for ( Relationship rel : timeNode.getRelationships(
+                RelTypes.TIMELINE_INSTANCE, Direction.OUTGOING ) )
+        {
+            rels.add( rel );
+        }
+        long[] ids = new long[rels.size()];
+        for ( int i = 0; i < ids.length; i++ )
+        {
+            ids[i] = rels.get( i ).getEndNode().getId();
+        }
+        Arrays.sort( ids );
+        return ids;
+    }
+
+    /**
+     * Lazily walks the chain from the given time node, returning the nodes
+     * connected to each time node with a timestamp lower than
+     * <CODE>endTime</CODE>, in timestamp order.
+     * 
+     * @param fromTimeNode the first time node to visit, or <CODE>null</CODE>
+     *            for an empty result
+     * @param endTime the (exclusive) end of the walk
+     */
+    protected Iterable<Node> getChainNodes( final Node fromTimeNode,
+            final long endTime )
+    {
+        return new Iterable<Node>()
+        {
+            public Iterator<Node> iterator()
+            {
+                return new Iterator<Node>()
                 {
-                    // find where to insert
-                    Iterator<Node> itr = getAllTimeNodesAfter( timestamp ).iterator();
-                    assert itr.hasNext();
-                    Node next = itr.next();
-                    rel = next.getSingleRelationship(
-                            RelTypes.TIMELINE_NEXT_ENTRY, Direction.INCOMING );
-                    assert rel != null;
-                    Node previous = rel.getStartNode();
-                    long previousTimestamp = Long.MIN_VALUE;
-                    if ( !previous.equals( underlyingNode ) )
+                    private Node timeNode = fromTimeNode;
+                    private Iterator<Relationship> instances = null;
+
+                    public boolean hasNext()
                     {
-                        previousTimestamp = (Long) previous.getProperty( TIMESTAMP );
+                        while ( timeNode != null
+                                && ( instances == null || !instances.hasNext() ) )
+                        {
+                            if ( instances != null )
+                            {
+                                timeNode = getNextTimeNode( timeNode );
+                                instances = null;
+                            }
+                            else if ( (Long) timeNode.getProperty( TIMESTAMP ) >= endTime )
+                            {
+                                timeNode = null;
+                            }
+                            else
+                            {
+                                instances = timeNode.getRelationships(
+                                        RelTypes.TIMELINE_INSTANCE,
+                                        Direction.OUTGOING ).iterator();
+                            }
+                        }
+                        return timeNode != null;
                     }
-                    if ( previousTimestamp == timestamp )
+
+                    public Node next()
                     {
-                        // just connect previous with node to add
-                    	Relationship instanceRel = previous.createRelationshipTo( nodeToAdd,
-                                RelTypes.TIMELINE_INSTANCE );
-                    	instanceRel.setProperty( TIMELINE_NAME, name );
-                        return;
+                        if ( !hasNext() )
+                        {
+                            throw new NoSuchElementException();
+                        }
+                        return instances.next().getEndNode();
                     }
-                    long nextTimestamp = (Long) next.getProperty( TIMESTAMP );
-                    if ( nextTimestamp == timestamp )
+
+                    public void remove()
                     {
-                        // just connect next with node to add
-                    	Relationship instanceRel = next.createRelationshipTo( nodeToAdd,
-                                RelTypes.TIMELINE_INSTANCE );
-                    	instanceRel.setProperty( TIMELINE_NAME, name );
-                        return;
+                        throw new UnsupportedOperationException();
                     }
+                };
+            }
+        };
+    }
 
-                    assert previousTimestamp < timestamp;
-                    assert nextTimestamp > timestamp;
+    /**
+     * Appends a node at the end of the timeline. This is meant for in-order
+     * ingestion: the tail time node, its timestamp and the tails of the skip
+     * list levels are kept in memory, so that each call does a constant
+     * amount of work. They are locked and checked against the chain before
+     * use, and found again if other writers moved the end meanwhile.
+     * 
+     * Unlike {@link #addNode(Node, long)} this method neither checks whether
+     * the node is already part of the timeline nor commits: it must be
+     * called within a transaction, which holds the locks taken until it
+     * ends. If the timestamp is lower than the last one in the timeline, it
+     * falls back to {@link #addNode(Node, long)}.
+     * 
+     * @param nodeToAdd the node to append, not yet in this timeline
+     * @param timestamp the timestamp of the node
+     */
+    public void appendNode( Node nodeToAdd, long timestamp )
+    {
+        if ( nodeToAdd == null )
+        {
+            throw new IllegalArgumentException( "Null node" );
+        }
+        // nested in the caller's transaction, only to take the locks
+        long start = TimelineMetrics.startTime();
+        Transaction tx = graphDb.beginTx();
+        try
+        {
+            append( tx, nodeToAdd, timestamp );
+            tx.success();
+        }
+        finally
+        {
+            tx.close();
+            APPEND_NODE_LATENCY.recordSince( start );
+        }
+    }
 
-                    Node node = createNewTimeNode( timestamp, nodeToAdd );
-                    rel.delete();
-                    previous.createRelationshipTo( node,
-                            RelTypes.TIMELINE_NEXT_ENTRY );
-                    node.createRelationshipTo( next,
-                            RelTypes.TIMELINE_NEXT_ENTRY );
-                    if ( previous.equals( underlyingNode ) )
-                    {
-                        firstNode = nodeToAdd;
-                    }
+    private void append( Transaction tx, Node nodeToAdd, long timestamp )
+    {
+        int level = randomSkipLevel();
+        Position tail = appendPosition;
+        while ( true )
+        {
+            if ( tail == null )
+            {
+                try
+                {
+                    tail = findTail();
+                }
+                catch ( NotFoundException e )
+                {
+                    // a tail was removed meanwhile
+                    continue;
+                }
+                if ( tail == null )
+                {
+                    // timeline was empty
+                    APPEND_FALLBACKS.increment();
+                    insert( tx, nodeToAdd, timestamp, null, null );
+                    return;
+                }
+            }
+            if ( timestamp < tail.tailTime )
+            {
+                APPEND_FALLBACKS.increment();
+                insert( tx, nodeToAdd, timestamp, null, null );
+                return;
+            }
+            int lockedLevel = ( timestamp == tail.tailTime ) ? 0 : level;
+            List<Lock> locks = lockPosition( tx, tail, lockedLevel, nodeToAdd );
+            if ( !isLinked( tail, lockedLevel ) )
+            {
+                release( locks );
+                INSERT_RETRIES.increment();
+                tail = null;
+                continue;
+            }
+            INSERT_APPEND.increment();
+            if ( timestamp == tail.tailTime )
+            {
+                createInstance( tail.predecessors[0], nodeToAdd, timestamp );
+                appendPosition = tail;
+                return;
+            }
+            Node node = createNewTimeNode( timestamp, nodeToAdd );
+            linkTimeNode( node, tail, level );
+            // the new node is the tail of the chain and of its levels
+            Position next = new Position( MAX_SKIP_LEVEL );
+            for ( int i = 0; i <= MAX_SKIP_LEVEL; i++ )
+            {
+                next.predecessors[i] = ( i <= level ) ? node
+                        : tail.predecessors[i];
+                next.successors[i] = tail.successors[i];
+            }
+            next.tailTime = timestamp;
+            appendPosition = next;
+            lastNode = null;
+            return;
+        }
+    }
+
+    /**
+     * Returns the place at the end of the chain and of every skip list
+     * level, or <CODE>null</CODE> if the timeline is empty.
+     */
+    private Position findTail()
+    {
+        Relationship rel = underlyingNode.getSingleRelationship(
+                RelTypes.TIMELINE_NEXT_ENTRY, Direction.INCOMING );
+        if ( rel == null )
+        {
+            return null;
+        }
+        Position tail = new Position( MAX_SKIP_LEVEL );
+        tail.predecessors[0] = rel.getStartNode();
+        tail.successors[0] = underlyingNode;
+        tail.tailTime = (Long) rel.getStartNode().getProperty( TIMESTAMP );
+        Node[] skipTails = findSkipPredecessors( Long.MAX_VALUE );
+        System.arraycopy( skipTails, 1, tail.predecessors, 1, MAX_SKIP_LEVEL );
+        return tail;
+    }
+
+    private Node createNewTimeNode( long timestamp, Node nodeToAdd )
+    {
+        Node node = graphDb.createNode();
+        node.setProperty( TIMESTAMP, timestamp );
+        timeNodeCreated( node, timestamp );
+        createInstance( node, nodeToAdd, timestamp );
+        return node;
+    }
+
+    /**
+     * Connects a node to its time node. The timestamp is denormalized on the
+     * instance relationship, so that it can be read without visiting the
+     * time node.
+     */
+    private void createInstance( Node timeNode, Node nodeToAdd, long timestamp )
+    {
+        Relationship instanceRel = timeNode.createRelationshipTo( nodeToAdd,
+                RelTypes.TIMELINE_INSTANCE );
+        instanceRel.setProperty( TIMELINE_NAME, name );
+        instanceRel.setProperty( TIMESTAMP, timestamp );
+        instanceAdded( timeNode, nodeToAdd, timestamp );
+    }
+
+    /**
+     * Called whenever a new time node is created, before it is linked into
+     * the chain. Subclasses can override it to maintain additional
+     * structures over the time nodes.
+     */
+    protected void timeNodeCreated( Node timeNode, long timestamp )
+    {
+    }
+
+    /**
+     * Called whenever a node has been connected to its time node, in the
+     * transaction adding it and with the time node locked.
+     */
+    protected void instanceAdded( Node timeNode, Node node, long timestamp )
+    {
+    }
+
+    /**
+     * Called whenever a node is about to be disconnected from its time node,
+     * in the transaction removing it and with the time node locked. The bulk
+     * deletions call it too, for every node of the time nodes they delete,
+     * before {@link #timeNodesDeleted(long)}.
+     */
+    protected void instanceRemoved( Node timeNode, Node node, long timestamp )
+    {
+    }
+
+    /**
+     * Called by {@link #addNodes(Iterable, long[], int)} before committing
+     * each batch, so that subclasses can write what they collected for it.
+     */
+    protected void batchAdded()
+    {
+    }
+
+    /**
+     * Called whenever a time node is about to be deleted, after it has been
+     * unlinked from the chain.
+     */
+    protected void timeNodeDeleted( Node timeNode, long timestamp )
+    {
+    }
+
+    /**
+     * Called by the bulk deletions, instead of
+     * {@link #timeNodeDeleted(Node, long)}, once they have deleted all the
+     * time nodes up to <CODE>timestamp</CODE> with their relationships, in
+     * the same transaction.
+     */
+    protected void timeNodesDeleted( long timestamp )
+    {
+    }
+
+    /**
+     * Links a freshly created time node into the chain and into the skip
+     * list levels up to <CODE>level</CODE>, at a place whose nodes are
+     * locked.
+     */
+    private void linkTimeNode( Node timeNode, Position position, int level )
+    {
+        for ( int i = 0; i <= level; i++ )
+        {
+            RelationshipType type = getLevelType( i );
+            Node predecessor = position.predecessors[i];
+            Relationship express = predecessor.getSingleRelationship( type,
+                    Direction.OUTGOING );
+            if ( express != null )
+            {
+                Node successor = express.getEndNode();
+                express.delete();
+                timeNode.createRelationshipTo( successor, type );
+            }
+            else if ( i == 0 )
+            {
+                // timeline was empty
+                timeNode.createRelationshipTo( underlyingNode, type );
+            }
+            predecessor.createRelationshipTo( timeNode, type );
+        }
+        // the underlying node is the locked predecessor of the levels above
+        // the current ones
+        if ( level > getSkipLevels() )
+        {
+            underlyingNode.setProperty( SKIP_LEVELS, level );
+        }
+    }
+
+    /**
+     * Unlinks a time node from every skip list level it takes part in.
+     */
+    private void unindexTimeNode( Node timeNode )
+    {
+        for ( int i = 1; i <= MAX_SKIP_LEVEL; i++ )
+        {
+            Relationship incoming = timeNode.getSingleRelationship(
+                    SKIP_TYPES[i], Direction.INCOMING );
+            if ( incoming == null )
+            {
+                // a node is linked at all levels up to its own
+                break;
+            }
+            Node predecessor = incoming.getStartNode();
+            incoming.delete();
+            Relationship outgoing = timeNode.getSingleRelationship(
+                    SKIP_TYPES[i], Direction.OUTGOING );
+            if ( outgoing != null )
+            {
+                Node successor = outgoing.getEndNode();
+                outgoing.delete();
+                predecessor.createRelationshipTo( successor, SKIP_TYPES[i] );
+            }
+        }
+    }
+
+    private int randomSkipLevel()
+    {
+        return randomSkipLevel( random );
+    }
+
+    static int randomSkipLevel( Random random )
+    {
+        int level = 0;
+        while ( level < MAX_SKIP_LEVEL && random.nextInt( SKIP_FANOUT ) == 0 )
+        {
+            level++;
+        }
+        return level;
+    }
+
+    private int getSkipLevels()
+    {
+        return (Integer) underlyingNode.getProperty( SKIP_LEVELS, 0 );
+    }
+
+    /**
+     * Searches the skip list for the given timestamp. The returned array
+     * holds, for every level (1-based), the last node on that level with a
+     * timestamp strictly lower than <CODE>timestamp</CODE>, or the
+     * underlying node if there is none.
+     */
+    private Node[] findSkipPredecessors( long timestamp )
+    {
+        Node[] predecessors = new Node[MAX_SKIP_LEVEL + 1];
+        Arrays.fill( predecessors, underlyingNode );
+        advanceSkipPredecessors( predecessors, timestamp );
+        return predecessors;
+    }
+
+    /**
+     * Moves the skip list predecessors found for a lower timestamp forward to
+     * the given one, so that a sorted sequence of lookups takes a single pass
+     * over the index.
+     */
+    private void advanceSkipPredecessors( Node[] predecessors, long timestamp )
+    {
+        Node current = underlyingNode;
+        long currentTime = Long.MIN_VALUE;
+        int hops = 0;
+        for ( int i = getSkipLevels(); i >= 1; i-- )
+        {
+            // resume from the later of the previous position on this level
+            // and the position reached on the level above
+            Node resume = predecessors[i];
+            if ( !resume.equals( underlyingNode ) )
+            {
+                long resumeTime = (Long) resume.getProperty( TIMESTAMP );
+                if ( resumeTime > currentTime )
+                {
+                    current = resume;
+                    currentTime = resumeTime;
+                }
+            }
+            Relationship express = current.getSingleRelationship(
+                    SKIP_TYPES[i], Direction.OUTGOING );
+            while ( express != null )
+            {
+                Node candidate = express.getEndNode();
+                long candidateTime = (Long) candidate.getProperty( TIMESTAMP );
+                if ( candidateTime >= timestamp )
+                {
+                    break;
+                }
+                current = candidate;
+                currentTime = candidateTime;
+                express = current.getSingleRelationship( SKIP_TYPES[i],
+                        Direction.OUTGOING );
+                hops++;
+            }
+            predecessors[i] = current;
+        }
+        SKIP_HOPS.add( hops );
+    }
+
+    /**
+     * Builds the skip list index for a timeline whose time nodes are not
+     * (or only partially) indexed, e.g. one created before the index was
+     * introduced. Any existing index is dropped first.
+     */
+    public void buildIndex()
+    {
+        appendPosition = null;
+        Transaction tx = graphDb.beginTx();
+        try
+        {
+            dropSkipRelationships( underlyingNode );
+            Node[] tails = new Node[MAX_SKIP_LEVEL + 1];
+            for ( int i = 1; i <= MAX_SKIP_LEVEL; i++ )
+            {
+                tails[i] = underlyingNode;
+            }
+            int levels = 0;
+            Relationship rel = underlyingNode.getSingleRelationship(
+                    RelTypes.TIMELINE_NEXT_ENTRY, Direction.OUTGOING );
+            while ( rel != null && !rel.getEndNode().equals( underlyingNode ) )
+            {
+                Node timeNode = rel.getEndNode();
+                dropSkipRelationships( timeNode );
+                int level = randomSkipLevel();
+                for ( int i = 1; i <= level; i++ )
+                {
+                    tails[i].createRelationshipTo( timeNode, SKIP_TYPES[i] );
+                    tails[i] = timeNode;
                 }
+                levels = Math.max( levels, level );
+                rel = timeNode.getSingleRelationship(
+                        RelTypes.TIMELINE_NEXT_ENTRY, Direction.OUTGOING );
             }
+            underlyingNode.setProperty( SKIP_LEVELS, levels );
             tx.success();
         }
         finally
         {
-            tx.finish();
+            tx.close();
         }
     }
 
-    private Node createNewTimeNode( long timestamp, Node nodeToAdd )
+    private void dropSkipRelationships( Node node )
     {
-        Node node = graphDb.createNode();
-        node.setProperty( TIMESTAMP, timestamp );
-        Relationship instanceRel = node.createRelationshipTo( nodeToAdd,
-                RelTypes.TIMELINE_INSTANCE );
-        instanceRel.setProperty( TIMELINE_NAME, name );
-        return node;
+        for ( int i = 1; i <= MAX_SKIP_LEVEL; i++ )
+        {
+            for ( Relationship rel : node.getRelationships( SKIP_TYPES[i],
+                    Direction.OUTGOING ) )
+            {
+                rel.delete();
+            }
+        }
     }
 
     public long getTimestampForNode( Node node )
@@ -293,40 +1241,92 @@ public class BaseTimeline //implements TimelineIndex
         Transaction tx = graphDb.beginTx();
         try
         {
-            Traverser traverser = node.traverse( Traverser.Order.DEPTH_FIRST,
-                    StopEvaluator.END_OF_GRAPH, new ReturnableEvaluator()
-                    {
-                        public boolean isReturnableNode(
-                                TraversalPosition position )
-                        {
-                            Node currentNode = position.currentNode();
-                            return currentNode != null
-                                   && !currentNode.hasRelationship(
-                                           RelTypes.TIMELINE_INSTANCE,
-                                           Direction.INCOMING );
-                        }
-                    }, RelTypes.TIMELINE_INSTANCE, Direction.INCOMING );
-
-            Iterator<Node> hits = traverser.iterator();
-            Long result = null;
-            if ( hits.hasNext() )
-            {
-                Node hit = hits.next();
-                result = (Long) hit.getProperty( TIMESTAMP );
-            }
-            else
+            Relationship instanceRel = getInstanceRelationship( node );
+            if ( instanceRel == null )
             {
                 throw new RuntimeException(
-                        "No timpestamp found for '" + node
+                        "No timestamp found for '" + node
                                 + "' maybe it's not in the timeline?" );
             }
+            long result = getInstanceTimestamp( instanceRel );
             tx.success();
             return result;
         }
         finally
         {
-            tx.finish();
+            tx.close();
+        }
+    }
+
+    /**
+     * Returns the timestamps of many nodes at once, in the same order as
+     * <CODE>nodeIds</CODE>. Nodes that are not in this timeline get
+     * <CODE>Long.MIN_VALUE</CODE>.
+     */
+    public long[] getTimestampsForNodes( long[] nodeIds )
+    {
+        long start = TimelineMetrics.startTime();
+        long[] timestamps = new long[nodeIds.length];
+        Transaction tx = graphDb.beginTx();
+        try
+        {
+            for ( int i = 0; i < nodeIds.length; i++ )
+            {
+                Relationship instanceRel;
+                try
+                {
+                    instanceRel = getInstanceRelationship(
+                            graphDb.getNodeById( nodeIds[i] ) );
+                }
+                catch ( NotFoundException e )
+                {
+                    // deleted, or never created
+                    instanceRel = null;
+                }
+                timestamps[i] = ( instanceRel == null ) ? Long.MIN_VALUE
+                        : getInstanceTimestamp( instanceRel );
+            }
+            tx.success();
+            return timestamps;
+        }
+        finally
+        {
+            tx.close();
+            GET_TIMESTAMPS_LATENCY.recordSince( start );
+        }
+    }
+
+    /**
+     * Returns the instance relationship connecting a node to this timeline.
+     * Relationships without a timeline name (as created by the GEXF loader)
+     * are accepted only if their time node is the one of this timeline at
+     * their timestamp, since they may belong to another timeline.
+     */
+    private Relationship getInstanceRelationship( Node node )
+    {
+        for ( Relationship rel : node.getRelationships(
+                RelTypes.TIMELINE_INSTANCE, Direction.INCOMING ) )
+        {
+            Object relName = rel.getProperty( TIMELINE_NAME, null );
+            if ( relName == null ? rel.getStartNode().equals(
+                    getFirstTimeNodeFrom( getInstanceTimestamp( rel ) ) )
+                    : relName.equals( name ) )
+            {
+                return rel;
+            }
+        }
+        return null;
+    }
+
+    private long getInstanceTimestamp( Relationship instanceRel )
+    {
+        Object timestamp = instanceRel.getProperty( TIMESTAMP, null );
+        if ( timestamp == null )
+        {
+            // instance created before the timestamp was denormalized
+            timestamp = instanceRel.getStartNode().getProperty( TIMESTAMP );
         }
+        return ( (Number) timestamp ).longValue();
     }
     
     public void removeNode(Node nodeToRemove, boolean transactional)
@@ -339,25 +1339,26 @@ public class BaseTimeline //implements TimelineIndex
         {
             throw new IllegalArgumentException( "Cannot remove underlying node" );
         }
+        long start = TimelineMetrics.startTime();
         Transaction tx = graphDb.beginTx();
         try
         {
-            Relationship instanceRel = null;
-            for ( Relationship rel : nodeToRemove.getRelationships( RelTypes.TIMELINE_INSTANCE ) )
+            Relationship instanceRel;
+            while ( true )
             {
-                if ( rel.getProperty( TIMELINE_NAME, "" ).equals( name ) )
+                instanceRel = getRemovedInstance( nodeToRemove );
+                if ( lockNeighbours( tx, instanceRel.getStartNode(),
+                        nodeToRemove ) )
                 {
-                    assert instanceRel == null;
-                    instanceRel = rel;
+                    break;
                 }
+                REMOVE_RETRIES.increment();
             }
-            if ( instanceRel == null )
-            {
-                throw new IllegalArgumentException(
-                        "Node[" + nodeToRemove.getId()
-                                + "] not added to Timeline[" + name + "]" );
-            }
+            // another writer may have removed it before the locks were taken
+            instanceRel = getRemovedInstance( nodeToRemove );
             Node node = instanceRel.getStartNode();
+            instanceRemoved( node, nodeToRemove,
+                    getInstanceTimestamp( instanceRel ) );
             instanceRel.delete();
             if ( firstNode != null && firstNode.equals( nodeToRemove ) )
             {
@@ -370,6 +1371,7 @@ public class BaseTimeline //implements TimelineIndex
             if ( node.getRelationships( RelTypes.TIMELINE_INSTANCE ).iterator().hasNext() )
             {
                 // still have instances connected to this time
+                tx.success();
                 return;
             }
             Relationship incoming = node.getSingleRelationship(
@@ -392,6 +1394,8 @@ public class BaseTimeline //implements TimelineIndex
             Node next = outgoing.getEndNode();
             incoming.delete();
             outgoing.delete();
+            unindexTimeNode( node );
+            timeNodeDeleted( node, (Long) node.getProperty( TIMESTAMP ) );
             node.delete();
             if ( !previous.equals( next ) )
             {
@@ -404,9 +1408,97 @@ public class BaseTimeline //implements TimelineIndex
         {
             if(transactional)
             {
-                tx.finish();
+                tx.close();
+            }
+            REMOVE_NODE_LATENCY.recordSince( start );
+        }
+    }
+
+    private Relationship getRemovedInstance( Node nodeToRemove )
+    {
+        Relationship instanceRel = null;
+        for ( Relationship rel : nodeToRemove.getRelationships( RelTypes.TIMELINE_INSTANCE ) )
+        {
+            if ( rel.getProperty( TIMELINE_NAME, "" ).equals( name ) )
+            {
+                assert instanceRel == null;
+                instanceRel = rel;
+            }
+        }
+        if ( instanceRel == null )
+        {
+            throw new IllegalArgumentException(
+                    "Node[" + nodeToRemove.getId()
+                            + "] not added to Timeline[" + name + "]" );
+        }
+        return instanceRel;
+    }
+
+    /**
+     * Write-locks a time node, its neighbours on the chain and on the skip
+     * list levels it takes part in and the node being removed, in node id
+     * order, and checks that the neighbours are still linked to the time
+     * node. If they are not, the locks are released and false is returned.
+     */
+    private boolean lockNeighbours( Transaction tx, Node timeNode,
+            Node nodeToRemove )
+    {
+        Position position;
+        try
+        {
+            int level = 0;
+            while ( level < MAX_SKIP_LEVEL
+                    && timeNode.hasRelationship( SKIP_TYPES[level + 1],
+                            Direction.INCOMING ) )
+            {
+                level++;
+            }
+            position = new Position( level );
+            for ( int i = 0; i <= level; i++ )
+            {
+                Relationship incoming = timeNode.getSingleRelationship(
+                        getLevelType( i ), Direction.INCOMING );
+                if ( incoming == null )
+                {
+                    // being relinked by another writer
+                    return false;
+                }
+                position.predecessors[i] = incoming.getStartNode();
+                position.successors[i] = getFollowing( timeNode, i );
+            }
+        }
+        catch ( NotFoundException e )
+        {
+            // the time node was removed meanwhile
+            return false;
+        }
+        List<Lock> locks = lockPosition( tx, position, position.level,
+                timeNode, nodeToRemove );
+        try
+        {
+            boolean linked = position.level == MAX_SKIP_LEVEL
+                             || !timeNode.hasRelationship(
+                                     SKIP_TYPES[position.level + 1],
+                                     Direction.INCOMING );
+            for ( int i = 0; linked && i <= position.level; i++ )
+            {
+                Node following = getFollowing( timeNode, i );
+                linked = timeNode.equals( getFollowing(
+                        position.predecessors[i], i ) )
+                         && ( following == null ? position.successors[i] == null
+                                 : following.equals( position.successors[i] ) );
+            }
+            if ( linked )
+            {
+                return true;
             }
         }
+        catch ( NotFoundException e )
+        {
+            // fall through
+        }
+        release( locks );
+        return false;
     }
 
     public void removeNode( Node nodeToRemove )
@@ -440,46 +1532,23 @@ public class BaseTimeline //implements TimelineIndex
 
     public Iterable<Node> getAllNodes()
     {
-        return underlyingNode.traverse(
-                Order.BREADTH_FIRST,
-                StopEvaluator.END_OF_GRAPH,
-                new ReturnableEvaluator()
-                {
-                    public boolean isReturnableNode( TraversalPosition position )
-                    {
-                        Relationship last = position.lastRelationshipTraversed();
-                        if ( last != null
-                             && last.getType().equals(
-                                     RelTypes.TIMELINE_INSTANCE ) )
-                        {
-                            return true;
-                        }
-                        return false;
-                    }
-                }, RelTypes.TIMELINE_INSTANCE, Direction.OUTGOING,
-                RelTypes.TIMELINE_NEXT_ENTRY, Direction.OUTGOING );
+        return scanChain( Long.MIN_VALUE, Long.MAX_VALUE, false );
     }
 
     Iterable<Node> getAllTimeNodes()
     {
-        return underlyingNode.traverse( Order.DEPTH_FIRST,
-                StopEvaluator.END_OF_GRAPH, new ReturnableEvaluator()
-                {
-                    public boolean isReturnableNode( TraversalPosition position )
-                    {
-                        return position.depth() > 0;
-                    }
-                }, RelTypes.TIMELINE_NEXT_ENTRY, Direction.OUTGOING );
+        return scanChain( Long.MIN_VALUE, Long.MAX_VALUE, true );
     }
 
     // from closest lower indexed start relationship
     protected Node getIndexedStartNode( long timestamp )
     {
-        return underlyingNode;
+        return findSkipPredecessors( timestamp )[1];
     }
 
     public Iterable<Node> getNodes( long timestamp )
     {
+        long start = TimelineMetrics.startTime();
         Node currentNode = getIndexedStartNode( timestamp );
         List<Node> nodeList = new ArrayList<Node>();
         if ( currentNode.equals( underlyingNode ) )
@@ -488,12 +1557,14 @@ public class BaseTimeline //implements TimelineIndex
                     Direction.OUTGOING ) )
             {
                 // empty timeline
+                GET_NODES_LATENCY.recordSince( start );
                 return nodeList;
             }
             // no index or best start node is underlying node
             currentNode = currentNode.getSingleRelationship(
                     RelTypes.TIMELINE_NEXT_ENTRY, Direction.OUTGOING ).getEndNode();
         }
+        int hops = 0;
         do
         {
             long currentTime = (Long) currentNode.getProperty( TIMESTAMP );
@@ -513,237 +1584,350 @@ public class BaseTimeline //implements TimelineIndex
             Relationship rel = currentNode.getSingleRelationship(
                     RelTypes.TIMELINE_NEXT_ENTRY, Direction.OUTGOING );
             currentNode = rel.getEndNode();
+            hops++;
         }
         while ( !currentNode.equals( underlyingNode ) );
+        CHAIN_HOPS.add( hops );
+        GET_NODES_LATENCY.recordSince( start );
         return nodeList;
     }
 
     public Iterable<Node> getAllNodesAfter( final long timestamp )
     {
-        Node startNode = getIndexedStartNode( timestamp );
-        return startNode.traverse( Order.DEPTH_FIRST, new StopEvaluator()
-        {
-            public boolean isStopNode( TraversalPosition position )
-            {
-                if ( position.lastRelationshipTraversed() != null
-                     && position.currentNode().equals( underlyingNode ) )
-                {
-                    return true;
-                }
-                return false;
-            }
-        }, new ReturnableEvaluator()
+        return scanChain( timestamp, Long.MAX_VALUE, false );
+    }
+
+    Iterable<Node> getAllTimeNodesAfter( final long timestamp )
+    {
+        return scanChain( timestamp, Long.MAX_VALUE, true );
+    }
+
+    public Iterable<Node> getAllNodesBefore( final long timestamp )
+    {
+        return scanChain( Long.MIN_VALUE, timestamp, false );
+    }
+
+    public Iterable<Node> getAllNodesBetween( final long startTime,
+            final long endTime )
+    {
+        if ( startTime >= endTime )
         {
-            private boolean timeOk = false;
+            throw new IllegalArgumentException(
+                    "Start time greater or equal to end time" );
+        }
+        return scanChain( startTime, endTime, false );
+    }
 
-            public boolean isReturnableNode( TraversalPosition position )
+    /**
+     * Returns the time nodes (or the nodes connected to them) with a
+     * timestamp strictly between <CODE>after</CODE> and <CODE>before</CODE>,
+     * in timestamp order. <CODE>Long.MIN_VALUE</CODE> and
+     * <CODE>Long.MAX_VALUE</CODE> leave the range open. The chain is walked
+     * lazily with kernel cursors, {@link #SCAN_PAGE_SIZE} time nodes per
+     * transaction, each page resuming after the last timestamp of the
+     * previous one, so only the ids of one page are held at a time.
+     */
+    private Iterable<Node> scanChain( final long after, final long before,
+            final boolean timeNodes )
+    {
+        return new Iterable<Node>()
+        {
+            public Iterator<Node> iterator()
             {
-                if ( position.currentNode().equals( underlyingNode ) )
-                {
-                    return false;
-                }
-                Relationship last = position.lastRelationshipTraversed();
-                if ( !timeOk && last != null
-                     && last.getType().equals( RelTypes.TIMELINE_NEXT_ENTRY ) )
-                {
-                    Node node = position.currentNode();
-                    long currentTime = (Long) node.getProperty( TIMESTAMP );
-                    timeOk = currentTime > timestamp;
-                    return false;
-                }
-                if ( timeOk
-                     && last.getType().equals( RelTypes.TIMELINE_INSTANCE ) )
+                return new Iterator<Node>()
                 {
-                    return true;
-                }
-                return false;
+                    private long from = after;
+                    private boolean done = false;
+                    private long[] ids = new long[0];
+                    private int index = 0;
+
+                    public boolean hasNext()
+                    {
+                        while ( index == ids.length && !done )
+                        {
+                            readPage();
+                        }
+                        return index < ids.length;
+                    }
+
+                    public Node next()
+                    {
+                        if ( !hasNext() )
+                        {
+                            throw new NoSuchElementException();
+                        }
+                        return graphDb.getNodeById( ids[index++] );
+                    }
+
+                    public void remove()
+                    {
+                        throw new UnsupportedOperationException();
+                    }
+
+                    private void readPage()
+                    {
+                        long start = TimelineMetrics.startTime();
+                        long[] page = new long[16];
+                        int count = 0;
+                        int visited = 0;
+                        done = true;
+                        Transaction tx = graphDb.beginTx();
+                        try
+                        {
+                            long rootId = underlyingNode.getId();
+                            long timeNodeId = ( from == Long.MIN_VALUE ) ? rootId
+                                    : getIndexedStartNode( from ).getId();
+                            TimelineCursors cursors = new TimelineCursors( graphDb );
+                            try
+                            {
+                                long next = cursors.visit( timeNodeId );
+                                while ( next != TimelineCursors.NO_NODE
+                                        && next != rootId )
+                                {
+                                    long time = cursors.timestamp( next );
+                                    if ( time >= before && before != Long.MAX_VALUE )
+                                    {
+                                        break;
+                                    }
+                                    timeNodeId = next;
+                                    next = cursors.visit( timeNodeId );
+                                    if ( time <= from && from != Long.MIN_VALUE )
+                                    {
+                                        continue;
+                                    }
+                                    int added = timeNodes ? 1 : cursors.instanceCount();
+                                    if ( count + added > page.length )
+                                    {
+                                        page = Arrays.copyOf( page,
+                                                Math.max( page.length * 2, count + added ) );
+                                    }
+                                    if ( timeNodes )
+                                    {
+                                        page[count] = timeNodeId;
+                                    }
+                                    else
+                                    {
+                                        System.arraycopy( cursors.instances(), 0,
+                                                page, count, added );
+                                    }
+                                    count += added;
+                                    from = time;
+                                    if ( ++visited == SCAN_PAGE_SIZE )
+                                    {
+                                        done = false;
+                                        break;
+                                    }
+                                }
+                            }
+                            finally
+                            {
+                                cursors.close();
+                            }
+                            tx.success();
+                        }
+                        finally
+                        {
+                            tx.close();
+                            SCAN_PAGE_LATENCY.recordSince( start );
+                        }
+                        ids = Arrays.copyOf( page, count );
+                        index = 0;
+                    }
+                };
             }
-        }, RelTypes.TIMELINE_NEXT_ENTRY, Direction.OUTGOING,
-                RelTypes.TIMELINE_INSTANCE, Direction.OUTGOING );
+        };
     }
 
-    Iterable<Node> getAllTimeNodesAfter( final long timestamp )
+    /**
+     * Deletes all the time nodes of this timeline, with their relationships
+     * to the nodes in it, in one transaction. The underlying node and the
+     * nodes added to the timeline are kept. See
+     * {@link #delete(int, DeleteListener)} for long timelines.
+     */
+    public void delete()
     {
-        Node startNode = getIndexedStartNode( timestamp );
-        return startNode.traverse( Order.DEPTH_FIRST, new StopEvaluator()
+        appendPosition = null;
+        long start = TimelineMetrics.startTime();
+        Transaction tx = graphDb.beginTx();
+        try
         {
-            public boolean isStopNode( TraversalPosition position )
-            {
-                if ( position.lastRelationshipTraversed() != null
-                     && position.currentNode().equals( underlyingNode ) )
-                {
-                    return true;
-                }
-                return false;
-            }
-        }, new ReturnableEvaluator()
+            deleteTimeNodes( Integer.MAX_VALUE );
+            tx.success();
+        }
+        finally
         {
-            private boolean timeOk = false;
+            tx.close();
+            DELETE_BATCH_LATENCY.recordSince( start );
+        }
+        firstNode = null;
+        lastNode = null;
+    }
 
-            public boolean isReturnableNode( TraversalPosition position )
-            {
-                if ( position.currentNode().equals( underlyingNode ) )
-                {
-                    return false;
-                }
-                Relationship last = position.lastRelationshipTraversed();
-                if ( !timeOk && last != null
-                     && last.getType().equals( RelTypes.TIMELINE_NEXT_ENTRY ) )
-                {
-                    Node node = position.currentNode();
-                    long currentTime = (Long) node.getProperty( TIMESTAMP );
-                    timeOk = currentTime > timestamp;
-                }
-                return timeOk;
-            }
-        }, RelTypes.TIMELINE_NEXT_ENTRY, Direction.OUTGOING );
+    public long delete( int commitInterval )
+    {
+        return delete( commitInterval, null );
     }
 
-    public Iterable<Node> getAllNodesBefore( final long timestamp )
+    /**
+     * Deletes the timeline like {@link #delete()}, committing every
+     * <CODE>commitInterval</CODE> nodes, so that memory use does not depend
+     * on the length of the timeline. Each batch deletes the earliest time
+     * nodes and links the underlying node to the rest of the chain and of
+     * the skip list, which stays a valid timeline after every commit; if the
+     * thread is interrupted, the deletion stops there.
+     * 
+     * Must be called outside of a transaction, since a nested transaction
+     * only commits with the enclosing one, and not concurrently with other
+     * writers of the timeline.
+     * 
+     * @param listener notified after each committed batch, or
+     *            <CODE>null</CODE>
+     * @return the number of nodes deleted
+     */
+    public long delete( int commitInterval, DeleteListener listener )
     {
-        return underlyingNode.traverse( Order.DEPTH_FIRST, new StopEvaluator()
+        if ( commitInterval < 1 )
+        {
+            throw new IllegalArgumentException(
+                    "Commit interval must be positive" );
+        }
+        appendPosition = null;
+        long deleted = 0;
+        while ( !Thread.currentThread().isInterrupted() )
         {
-            public boolean isStopNode( TraversalPosition position )
+            int count;
+            long start = TimelineMetrics.startTime();
+            Transaction tx = graphDb.beginTx();
+            try
             {
-                Relationship last = position.lastRelationshipTraversed();
-                if ( last != null
-                     && last.getType().equals( RelTypes.TIMELINE_NEXT_ENTRY ) )
-                {
-                    Node node = position.currentNode();
-                    long currentTime = (Long) node.getProperty( TIMESTAMP );
-                    return currentTime >= timestamp;
-                }
-                return false;
+                count = deleteTimeNodes( commitInterval );
+                tx.success();
             }
-        }, new ReturnableEvaluator()
-        {
-            public boolean isReturnableNode( TraversalPosition position )
+            finally
             {
-                Relationship last = position.lastRelationshipTraversed();
-                if ( last != null
-                     && last.getType().equals( RelTypes.TIMELINE_INSTANCE ) )
-                {
-                    return true;
-                }
-                return false;
+                tx.close();
+                DELETE_BATCH_LATENCY.recordSince( start );
+            }
+            firstNode = null;
+            lastNode = null;
+            if ( count == 0 )
+            {
+                break;
+            }
+            deleted += count;
+            if ( listener != null )
+            {
+                listener.deleted( deleted );
             }
-        }, RelTypes.TIMELINE_NEXT_ENTRY, Direction.OUTGOING,
-                RelTypes.TIMELINE_INSTANCE, Direction.OUTGOING );
+        }
+        return deleted;
     }
 
-    public Iterable<Node> getAllNodesBetween( final long startTime,
-            final long endTime )
+    /**
+     * Runs {@link #delete(int, DeleteListener)} in a new daemon thread.
+     * Cancelling the returned future, with interruption, stops the deletion
+     * after the current batch.
+     */
+    public Future<Long> deleteInBackground( final int commitInterval,
+            final DeleteListener listener )
     {
-        if ( startTime >= endTime )
+        if ( commitInterval < 1 )
         {
             throw new IllegalArgumentException(
-                    "Start time greater or equal to end time" );
+                    "Commit interval must be positive" );
         }
-        Node startNode = getIndexedStartNode( startTime );
-        return startNode.traverse( Order.DEPTH_FIRST, new StopEvaluator()
-        {
-            public boolean isStopNode( TraversalPosition position )
-            {
-                Relationship last = position.lastRelationshipTraversed();
-                if ( last != null
-                     && position.currentNode().equals( underlyingNode ) )
-                {
-                    return true;
-                }
-                if ( last != null
-                     && last.getType().equals( RelTypes.TIMELINE_NEXT_ENTRY ) )
-                {
-                    Node node = position.currentNode();
-                    long currentTime = (Long) node.getProperty( TIMESTAMP );
-                    return currentTime >= endTime;
-                }
-                return false;
-            }
-        }, new ReturnableEvaluator()
+        FutureTask<Long> task = new FutureTask<Long>( new Callable<Long>()
         {
-            private boolean timeOk = false;
-
-            public boolean isReturnableNode( TraversalPosition position )
+            public Long call()
             {
-                if ( position.currentNode().equals( underlyingNode ) )
-                {
-                    return false;
-                }
-                Relationship last = position.lastRelationshipTraversed();
-                if ( !timeOk && last != null
-                     && last.getType().equals( RelTypes.TIMELINE_NEXT_ENTRY ) )
-                {
-                    Node node = position.currentNode();
-                    long currentTime = (Long) node.getProperty( TIMESTAMP );
-                    timeOk = currentTime > startTime;
-                    return false;
-                }
-                if ( timeOk
-                     && last.getType().equals( RelTypes.TIMELINE_INSTANCE ) )
-                {
-                    return true;
-                }
-                return false;
+                return delete( commitInterval, listener );
             }
-        }, RelTypes.TIMELINE_NEXT_ENTRY, Direction.OUTGOING,
-                RelTypes.TIMELINE_INSTANCE, Direction.OUTGOING );
+        } );
+        Thread thread = new Thread( task, "TimelineDelete-" + name );
+        thread.setDaemon( true );
+        thread.start();
+        return task;
     }
 
-    public void delete()
+    /**
+     * Deletes up to <CODE>maxNodes</CODE> time nodes from the head of the
+     * chain, with all their relationships, lets subclasses catch up through
+     * {@link #timeNodesDeleted(long)}, then links the underlying node to the
+     * first remaining node of the chain and of every skip list level.
+     * 
+     * @return the number of time nodes deleted
+     */
+    private int deleteTimeNodes( int maxNodes )
     {
+        // the successor on each skip list level of the last node deleted so
+        // far on that level: a node is on a level if it is that successor
+        Node[] express = new Node[MAX_SKIP_LEVEL + 1];
+        for ( int i = 1; i <= MAX_SKIP_LEVEL; i++ )
+        {
+            Relationship rel = underlyingNode.getSingleRelationship(
+                    SKIP_TYPES[i], Direction.OUTGOING );
+            express[i] = ( rel == null ) ? null : rel.getEndNode();
+        }
         Relationship rel = underlyingNode.getSingleRelationship(
                 RelTypes.TIMELINE_NEXT_ENTRY, Direction.OUTGOING );
-        while ( rel != null )
+        Node next = ( rel == null ) ? underlyingNode : rel.getEndNode();
+        int count = 0;
+        long timestamp = 0;
+        while ( !next.equals( underlyingNode ) && count < maxNodes )
         {
-            Node node = rel.getEndNode();
-            if ( !node.equals( underlyingNode ) )
+            Node node = next;
+            next = node.getSingleRelationship( RelTypes.TIMELINE_NEXT_ENTRY,
+                    Direction.OUTGOING ).getEndNode();
+            for ( int i = 1; i <= MAX_SKIP_LEVEL && node.equals( express[i] ); i++ )
             {
-                for ( Relationship instance : node.getRelationships( RelTypes.TIMELINE_INSTANCE ) )
-                {
-                    instance.delete();
-                }
-                rel.delete();
-                rel = node.getSingleRelationship( RelTypes.TIMELINE_NEXT_ENTRY,
-                        Direction.OUTGOING );
-                node.delete();
+                Relationship out = node.getSingleRelationship(
+                        SKIP_TYPES[i], Direction.OUTGOING );
+                express[i] = ( out == null ) ? null : out.getEndNode();
             }
-            else
+            timestamp = (Long) node.getProperty( TIMESTAMP );
+            for ( Relationship r : node.getRelationships(
+                    RelTypes.TIMELINE_INSTANCE, Direction.OUTGOING ) )
             {
-                rel.delete();
-                rel = null;
+                instanceRemoved( node, r.getEndNode(), timestamp );
             }
-        }
-    }
-    
-    public void delete(int commitInterval)
-    {
-        int count = 0;
-        while(this.getLastNode()!=null) {
-            
-            this.removeNode( this.getLastNode() );
+            for ( Relationship r : node.getRelationships() )
+            {
+                r.delete();
+            }
+            node.delete();
             count++;
-            if ( count > commitInterval )
+        }
+        if ( count == 0 )
+        {
+            return 0;
+        }
+        timeNodesDeleted( timestamp );
+        if ( next.equals( underlyingNode ) )
+        {
+            underlyingNode.removeProperty( SKIP_LEVELS );
+            return count;
+        }
+        underlyingNode.createRelationshipTo( next, RelTypes.TIMELINE_NEXT_ENTRY );
+        for ( int i = 1; i <= MAX_SKIP_LEVEL; i++ )
+        {
+            if ( express[i] != null && underlyingNode.getSingleRelationship(
+                    SKIP_TYPES[i], Direction.OUTGOING ) == null )
             {
-                System.out.print(".");
-//                restartTx();
-                count = 0;
+                underlyingNode.createRelationshipTo( express[i], SKIP_TYPES[i] );
             }
         }
+        return count;
+    }
+
+    /**
+     * Receives the progress of {@link BaseTimeline#delete(int, DeleteListener)}.
+     */
+    public static interface DeleteListener
+    {
+        /**
+         * Called after each committed batch, with the number of nodes
+         * deleted so far.
+         */
+        void deleted( long nodes );
     }
-    
-//    private void restartTx() {
-//            try
-//            {
-//                javax.transaction.Transaction tx = ((AbstractGraphDatabase)graphDb).getTxManager().getTransaction();
-//                if ( tx != null )
-//                {
-//                    tx.commit();
-//                }
-//            }
-//            catch ( Exception e )
-//            {
-//                throw new RuntimeException( e );
-//            }
-//            graphDb.beginTx();
-//        }
 }
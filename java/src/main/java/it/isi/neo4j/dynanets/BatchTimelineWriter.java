@@ -0,0 +1,293 @@
+/**
+ * Copyright (C) 2008-2010 Istituto per l'Interscambio Scientifico I.S.I.
+ * You can contact us by email (isi@isi.it) or write to:
+ * ISI Foundation, Viale S. Severo 65, 10133 Torino, Italy.
+ *
+ * This program was written by André Panisson <panisson@gmail.com>
+ *
+ */
+package it.isi.neo4j.dynanets;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import org.neo4j.graphdb.RelationshipType;
+import org.neo4j.unsafe.batchinsert.BatchInserter;
+import org.neo4j.unsafe.batchinsert.BatchRelationship;
+
+/**
+ * Writes a {@link StructuredTimeline} straight into a store through a
+ * {@link BatchInserter}, for offline bulk imports. The result is the same
+ * graph the timeline itself would build: the time node chain with its skip
+ * list, and the year/month/day/hour NEXT_LEVEL tree with the child index of
+ * every level node.
+ *
+ * Nodes must be appended in timestamp order, to a timeline that is empty.
+ * The level nodes are kept in memory, but time nodes only for the current
+ * hour bucket; the timeline is complete once {@link #close()} has been
+ * called. Rollups, if any, are summed per hour and written to all the level
+ * nodes on close.
+ */
+public class BatchTimelineWriter {
+
+	private static final String[] LEVELS = { "year", "month", "day", "hour", "timestamp" };
+
+	private final BatchInserter inserter;
+	private final long underlyingNodeId;
+	private final String name;
+	private final TimeBuckets buckets;
+	private final Random random = new Random();
+
+	private final Level root;
+	private Level hourLevel;
+	private int hourKey = -1;
+
+	private long tail;
+	private long tailTimestamp = Long.MIN_VALUE;
+	private final long[] skipTails = new long[BaseTimeline.MAX_SKIP_LEVEL + 1];
+	private int skipLevels = 0;
+	private long timeNodeCount = 0;
+	private long nodeCount = 0;
+	private long relationshipCount = 0;
+
+	/**
+	 * @param inserter the inserter of the store
+	 * @param underlyingNodeId the node representing the timeline, which must
+	 *            not be part of a timeline yet
+	 * @param name the timeline name
+	 * @param timeZone the time zone of the hour buckets
+	 */
+	public BatchTimelineWriter(BatchInserter inserter, long underlyingNodeId, String name, String timeZone) {
+		if (inserter == null || name == null || timeZone == null) {
+			throw new IllegalArgumentException("Null parameter.");
+		}
+		for (BatchRelationship rel: inserter.getRelationships(underlyingNodeId)) {
+			if (rel.getType().name().equals(BaseTimeline.RelTypes.TIMELINE_NEXT_ENTRY.name())) {
+				throw new IllegalArgumentException("Timeline(" + underlyingNodeId + ") is not empty");
+			}
+		}
+		this.inserter = inserter;
+		this.underlyingNodeId = underlyingNodeId;
+		this.name = name;
+		this.buckets = TimeBuckets.forZone(timeZone);
+		inserter.setNodeProperty(underlyingNodeId, BaseTimeline.TIMELINE_NAME, name);
+		inserter.setNodeProperty(underlyingNodeId, StructuredTimeline.TIME_ZONE, timeZone);
+		root = new Level(underlyingNodeId, 0);
+		tail = underlyingNodeId;
+		Arrays.fill(skipTails, underlyingNodeId);
+	}
+
+	/**
+	 * Appends a node to the timeline.
+	 *
+	 * @param nodeId the node to append
+	 * @param timestamp its timestamp, not lower than the previous one
+	 */
+	public void append(long nodeId, long timestamp) {
+		if (timestamp < tailTimestamp) {
+			throw new IllegalArgumentException("Timestamp " + timestamp + " appended after " + tailTimestamp);
+		}
+		if (timeNodeCount == 0 || timestamp > tailTimestamp) {
+			long timeNode = createNode(Collections.<String, Object>singletonMap(BaseTimeline.TIMESTAMP, timestamp));
+			createRelationship(tail, timeNode, BaseTimeline.RelTypes.TIMELINE_NEXT_ENTRY, null);
+			int level = BaseTimeline.randomSkipLevel(random);
+			for (int i = 1; i <= level; i++) {
+				createRelationship(skipTails[i], timeNode, BaseTimeline.SKIP_TYPES[i], null);
+				skipTails[i] = timeNode;
+			}
+			skipLevels = Math.max(skipLevels, level);
+			getHourLevel(buckets.hourKey(timestamp)).addTimeNode(timestamp, timeNode);
+			tail = timeNode;
+			tailTimestamp = timestamp;
+			timeNodeCount++;
+		}
+		Map<String, Object> properties = new HashMap<String, Object>();
+		properties.put(BaseTimeline.TIMELINE_NAME, name);
+		properties.put(BaseTimeline.TIMESTAMP, timestamp);
+		createRelationship(tail, nodeId, BaseTimeline.RelTypes.TIMELINE_INSTANCE, properties);
+	}
+
+	/**
+	 * Sets the class of the {@link Rollup} kept on the level nodes, whose
+	 * contributions must then be added with {@link #addToRollups}.
+	 */
+	public void setRollup(Class<? extends Rollup> rollup) {
+		inserter.setNodeProperty(underlyingNodeId, StructuredTimeline.ROLLUP, rollup.getName());
+	}
+
+	/**
+	 * Adds a delta to the rollups of the hour of an appended timestamp and of
+	 * its day, month and year.
+	 */
+	public void addToRollups(long timestamp, RollupDelta delta) {
+		int key = buckets.hourKey(timestamp);
+		Level level = (key == hourKey) ? hourLevel : root.findChild(TimeBuckets.year(key), TimeBuckets.month(key),
+				TimeBuckets.day(key), TimeBuckets.hour(key));
+		if (level == null) {
+			throw new IllegalArgumentException("No node appended at " + timestamp);
+		}
+		if (level.rollups == null) {
+			level.rollups = new RollupDelta();
+		}
+		level.rollups.add(delta);
+	}
+
+	/**
+	 * Returns the number of time and level nodes written so far.
+	 */
+	public long getNodeCount() {
+		return nodeCount;
+	}
+
+	/**
+	 * Returns the number of relationships written so far.
+	 */
+	public long getRelationshipCount() {
+		return relationshipCount;
+	}
+
+	/**
+	 * Closes the chain and writes the child indexes still held in memory.
+	 */
+	public void close() {
+		if (timeNodeCount > 0) {
+			createRelationship(tail, underlyingNodeId, BaseTimeline.RelTypes.TIMELINE_NEXT_ENTRY, null);
+		}
+		if (hourLevel != null) {
+			hourLevel.flushTimeNodes();
+		}
+		root.flush();
+		inserter.setNodeProperty(underlyingNodeId, BaseTimeline.SKIP_LEVELS, skipLevels);
+	}
+
+	private long createNode(Map<String, Object> properties) {
+		nodeCount++;
+		return inserter.createNode(properties);
+	}
+
+	private void createRelationship(long from, long to, RelationshipType type, Map<String, Object> properties) {
+		relationshipCount++;
+		inserter.createRelationship(from, to, type, properties);
+	}
+
+	private Level getHourLevel(int key) {
+		if (key == hourKey) return hourLevel;
+		if (hourLevel != null) {
+			hourLevel.flushTimeNodes();
+		}
+		hourLevel = root.getChild(TimeBuckets.year(key))
+				.getChild(TimeBuckets.month(key))
+				.getChild(TimeBuckets.day(key))
+				.getChild(TimeBuckets.hour(key));
+		hourKey = key;
+		return hourLevel;
+	}
+
+	/**
+	 * A node of the NEXT_LEVEL tree. Year, month and day levels keep their
+	 * children until the timeline is closed; hour levels keep the time nodes
+	 * added since they last became current.
+	 */
+	private class Level {
+		private final long nodeId;
+		private final int depth;
+		private final TreeMap<Integer, Level> children = new TreeMap<Integer, Level>();
+		private long[] keys;
+		private long[] ids;
+		private int size = 0;
+		// the rollups of an hour, or of the whole subtree once flushed
+		private RollupDelta rollups;
+
+		Level(long nodeId, int depth) {
+			this.nodeId = nodeId;
+			this.depth = depth;
+			inserter.setNodeProperty(nodeId, "next_level", LEVELS[depth]);
+		}
+
+		Level getChild(int key) {
+			Level child = children.get(key);
+			if (child == null) {
+				long childId = createNode(null);
+				createRelationship(nodeId, childId, StructuredTimeline.StructuredRelTypes.NEXT_LEVEL,
+						Collections.<String, Object>singletonMap(LEVELS[depth], key));
+				child = new Level(childId, depth + 1);
+				children.put(key, child);
+			}
+			return child;
+		}
+
+		Level findChild(int... path) {
+			Level level = this;
+			for (int key: path) {
+				level = level.children.get(key);
+				if (level == null) return null;
+			}
+			return level;
+		}
+
+		void addTimeNode(long timestamp, long timeNodeId) {
+			if (keys == null) {
+				Map<String, Object> stored = inserter.getNodeProperties(nodeId);
+				if (stored.containsKey(StructuredTimeline.NEXT_LEVEL_KEYS)) {
+					// bucket visited again, e.g. across a DST transition
+					keys = (long[]) stored.get(StructuredTimeline.NEXT_LEVEL_KEYS);
+					ids = (long[]) stored.get(StructuredTimeline.NEXT_LEVEL_IDS);
+					size = keys.length;
+				} else {
+					keys = new long[64];
+					ids = new long[64];
+				}
+			}
+			if (size == keys.length) {
+				keys = Arrays.copyOf(keys, Math.max(size * 2, 64));
+				ids = Arrays.copyOf(ids, Math.max(size * 2, 64));
+			}
+			Map<String, Object> properties = Collections.<String, Object>singletonMap(BaseTimeline.TIMESTAMP, timestamp);
+			createRelationship(nodeId, timeNodeId, StructuredTimeline.StructuredRelTypes.NEXT_LEVEL, properties);
+			keys[size] = timestamp;
+			ids[size] = timeNodeId;
+			size++;
+		}
+
+		void flushTimeNodes() {
+			if (keys == null) return;
+			inserter.setNodeProperty(nodeId, StructuredTimeline.NEXT_LEVEL_KEYS, Arrays.copyOf(keys, size));
+			inserter.setNodeProperty(nodeId, StructuredTimeline.NEXT_LEVEL_IDS, Arrays.copyOf(ids, size));
+			keys = null;
+			ids = null;
+			size = 0;
+		}
+
+		void flush() {
+			if (depth < 4) {
+				long[] childKeys = new long[children.size()];
+				long[] childIds = new long[children.size()];
+				int i = 0;
+				for (Map.Entry<Integer, Level> entry: children.entrySet()) {
+					Level child = entry.getValue();
+					childKeys[i] = entry.getKey();
+					childIds[i] = child.nodeId;
+					i++;
+					child.flush();
+					if (child.rollups != null) {
+						if (rollups == null) {
+							rollups = new RollupDelta();
+						}
+						rollups.add(child.rollups);
+					}
+				}
+				inserter.setNodeProperty(nodeId, StructuredTimeline.NEXT_LEVEL_KEYS, childKeys);
+				inserter.setNodeProperty(nodeId, StructuredTimeline.NEXT_LEVEL_IDS, childIds);
+			}
+			if (depth > 0 && rollups != null) {
+				for (Map.Entry<String, Object> property: rollups.toProperties().entrySet()) {
+					inserter.setNodeProperty(nodeId, property.getKey(), property.getValue());
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,458 @@
+/**
+ * Copyright (C) 2008-2010 Istituto per l'Interscambio Scientifico I.S.I.
+ * You can contact us by email (isi@isi.it) or write to:
+ * ISI Foundation, Viale S. Severo 65, 10133 Torino, Italy.
+ *
+ * This program was written by André Panisson <panisson@gmail.com>
+ *
+ */
+package it.isi.neo4j.dynanets;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.graphdb.event.TransactionData;
+import org.neo4j.graphdb.event.TransactionEventHandler;
+import org.neo4j.kernel.api.KernelTransaction;
+import org.neo4j.kernel.api.txstate.TxStateHolder;
+import org.neo4j.kernel.impl.core.ThreadToStatementContextBridge;
+import org.neo4j.kernel.internal.GraphDatabaseAPI;
+
+/**
+ * A process-wide cache of the hour bucket nodes of structured timelines,
+ * keyed by timeline node id and (year, month, day, hour) bucket, together
+ * with the first and last nodes of each timeline. The bucket cache is
+ * bounded and evicts the least recently used entries.
+ *
+ * Buckets are spread over segments with a lock each, so that lookups of
+ * different buckets don't wait for each other; each segment evicts its
+ * own least recently used entries. Every bucket keeps the id of its day
+ * node too, which lets a cached bucket be checked with one hop.
+ *
+ * There is one cache per database. A transaction event handler evicts the
+ * buckets deleted by committed transactions and the first/last nodes of
+ * timelines whose chain ends may have changed. Buckets created by a
+ * transaction are only visible to that transaction until it commits, and
+ * dropped when it closes without committing. First/last nodes are only
+ * read and cached by transactions that have not changed anything, so that
+ * no uncommitted ids are shared.
+ */
+public class BucketCache {
+
+	public static final int DEFAULT_CAPACITY = Integer.getInteger(
+			"it.isi.neo4j.dynanets.bucket_cache_size", 10000);
+
+	private static final int SEGMENTS = 16;
+
+	private static final Map<GraphDatabaseService, BucketCache> caches =
+			new WeakHashMap<GraphDatabaseService, BucketCache>();
+
+	/**
+	 * Returns the cache of the given database, creating it on first use.
+	 */
+	public static synchronized BucketCache forDatabase(GraphDatabaseService graphDb) {
+		BucketCache cache = caches.get(graphDb);
+		if (cache == null) {
+			cache = new BucketCache(DEFAULT_CAPACITY, ((GraphDatabaseAPI) graphDb).getDependencyResolver()
+					.resolveDependency(ThreadToStatementContextBridge.class));
+			graphDb.registerTransactionEventHandler(cache.new Invalidator());
+			caches.put(graphDb, cache);
+		}
+		return cache;
+	}
+
+	/**
+	 * Returns the hits, the misses and the cached buckets of the caches of
+	 * all the databases.
+	 */
+	static synchronized long[] getTotals() {
+		long[] totals = new long[3];
+		for (BucketCache cache: caches.values()) {
+			totals[0] += cache.getHitCount();
+			totals[1] += cache.getMissCount();
+			totals[2] += cache.size();
+		}
+		return totals;
+	}
+
+	private final Segment[] segments = new Segment[SEGMENTS];
+	private final Map<Long, Long> firstNodes = new ConcurrentHashMap<Long, Long>();
+	private final Map<Long, Long> lastNodes = new ConcurrentHashMap<Long, Long>();
+
+	// buckets created by each open transaction, dropped when it closes
+	private final Map<KernelTransaction, Map<BucketKey, Bucket>> pending =
+			new ConcurrentHashMap<KernelTransaction, Map<BucketKey, Bucket>>();
+	private final ThreadToStatementContextBridge bridge;
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	// incremented whenever committed changes evict first/last nodes, and
+	// only changed or compared with the first/last nodes under this lock
+	private volatile long endsVersion = 0;
+
+	/**
+	 * @param bridge the transaction bridge of the database, which gives the
+	 *            transaction of the calling thread
+	 */
+	public BucketCache(int capacity, ThreadToStatementContextBridge bridge) {
+		if (capacity < 1) {
+			throw new IllegalArgumentException("Capacity must be positive");
+		}
+		this.bridge = bridge;
+		for (int i = 0; i < SEGMENTS; i++) {
+			segments[i] = new Segment((capacity + SEGMENTS - 1) / SEGMENTS);
+		}
+	}
+
+	private Segment segmentFor(BucketKey key) {
+		int h = key.hashCode();
+		return segments[(h ^ (h >>> 16)) & (SEGMENTS - 1)];
+	}
+
+	/**
+	 * Returns the given hour bucket, or <CODE>null</CODE> if it is not
+	 * cached.
+	 */
+	public Bucket getBucket(long timelineId, int hourKey) {
+		BucketKey key = new BucketKey(timelineId, hourKey);
+		KernelTransaction ktx = bridge.getKernelTransactionBoundToThisThread(false);
+		Map<BucketKey, Bucket> created = (ktx == null) ? null : pending.get(ktx);
+		Bucket bucket = (created == null) ? null : created.get(key);
+		if (bucket == null) {
+			bucket = segmentFor(key).get(key);
+		}
+		if (bucket == null) {
+			misses.incrementAndGet();
+			return null;
+		}
+		hits.incrementAndGet();
+		return bucket;
+	}
+
+	/**
+	 * Caches a bucket node read from the timeline, below the given day node.
+	 * If the current transaction has changes, the node may be one of them,
+	 * and it is only shared once the transaction commits.
+	 */
+	public void putBucket(long timelineId, int hourKey, long nodeId, long parentId) {
+		KernelTransaction ktx = bridge.getKernelTransactionBoundToThisThread(false);
+		if (ktx != null && hasChanges(ktx)) {
+			putCreatedBucket(timelineId, hourKey, nodeId, parentId);
+			return;
+		}
+		BucketKey key = new BucketKey(timelineId, hourKey);
+		segmentFor(key).put(key, new Bucket(nodeId, parentId));
+	}
+
+	/**
+	 * Caches a bucket node that may have been created by the current
+	 * transaction. It is shared with other transactions once this one
+	 * commits, and dropped if it closes without committing.
+	 */
+	public void putCreatedBucket(long timelineId, int hourKey, long nodeId, long parentId) {
+		final KernelTransaction ktx = bridge.getKernelTransactionBoundToThisThread(true);
+		// only the thread of the transaction adds its map
+		Map<BucketKey, Bucket> created = pending.get(ktx);
+		if (created == null) {
+			created = new ConcurrentHashMap<BucketKey, Bucket>();
+			pending.put(ktx, created);
+			// called on commit (after the event handlers) and on
+			// rollback alike, before the transaction object is reused
+			ktx.registerCloseListener(new KernelTransaction.CloseListener() {
+				public void notify(long txId) {
+					pending.remove(ktx);
+				}
+			});
+		}
+		created.put(new BucketKey(timelineId, hourKey), new Bucket(nodeId, parentId));
+	}
+
+	/**
+	 * Drops the buckets cached by the current transaction, e.g. because it is
+	 * going to roll back.
+	 */
+	public void discardPending() {
+		KernelTransaction ktx = bridge.getKernelTransactionBoundToThisThread(false);
+		if (ktx == null) return;
+		Map<BucketKey, Bucket> created = pending.get(ktx);
+		if (created != null) {
+			created.clear();
+		}
+	}
+
+	public void evictNode(long nodeId) {
+		for (Segment segment: segments) {
+			segment.evictNode(nodeId);
+		}
+		for (Map<BucketKey, Bucket> created: pending.values()) {
+			Iterator<Bucket> buckets = created.values().iterator();
+			while (buckets.hasNext()) {
+				if (buckets.next().nodeId == nodeId) buckets.remove();
+			}
+		}
+	}
+
+	private static boolean hasChanges(KernelTransaction ktx) {
+		return !(ktx instanceof TxStateHolder) || ((TxStateHolder) ktx).hasTxStateWithChanges();
+	}
+
+	/**
+	 * Returns whether the first/last nodes can be read from and put into the
+	 * cache: only by transactions without changes, which see the committed
+	 * ends of the timelines.
+	 */
+	private boolean isReadOnly() {
+		KernelTransaction ktx = bridge.getKernelTransactionBoundToThisThread(false);
+		return ktx != null && !hasChanges(ktx);
+	}
+
+	/**
+	 * Returns the id of the first node of the given timeline, or -1 if it is
+	 * not cached or the current transaction has changes.
+	 */
+	public long getFirst(long timelineId) {
+		return getEnd(firstNodes, timelineId);
+	}
+
+	public long getLast(long timelineId) {
+		return getEnd(lastNodes, timelineId);
+	}
+
+	/**
+	 * Returns the version of the first/last nodes, to pass to
+	 * {@link #putFirst(long, long, long)} and {@link #putLast(long, long, long)}
+	 * with the nodes read after it.
+	 */
+	public long getEndsVersion() {
+		return endsVersion;
+	}
+
+	/**
+	 * Caches the first node of a timeline, read after <CODE>version</CODE>
+	 * was returned by {@link #getEndsVersion()}. It is ignored if committed
+	 * changes evicted first/last nodes since, or if the current transaction
+	 * has changes.
+	 */
+	public void putFirst(long timelineId, long nodeId, long version) {
+		putEnd(firstNodes, timelineId, nodeId, version);
+	}
+
+	public void putLast(long timelineId, long nodeId, long version) {
+		putEnd(lastNodes, timelineId, nodeId, version);
+	}
+
+	private void putEnd(Map<Long, Long> ends, long timelineId, long nodeId, long version) {
+		if (!isReadOnly()) return;
+		synchronized (this) {
+			if (version == endsVersion) {
+				ends.put(timelineId, nodeId);
+			}
+		}
+	}
+
+	private long getEnd(Map<Long, Long> ends, long timelineId) {
+		if (!isReadOnly()) return -1;
+		Long nodeId = ends.get(timelineId);
+		if (nodeId == null) {
+			misses.incrementAndGet();
+			return -1;
+		}
+		hits.incrementAndGet();
+		return nodeId;
+	}
+
+	public int size() {
+		int size = 0;
+		for (Segment segment: segments) {
+			size += segment.size();
+		}
+		return size;
+	}
+
+	public long getHitCount() {
+		return hits.get();
+	}
+
+	public long getMissCount() {
+		return misses.get();
+	}
+
+	public void clear() {
+		for (Segment segment: segments) {
+			segment.clear();
+		}
+		synchronized (this) {
+			firstNodes.clear();
+			lastNodes.clear();
+			endsVersion++;
+		}
+	}
+
+	/**
+	 * A cached hour bucket: the id of its node and of the day node above it.
+	 */
+	public static final class Bucket {
+		public final long nodeId;
+		public final long parentId;
+
+		Bucket(long nodeId, long parentId) {
+			this.nodeId = nodeId;
+			this.parentId = parentId;
+		}
+	}
+
+	/**
+	 * A part of the buckets, bounded and evicting its least recently used
+	 * entries, with its own lock.
+	 */
+	private static final class Segment {
+		private final Map<BucketKey, Bucket> buckets;
+		private final Map<Long, BucketKey> bucketsByNode = new HashMap<Long, BucketKey>();
+
+		Segment(final int capacity) {
+			buckets = new LinkedHashMap<BucketKey, Bucket>(16, 0.75f, true) {
+				private static final long serialVersionUID = 1L;
+
+				@Override
+				protected boolean removeEldestEntry(Map.Entry<BucketKey, Bucket> eldest) {
+					if (size() > capacity) {
+						bucketsByNode.remove(eldest.getValue().nodeId);
+						return true;
+					}
+					return false;
+				}
+			};
+		}
+
+		synchronized Bucket get(BucketKey key) {
+			return buckets.get(key);
+		}
+
+		synchronized void put(BucketKey key, Bucket bucket) {
+			Bucket previous = buckets.put(key, bucket);
+			if (previous != null) bucketsByNode.remove(previous.nodeId);
+			bucketsByNode.put(bucket.nodeId, key);
+		}
+
+		synchronized void evictNode(long nodeId) {
+			BucketKey key = bucketsByNode.remove(nodeId);
+			if (key != null) {
+				buckets.remove(key);
+			}
+		}
+
+		synchronized int size() {
+			return buckets.size();
+		}
+
+		synchronized void clear() {
+			buckets.clear();
+			bucketsByNode.clear();
+		}
+	}
+
+	private static final class BucketKey {
+		private final long timelineId;
+		private final int hourKey;
+
+		BucketKey(long timelineId, int hourKey) {
+			this.timelineId = timelineId;
+			this.hourKey = hourKey;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof BucketKey)) return false;
+			BucketKey other = (BucketKey) o;
+			return timelineId == other.timelineId && hourKey == other.hourKey;
+		}
+
+		@Override
+		public int hashCode() {
+			return (int) (timelineId ^ (timelineId >>> 32)) * 31 + hourKey;
+		}
+	}
+
+	/**
+	 * What a committing transaction invalidates, collected before the commit
+	 * while deleted entities can still be inspected.
+	 */
+	private static final class Invalidation {
+		final Set<Long> deletedNodes = new HashSet<Long>();
+		final Set<Long> changedEnds = new HashSet<Long>();
+		boolean instancesDeleted = false;
+	}
+
+	private class Invalidator implements TransactionEventHandler<Invalidation> {
+
+		public Invalidation beforeCommit(TransactionData data) throws Exception {
+			Invalidation invalidation = new Invalidation();
+			for (Node node: data.deletedNodes()) {
+				invalidation.deletedNodes.add(node.getId());
+			}
+			collectEnds(invalidation, data.createdRelationships());
+			collectEnds(invalidation, data.deletedRelationships());
+			for (Relationship rel: data.deletedRelationships()) {
+				if (rel.getType().name().equals(BaseTimeline.RelTypes.TIMELINE_INSTANCE.name())) {
+					invalidation.instancesDeleted = true;
+					break;
+				}
+			}
+			return invalidation;
+		}
+
+		private void collectEnds(Invalidation invalidation, Iterable<Relationship> rels) {
+			for (Relationship rel: rels) {
+				if (rel.getType().name().equals(BaseTimeline.RelTypes.TIMELINE_NEXT_ENTRY.name())) {
+					invalidation.changedEnds.add(rel.getStartNode().getId());
+					invalidation.changedEnds.add(rel.getEndNode().getId());
+				}
+			}
+		}
+
+		public void afterCommit(TransactionData data, Invalidation invalidation) {
+			// the committing transaction is still bound to this thread
+			KernelTransaction ktx = bridge.getKernelTransactionBoundToThisThread(false);
+			Map<BucketKey, Bucket> created = (ktx == null) ? null : pending.remove(ktx);
+			for (Long nodeId: invalidation.deletedNodes) {
+				for (Segment segment: segments) {
+					segment.evictNode(nodeId);
+				}
+			}
+			synchronized (BucketCache.this) {
+				if (invalidation.instancesDeleted) {
+					firstNodes.clear();
+					lastNodes.clear();
+					endsVersion++;
+				} else if (!invalidation.changedEnds.isEmpty()) {
+					for (Long timelineId: invalidation.changedEnds) {
+						firstNodes.remove(timelineId);
+						lastNodes.remove(timelineId);
+					}
+					endsVersion++;
+				}
+			}
+			if (created != null) {
+				for (Map.Entry<BucketKey, Bucket> entry: created.entrySet()) {
+					if (!invalidation.deletedNodes.contains(entry.getValue().nodeId)) {
+						segmentFor(entry.getKey()).put(entry.getKey(), entry.getValue());
+					}
+				}
+			}
+		}
+
+		public void afterRollback(TransactionData data, Invalidation invalidation) {
+			// the close listener of the transaction drops its buckets
+		}
+	}
+}
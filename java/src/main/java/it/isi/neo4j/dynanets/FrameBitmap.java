@@ -0,0 +1,459 @@
+/**
+ * Copyright (C) 2008-2010 Istituto per l'Interscambio Scientifico I.S.I.
+ * You can contact us by email (isi@isi.it) or write to:
+ * ISI Foundation, Viale S. Severo 65, 10133 Torino, Italy.
+ *
+ * This program was written by André Panisson <panisson@gmail.com>
+ *
+ */
+package it.isi.neo4j.dynanets;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * A compressed set of frame ordinals, recording when an actor or an
+ * interaction of a run was active. It is organised like a Roaring bitmap:
+ * ordinals are split into chunks of 2^16 by their high bits, and a chunk
+ * holds the low bits either as a sorted array, while it has at most 4096 of
+ * them, or as a bitmap.
+ *
+ * The serialized form, meant to be stored as a <CODE>byte[]</CODE> property,
+ * also encodes a chunk as a list of runs when that is smaller, which is the
+ * common case for entities that stay active over many consecutive frames.
+ * Instances are not thread-safe.
+ */
+public final class FrameBitmap {
+
+	private static final int ARRAY_MAX = 4096;
+	private static final int WORDS = 1024;
+
+	private static final byte VERSION = 1;
+	private static final byte ARRAY = 0;
+	private static final byte BITMAP = 1;
+	private static final byte RUNS = 2;
+
+	private int[] keys = new int[4];
+	private Chunk[] chunks = new Chunk[4];
+	private int size = 0;
+
+	/**
+	 * Reads a bitmap written by {@link #toBytes()}.
+	 */
+	public static FrameBitmap fromBytes(byte[] bytes) {
+		ByteBuffer in = ByteBuffer.wrap(bytes);
+		if (in.get() != VERSION) {
+			throw new IllegalArgumentException("Unknown frame bitmap version " + bytes[0]);
+		}
+		FrameBitmap bitmap = new FrameBitmap();
+		int count = in.getInt();
+		for (int i = 0; i < count; i++) {
+			int key = in.getChar();
+			byte type = in.get();
+			int n = in.getChar() + 1;
+			Chunk chunk = bitmap.getOrCreate(key);
+			if (type == ARRAY) {
+				chunk.values = new char[n];
+				in.asCharBuffer().get(chunk.values);
+				in.position(in.position() + 2 * n);
+				chunk.cardinality = n;
+			} else if (type == BITMAP) {
+				chunk.toWords();
+				in.asLongBuffer().get(chunk.words);
+				in.position(in.position() + 8 * WORDS);
+				chunk.cardinality = n;
+			} else if (type == RUNS) {
+				for (int r = 0; r < n; r++) {
+					int start = in.getChar();
+					chunk.addRange(start, start + in.getChar() + 1);
+				}
+			} else {
+				throw new IllegalArgumentException("Unknown frame bitmap chunk type " + type);
+			}
+		}
+		return bitmap;
+	}
+
+	/**
+	 * Adds a frame ordinal.
+	 */
+	public void add(int frame) {
+		checkFrame(frame);
+		getOrCreate(frame >>> 16).add((char) frame);
+	}
+
+	/**
+	 * Adds the frame ordinals from <CODE>from</CODE>, inclusive, to
+	 * <CODE>to</CODE>, exclusive.
+	 */
+	public void addRange(int from, int to) {
+		checkFrame(from);
+		if (to < from) {
+			throw new IllegalArgumentException("Empty range " + from + "-" + to);
+		}
+		while (from < to) {
+			int key = from >>> 16;
+			int end = (int) Math.min(to, (long) (key + 1) << 16);
+			getOrCreate(key).addRange(from & 0xffff, end - (key << 16));
+			from = end;
+		}
+	}
+
+	public boolean contains(int frame) {
+		if (frame < 0) return false;
+		int i = indexOf(frame >>> 16);
+		return i >= 0 && chunks[i].contains((char) frame);
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	public int getCardinality() {
+		int cardinality = 0;
+		for (int i = 0; i < size; i++) {
+			cardinality += chunks[i].cardinality;
+		}
+		return cardinality;
+	}
+
+	/**
+	 * Returns the number of frame ordinals from <CODE>from</CODE>, inclusive,
+	 * to <CODE>to</CODE>, exclusive.
+	 */
+	public int getCardinality(int from, int to) {
+		from = Math.max(from, 0);
+		int cardinality = 0;
+		for (int i = 0; i < size && from < to; i++) {
+			long base = (long) keys[i] << 16;
+			if (base + 0x10000 <= from) continue;
+			if (base >= to) break;
+			int lo = (int) Math.max(from - base, 0);
+			int hi = (int) Math.min(to - base, 0x10000);
+			cardinality += chunks[i].count(lo, hi);
+		}
+		return cardinality;
+	}
+
+	/**
+	 * Tells whether any frame ordinal from <CODE>from</CODE>, inclusive, to
+	 * <CODE>to</CODE>, exclusive, is in the set.
+	 */
+	public boolean intersects(int from, int to) {
+		return getCardinality(from, to) > 0;
+	}
+
+	public boolean intersects(FrameBitmap other) {
+		int i = 0, j = 0;
+		while (i < size && j < other.size) {
+			if (keys[i] < other.keys[j]) {
+				i++;
+			} else if (keys[i] > other.keys[j]) {
+				j++;
+			} else {
+				if (chunks[i].intersects(other.chunks[j])) return true;
+				i++;
+				j++;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Returns the frame ordinals in both sets.
+	 */
+	public FrameBitmap and(FrameBitmap other) {
+		FrameBitmap result = new FrameBitmap();
+		int i = 0, j = 0;
+		while (i < size && j < other.size) {
+			if (keys[i] < other.keys[j]) {
+				i++;
+			} else if (keys[i] > other.keys[j]) {
+				j++;
+			} else {
+				Chunk chunk = chunks[i].and(other.chunks[j]);
+				if (chunk.cardinality > 0) {
+					result.append(keys[i], chunk);
+				}
+				i++;
+				j++;
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Returns the frame ordinals in increasing order.
+	 */
+	public int[] toArray() {
+		int[] frames = new int[getCardinality()];
+		int n = 0;
+		for (int i = 0; i < size; i++) {
+			int base = keys[i] << 16;
+			for (char value: chunks[i].toChars()) {
+				frames[n++] = base | value;
+			}
+		}
+		return frames;
+	}
+
+	public byte[] toBytes() {
+		byte[] types = new byte[size];
+		char[][] values = new char[size][];
+		int[] runs = new int[size];
+		int length = 5;
+		for (int i = 0; i < size; i++) {
+			Chunk chunk = chunks[i];
+			values[i] = chunk.toChars();
+			runs[i] = countRuns(values[i]);
+			int arrayBytes = 2 * chunk.cardinality;
+			int runBytes = 4 * runs[i];
+			if (runBytes < arrayBytes && runBytes < 8 * WORDS) {
+				types[i] = RUNS;
+				length += 5 + runBytes;
+			} else if (arrayBytes <= 8 * WORDS) {
+				types[i] = ARRAY;
+				length += 5 + arrayBytes;
+			} else {
+				types[i] = BITMAP;
+				length += 5 + 8 * WORDS;
+			}
+		}
+		ByteBuffer out = ByteBuffer.allocate(length);
+		out.put(VERSION);
+		out.putInt(size);
+		for (int i = 0; i < size; i++) {
+			out.putChar((char) keys[i]);
+			out.put(types[i]);
+			char[] chunkValues = values[i];
+			if (types[i] == RUNS) {
+				out.putChar((char) (runs[i] - 1));
+				int start = 0;
+				for (int k = 1; k <= chunkValues.length; k++) {
+					if (k == chunkValues.length || chunkValues[k] != chunkValues[k-1] + 1) {
+						out.putChar(chunkValues[start]);
+						out.putChar((char) (k - 1 - start));
+						start = k;
+					}
+				}
+			} else if (types[i] == ARRAY) {
+				out.putChar((char) (chunkValues.length - 1));
+				for (char value: chunkValues) {
+					out.putChar(value);
+				}
+			} else {
+				Chunk chunk = chunks[i];
+				out.putChar((char) (chunk.cardinality - 1));
+				if (chunk.words == null) {
+					chunk.toWords();
+				}
+				for (long word: chunk.words) {
+					out.putLong(word);
+				}
+			}
+		}
+		return out.array();
+	}
+
+	@Override
+	public String toString() {
+		return "FrameBitmap" + Arrays.toString(toArray());
+	}
+
+	private static int countRuns(char[] values) {
+		int runs = values.length > 0 ? 1 : 0;
+		for (int k = 1; k < values.length; k++) {
+			if (values[k] != values[k-1] + 1) runs++;
+		}
+		return runs;
+	}
+
+	private static void checkFrame(int frame) {
+		if (frame < 0) {
+			throw new IllegalArgumentException("Negative frame ordinal " + frame);
+		}
+	}
+
+	private int indexOf(int key) {
+		return Arrays.binarySearch(keys, 0, size, key);
+	}
+
+	private Chunk getOrCreate(int key) {
+		int i = indexOf(key);
+		if (i >= 0) return chunks[i];
+		i = -i - 1;
+		if (size == keys.length) {
+			keys = Arrays.copyOf(keys, size * 2);
+			chunks = Arrays.copyOf(chunks, size * 2);
+		}
+		System.arraycopy(keys, i, keys, i + 1, size - i);
+		System.arraycopy(chunks, i, chunks, i + 1, size - i);
+		keys[i] = key;
+		chunks[i] = new Chunk();
+		size++;
+		return chunks[i];
+	}
+
+	private void append(int key, Chunk chunk) {
+		if (size == keys.length) {
+			keys = Arrays.copyOf(keys, size * 2);
+			chunks = Arrays.copyOf(chunks, size * 2);
+		}
+		keys[size] = key;
+		chunks[size] = chunk;
+		size++;
+	}
+
+	/**
+	 * The low bits of the ordinals sharing the same high bits: a sorted array
+	 * while sparse, a bitmap of 2^16 bits when dense.
+	 */
+	private static final class Chunk {
+		char[] values = new char[4];
+		long[] words;
+		int cardinality = 0;
+
+		boolean contains(char value) {
+			if (words != null) {
+				return (words[value >>> 6] & (1L << value)) != 0;
+			}
+			return Arrays.binarySearch(values, 0, cardinality, value) >= 0;
+		}
+
+		void add(char value) {
+			if (words != null) {
+				long bit = 1L << value;
+				if ((words[value >>> 6] & bit) == 0) {
+					words[value >>> 6] |= bit;
+					cardinality++;
+				}
+				return;
+			}
+			int pos = (cardinality > 0 && values[cardinality-1] < value) ? -cardinality - 1
+					: Arrays.binarySearch(values, 0, cardinality, value);
+			if (pos >= 0) return;
+			if (cardinality == ARRAY_MAX) {
+				toWords();
+				add(value);
+				return;
+			}
+			pos = -pos - 1;
+			if (cardinality == values.length) {
+				values = Arrays.copyOf(values, Math.min(cardinality * 2, ARRAY_MAX));
+			}
+			System.arraycopy(values, pos, values, pos + 1, cardinality - pos);
+			values[pos] = value;
+			cardinality++;
+		}
+
+		void addRange(int from, int to) {
+			if (from >= to) return;
+			if (words == null && cardinality + (to - from) > ARRAY_MAX) {
+				toWords();
+			}
+			if (words == null) {
+				for (int value = from; value < to; value++) {
+					add((char) value);
+				}
+				return;
+			}
+			int first = from >>> 6;
+			int last = (to - 1) >>> 6;
+			for (int i = first; i <= last; i++) {
+				long mask = -1L;
+				if (i == first) mask &= -1L << from;
+				if (i == last) mask &= -1L >>> (63 - ((to - 1) & 63));
+				cardinality += Long.bitCount(mask & ~words[i]);
+				words[i] |= mask;
+			}
+		}
+
+		/**
+		 * Counts the values from <CODE>from</CODE>, inclusive, to
+		 * <CODE>to</CODE>, exclusive.
+		 */
+		int count(int from, int to) {
+			if (from >= to) return 0;
+			if (words == null) {
+				int lo = Arrays.binarySearch(values, 0, cardinality, (char) from);
+				int hi = (to > Character.MAX_VALUE) ? cardinality : Arrays.binarySearch(values, 0, cardinality, (char) to);
+				return (hi < 0 ? -hi - 1 : hi) - (lo < 0 ? -lo - 1 : lo);
+			}
+			int first = from >>> 6;
+			int last = (to - 1) >>> 6;
+			int count = 0;
+			for (int i = first; i <= last; i++) {
+				long mask = -1L;
+				if (i == first) mask &= -1L << from;
+				if (i == last) mask &= -1L >>> (63 - ((to - 1) & 63));
+				count += Long.bitCount(words[i] & mask);
+			}
+			return count;
+		}
+
+		boolean intersects(Chunk other) {
+			if (words != null && other.words != null) {
+				for (int i = 0; i < WORDS; i++) {
+					if ((words[i] & other.words[i]) != 0) return true;
+				}
+				return false;
+			}
+			Chunk sparse = (words == null) ? this : other;
+			Chunk probed = (sparse == this) ? other : this;
+			for (int k = 0; k < sparse.cardinality; k++) {
+				if (probed.contains(sparse.values[k])) return true;
+			}
+			return false;
+		}
+
+		Chunk and(Chunk other) {
+			Chunk result = new Chunk();
+			if (words != null && other.words != null) {
+				result.words = new long[WORDS];
+				for (int i = 0; i < WORDS; i++) {
+					result.words[i] = words[i] & other.words[i];
+					result.cardinality += Long.bitCount(result.words[i]);
+				}
+				if (result.cardinality <= ARRAY_MAX) {
+					result.values = result.toChars();
+					result.words = null;
+				}
+				return result;
+			}
+			Chunk sparse = (words == null) ? this : other;
+			Chunk probed = (sparse == this) ? other : this;
+			result.values = new char[Math.max(sparse.cardinality, 1)];
+			for (int k = 0; k < sparse.cardinality; k++) {
+				if (probed.contains(sparse.values[k])) {
+					result.values[result.cardinality++] = sparse.values[k];
+				}
+			}
+			return result;
+		}
+
+		char[] toChars() {
+			if (words == null) {
+				return Arrays.copyOf(values, cardinality);
+			}
+			char[] chars = new char[cardinality];
+			int n = 0;
+			for (int i = 0; i < WORDS; i++) {
+				long word = words[i];
+				while (word != 0) {
+					chars[n++] = (char) ((i << 6) | Long.numberOfTrailingZeros(word));
+					word &= word - 1;
+				}
+			}
+			return chars;
+		}
+
+		void toWords() {
+			long[] bits = new long[WORDS];
+			for (int k = 0; k < cardinality; k++) {
+				bits[values[k] >>> 6] |= 1L << values[k];
+			}
+			words = bits;
+			values = null;
+		}
+	}
+}
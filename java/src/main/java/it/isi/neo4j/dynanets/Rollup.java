@@ -0,0 +1,30 @@
+/**
+ * Copyright (C) 2008-2010 Istituto per l'Interscambio Scientifico I.S.I.
+ * You can contact us by email (isi@isi.it) or write to:
+ * ISI Foundation, Viale S. Severo 65, 10133 Torino, Italy.
+ *
+ * This program was written by André Panisson <panisson@gmail.com>
+ *
+ */
+package it.isi.neo4j.dynanets;
+
+import org.neo4j.graphdb.Node;
+
+/**
+ * Describes what a node of a {@link StructuredTimeline} contributes to the
+ * rollups kept on the year, month, day and hour nodes of the timeline. The
+ * contribution of a node is added when the node is added to the timeline and
+ * subtracted when it is removed, so it must only depend on the node and its
+ * relationships; changes to a node already in the timeline are reported with
+ * {@link StructuredTimeline#addToRollups(long, RollupDelta)}.
+ *
+ * The class name of the rollup is stored on the timeline, so
+ * implementations need a public constructor without arguments.
+ */
+public interface Rollup {
+
+	/**
+	 * Adds the contribution of a node to a delta.
+	 */
+	void collect(Node node, RollupDelta delta);
+}
@@ -0,0 +1,170 @@
+/**
+ * Copyright (C) 2008-2010 Istituto per l'Interscambio Scientifico I.S.I.
+ * You can contact us by email (isi@isi.it) or write to:
+ * ISI Foundation, Viale S. Severo 65, 10133 Torino, Italy.
+ *
+ * This program was written by André Panisson <panisson@gmail.com>
+ *
+ */
+package it.isi.neo4j.dynanets;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.neo4j.graphdb.PropertyContainer;
+
+/**
+ * A change to the rollups of a level node: sums, and counts per key (e.g.
+ * frames per actor), from which the number of distinct keys follows. On a
+ * level node, a sum is stored as a long property
+ * <CODE>rollup_&lt;name&gt;</CODE> and the counts of a name as the sorted
+ * long array <CODE>rollup_&lt;name&gt;_keys</CODE> with the int array
+ * <CODE>rollup_&lt;name&gt;_counts</CODE>; zero sums and counts are dropped.
+ */
+public final class RollupDelta {
+
+	static final String PREFIX = "rollup_";
+	static final String KEYS = "_keys";
+	static final String COUNTS = "_counts";
+
+	private final Map<String, Long> sums = new TreeMap<String, Long>();
+	private final Map<String, TreeMap<Long, Integer>> counts = new TreeMap<String, TreeMap<Long, Integer>>();
+
+	public void add(String name, long value) {
+		Long sum = sums.get(name);
+		sums.put(name, (sum == null) ? value : sum + value);
+	}
+
+	public void add(String name, long key, int count) {
+		TreeMap<Long, Integer> keyCounts = counts.get(name);
+		if (keyCounts == null) {
+			keyCounts = new TreeMap<Long, Integer>();
+			counts.put(name, keyCounts);
+		}
+		Integer previous = keyCounts.get(key);
+		keyCounts.put(key, (previous == null) ? count : previous + count);
+	}
+
+	/**
+	 * Adds another delta to this one.
+	 */
+	public void add(RollupDelta other) {
+		for (Map.Entry<String, Long> sum: other.sums.entrySet()) {
+			add(sum.getKey(), sum.getValue());
+		}
+		for (Map.Entry<String, TreeMap<Long, Integer>> keyCounts: other.counts.entrySet()) {
+			for (Map.Entry<Long, Integer> count: keyCounts.getValue().entrySet()) {
+				add(keyCounts.getKey(), count.getKey(), count.getValue());
+			}
+		}
+	}
+
+	public boolean isEmpty() {
+		return sums.isEmpty() && counts.isEmpty();
+	}
+
+	RollupDelta negate() {
+		RollupDelta negated = new RollupDelta();
+		for (Map.Entry<String, Long> sum: sums.entrySet()) {
+			negated.sums.put(sum.getKey(), -sum.getValue());
+		}
+		for (Map.Entry<String, TreeMap<Long, Integer>> keyCounts: counts.entrySet()) {
+			TreeMap<Long, Integer> negatedCounts = new TreeMap<Long, Integer>();
+			for (Map.Entry<Long, Integer> count: keyCounts.getValue().entrySet()) {
+				negatedCounts.put(count.getKey(), -count.getValue());
+			}
+			negated.counts.put(keyCounts.getKey(), negatedCounts);
+		}
+		return negated;
+	}
+
+	/**
+	 * Applies the delta to the rollup properties of a level node.
+	 */
+	void applyTo(PropertyContainer levelNode) {
+		for (Map.Entry<String, Long> sum: sums.entrySet()) {
+			String property = PREFIX + sum.getKey();
+			long value = ((Number) levelNode.getProperty(property, 0L)).longValue() + sum.getValue();
+			if (value == 0) {
+				levelNode.removeProperty(property);
+			} else {
+				levelNode.setProperty(property, value);
+			}
+		}
+		for (Map.Entry<String, TreeMap<Long, Integer>> keyCounts: counts.entrySet()) {
+			String keysProperty = PREFIX + keyCounts.getKey() + KEYS;
+			String countsProperty = PREFIX + keyCounts.getKey() + COUNTS;
+			long[] keys = (long[]) levelNode.getProperty(keysProperty, new long[0]);
+			int[] values = (int[]) levelNode.getProperty(countsProperty, new int[0]);
+			long[][] merged = merge(keys, values, keyCounts.getValue());
+			if (merged[0].length == 0) {
+				levelNode.removeProperty(keysProperty);
+				levelNode.removeProperty(countsProperty);
+			} else {
+				levelNode.setProperty(keysProperty, merged[0]);
+				levelNode.setProperty(countsProperty, toInts(merged[1]));
+			}
+		}
+	}
+
+	/**
+	 * Returns the rollup properties of a level node holding this delta only.
+	 */
+	Map<String, Object> toProperties() {
+		Map<String, Object> properties = new HashMap<String, Object>();
+		for (Map.Entry<String, Long> sum: sums.entrySet()) {
+			if (sum.getValue() != 0) {
+				properties.put(PREFIX + sum.getKey(), sum.getValue());
+			}
+		}
+		for (Map.Entry<String, TreeMap<Long, Integer>> keyCounts: counts.entrySet()) {
+			long[][] merged = merge(new long[0], new int[0], keyCounts.getValue());
+			if (merged[0].length > 0) {
+				properties.put(PREFIX + keyCounts.getKey() + KEYS, merged[0]);
+				properties.put(PREFIX + keyCounts.getKey() + COUNTS, toInts(merged[1]));
+			}
+		}
+		return properties;
+	}
+
+	/**
+	 * Merges sorted keys and their counts with the sorted changes, dropping
+	 * the keys whose count becomes zero.
+	 */
+	private static long[][] merge(long[] keys, int[] values, TreeMap<Long, Integer> changes) {
+		long[] mergedKeys = new long[keys.length + changes.size()];
+		long[] mergedValues = new long[mergedKeys.length];
+		int n = 0;
+		int i = 0;
+		for (Map.Entry<Long, Integer> change: changes.entrySet()) {
+			long key = change.getKey();
+			while (i < keys.length && keys[i] < key) {
+				mergedKeys[n] = keys[i];
+				mergedValues[n++] = values[i++];
+			}
+			long value = change.getValue();
+			if (i < keys.length && keys[i] == key) {
+				value += values[i++];
+			}
+			if (value != 0) {
+				mergedKeys[n] = key;
+				mergedValues[n++] = value;
+			}
+		}
+		while (i < keys.length) {
+			mergedKeys[n] = keys[i];
+			mergedValues[n++] = values[i++];
+		}
+		return new long[][] { Arrays.copyOf(mergedKeys, n), Arrays.copyOf(mergedValues, n) };
+	}
+
+	private static int[] toInts(long[] values) {
+		int[] ints = new int[values.length];
+		for (int i = 0; i < values.length; i++) {
+			ints[i] = (int) values[i];
+		}
+		return ints;
+	}
+}
@@ -0,0 +1,95 @@
+/**
+ * Copyright (C) 2008-2010 Istituto per l'Interscambio Scientifico I.S.I.
+ * You can contact us by email (isi@isi.it) or write to:
+ * ISI Foundation, Viale S. Severo 65, 10133 Torino, Italy.
+ *
+ * This program was written by André Panisson <panisson@gmail.com>
+ *
+ */
+package it.isi.neo4j.dynanets;
+
+import java.util.Map;
+
+/**
+ * The rollups of one year, month, day or hour node of a structured timeline,
+ * read at once from the node, so that they can be used outside of the
+ * transaction. See {@link RollupDelta} for the stored properties.
+ */
+public class RollupValues {
+
+	private final String level;
+	private final int key;
+	private final Map<String, Object> properties;
+
+	/**
+	 * @param key the yyyymmddhh key of the node, with zeros for the levels
+	 *            below it
+	 */
+	RollupValues(String level, int key, Map<String, Object> properties) {
+		this.level = level;
+		this.key = key;
+		this.properties = properties;
+	}
+
+	/**
+	 * Returns "year", "month", "day" or "hour".
+	 */
+	public String getLevel() {
+		return level;
+	}
+
+	public int getYear() {
+		return TimeBuckets.year(key);
+	}
+
+	/**
+	 * Returns the month, or 0 for a year.
+	 */
+	public int getMonth() {
+		return TimeBuckets.month(key);
+	}
+
+	/**
+	 * Returns the day of the month, or 0 above the day level.
+	 */
+	public int getDay() {
+		return TimeBuckets.day(key);
+	}
+
+	/**
+	 * Returns the hour, also 0 above the hour level.
+	 */
+	public int getHour() {
+		return TimeBuckets.hour(key);
+	}
+
+	public long getSum(String name) {
+		Object sum = properties.get(RollupDelta.PREFIX + name);
+		return (sum == null) ? 0 : ((Number) sum).longValue();
+	}
+
+	/**
+	 * Returns the number of keys with a count, e.g. the number of distinct
+	 * actors.
+	 */
+	public int getKeyCount(String name) {
+		return getKeys(name).length;
+	}
+
+	/**
+	 * Returns the keys with a count, in increasing order.
+	 */
+	public long[] getKeys(String name) {
+		Object keys = properties.get(RollupDelta.PREFIX + name + RollupDelta.KEYS);
+		return (keys == null) ? new long[0] : (long[]) keys;
+	}
+
+	/**
+	 * Returns the counts of the keys returned by {@link #getKeys(String)}, at
+	 * the same positions.
+	 */
+	public int[] getCounts(String name) {
+		Object counts = properties.get(RollupDelta.PREFIX + name + RollupDelta.COUNTS);
+		return (counts == null) ? new int[0] : (int[]) counts;
+	}
+}
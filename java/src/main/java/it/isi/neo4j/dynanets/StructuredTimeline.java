@@ -9,15 +9,22 @@
 package it.isi.neo4j.dynanets;
 
 import java.util.ArrayList;
-import java.util.Calendar;
-import java.util.GregorianCalendar;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
 
 import org.neo4j.graphdb.Direction;
 import org.neo4j.graphdb.GraphDatabaseService;
 import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.NotFoundException;
 import org.neo4j.graphdb.Relationship;
 import org.neo4j.graphdb.RelationshipType;
+import org.neo4j.graphdb.Transaction;
 
 public class StructuredTimeline  extends BaseTimeline {
 
@@ -26,112 +33,854 @@ public class StructuredTimeline  extends BaseTimeline {
 		NEXT_LEVEL
     }
 	
+	// sorted child index kept on every level node: the NEXT_LEVEL values of
+	// its children and, at the same positions, the ids of the child nodes
+	static final String NEXT_LEVEL_KEYS = "next_level_keys";
+	static final String NEXT_LEVEL_IDS = "next_level_ids";
+	
 	private final GraphDatabaseService graphDb;
 	
+	private final BucketCache cache;
+	
+	private final TimeBuckets buckets;
+	
+	// set once this instance has written to the timeline: from then on the
+	// shared first/last node cache may lag behind the transaction state
+	private volatile boolean modified = false;
+	
+	static final String TIME_ZONE = "time_zone";
+	
+	// the class name of the rollup kept on the level nodes
+	static final String ROLLUP = "rollup";
+	
+	private volatile Rollup rollup;
+	
+	// the rollup deltas of the current addNodes or delete batch, by hour key
+	private final ThreadLocal<Map<Integer, RollupDelta>> batchDeltas = new ThreadLocal<Map<Integer, RollupDelta>>();
+	
+	// the NEXT_LEVEL property of each depth of the tree, and the weight of
+	// that depth in a yyyymmddhh hour key
+	private static final String[] LEVELS = { "year", "month", "day", "hour", "timestamp" };
+	private static final int[] LEVEL_SCALES = { 1000000, 10000, 100, 1 };
+	
+	// see TimelineMetrics: NEXT_LEVEL lookups go through the child index of
+	// the level node, or scan its relationships if it has none
+	private static final TimelineMetrics METRICS = TimelineMetrics.get();
+	private static final TimelineMetrics.Histogram GET_NODES_LATENCY = METRICS.latency("get_nodes");
+	private static final TimelineMetrics.Histogram GET_NODES_BETWEEN_LATENCY = METRICS.latency("get_nodes_between");
+	private static final TimelineMetrics.Histogram GET_BUCKETS_LATENCY = METRICS.latency("get_buckets");
+	private static final TimelineMetrics.Histogram GET_ROLLUP_VALUES_LATENCY = METRICS.latency("get_rollup_values");
+	private static final TimelineMetrics.Histogram UPDATE_ROLLUPS_LATENCY = METRICS.latency("update_rollups");
+	private static final TimelineMetrics.Counter NEXT_LEVEL_LOOKUPS = METRICS.counter("next_level.index_lookups");
+	private static final TimelineMetrics.Counter NEXT_LEVEL_SCANS = METRICS.counter("next_level.scans");
+	private static final TimelineMetrics.Counter NEXT_LEVEL_SCANNED = METRICS.counter("next_level.scanned_relationships");
+	private static final TimelineMetrics.Counter FIRST_FROM_HOUR = METRICS.counter("first_time_node.hour_index");
+	private static final TimelineMetrics.Counter FIRST_FROM_SKIP_LIST = METRICS.counter("first_time_node.skip_list");
+	
 	public StructuredTimeline( String name, Node underlyingNode, GraphDatabaseService graphDb ) {
+		this(name, underlyingNode, null, graphDb);
+	}
+
+	/**
+	 * Creates/loads a structured timeline whose hour buckets are computed in
+	 * the given time zone. The zone is stored on the underlying node; if
+	 * <CODE>timeZone</CODE> is <CODE>null</CODE>, the stored zone is used, or
+	 * the default zone of the JVM for a timeline that has none yet.
+	 */
+	public StructuredTimeline( String name, Node underlyingNode, String timeZone, GraphDatabaseService graphDb ) {
 		super(name, underlyingNode, graphDb);
 		this.graphDb = graphDb;
+		this.cache = BucketCache.forDatabase(graphDb);
+		Transaction tx = graphDb.beginTx();
+		try {
+			if (timeZone == null) {
+				timeZone = (String) underlyingNode.getProperty(TIME_ZONE, TimeZone.getDefault().getID());
+			}
+			assertPropertyIsSame(TIME_ZONE, timeZone);
+			String rollupClass = (String) underlyingNode.getProperty(ROLLUP, null);
+			if (rollupClass != null) {
+				rollup = newRollup(rollupClass);
+			}
+			tx.success();
+		} finally {
+			tx.close();
+		}
+		this.buckets = TimeBuckets.forZone(timeZone);
+	}
+	
+	public String getTimeZone() {
+		return (String) getUnderlyingNode().getProperty(TIME_ZONE);
+	}
+	
+	static Rollup newRollup(String className) {
+		try {
+			return Class.forName(className).asSubclass(Rollup.class).getDeclaredConstructor().newInstance();
+		} catch (ReflectiveOperationException e) {
+			throw new IllegalStateException("Cannot create rollup " + className, e);
+		}
+	}
+	
+	/**
+	 * Returns the rollup kept on the level nodes, or <CODE>null</CODE>.
+	 */
+	public Rollup getRollup() {
+		return rollup;
+	}
+	
+	/**
+	 * Sets the rollup kept on the level nodes and rebuilds it from the nodes
+	 * already in the timeline; <CODE>null</CODE> removes the rollups.
+	 */
+	public void setRollup(Rollup rollup) {
+		Transaction tx = graphDb.beginTx();
+		try {
+			if (rollup == null) {
+				getUnderlyingNode().removeProperty(ROLLUP);
+			} else {
+				getUnderlyingNode().setProperty(ROLLUP, rollup.getClass().getName());
+			}
+			this.rollup = rollup;
+			rebuildRollups();
+			tx.success();
+		} finally {
+			tx.close();
+		}
+	}
+	
+	/**
+	 * Recomputes the rollups of all the level nodes from the nodes in the
+	 * timeline.
+	 */
+	public void rebuildRollups() {
+		Transaction tx = graphDb.beginTx();
+		try {
+			clearRollups(getUnderlyingNode(), 0);
+			if (rollup != null) {
+				Map<Integer, RollupDelta> hours = new HashMap<Integer, RollupDelta>();
+				for (Node timeNode: getAllTimeNodes()) {
+					int hourKey = buckets.hourKey((Long) timeNode.getProperty(TIMESTAMP));
+					RollupDelta delta = hours.get(hourKey);
+					if (delta == null) {
+						delta = new RollupDelta();
+						hours.put(hourKey, delta);
+					}
+					for (Relationship rel: timeNode.getRelationships(Direction.OUTGOING, RelTypes.TIMELINE_INSTANCE)) {
+						rollup.collect(rel.getEndNode(), delta);
+					}
+				}
+				applyToLevels(hours);
+			}
+			tx.success();
+		} finally {
+			tx.close();
+		}
+	}
+	
+	/**
+	 * Applies the deltas of some hours to their level nodes: each level node
+	 * gets the sum of its hours, applied once.
+	 */
+	private void applyToLevels(Map<Integer, RollupDelta> hours) {
+		Map<Node, RollupDelta> levels = new HashMap<Node, RollupDelta>();
+		for (Map.Entry<Integer, RollupDelta> hour: hours.entrySet()) {
+			for (Node level: getLevelNodes(getHourNode(hour.getKey(), false))) {
+				RollupDelta delta = levels.get(level);
+				if (delta == null) {
+					delta = new RollupDelta();
+					levels.put(level, delta);
+				}
+				delta.add(hour.getValue());
+			}
+		}
+		for (Map.Entry<Node, RollupDelta> level: levels.entrySet()) {
+			level.getValue().applyTo(level.getKey());
+		}
+	}
+	
+	private void clearRollups(Node parent, int depth) {
+		if (depth > 0) {
+			for (String key: parent.getPropertyKeys()) {
+				if (key.startsWith(RollupDelta.PREFIX)) parent.removeProperty(key);
+			}
+		}
+		if (depth == LEVELS.length - 1) return;
+		for (long childId: readNextLevel(parent, LEVELS[depth])[1]) {
+			clearRollups(graphDb.getNodeById(childId), depth + 1);
+		}
+	}
+	
+	/**
+	 * Adds a delta to the rollups of the hour, day, month and year of a time
+	 * node, for changes to the nodes of that time that the rollup counts.
+	 */
+	public void addToRollups(long timestamp, RollupDelta delta) {
+		if (delta.isEmpty()) return;
+		Transaction tx = graphDb.beginTx();
+		try {
+			applyToRollups(buckets.hourKey(timestamp), delta);
+			tx.success();
+		} finally {
+			tx.close();
+		}
+	}
+	
+	private void applyToRollups(int hourKey, RollupDelta delta) {
+		long start = TimelineMetrics.startTime();
+		try {
+			Node hourNode = getHourNode(hourKey, false);
+			if (hourNode == null) {
+				throw new IllegalArgumentException("No time node in hour " + hourKey + " of Timeline[" + getUnderlyingNode().getId() + "]");
+			}
+			for (Node level: lockLevelNodes(hourNode)) {
+				delta.applyTo(level);
+			}
+		} finally {
+			UPDATE_ROLLUPS_LATENCY.recordSince(start);
+		}
+	}
+	
+	@Override
+	protected void instanceAdded(Node timeNode, Node node, long timestamp) {
+		if (rollup == null) return;
+		RollupDelta delta = new RollupDelta();
+		rollup.collect(node, delta);
+		if (delta.isEmpty()) return;
+		int hourKey = buckets.hourKey(timestamp);
+		Map<Integer, RollupDelta> batch = batchDeltas.get();
+		if (batch == null) {
+			applyToRollups(hourKey, delta);
+			return;
+		}
+		// addNodes writes the sum of each hour once per batch
+		RollupDelta hour = batch.get(hourKey);
+		if (hour == null) batch.put(hourKey, delta);
+		else hour.add(delta);
+	}
+	
+	@Override
+	protected void instanceRemoved(Node timeNode, Node node, long timestamp) {
+		if (rollup == null) return;
+		RollupDelta delta = new RollupDelta();
+		rollup.collect(node, delta);
+		if (delta.isEmpty()) return;
+		int hourKey = buckets.hourKey(timestamp);
+		Map<Integer, RollupDelta> batch = batchDeltas.get();
+		if (batch == null) {
+			applyToRollups(hourKey, delta.negate());
+			return;
+		}
+		// the bulk deletions subtract the sum of each hour once per batch
+		RollupDelta hour = batch.get(hourKey);
+		if (hour == null) batch.put(hourKey, delta.negate());
+		else hour.add(delta.negate());
+	}
+	
+	@Override
+	protected void batchAdded() {
+		Map<Integer, RollupDelta> batch = batchDeltas.get();
+		if (batch == null) return;
+		for (Map.Entry<Integer, RollupDelta> hour: batch.entrySet()) {
+			applyToRollups(hour.getKey(), hour.getValue());
+		}
+		batch.clear();
+	}
+	
+	/**
+	 * Returns an hour node and its day, month and year ancestors.
+	 */
+	private Node[] getLevelNodes(Node hourNode) {
+		Node[] levels = new Node[LEVELS.length - 1];
+		levels[0] = hourNode;
+		for (int i = 1; i < levels.length; i++) {
+			levels[i] = levels[i-1].getSingleRelationship(StructuredRelTypes.NEXT_LEVEL, Direction.INCOMING).getStartNode();
+		}
+		return levels;
+	}
+	
+	/**
+	 * Locks an hour node and its ancestors top-down, the year first, in the
+	 * order of the writers creating level nodes, and returns them like
+	 * {@link #getLevelNodes(Node)}.
+	 */
+	private Node[] lockLevelNodes(Node hourNode) {
+		Node[] levels = getLevelNodes(hourNode);
+		for (int i = levels.length - 1; i >= 0; i--) {
+			lockNode(levels[i]);
+		}
+		return levels;
+	}
+	
+	/**
+	 * Returns the rollups of a year, month, day or hour node, given its year
+	 * and, optionally, month, day and hour; <CODE>null</CODE> if the timeline
+	 * has no such node.
+	 */
+	public RollupValues getRollupValues(int... path) {
+		if (path.length < 1 || path.length > LEVEL_SCALES.length) {
+			throw new IllegalArgumentException("Expected a year, month, day and hour path");
+		}
+		long start = TimelineMetrics.startTime();
+		Transaction tx = graphDb.beginTx();
+		try {
+			Node node = getUnderlyingNode();
+			int key = 0;
+			for (int depth = 0; node != null && depth < path.length; depth++) {
+				node = getNextLevelNode(node, LEVELS[depth], path[depth]);
+				key += path[depth] * LEVEL_SCALES[depth];
+			}
+			// a nested transaction closed without success would roll back
+			// the enclosing one
+			RollupValues values = (node == null) ? null
+					: new RollupValues(LEVELS[path.length - 1], key, node.getAllProperties());
+			tx.success();
+			return values;
+		} finally {
+			tx.close();
+			GET_ROLLUP_VALUES_LATENCY.recordSince(start);
+		}
+	}
+	
+	/**
+	 * Returns the rollups of the nodes of a level ("year", "month", "day" or
+	 * "hour") overlapping [<CODE>startTime</CODE>, <CODE>endTime</CODE>), in
+	 * time order. Each node is read whole, so the first and last ones may
+	 * count nodes out of the range.
+	 */
+	public List<RollupValues> getRollupValues(String level, long startTime, long endTime) {
+		if (startTime >= endTime) {
+			throw new IllegalArgumentException("Start time greater or equal to end time");
+		}
+		int targetDepth = Arrays.asList(LEVELS).indexOf(level) + 1;
+		if (targetDepth < 1 || targetDepth == LEVELS.length) {
+			throw new IllegalArgumentException("Unknown level " + level);
+		}
+		int lowKey = (startTime < TimeBuckets.TABLE_START) ? Integer.MIN_VALUE : buckets.hourKey(startTime);
+		int highKey = (endTime > TimeBuckets.TABLE_END) ? Integer.MAX_VALUE : buckets.hourKey(endTime - 1);
+		long start = TimelineMetrics.startTime();
+		List<RollupValues> result = new ArrayList<RollupValues>();
+		Transaction tx = graphDb.beginTx();
+		try {
+			collectRollups(getUnderlyingNode(), 0, 0, targetDepth, lowKey, highKey, result);
+			tx.success();
+		} finally {
+			tx.close();
+			GET_ROLLUP_VALUES_LATENCY.recordSince(start);
+		}
+		return result;
+	}
+	
+	private void collectRollups(Node parent, int depth, int prefix, int targetDepth, int lowKey, int highKey,
+			List<RollupValues> result) {
+		long[][] children = readNextLevel(parent, LEVELS[depth]);
+		int scale = LEVEL_SCALES[depth];
+		for (int i = 0; i < children[0].length; i++) {
+			int key = prefix + (int) children[0][i] * scale;
+			if (key + (scale - 1) < lowKey || key > highKey) continue;
+			Node child = graphDb.getNodeById(children[1][i]);
+			if (depth + 1 == targetDepth) {
+				result.add(new RollupValues(LEVELS[depth], key, child.getAllProperties()));
+			} else {
+				collectRollups(child, depth + 1, key, targetDepth, lowKey, highKey, result);
+			}
+		}
+	}
+
+	@Override
+	public Node getFirstNode() {
+		long timelineId = getUnderlyingNode().getId();
+		if (firstNode == null && !modified) {
+			firstNode = getCachedNode(cache.getFirst(timelineId));
+			if (firstNode == null) {
+				long version = cache.getEndsVersion();
+				Node node = super.getFirstNode();
+				if (node != null) cache.putFirst(timelineId, node.getId(), version);
+				return node;
+			}
+		}
+		return super.getFirstNode();
+	}
+
+	@Override
+	public Node getLastNode() {
+		long timelineId = getUnderlyingNode().getId();
+		if (lastNode == null && !modified) {
+			lastNode = getCachedNode(cache.getLast(timelineId));
+			if (lastNode == null) {
+				long version = cache.getEndsVersion();
+				Node node = super.getLastNode();
+				if (node != null) cache.putLast(timelineId, node.getId(), version);
+				return node;
+			}
+		}
+		return super.getLastNode();
+	}
+
+	/**
+	 * Checks that a cached node is still the hour node below the cached day
+	 * node, through its incoming NEXT_LEVEL relationship: the id of a deleted
+	 * node can be reused by an unrelated one.
+	 */
+	private boolean isHourNode(Node node, int hour, long dayId) {
+		Iterator<Relationship> rels = node.getRelationships(Direction.INCOMING, StructuredRelTypes.NEXT_LEVEL).iterator();
+		if (!rels.hasNext()) return false;
+		Relationship rel = rels.next();
+		Object key = rel.getProperty("hour", null);
+		return !rels.hasNext() && key instanceof Number && ((Number) key).intValue() == hour
+				&& rel.getStartNode().getId() == dayId;
 	}
 
+	private Node getCachedNode(long nodeId) {
+		if (nodeId < 0) return null;
+		try {
+			return graphDb.getNodeById(nodeId);
+		} catch (NotFoundException e) {
+			cache.evictNode(nodeId);
+			return null;
+		}
+	}
+
+	@Override
 	public void addNode(Node nodeToAdd, long timestamp) {
-		super.addNode(nodeToAdd, timestamp);
-		Calendar c = new GregorianCalendar();
-		c.setTimeInMillis(timestamp*1000);
-		
-		Node underlyingNode = this.getUnderlyingNode();
-		Node nextLevel = underlyingNode;
-		
-		nextLevel.setProperty("next_level", "year");
-		nextLevel = createNextLevelNode(nextLevel, "year", c.get(Calendar.YEAR));
-		nextLevel.setProperty("next_level", "month");
-		nextLevel = createNextLevelNode(nextLevel, "month", c.get(Calendar.MONTH)+1);
-		nextLevel.setProperty("next_level", "day");
-		nextLevel = createNextLevelNode(nextLevel, "day", c.get(Calendar.DAY_OF_MONTH));
-		nextLevel.setProperty("next_level", "hour");
-		nextLevel = createNextLevelNode(nextLevel, "hour", c.get(Calendar.HOUR_OF_DAY));
-		
-		Relationship rel = nodeToAdd.getSingleRelationship(RelTypes.TIMELINE_INSTANCE, Direction.INCOMING);
-		Node timeNode = rel.getStartNode();
-		nextLevel.setProperty("next_level", "timestamp");
-		rel = nextLevel.createRelationshipTo(timeNode, StructuredRelTypes.NEXT_LEVEL);
+		modified = true;
+		try {
+			super.addNode(nodeToAdd, timestamp);
+		} catch (RuntimeException e) {
+			cache.discardPending();
+			throw e;
+		}
+	}
+
+	@Override
+	public void appendNode(Node nodeToAdd, long timestamp) {
+		modified = true;
+		try {
+			super.appendNode(nodeToAdd, timestamp);
+		} catch (RuntimeException e) {
+			cache.discardPending();
+			throw e;
+		}
+	}
+
+	@Override
+	public void addNodes(Iterable<Node> nodesToAdd, long[] timestamps, int batchSize) {
+		modified = true;
+		if (rollup != null) batchDeltas.set(new HashMap<Integer, RollupDelta>());
+		try {
+			super.addNodes(nodesToAdd, timestamps, batchSize);
+		} catch (RuntimeException e) {
+			cache.discardPending();
+			throw e;
+		} finally {
+			batchDeltas.remove();
+		}
+	}
+
+	@Override
+	public void removeNode(Node nodeToRemove, boolean transactional) {
+		modified = true;
+		super.removeNode(nodeToRemove, transactional);
+	}
+
+	@Override
+	public void delete() {
+		modified = true;
+		super.delete();
+	}
+	
+	@Override
+	public long delete(int commitInterval, DeleteListener listener) {
+		modified = true;
+		if (rollup != null) batchDeltas.set(new HashMap<Integer, RollupDelta>());
+		try {
+			return super.delete(commitInterval, listener);
+		} finally {
+			batchDeltas.remove();
+		}
+	}
+	
+	/**
+	 * Subtracts the deleted nodes from the rollups of their hours, days,
+	 * months and years, removes the deleted time nodes from the child index
+	 * of their hours, rewriting each index once, and deletes the level nodes
+	 * left without children, so that the tree and its rollups only cover the
+	 * time nodes left.
+	 */
+	@Override
+	protected void timeNodesDeleted(long timestamp) {
+		Map<Integer, RollupDelta> batch = batchDeltas.get();
+		if (batch != null) {
+			// the level nodes deleted below go with their rollups, the
+			// others, around a trimmed hour, keep counting the nodes left
+			applyToLevels(batch);
+			batch.clear();
+		}
+		Node[] path = new Node[LEVELS.length];
+		path[0] = getUnderlyingNode();
+		while (true) {
+			// descend along the first children to the earliest hour, or to
+			// a level node without children
+			int depth = 0;
+			while (depth < LEVELS.length - 1) {
+				long[] ids = readNextLevel(path[depth], LEVELS[depth])[1];
+				if (ids.length == 0) break;
+				path[depth + 1] = graphDb.getNodeById(ids[0]);
+				depth++;
+			}
+			Node node = path[depth];
+			if (depth == 0) {
+				node.removeProperty(NEXT_LEVEL_KEYS);
+				node.removeProperty(NEXT_LEVEL_IDS);
+				node.removeProperty("next_level");
+				return;
+			}
+			if (depth == LEVELS.length - 1 && removeNextLevelChildren(node, timestamp)) return;
+			Relationship rel = node.getSingleRelationship(StructuredRelTypes.NEXT_LEVEL, Direction.INCOMING);
+			removeNextLevelChild(path[depth - 1], ((Number) rel.getProperty(LEVELS[depth - 1])).longValue());
+			rel.delete();
+			node.delete();
+		}
+	}
+	
+	@Override
+	protected void timeNodeCreated(Node timeNode, long timestamp) {
+		Node nextLevel = getHourNode(buckets.hourKey(timestamp), true);
+		// the child index of the hour is rewritten as a whole: writers into
+		// the same hour take turns, writers into other hours do not wait
+		lockNode(nextLevel);
+		if (!nextLevel.hasProperty(NEXT_LEVEL_KEYS)) {
+			indexNextLevel(nextLevel, "timestamp");
+		}
+		Relationship rel = nextLevel.createRelationshipTo(timeNode, StructuredRelTypes.NEXT_LEVEL);
 		rel.setProperty("timestamp", timestamp);
+		putNextLevelChild(nextLevel, timestamp, timeNode.getId());
 		
 	}
 
+	/**
+	 * Returns the node of the given hour bucket, looking it up in the shared
+	 * bucket cache before descending the NEXT_LEVEL tree. If <CODE>create</CODE>
+	 * is set, missing level nodes are created, otherwise <CODE>null</CODE> is
+	 * returned.
+	 */
+	private Node getHourNode(int hourKey, boolean create) {
+		long timelineId = getUnderlyingNode().getId();
+		int year = TimeBuckets.year(hourKey);
+		int month = TimeBuckets.month(hourKey);
+		int day = TimeBuckets.day(hourKey);
+		int hour = TimeBuckets.hour(hourKey);
+		// writers updating rollups lock the whole path, top-down
+		boolean lock = create && rollup != null;
+		BucketCache.Bucket bucket = cache.getBucket(timelineId, hourKey);
+		Node nextLevel = (bucket == null) ? null : getCachedNode(bucket.nodeId);
+		if (nextLevel != null) {
+			if (isHourNode(nextLevel, hour, bucket.parentId)) {
+				if (lock) lockLevelNodes(nextLevel);
+				return nextLevel;
+			}
+			cache.evictNode(nextLevel.getId());
+		}
+		
+		nextLevel = this.getUnderlyingNode();
+		if (create) {
+			nextLevel = createNextLevelNode(nextLevel, 0, year, lock);
+			nextLevel = createNextLevelNode(nextLevel, 1, month, lock);
+			Node dayNode = createNextLevelNode(nextLevel, 2, day, lock);
+			nextLevel = createNextLevelNode(dayNode, 3, hour, lock);
+			cache.putCreatedBucket(timelineId, hourKey, nextLevel.getId(), dayNode.getId());
+		} else {
+			nextLevel = getNextLevelNode(nextLevel, "year", year);
+			if (nextLevel == null) return null;
+			nextLevel = getNextLevelNode(nextLevel, "month", month);
+			if (nextLevel == null) return null;
+			Node dayNode = getNextLevelNode(nextLevel, "day", day);
+			if (dayNode == null) return null;
+			nextLevel = getNextLevelNode(dayNode, "hour", hour);
+			if (nextLevel == null) return null;
+			cache.putBucket(timelineId, hourKey, nextLevel.getId(), dayNode.getId());
+		}
+		return nextLevel;
+	}
+
+	@Override
+	protected void timeNodeDeleted(Node timeNode, long timestamp) {
+		Relationship rel = timeNode.getSingleRelationship(StructuredRelTypes.NEXT_LEVEL, Direction.INCOMING);
+		if (rel == null) return;
+		lockNode(rel.getStartNode());
+		removeNextLevelChild(rel.getStartNode(), timestamp);
+		rel.delete();
+	}
+
 	@Override
 	public Iterable<Node> getNodes(long timestamp) {
-		
-		Calendar c = new GregorianCalendar();
-		c.setTimeInMillis(timestamp*1000);
-		List<Node> nodeList = new ArrayList<Node>();
-		
-		Node underlyingNode = this.getUnderlyingNode();
-		Node currentNode = underlyingNode;
-		
-		currentNode = getNextLevelNode(currentNode, "year", c.get(Calendar.YEAR));
-		if (currentNode == null) return nodeList;
-		
-		currentNode = getNextLevelNode(currentNode, "month", c.get(Calendar.MONTH)+1);
-		if (currentNode == null) return nodeList;
-		
-		currentNode = getNextLevelNode(currentNode, "day", c.get(Calendar.DAY_OF_MONTH));
-		if (currentNode == null) return nodeList;
-		
-		currentNode = getNextLevelNode(currentNode, "hour", c.get(Calendar.HOUR_OF_DAY));
-		if (currentNode == null) return nodeList;
-		
-		currentNode = getNextLevelNode(currentNode, "timestamp", timestamp);
-		if (currentNode == null) return nodeList;
-		
-		do
-        {
-            long currentTime = (Long) currentNode.getProperty( "timestamp" );
-            if ( currentTime == timestamp )
-            {
-                for ( Relationship instanceRel : currentNode.getRelationships(
-                        RelTypes.TIMELINE_INSTANCE, Direction.OUTGOING ) )
-                {
-                    nodeList.add( instanceRel.getEndNode() );
-                }
-                break;
-            }
-            if ( currentTime > timestamp )
-            {
-                break;
-            }
-            Relationship rel = currentNode.getSingleRelationship(
-                    RelTypes.TIMELINE_NEXT_ENTRY, Direction.OUTGOING );
-            currentNode = rel.getEndNode();
-        }
-        while ( !currentNode.equals( underlyingNode ) );
-		return nodeList;
+		long start = TimelineMetrics.startTime();
+		Node currentNode = getHourNode(buckets.hourKey(timestamp), false);
+		if (currentNode != null) {
+			currentNode = getNextLevelNode(currentNode, "timestamp", timestamp);
+		}
+		if (currentNode == null) {
+			GET_NODES_LATENCY.recordSince(start);
+			return Collections.emptyList();
+		}
+		return GET_NODES_LATENCY.recordOnExhaustion(getChainNodes(currentNode, timestamp + 1), start);
+	}
+	
+	/**
+	 * Returns the nodes with a timestamp in [<CODE>startTime</CODE>,
+	 * <CODE>endTime</CODE>), in timestamp order. The first time node is
+	 * located through the hour bucket of <CODE>startTime</CODE> (or the skip
+	 * list if that bucket holds no later time node); whole buckets are then
+	 * streamed from the chain, so no result list is built in memory; the
+	 * latency metric is recorded once they are all read.
+	 */
+	public Iterable<Node> getNodesBetween(long startTime, long endTime) {
+		if (startTime >= endTime) {
+			throw new IllegalArgumentException("Start time greater or equal to end time");
+		}
+		long start = TimelineMetrics.startTime();
+		Node first = getFirstTimeNodeFrom(startTime);
+		return GET_NODES_BETWEEN_LATENCY.recordOnExhaustion(getChainNodes(first, endTime), start);
 	}
 	
+	@Override
+	protected Node getFirstTimeNodeFrom(long timestamp) {
+		Node hourNode = getHourNode(buckets.hourKey(timestamp), false);
+		if (hourNode != null) {
+			long[] keys = (long[]) hourNode.getProperty(NEXT_LEVEL_KEYS, null);
+			if (keys != null) {
+				int pos = Arrays.binarySearch(keys, timestamp);
+				if (pos < 0) pos = -(pos + 1);
+				if (pos < keys.length) {
+					FIRST_FROM_HOUR.increment();
+					long[] ids = (long[]) hourNode.getProperty(NEXT_LEVEL_IDS);
+					return graphDb.getNodeById(ids[pos]);
+				}
+			}
+		}
+		FIRST_FROM_SKIP_LIST.increment();
+		return super.getFirstTimeNodeFrom(timestamp);
+	}
+	
+	/**
+	 * Returns the non-empty hour buckets of the time nodes with a timestamp
+	 * in [<CODE>startTime</CODE>, <CODE>endTime</CODE>), in time order. Only
+	 * the child indexes of the NEXT_LEVEL tree are read, skipping the years,
+	 * months, days and hours out of the range, and the chain is not walked,
+	 * so the buckets can be processed independently.
+	 */
+	public List<TimeBucket> getBuckets(long startTime, long endTime) {
+		if (startTime >= endTime) {
+			throw new IllegalArgumentException("Start time greater or equal to end time");
+		}
+		// hour keys never decrease with time, even across DST transitions
+		int lowKey = (startTime < TimeBuckets.TABLE_START) ? Integer.MIN_VALUE : buckets.hourKey(startTime);
+		int highKey = (endTime > TimeBuckets.TABLE_END) ? Integer.MAX_VALUE : buckets.hourKey(endTime - 1);
+		long start = TimelineMetrics.startTime();
+		List<TimeBucket> result = new ArrayList<TimeBucket>();
+		collectBuckets(getUnderlyingNode(), 0, 0, lowKey, highKey, startTime, endTime, result);
+		GET_BUCKETS_LATENCY.recordSince(start);
+		return result;
+	}
+	
+	private void collectBuckets(Node parent, int depth, int prefix, int lowKey, int highKey,
+			long startTime, long endTime, List<TimeBucket> result) {
+		long[][] children = readNextLevel(parent, LEVELS[depth]);
+		long[] keys = children[0];
+		long[] ids = children[1];
+		if (depth == LEVELS.length - 1) {
+			int from = lowerBound(keys, startTime);
+			int to = lowerBound(keys, endTime);
+			if (from < to) {
+				result.add(new TimeBucket(prefix, Arrays.copyOfRange(ids, from, to), Arrays.copyOfRange(keys, from, to)));
+			}
+			return;
+		}
+		int scale = LEVEL_SCALES[depth];
+		for (int i = 0; i < keys.length; i++) {
+			int key = prefix + (int) keys[i] * scale;
+			if (key + (scale - 1) < lowKey || key > highKey) continue;
+			collectBuckets(graphDb.getNodeById(ids[i]), depth + 1, key, lowKey, highKey, startTime, endTime, result);
+		}
+	}
+	
+	private static int lowerBound(long[] keys, long key) {
+		int pos = Arrays.binarySearch(keys, key);
+		if (pos < 0) return -(pos + 1);
+		while (pos > 0 && keys[pos-1] == key) pos--;
+		return pos;
+	}
+	
+	/**
+	 * Looks up the child of a level node with a binary search over the
+	 * sorted child index kept on the level node, falling back to a scan of
+	 * the NEXT_LEVEL relationships for level nodes without an index.
+	 */
 	private Node getNextLevelNode(Node parent, String propertyName, Object propertyValue) {
+		long[] keys = (long[]) parent.getProperty(NEXT_LEVEL_KEYS, null);
+		if (keys == null) {
+			return scanNextLevelNode(parent, propertyName, propertyValue);
+		}
+		NEXT_LEVEL_LOOKUPS.increment();
+		int pos = Arrays.binarySearch(keys, ((Number) propertyValue).longValue());
+		if (pos < 0) return null;
+		long[] ids = (long[]) parent.getProperty(NEXT_LEVEL_IDS);
+		return graphDb.getNodeById(ids[pos]);
+	}
+	
+	private Node scanNextLevelNode(Node parent, String propertyName, Object propertyValue) {
+		NEXT_LEVEL_SCANS.increment();
 		Relationship rel = null;
+		int scanned = 0;
 		for (Relationship r: parent.getRelationships(Direction.OUTGOING, StructuredRelTypes.NEXT_LEVEL)) {
+			scanned++;
 			if (r.getProperty(propertyName).equals(propertyValue)) {
 				rel = r;
 				break;
 			}
 		}
+		NEXT_LEVEL_SCANNED.add(scanned);
 		
 		return ( rel == null ) ? null : rel.getEndNode();
 		
 	}
 	
-	private Node createNextLevelNode(Node parent, String propertyName, Object propertyValue) {
-		Node nextLevel = getNextLevelNode(parent, propertyName, propertyValue);
+	/**
+	 * Returns the child of a level node at the given depth of the tree,
+	 * creating it if needed. The parent is only locked to create a child, so
+	 * that concurrent writers never create it twice, while the writers of
+	 * existing buckets do not wait for each other; with <CODE>lock</CODE>
+	 * set the child is locked as well.
+	 */
+	private Node createNextLevelNode(Node parent, int depth, int value, boolean lock) {
+		String propertyName = LEVELS[depth];
+		Node nextLevel = getNextLevelNode(parent, propertyName, value);
+		if (nextLevel != null) {
+			if (lock) lockNode(nextLevel);
+			return nextLevel;
+		}
+		
+		lockNode(parent);
+		if (!parent.hasProperty(NEXT_LEVEL_KEYS)) {
+			indexNextLevel(parent, propertyName);
+		}
+		nextLevel = getNextLevelNode(parent, propertyName, value);
 		
 		if ( nextLevel == null )
         {
+			if (!propertyName.equals(parent.getProperty("next_level", null))) {
+				parent.setProperty("next_level", propertyName);
+			}
 			nextLevel = graphDb.createNode();
+			nextLevel.setProperty("next_level", LEVELS[depth + 1]);
 			Relationship rel = parent.createRelationshipTo( nextLevel,
 					StructuredRelTypes.NEXT_LEVEL );
-			rel.setProperty(propertyName, propertyValue);
+			rel.setProperty(propertyName, value);
+			putNextLevelChild(parent, value, nextLevel.getId());
         }
+		if (lock) lockNode(nextLevel);
 		
 		return nextLevel;
 	}
+	
+	/**
+	 * Builds the child index of a level node from its NEXT_LEVEL
+	 * relationships.
+	 */
+	private void indexNextLevel(Node parent, String propertyName) {
+		long[][] children = scanNextLevel(parent, propertyName);
+		parent.setProperty(NEXT_LEVEL_KEYS, children[0]);
+		parent.setProperty(NEXT_LEVEL_IDS, children[1]);
+	}
+	
+	/**
+	 * Returns the keys of the children of a level node and, at the same
+	 * positions, their ids, sorted by key.
+	 */
+	private long[][] readNextLevel(Node parent, String propertyName) {
+		long[] keys = (long[]) parent.getProperty(NEXT_LEVEL_KEYS, null);
+		if (keys == null) {
+			return scanNextLevel(parent, propertyName);
+		}
+		return new long[][] { keys, (long[]) parent.getProperty(NEXT_LEVEL_IDS) };
+	}
+	
+	private long[][] scanNextLevel(Node parent, String propertyName) {
+		NEXT_LEVEL_SCANS.increment();
+		List<Relationship> rels = new ArrayList<Relationship>();
+		for (Relationship r: parent.getRelationships(Direction.OUTGOING, StructuredRelTypes.NEXT_LEVEL)) {
+			rels.add(r);
+		}
+		NEXT_LEVEL_SCANNED.add(rels.size());
+		long[][] children = new long[rels.size()][];
+		for (int i = 0; i < children.length; i++) {
+			Relationship r = rels.get(i);
+			long key = ((Number) r.getProperty(propertyName)).longValue();
+			children[i] = new long[] { key, r.getEndNode().getId() };
+		}
+		Arrays.sort(children, new Comparator<long[]>() {
+			public int compare(long[] c1, long[] c2) {
+				return c1[0] < c2[0] ? -1 : (c1[0] == c2[0] ? 0 : 1);
+			}
+		});
+		long[] keys = new long[children.length];
+		long[] ids = new long[children.length];
+		for (int i = 0; i < children.length; i++) {
+			keys[i] = children[i][0];
+			ids[i] = children[i][1];
+		}
+		return new long[][] { keys, ids };
+	}
+	
+	private void putNextLevelChild(Node parent, long key, long childId) {
+		long[] keys = (long[]) parent.getProperty(NEXT_LEVEL_KEYS);
+		long[] ids = (long[]) parent.getProperty(NEXT_LEVEL_IDS);
+		int pos = -(Arrays.binarySearch(keys, key) + 1);
+		long[] newKeys = new long[keys.length + 1];
+		long[] newIds = new long[ids.length + 1];
+		System.arraycopy(keys, 0, newKeys, 0, pos);
+		System.arraycopy(ids, 0, newIds, 0, pos);
+		newKeys[pos] = key;
+		newIds[pos] = childId;
+		System.arraycopy(keys, pos, newKeys, pos + 1, keys.length - pos);
+		System.arraycopy(ids, pos, newIds, pos + 1, ids.length - pos);
+		parent.setProperty(NEXT_LEVEL_KEYS, newKeys);
+		parent.setProperty(NEXT_LEVEL_IDS, newIds);
+	}
+	
+	/**
+	 * Removes the children with a key up to <CODE>maxKey</CODE> from the
+	 * child index of a level node, whose relationships to them are already
+	 * deleted.
+	 *
+	 * @return whether any children are left
+	 */
+	private boolean removeNextLevelChildren(Node parent, long maxKey) {
+		long[] keys = (long[]) parent.getProperty(NEXT_LEVEL_KEYS, null);
+		if (keys == null) {
+			return parent.hasRelationship(Direction.OUTGOING, StructuredRelTypes.NEXT_LEVEL);
+		}
+		int pos = lowerBound(keys, maxKey + 1);
+		if (pos > 0) {
+			long[] ids = (long[]) parent.getProperty(NEXT_LEVEL_IDS);
+			parent.setProperty(NEXT_LEVEL_KEYS, Arrays.copyOfRange(keys, pos, keys.length));
+			parent.setProperty(NEXT_LEVEL_IDS, Arrays.copyOfRange(ids, pos, ids.length));
+		}
+		return pos < keys.length;
+	}
+	
+	private void removeNextLevelChild(Node parent, long key) {
+		long[] keys = (long[]) parent.getProperty(NEXT_LEVEL_KEYS, null);
+		if (keys == null) return;
+		int pos = Arrays.binarySearch(keys, key);
+		if (pos < 0) return;
+		long[] ids = (long[]) parent.getProperty(NEXT_LEVEL_IDS);
+		long[] newKeys = new long[keys.length - 1];
+		long[] newIds = new long[ids.length - 1];
+		System.arraycopy(keys, 0, newKeys, 0, pos);
+		System.arraycopy(ids, 0, newIds, 0, pos);
+		System.arraycopy(keys, pos + 1, newKeys, pos, keys.length - pos - 1);
+		System.arraycopy(ids, pos + 1, newIds, pos, ids.length - pos - 1);
+		parent.setProperty(NEXT_LEVEL_KEYS, newKeys);
+		parent.setProperty(NEXT_LEVEL_IDS, newIds);
+	}
 
 }
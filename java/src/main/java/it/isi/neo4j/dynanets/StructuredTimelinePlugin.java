@@ -10,7 +10,15 @@ package it.isi.neo4j.dynanets;
 
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 
 import org.neo4j.graphdb.GraphDatabaseService;
 import org.neo4j.graphdb.Node;
@@ -21,22 +29,108 @@ import org.neo4j.server.plugins.Parameter;
 import org.neo4j.server.plugins.PluginTarget;
 import org.neo4j.server.plugins.ServerPlugin;
 import org.neo4j.server.plugins.Source;
+import org.neo4j.server.rest.repr.ListRepresentation;
+import org.neo4j.server.rest.repr.MappingRepresentation;
+import org.neo4j.server.rest.repr.MappingSerializer;
+import org.neo4j.server.rest.repr.Representation;
+import org.neo4j.server.rest.repr.RepresentationType;
+import org.neo4j.server.rest.repr.ValueRepresentation;
 
 @Description( "An extension to the Neo4j Server for accessing the structured timeline" )
 public class StructuredTimelinePlugin extends ServerPlugin
 {
     
+    static final int DEFAULT_PAGE_SIZE = 1000;
+    static final int MAX_PAGE_SIZE = 10000;
+    static final int DEFAULT_COMMIT_INTERVAL = 1000;
+    
+    // the last deletion of each timeline, by timeline node id
+    private static final Map<Long, Deletion> deletions = new HashMap<Long, Deletion>();
+    
+    // request latencies, by extension, see TimelineMetrics: the node lists
+    // are timed until serialized, delete_timeline only by its batches
+    private static final TimelineMetrics METRICS = TimelineMetrics.get();
+    private static final TimelineMetrics.Histogram CREATE_TIMELINE_LATENCY = METRICS.latency("plugin.create_timeline");
+    private static final TimelineMetrics.Histogram INDEX_TIMELINE_LATENCY = METRICS.latency("plugin.index_timeline");
+    private static final TimelineMetrics.Histogram ADD_NODE_LATENCY = METRICS.latency("plugin.add_timeline_node");
+    private static final TimelineMetrics.Histogram ADD_NODES_LATENCY = METRICS.latency("plugin.add_timeline_nodes");
+    private static final TimelineMetrics.Histogram GET_NODES_LATENCY = METRICS.latency("plugin.get_timeline_nodes");
+    private static final TimelineMetrics.Histogram GET_NODES_BETWEEN_LATENCY = METRICS.latency("plugin.get_timeline_nodes_between");
+    private static final TimelineMetrics.Histogram GET_PAGE_LATENCY = METRICS.latency("plugin.get_timeline_page");
+    private static final TimelineMetrics.Histogram GET_TIMESTAMPS_LATENCY = METRICS.latency("plugin.get_timestamps");
+    
     @Name("create_timeline")
     @Description("")
     @PluginTarget( GraphDatabaseService.class )
 	public Node createTimeline(
 			@Source GraphDatabaseService graphDb,
 			@Description("The node that will represent the timeline.") @Parameter(name = "tnode") Node tnode,
-			@Description("The timeline name.") @Parameter(name = "name") String name) {
-    	new StructuredTimeline( name, tnode, graphDb );
+			@Description("The timeline name.") @Parameter(name = "name") String name,
+			@Description("The time zone of the hour buckets, e.g. Europe/Rome. Defaults to the server zone.") @Parameter(name = "time_zone", optional = true) String timeZone) {
+    	long requestStart = TimelineMetrics.startTime();
+    	try {
+	    	new StructuredTimeline( name, tnode, timeZone, graphDb );
+	    	return tnode;
+    	} finally {
+    		CREATE_TIMELINE_LATENCY.recordSince(requestStart);
+    	}
+    }
+    
+    @Name("index_timeline")
+    @Description("Builds the skip list index of an existing timeline.")
+    @PluginTarget( GraphDatabaseService.class )
+	public Node indexTimeline(
+			@Source GraphDatabaseService graphDb,
+			@Description("The node representing the timeline.") @Parameter(name = "tnode") Node tnode) {
+    	long requestStart = TimelineMetrics.startTime();
+    	try {
+	    	String timelineName = tnode.getProperty( "timeline_name" ).toString();
+	    	StructuredTimeline timeline = new StructuredTimeline( timelineName, tnode, graphDb );
+	    	timeline.buildIndex();
+	    	return tnode;
+    	} finally {
+    		INDEX_TIMELINE_LATENCY.recordSince(requestStart);
+    	}
+    }
+    
+    @Name("delete_timeline")
+    @Description("Deletes the time nodes and level nodes of a timeline in the background, in committed batches; delete_timeline_status tells how far it got. The nodes in the timeline and the timeline node are kept.")
+    @PluginTarget( GraphDatabaseService.class )
+	public Node deleteTimeline(
+			@Source GraphDatabaseService graphDb,
+			@Description("The node representing the timeline.") @Parameter(name = "tnode") Node tnode,
+			@Description("The number of time nodes deleted per transaction.") @Parameter(name = "commit_interval", optional = true) Integer commitInterval) {
+    	String timelineName = tnode.getProperty( "timeline_name" ).toString();
+    	StructuredTimeline timeline = new StructuredTimeline( timelineName, tnode, graphDb );
+    	synchronized (deletions) {
+    		Deletion running = deletions.get(tnode.getId());
+    		if (running != null && !running.future.isDone()) {
+    			throw new IllegalStateException("Timeline[" + tnode.getId() + "] is already being deleted");
+    		}
+    		Deletion deletion = new Deletion();
+    		// a thread of its own, since the request may run in a transaction
+    		deletion.future = timeline.deleteInBackground(commitInterval == null ? DEFAULT_COMMIT_INTERVAL : commitInterval, deletion);
+    		deletions.put(tnode.getId(), deletion);
+    	}
     	return tnode;
     }
     
+    @Name("delete_timeline_status")
+    @Description("Returns the progress of the last delete_timeline of a timeline: its state (running, done or failed), the time nodes deleted so far and, if it failed, the error.")
+    @PluginTarget( GraphDatabaseService.class )
+	public Representation deleteTimelineStatus(
+			@Source GraphDatabaseService graphDb,
+			@Description("The node representing the timeline.") @Parameter(name = "tnode") Node tnode) {
+    	Deletion deletion;
+    	synchronized (deletions) {
+    		deletion = deletions.get(tnode.getId());
+    	}
+    	if (deletion == null) {
+    		throw new IllegalArgumentException("Timeline[" + tnode.getId() + "] has not been deleted since the server started");
+    	}
+    	return new DeletionRepresentation(deletion);
+    }
+    
     @Name("add_timeline_node")
     @Description("")
     @PluginTarget( GraphDatabaseService.class )
@@ -46,6 +140,7 @@ public class StructuredTimelinePlugin extends ServerPlugin
 			@Description("The node representing the timeline.") @Parameter(name = "tnode") Node tnode,
 			@Description("The timestamp.") @Parameter(name = "timestamp") Long timestamp) {
     	
+    	long requestStart = TimelineMetrics.startTime();
     	Transaction tx = graphDb.beginTx();
 		try {
 	    	String timelineName = tnode.getProperty( "timeline_name" ).toString();
@@ -53,12 +148,68 @@ public class StructuredTimelinePlugin extends ServerPlugin
 	    	timeline.addNode(node, timestamp);
 	    	tx.success();
 		} finally {
-			tx.finish();
+			tx.close();
+			ADD_NODE_LATENCY.recordSince(requestStart);
 		}
 		
 		return node;
     }
     
+    @Name("add_timeline_nodes")
+    @Description("Adds a batch of nodes to the timeline, in a thread of its own committing every batch_size nodes, and returns when all are added.")
+    @PluginTarget( GraphDatabaseService.class )
+	public Node addTimelineNodes(
+			@Source GraphDatabaseService graphDb,
+			@Description("The ids of the nodes to add to timeline.") @Parameter(name = "nodes") Long[] nodeIds,
+			@Description("The node representing the timeline.") @Parameter(name = "tnode") Node tnode,
+			@Description("The timestamps, one per node.") @Parameter(name = "timestamps") Long[] timestamps,
+			@Description("The number of nodes added per transaction.") @Parameter(name = "batch_size", optional = true) Integer batchSize) {
+    	
+    	long requestStart = TimelineMetrics.startTime();
+    	if (nodeIds.length != timestamps.length) {
+    		throw new IllegalArgumentException(nodeIds.length + " nodes but " + timestamps.length + " timestamps");
+    	}
+    	final int size = (batchSize == null) ? BaseTimeline.DEFAULT_BATCH_SIZE : batchSize;
+    	if (size < 1) {
+    		throw new IllegalArgumentException("Batch size must be positive");
+    	}
+    	final List<Node> nodes = new ArrayList<Node>(nodeIds.length);
+    	final long[] times = new long[timestamps.length];
+    	for (int i = 0; i < nodeIds.length; i++) {
+    		nodes.add(graphDb.getNodeById(nodeIds[i]));
+    		times[i] = timestamps[i];
+    	}
+    	final String timelineName = tnode.getProperty( "timeline_name" ).toString();
+    	final GraphDatabaseService db = graphDb;
+    	final Node timelineNode = tnode;
+    	// a thread of its own, since the request runs in a transaction that
+    	// would hold every batch until the end. The timeline is loaded there
+    	// too: loading may write to the timeline node, and a lock taken by the
+    	// request would block the batches while the request waits for them.
+    	FutureTask<Void> added = new FutureTask<Void>(new Callable<Void>() {
+    		public Void call() {
+    			new StructuredTimeline( timelineName, timelineNode, db ).addNodes(nodes, times, size);
+    			return null;
+    		}
+    	});
+    	Thread thread = new Thread(added, "TimelineAdd-" + timelineName);
+    	thread.setDaemon(true);
+    	thread.start();
+    	try {
+	    	added.get();
+    	} catch (InterruptedException e) {
+    		Thread.currentThread().interrupt();
+    		throw new IllegalStateException("Interrupted while adding nodes to Timeline[" + timelineName + "]", e);
+    	} catch (ExecutionException e) {
+    		if (e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+    		if (e.getCause() instanceof Error) throw (Error) e.getCause();
+    		throw new IllegalStateException(e.getCause());
+    	} finally {
+    		ADD_NODES_LATENCY.recordSince(requestStart);
+    	}
+		return tnode;
+    }
+    
     @Name("get_timeline_nodes")
     @Description("")
     @PluginTarget( GraphDatabaseService.class )
@@ -66,9 +217,69 @@ public class StructuredTimelinePlugin extends ServerPlugin
 			@Source GraphDatabaseService graphDb,
 			@Description("The node representing the timeline.") @Parameter(name = "tnode") Node tnode,
 			@Description("The timestamp.") @Parameter(name = "timestamp") Long timestamp) {
+    	long requestStart = TimelineMetrics.startTime();
     	String timelineName = tnode.getProperty( "timeline_name" ).toString();
     	StructuredTimeline timeline = new StructuredTimeline( timelineName, tnode, graphDb );
-    	return timeline.getNodes(timestamp);
+    	return GET_NODES_LATENCY.recordOnExhaustion(timeline.getNodes(timestamp), requestStart);
+    }
+    
+    @Name("get_timeline_nodes_between")
+    @Description("Returns the nodes with a timestamp in [start, end), in timestamp order.")
+    @PluginTarget( GraphDatabaseService.class )
+	public Iterable<Node> getTimelineNodesBetween(
+			@Source GraphDatabaseService graphDb,
+			@Description("The node representing the timeline.") @Parameter(name = "tnode") Node tnode,
+			@Description("The start timestamp (inclusive).") @Parameter(name = "start") Long start,
+			@Description("The end timestamp (exclusive).") @Parameter(name = "end") Long end) {
+    	long requestStart = TimelineMetrics.startTime();
+    	String timelineName = tnode.getProperty( "timeline_name" ).toString();
+    	StructuredTimeline timeline = new StructuredTimeline( timelineName, tnode, graphDb );
+    	return GET_NODES_BETWEEN_LATENCY.recordOnExhaustion(timeline.getNodesBetween(start, end), requestStart);
+    }
+    
+    @Name("get_timeline_page")
+    @Description("Returns one page of the nodes with a timestamp in [start, end), in timestamp order. "
+    		+ "The 'next' cursor of the result, if any, fetches the following page.")
+    @PluginTarget( GraphDatabaseService.class )
+	public Representation getTimelinePage(
+			@Source GraphDatabaseService graphDb,
+			@Description("The node representing the timeline.") @Parameter(name = "tnode") Node tnode,
+			@Description("The start timestamp (inclusive).") @Parameter(name = "start") Long start,
+			@Description("The end timestamp (exclusive).") @Parameter(name = "end") Long end,
+			@Description("The cursor returned with the previous page.") @Parameter(name = "cursor", optional = true) String cursor,
+			@Description("The maximum number of nodes per page.") @Parameter(name = "page_size", optional = true) Integer pageSize,
+			@Description("Return [node id, timestamp] pairs instead of node URIs.") @Parameter(name = "compact", optional = true) Boolean compact) {
+    	long requestStart = TimelineMetrics.startTime();
+    	try {
+	    	int size = (pageSize == null) ? DEFAULT_PAGE_SIZE : Math.min(pageSize, MAX_PAGE_SIZE);
+	    	String timelineName = tnode.getProperty( "timeline_name" ).toString();
+	    	StructuredTimeline timeline = new StructuredTimeline( timelineName, tnode, graphDb );
+	    	return new PageRepresentation(timeline.getPage(start, end, cursor, size), Boolean.TRUE.equals(compact));
+    	} finally {
+    		GET_PAGE_LATENCY.recordSince(requestStart);
+    	}
+    }
+    
+    @Name("get_timestamps")
+    @Description("Returns the timestamps of the given nodes in the timeline, in the same order; "
+    		+ "nodes not in the timeline, or not found, get the minimum long value.")
+    @PluginTarget( GraphDatabaseService.class )
+	public Representation getTimestamps(
+			@Source GraphDatabaseService graphDb,
+			@Description("The node representing the timeline.") @Parameter(name = "tnode") Node tnode,
+			@Description("The ids of the nodes.") @Parameter(name = "nodes") Long[] nodeIds) {
+    	long requestStart = TimelineMetrics.startTime();
+    	try {
+	    	long[] ids = new long[nodeIds.length];
+	    	for (int i = 0; i < ids.length; i++) {
+	    		ids[i] = nodeIds[i];
+	    	}
+	    	String timelineName = tnode.getProperty( "timeline_name" ).toString();
+	    	StructuredTimeline timeline = new StructuredTimeline( timelineName, tnode, graphDb );
+	    	return ListRepresentation.numbers(timeline.getTimestampsForNodes(ids));
+    	} finally {
+    		GET_TIMESTAMPS_LATENCY.recordSince(requestStart);
+    	}
     }
     
     @Name("get_timeline_nodes_by_date")
@@ -87,4 +298,86 @@ public class StructuredTimelinePlugin extends ServerPlugin
 			return null;
 		}
     }
-}
\ No newline at end of file
+    
+    /**
+     * A deletion started by delete_timeline, following its committed batches.
+     */
+    private static class Deletion implements BaseTimeline.DeleteListener {
+    	
+    	Future<Long> future;
+    	private volatile long deleted = 0;
+    	
+    	public void deleted(long nodes) {
+    		deleted = nodes;
+    	}
+    }
+    
+    private static class DeletionRepresentation extends MappingRepresentation {
+    	
+    	private final Deletion deletion;
+    	
+    	DeletionRepresentation(Deletion deletion) {
+    		super("timeline_deletion");
+    		this.deletion = deletion;
+    	}
+
+		@Override
+		protected void serialize(MappingSerializer serializer) {
+			// the counts are strings, since the serializer only takes
+			// numbers from its own package; the count is read before the
+			// future, which may complete in between
+			long deleted = deletion.deleted;
+			if (!deletion.future.isDone()) {
+				serializer.putString("state", "running");
+				serializer.putString("deleted", Long.toString(deleted));
+				return;
+			}
+			try {
+				serializer.putString("deleted", deletion.future.get().toString());
+				serializer.putString("state", "done");
+			} catch (ExecutionException e) {
+				serializer.putString("deleted", Long.toString(deleted));
+				serializer.putString("state", "failed");
+				serializer.putString("error", String.valueOf(e.getCause()));
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IllegalStateException("Interrupted", e);
+			}
+		}
+    }
+    
+    private static class PageRepresentation extends MappingRepresentation {
+    	
+    	private final TimelinePage page;
+    	private final boolean compact;
+    	
+    	PageRepresentation(TimelinePage page, boolean compact) {
+    		super("timeline_page");
+    		this.page = page;
+    		this.compact = compact;
+    	}
+
+		@Override
+		protected void serialize(MappingSerializer serializer) {
+			List<Representation> items = new ArrayList<Representation>(page.size());
+			long[] timestamps = new long[page.size()];
+			for (int i = 0; i < page.size(); i++) {
+				if (compact) {
+					items.add(ListRepresentation.numbers(page.getNodeId(i), page.getTimestamp(i)));
+				} else {
+					items.add(ValueRepresentation.uri("node/" + page.getNodeId(i)));
+				}
+				timestamps[i] = page.getTimestamp(i);
+			}
+			if (compact) {
+				serializer.putList("items", new ListRepresentation("item", items));
+			} else {
+				serializer.putList("nodes", new ListRepresentation(RepresentationType.URI, items));
+				serializer.putList("timestamps", ListRepresentation.numbers(timestamps));
+			}
+			if (page.getCursor() != null) {
+				serializer.putString("next", page.getCursor());
+			}
+		}
+    }
+}
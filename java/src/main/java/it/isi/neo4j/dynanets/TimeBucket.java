@@ -0,0 +1,56 @@
+/**
+ * Copyright (C) 2008-2010 Istituto per l'Interscambio Scientifico I.S.I.
+ * You can contact us by email (isi@isi.it) or write to:
+ * ISI Foundation, Viale S. Severo 65, 10133 Torino, Italy.
+ *
+ * This program was written by André Panisson <panisson@gmail.com>
+ *
+ */
+package it.isi.neo4j.dynanets;
+
+/**
+ * The time nodes of one hour bucket of a structured timeline that fall in a
+ * queried range: their ids and timestamps, in timestamp order. Buckets hold
+ * plain ids, so they can be handed to other threads and read in their own
+ * transactions.
+ */
+public class TimeBucket {
+
+	private final int hourKey;
+	private final long[] timeNodeIds;
+	private final long[] timestamps;
+
+	TimeBucket(int hourKey, long[] timeNodeIds, long[] timestamps) {
+		this.hourKey = hourKey;
+		this.timeNodeIds = timeNodeIds;
+		this.timestamps = timestamps;
+	}
+
+	public int getYear() {
+		return TimeBuckets.year(hourKey);
+	}
+
+	public int getMonth() {
+		return TimeBuckets.month(hourKey);
+	}
+
+	public int getDay() {
+		return TimeBuckets.day(hourKey);
+	}
+
+	public int getHour() {
+		return TimeBuckets.hour(hourKey);
+	}
+
+	public int size() {
+		return timeNodeIds.length;
+	}
+
+	public long getTimeNodeId(int i) {
+		return timeNodeIds[i];
+	}
+
+	public long getTimestamp(int i) {
+		return timestamps[i];
+	}
+}
@@ -0,0 +1,140 @@
+/**
+ * Copyright (C) 2008-2010 Istituto per l'Interscambio Scientifico I.S.I.
+ * You can contact us by email (isi@isi.it) or write to:
+ * ISI Foundation, Viale S. Severo 65, 10133 Torino, Italy.
+ *
+ * This program was written by André Panisson <panisson@gmail.com>
+ *
+ */
+package it.isi.neo4j.dynanets;
+
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.zone.ZoneOffsetTransition;
+import java.time.zone.ZoneRules;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Decomposes epoch timestamps (in seconds) into the hour buckets of a
+ * structured timeline, in a given time zone. A bucket is returned as a single
+ * <CODE>int</CODE> key of the form <CODE>yyyymmddhh</CODE>.
+ * 
+ * The UTC offsets of the zone are precomputed for 1900-2100 as a table of
+ * transitions, and the last offset interval and the last day seen are
+ * cached, so that decomposing a timestamp does not allocate. Instances are
+ * shared per zone and are thread-safe.
+ */
+final class TimeBuckets {
+
+	private static final long SECONDS_PER_DAY = 86400;
+	static final long TABLE_START = -2208988800L; // 1900-01-01
+	static final long TABLE_END = 4102444800L; // 2100-01-01
+
+	private static final Map<String, TimeBuckets> zones = new HashMap<String, TimeBuckets>();
+
+	static synchronized TimeBuckets forZone(String zoneId) {
+		TimeBuckets buckets = zones.get(zoneId);
+		if (buckets == null) {
+			buckets = new TimeBuckets(ZoneId.of(zoneId));
+			zones.put(zoneId, buckets);
+		}
+		return buckets;
+	}
+
+	private final ZoneRules rules;
+	// offsets[i] holds between transitions[i-1] and transitions[i]
+	private final long[] transitions;
+	private final int[] offsets;
+
+	// racy single-value caches: a stale read only costs a recomputation
+	private volatile int lastInterval = 0;
+	private volatile long lastDay = Long.MIN_VALUE;
+
+	private TimeBuckets(ZoneId zone) {
+		rules = zone.getRules();
+		long[] times = new long[64];
+		int[] offs = new int[65];
+		int n = 0;
+		Instant instant = Instant.ofEpochSecond(TABLE_START);
+		offs[0] = rules.getOffset(instant).getTotalSeconds();
+		ZoneOffsetTransition transition = rules.nextTransition(instant);
+		while (transition != null && transition.toEpochSecond() < TABLE_END) {
+			if (n == times.length) {
+				times = Arrays.copyOf(times, n * 2);
+				offs = Arrays.copyOf(offs, n * 2 + 1);
+			}
+			times[n] = transition.toEpochSecond();
+			offs[n+1] = transition.getOffsetAfter().getTotalSeconds();
+			n++;
+			transition = rules.nextTransition(transition.getInstant());
+		}
+		transitions = Arrays.copyOf(times, n);
+		offsets = Arrays.copyOf(offs, n + 1);
+	}
+
+	/**
+	 * Returns the <CODE>yyyymmddhh</CODE> key of the hour bucket holding the
+	 * given timestamp.
+	 */
+	int hourKey(long timestamp) {
+		long local = timestamp + offsetAt(timestamp);
+		long epochDay = Math.floorDiv(local, SECONDS_PER_DAY);
+		int hour = (int) ((local - epochDay * SECONDS_PER_DAY) / 3600);
+		return dateKey(epochDay) * 100 + hour;
+	}
+
+	static int year(int hourKey) {
+		return hourKey / 1000000;
+	}
+
+	static int month(int hourKey) {
+		return hourKey / 10000 % 100;
+	}
+
+	static int day(int hourKey) {
+		return hourKey / 100 % 100;
+	}
+
+	static int hour(int hourKey) {
+		return hourKey % 100;
+	}
+
+	private int offsetAt(long timestamp) {
+		if (timestamp < TABLE_START || timestamp >= TABLE_END) {
+			return rules.getOffset(Instant.ofEpochSecond(timestamp)).getTotalSeconds();
+		}
+		int i = lastInterval;
+		if ((i > 0 && timestamp < transitions[i-1])
+				|| (i < transitions.length && timestamp >= transitions[i])) {
+			i = Arrays.binarySearch(transitions, timestamp);
+			i = (i >= 0) ? i + 1 : -(i + 1);
+			lastInterval = i;
+		}
+		return offsets[i];
+	}
+
+	/**
+	 * Returns the <CODE>yyyymmdd</CODE> key of a day counted from the epoch.
+	 */
+	private int dateKey(long epochDay) {
+		long cached = lastDay;
+		if ((cached >> 32) == epochDay) {
+			return (int) cached;
+		}
+		// civil from days, see http://howardhinnant.github.io/date_algorithms.html
+		long z = epochDay + 719468;
+		long era = Math.floorDiv(z, 146097);
+		long doe = z - era * 146097;
+		long yoe = (doe - doe / 1460 + doe / 36524 - doe / 146096) / 365;
+		long doy = doe - (365 * yoe + yoe / 4 - yoe / 100);
+		long mp = (5 * doy + 2) / 153;
+		int day = (int) (doy - (153 * mp + 2) / 5 + 1);
+		int month = (int) (mp < 10 ? mp + 3 : mp - 9);
+		int year = (int) (yoe + era * 400 + (month <= 2 ? 1 : 0));
+		int key = (year * 100 + month) * 100 + day;
+		lastDay = (epochDay << 32) | (key & 0xffffffffL);
+		return key;
+	}
+}
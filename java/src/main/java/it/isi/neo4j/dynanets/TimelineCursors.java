@@ -0,0 +1,135 @@
+/**
+ * Copyright (C) 2008-2010 Istituto per l'Interscambio Scientifico I.S.I.
+ * You can contact us by email (isi@isi.it) or write to:
+ * ISI Foundation, Viale S. Severo 65, 10133 Torino, Italy.
+ *
+ * This program was written by André Panisson <panisson@gmail.com>
+ *
+ */
+package it.isi.neo4j.dynanets;
+
+import java.util.Arrays;
+
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.NotFoundException;
+import org.neo4j.internal.kernel.api.CursorFactory;
+import org.neo4j.internal.kernel.api.NodeCursor;
+import org.neo4j.internal.kernel.api.PropertyCursor;
+import org.neo4j.internal.kernel.api.Read;
+import org.neo4j.internal.kernel.api.RelationshipTraversalCursor;
+import org.neo4j.internal.kernel.api.TokenRead;
+import org.neo4j.kernel.api.KernelTransaction;
+import org.neo4j.kernel.impl.core.ThreadToStatementContextBridge;
+import org.neo4j.kernel.internal.GraphDatabaseAPI;
+import org.neo4j.values.storable.NumberValue;
+import org.neo4j.values.storable.Value;
+
+/**
+ * Walks the time node chain of a timeline on primitive node ids, with the
+ * kernel cursor API. One node, relationship and property cursor is allocated
+ * per walk and reused for every hop.
+ *
+ * It must be created and closed within the transaction it reads from.
+ */
+class TimelineCursors {
+
+	static final long NO_NODE = -1;
+
+	private final Read read;
+	private final NodeCursor nodeCursor;
+	private final RelationshipTraversalCursor relCursor;
+	private final PropertyCursor propertyCursor;
+	private final int nextEntryType;
+	private final int instanceType;
+	private final int timestampKey;
+
+	// instances of the last visited time node
+	private long[] instances = new long[8];
+	private int instanceCount;
+
+	TimelineCursors(GraphDatabaseService graphDb) {
+		KernelTransaction ktx = ((GraphDatabaseAPI) graphDb).getDependencyResolver()
+				.resolveDependency(ThreadToStatementContextBridge.class)
+				.getKernelTransactionBoundToThisThread(true);
+		read = ktx.dataRead();
+		TokenRead tokens = ktx.tokenRead();
+		nextEntryType = tokens.relationshipType(BaseTimeline.RelTypes.TIMELINE_NEXT_ENTRY.name());
+		instanceType = tokens.relationshipType(BaseTimeline.RelTypes.TIMELINE_INSTANCE.name());
+		timestampKey = tokens.propertyKey(BaseTimeline.TIMESTAMP);
+		CursorFactory cursors = ktx.cursors();
+		nodeCursor = cursors.allocateNodeCursor();
+		relCursor = cursors.allocateRelationshipTraversalCursor();
+		propertyCursor = cursors.allocatePropertyCursor();
+	}
+
+	/**
+	 * Moves to the given time node, reading its successor on the chain and the
+	 * nodes connected to it. Returns the id of the successor, or
+	 * {@link #NO_NODE} if there is none.
+	 */
+	long visit(long timeNodeId) {
+		instanceCount = 0;
+		if (nextEntryType == TokenRead.NO_TOKEN || !position(timeNodeId)) {
+			return NO_NODE;
+		}
+		long next = NO_NODE;
+		nodeCursor.allRelationships(relCursor);
+		while (relCursor.next()) {
+			if (relCursor.sourceNodeReference() != timeNodeId) {
+				continue;
+			}
+			int type = relCursor.type();
+			if (type == nextEntryType) {
+				next = relCursor.targetNodeReference();
+			} else if (type == instanceType) {
+				if (instanceCount == instances.length) {
+					instances = Arrays.copyOf(instances, instanceCount * 2);
+				}
+				instances[instanceCount++] = relCursor.targetNodeReference();
+			}
+		}
+		return next;
+	}
+
+	/**
+	 * Returns the timestamp of the given time node.
+	 */
+	long timestamp(long timeNodeId) {
+		if (timestampKey != TokenRead.NO_TOKEN && position(timeNodeId)) {
+			nodeCursor.properties(propertyCursor);
+			while (propertyCursor.next()) {
+				if (propertyCursor.propertyKey() == timestampKey) {
+					Value value = propertyCursor.propertyValue();
+					return ((NumberValue) value).longValue();
+				}
+			}
+		}
+		throw new NotFoundException("No timestamp on time node " + timeNodeId);
+	}
+
+	/**
+	 * The number of nodes connected to the last visited time node.
+	 */
+	int instanceCount() {
+		return instanceCount;
+	}
+
+	/**
+	 * The ids of the nodes connected to the last visited time node; only the
+	 * first {@link #instanceCount()} entries are valid.
+	 */
+	long[] instances() {
+		return instances;
+	}
+
+	private boolean position(long nodeId) {
+		read.singleNode(nodeId, nodeCursor);
+		return nodeCursor.next();
+	}
+
+	void close() {
+		nodeCursor.close();
+		relCursor.close();
+		propertyCursor.close();
+	}
+}
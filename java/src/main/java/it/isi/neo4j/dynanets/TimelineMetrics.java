@@ -0,0 +1,447 @@
+/**
+ * Copyright (C) 2008-2010 Istituto per l'Interscambio Scientifico I.S.I.
+ * You can contact us by email (isi@isi.it) or write to:
+ * ISI Foundation, Viale S. Severo 65, 10133 Torino, Italy.
+ *
+ * This program was written by André Panisson <panisson@gmail.com>
+ *
+ */
+package it.isi.neo4j.dynanets;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.ObjectName;
+
+/**
+ * Process-wide metrics of the timelines: latency histograms of the
+ * operations, histograms and counters of the work done by them (chain and
+ * skip list hops, NEXT_LEVEL lookups, insert paths) and the hits of the
+ * {@link BucketCache}s. Counters and histograms are created once, by name,
+ * in static fields of the classes that update them, and are cumulative.
+ *
+ * Updates are a few uncontended atomic additions, so the metrics are on by
+ * default; <CODE>-Dit.isi.neo4j.dynanets.metrics=false</CODE> turns them
+ * off. They are published as the attributes of the
+ * <CODE>it.isi.neo4j.dynanets:type=TimelineMetrics</CODE> MBean and, with
+ * <CODE>-Dit.isi.neo4j.dynanets.metrics_csv_dir</CODE>, appended every
+ * <CODE>metrics_csv_interval</CODE> seconds (default: 10) to one CSV file
+ * per metric, in the layout of the Neo4j CSV reporter.
+ */
+public class TimelineMetrics {
+
+	public static final boolean ENABLED = Boolean.parseBoolean(
+			System.getProperty("it.isi.neo4j.dynanets.metrics", "true"));
+
+	public static final String OBJECT_NAME = "it.isi.neo4j.dynanets:type=TimelineMetrics";
+
+	private static final String CSV_PREFIX = "it.isi.neo4j.dynanets.timeline.";
+
+	private static final TimelineMetrics metrics = new TimelineMetrics();
+
+	static {
+		if (ENABLED) {
+			metrics.register();
+			String csvDir = System.getProperty("it.isi.neo4j.dynanets.metrics_csv_dir");
+			if (csvDir != null) {
+				metrics.startCsvReporter(new File(csvDir),
+						Long.getLong("it.isi.neo4j.dynanets.metrics_csv_interval", 10));
+			}
+		}
+	}
+
+	public static TimelineMetrics get() {
+		return metrics;
+	}
+
+	/**
+	 * Returns the start time of an operation, to pass to
+	 * {@link Histogram#recordSince(long)}, or 0 if the metrics are off.
+	 */
+	public static long startTime() {
+		return ENABLED ? System.nanoTime() : 0;
+	}
+
+	private final Map<String, Counter> counters = new ConcurrentSkipListMap<String, Counter>();
+	private final Map<String, Histogram> histograms = new ConcurrentSkipListMap<String, Histogram>();
+
+	private TimelineMetrics() {
+	}
+
+	/**
+	 * Returns the counter with the given name, creating it on first use.
+	 */
+	public synchronized Counter counter(String name) {
+		Counter counter = counters.get(name);
+		if (counter == null) {
+			counter = new Counter();
+			counters.put(name, counter);
+		}
+		return counter;
+	}
+
+	/**
+	 * Returns the latency histogram of an operation, named
+	 * <CODE>&lt;operation&gt;.latency</CODE> and reported in microseconds.
+	 */
+	public Histogram latency(String operation) {
+		return histogram(operation + ".latency", 1000);
+	}
+
+	/**
+	 * Returns the histogram of counts with the given name, creating it on
+	 * first use.
+	 */
+	public Histogram histogram(String name) {
+		return histogram(name, 1);
+	}
+
+	private synchronized Histogram histogram(String name, long unit) {
+		Histogram histogram = histograms.get(name);
+		if (histogram == null) {
+			histogram = new Histogram(unit);
+			histograms.put(name, histogram);
+		}
+		return histogram;
+	}
+
+	/**
+	 * Returns the current value of every counter and of every statistic of
+	 * every histogram (<CODE>&lt;name&gt;.count</CODE>, <CODE>.mean</CODE>,
+	 * <CODE>.p50</CODE>, <CODE>.p95</CODE>, <CODE>.p99</CODE> and
+	 * <CODE>.max</CODE>), by name.
+	 */
+	public Map<String, Number> getValues() {
+		Map<String, Number> values = new LinkedHashMap<String, Number>();
+		for (Map.Entry<String, Counter> entry: counters.entrySet()) {
+			values.put(entry.getKey(), entry.getValue().get());
+		}
+		long[] cache = BucketCache.getTotals();
+		values.put("bucket_cache.hits", cache[0]);
+		values.put("bucket_cache.misses", cache[1]);
+		values.put("bucket_cache.size", cache[2]);
+		for (Map.Entry<String, Histogram> entry: histograms.entrySet()) {
+			Snapshot snapshot = entry.getValue().getSnapshot();
+			String name = entry.getKey();
+			values.put(name + ".count", snapshot.getCount());
+			values.put(name + ".mean", snapshot.getMean());
+			values.put(name + ".p50", snapshot.getValueAtPercentile(50));
+			values.put(name + ".p95", snapshot.getValueAtPercentile(95));
+			values.put(name + ".p99", snapshot.getValueAtPercentile(99));
+			values.put(name + ".max", snapshot.getMax());
+		}
+		return values;
+	}
+
+	private void register() {
+		try {
+			ManagementFactory.getPlatformMBeanServer().registerMBean(new MBean(), new ObjectName(OBJECT_NAME));
+		} catch (JMException e) {
+			// already registered by another class loader, e.g. of a second
+			// server extension: the first one is published
+		}
+	}
+
+	/**
+	 * Appends the metrics to their CSV files in the given directory every
+	 * <CODE>interval</CODE> seconds, from a daemon thread.
+	 */
+	public void startCsvReporter(final File dir, long interval) {
+		if (interval < 1) {
+			throw new IllegalArgumentException("Interval must be positive");
+		}
+		dir.mkdirs();
+		long period = TimeUnit.SECONDS.toMillis(interval);
+		new Timer("TimelineMetrics-csv", true).scheduleAtFixedRate(new TimerTask() {
+			public void run() {
+				try {
+					writeCsv(dir, TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis()));
+				} catch (IOException e) {
+					System.err.println("Cannot write timeline metrics to " + dir + ": " + e);
+				}
+			}
+		}, period, period);
+	}
+
+	/**
+	 * Appends a row per metric, at time <CODE>t</CODE> (in seconds), to
+	 * <CODE>it.isi.neo4j.dynanets.timeline.&lt;name&gt;.csv</CODE>, writing
+	 * the header of new files.
+	 */
+	void writeCsv(File dir, long t) throws IOException {
+		for (Map.Entry<String, Counter> entry: counters.entrySet()) {
+			appendCsv(dir, entry.getKey(), "t,count", t + "," + entry.getValue().get());
+		}
+		long[] cache = BucketCache.getTotals();
+		appendCsv(dir, "bucket_cache.hits", "t,count", t + "," + cache[0]);
+		appendCsv(dir, "bucket_cache.misses", "t,count", t + "," + cache[1]);
+		appendCsv(dir, "bucket_cache.size", "t,value", t + "," + cache[2]);
+		for (Map.Entry<String, Histogram> entry: histograms.entrySet()) {
+			Snapshot s = entry.getValue().getSnapshot();
+			appendCsv(dir, entry.getKey(), "t,count,max,mean,p50,p75,p95,p98,p99,p999",
+					t + "," + s.getCount() + "," + s.getMax() + "," + s.getMean() + ","
+					+ s.getValueAtPercentile(50) + "," + s.getValueAtPercentile(75) + ","
+					+ s.getValueAtPercentile(95) + "," + s.getValueAtPercentile(98) + ","
+					+ s.getValueAtPercentile(99) + "," + s.getValueAtPercentile(99.9));
+		}
+	}
+
+	private static void appendCsv(File dir, String name, String header, String row) throws IOException {
+		File file = new File(dir, CSV_PREFIX + name + ".csv");
+		boolean created = !file.exists();
+		Writer out = new FileWriter(file, true);
+		try {
+			if (created) {
+				out.write(header + "\n");
+			}
+			out.write(row + "\n");
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * A cumulative count, striped so that concurrent updates do not contend.
+	 */
+	public static final class Counter {
+		private final LongAdder value = new LongAdder();
+
+		Counter() {
+		}
+
+		public void increment() {
+			if (ENABLED) value.increment();
+		}
+
+		public void add(long n) {
+			if (ENABLED) value.add(n);
+		}
+
+		public long get() {
+			return value.sum();
+		}
+	}
+
+	/**
+	 * A histogram of non-negative values in log-linear buckets: exact up to
+	 * 15, then 8 buckets per power of 2, so that percentiles are within
+	 * 12.5% of the recorded values. Recording is lock-free and allocation
+	 * free; percentiles are reported as the upper bound of their bucket.
+	 */
+	public static final class Histogram {
+		private static final int SUB_BUCKET_BITS = 3;
+		private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+		private static final int LINEAR = 2 * SUB_BUCKETS;
+		private static final int BUCKETS = LINEAR + (63 - 4) * SUB_BUCKETS;
+
+		// the values are divided by the unit when reported
+		private final long unit;
+		private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+		private final LongAdder sum = new LongAdder();
+		private final AtomicLong max = new AtomicLong();
+
+		Histogram(long unit) {
+			this.unit = unit;
+		}
+
+		public void record(long value) {
+			if (!ENABLED) return;
+			if (value < 0) value = 0;
+			counts.incrementAndGet(bucket(value));
+			sum.add(value);
+			long current = max.get();
+			while (value > current && !max.compareAndSet(current, value)) {
+				current = max.get();
+			}
+		}
+
+		/**
+		 * Records the time elapsed since <CODE>start</CODE>, returned by
+		 * {@link TimelineMetrics#startTime()}.
+		 */
+		public void recordSince(long start) {
+			if (ENABLED) record(System.nanoTime() - start);
+		}
+
+		/**
+		 * Wraps lazily read results, recording the time elapsed since
+		 * <CODE>start</CODE> once the first iteration over them is exhausted,
+		 * so that reading them is timed; iterations abandoned early are not
+		 * recorded.
+		 */
+		public <T> Iterable<T> recordOnExhaustion(final Iterable<T> items, final long start) {
+			if (!ENABLED) return items;
+			final AtomicBoolean recorded = new AtomicBoolean();
+			return new Iterable<T>() {
+				public Iterator<T> iterator() {
+					final Iterator<T> iterator = items.iterator();
+					return new Iterator<T>() {
+						public boolean hasNext() {
+							boolean hasNext = iterator.hasNext();
+							if (!hasNext && recorded.compareAndSet(false, true)) {
+								recordSince(start);
+							}
+							return hasNext;
+						}
+
+						public T next() {
+							return iterator.next();
+						}
+
+						public void remove() {
+							iterator.remove();
+						}
+					};
+				}
+			};
+		}
+
+		static int bucket(long value) {
+			if (value < LINEAR) return (int) value;
+			int exponent = 63 - Long.numberOfLeadingZeros(value);
+			int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+			return LINEAR + (exponent - 4) * SUB_BUCKETS + subBucket;
+		}
+
+		static long upperBound(int bucket) {
+			if (bucket < LINEAR) return bucket;
+			int exponent = (bucket - LINEAR) / SUB_BUCKETS + 4;
+			int subBucket = (bucket - LINEAR) % SUB_BUCKETS;
+			long width = 1L << (exponent - SUB_BUCKET_BITS);
+			return (SUB_BUCKETS + subBucket) * width + width - 1;
+		}
+
+		public Snapshot getSnapshot() {
+			long[] copy = new long[BUCKETS];
+			long count = 0;
+			for (int i = 0; i < BUCKETS; i++) {
+				copy[i] = counts.get(i);
+				count += copy[i];
+			}
+			return new Snapshot(copy, count, sum.sum(), max.get(), unit);
+		}
+	}
+
+	/**
+	 * The recorded values of a {@link Histogram} at one point in time, in
+	 * the unit of the histogram.
+	 */
+	public static final class Snapshot {
+		private final long[] counts;
+		private final long count;
+		private final long sum;
+		private final long max;
+		private final long unit;
+
+		Snapshot(long[] counts, long count, long sum, long max, long unit) {
+			this.counts = counts;
+			this.count = count;
+			this.sum = sum;
+			this.max = max;
+			this.unit = unit;
+		}
+
+		public long getCount() {
+			return count;
+		}
+
+		public double getMean() {
+			return count == 0 ? 0 : (double) sum / count / unit;
+		}
+
+		public double getMax() {
+			return (double) max / unit;
+		}
+
+		public double getValueAtPercentile(double percentile) {
+			if (count == 0) return 0;
+			long rank = Math.max(1, (long) Math.ceil(count * percentile / 100));
+			long seen = 0;
+			for (int i = 0; i < counts.length; i++) {
+				seen += counts[i];
+				if (seen >= rank) {
+					return (double) Math.min(Histogram.upperBound(i), max) / unit;
+				}
+			}
+			return (double) max / unit;
+		}
+	}
+
+	/**
+	 * Publishes {@link #getValues()} as read-only attributes, whose set
+	 * grows as the classes declaring metrics are loaded.
+	 */
+	private class MBean implements DynamicMBean {
+
+		public Object getAttribute(String attribute) throws AttributeNotFoundException {
+			Number value = getValues().get(attribute);
+			if (value == null) {
+				throw new AttributeNotFoundException(attribute);
+			}
+			return value;
+		}
+
+		public AttributeList getAttributes(String[] attributes) {
+			Map<String, Number> values = getValues();
+			AttributeList list = new AttributeList();
+			for (String attribute: attributes) {
+				Number value = values.get(attribute);
+				if (value != null) {
+					list.add(new Attribute(attribute, value));
+				}
+			}
+			return list;
+		}
+
+		public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+			throw new AttributeNotFoundException("Read-only attribute " + attribute.getName());
+		}
+
+		public AttributeList setAttributes(AttributeList attributes) {
+			return new AttributeList();
+		}
+
+		public Object invoke(String actionName, Object[] params, String[] signature) {
+			throw new UnsupportedOperationException(actionName);
+		}
+
+		public MBeanInfo getMBeanInfo() {
+			List<MBeanAttributeInfo> attributes = new ArrayList<MBeanAttributeInfo>();
+			for (Map.Entry<String, Number> entry: getValues().entrySet()) {
+				attributes.add(new MBeanAttributeInfo(entry.getKey(), entry.getValue().getClass().getName(),
+						describe(entry.getKey()), true, false, false));
+			}
+			return new MBeanInfo(TimelineMetrics.class.getName(), "Metrics of the timeline operations",
+					attributes.toArray(new MBeanAttributeInfo[attributes.size()]), null,
+					new MBeanOperationInfo[0], null);
+		}
+
+		private String describe(String name) {
+			return name.contains(".latency.") ? name + " (microseconds)" : name;
+		}
+	}
+}
@@ -0,0 +1,88 @@
+/**
+ * Copyright (C) 2008-2010 Istituto per l'Interscambio Scientifico I.S.I.
+ * You can contact us by email (isi@isi.it) or write to:
+ * ISI Foundation, Viale S. Severo 65, 10133 Torino, Italy.
+ *
+ * This program was written by André Panisson <panisson@gmail.com>
+ *
+ */
+package it.isi.neo4j.dynanets;
+
+/**
+ * One page of a timeline range query: the ids and timestamps of at most
+ * <CODE>pageSize</CODE> nodes, in timestamp order, plus a cursor to resume
+ * the query after the last of them.
+ * 
+ * Cursors have the form <CODE>timestamp:nodeId</CODE>. Nodes sharing a
+ * timestamp are ordered by id, so the pair identifies a position in the
+ * timeline even if nodes are added or removed between two pages.
+ */
+public class TimelinePage {
+
+	private final long[] nodeIds;
+	private final long[] timestamps;
+	private int size = 0;
+	private String cursor = null;
+
+	public TimelinePage(int pageSize) {
+		nodeIds = new long[pageSize];
+		timestamps = new long[pageSize];
+	}
+
+	void add(long nodeId, long timestamp) {
+		nodeIds[size] = nodeId;
+		timestamps[size] = timestamp;
+		size++;
+	}
+
+	boolean isFull() {
+		return size == nodeIds.length;
+	}
+
+	/**
+	 * Marks this page as followed by more results.
+	 */
+	void setHasMore() {
+		cursor = formatCursor(timestamps[size-1], nodeIds[size-1]);
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public long getNodeId(int i) {
+		return nodeIds[i];
+	}
+
+	public long getTimestamp(int i) {
+		return timestamps[i];
+	}
+
+	/**
+	 * Returns the cursor of the next page, or <CODE>null</CODE> if this is
+	 * the last one.
+	 */
+	public String getCursor() {
+		return cursor;
+	}
+
+	public static String formatCursor(long timestamp, long nodeId) {
+		return timestamp + ":" + nodeId;
+	}
+
+	/**
+	 * Parses a cursor into its timestamp and node id.
+	 */
+	public static long[] parseCursor(String cursor) {
+		int sep = cursor.indexOf(':');
+		try {
+			if (sep > 0) {
+				return new long[] { Long.parseLong(cursor.substring(0, sep)),
+						Long.parseLong(cursor.substring(sep+1)) };
+			}
+		} catch (NumberFormatException e) {
+			// fall through
+		}
+		throw new IllegalArgumentException("Invalid cursor '" + cursor + "'");
+	}
+}
@@ -0,0 +1,64 @@
+/**
+ * Copyright (C) 2008-2010 Istituto per l'Interscambio Scientifico I.S.I.
+ * You can contact us by email (isi@isi.it) or write to:
+ * ISI Foundation, Viale S. Severo 65, 10133 Torino, Italy.
+ *
+ * This program was written by André Panisson <panisson@gmail.com>
+ *
+ */
+package it.isi.neo4j.dynanets.importer;
+
+import org.neo4j.graphdb.Node;
+
+/**
+ * How the frames in which an interaction is active are linked to it.
+ * Per-frame FRAME_INTERACTION relationships grow with the total contact
+ * time; a CONTACT relationship per maximal run of consecutive frames grows
+ * with the number of contacts. It goes from the INTERACTION node to the
+ * first FRAME of the contact, with <CODE>start</CODE> and <CODE>end</CODE>
+ * (exclusive) timestamps and the number of <CODE>frames</CODE>; see
+ * {@link RunContacts} to expand it back to frames.
+ *
+ * The mode of a run is stored in its <CODE>contact_links</CODE> property
+ * (FRAMES when absent) and followed by the {@link RunWriter}. The readers of
+ * FRAME_INTERACTION ({@link RunSnapshot}, {@link RunAggregator},
+ * {@link SlidingWindows}, {@link RunRollup}) refuse runs without frame
+ * links, and such runs get no rollup; the activity bitmaps are written in
+ * all modes.
+ */
+public enum ContactLinks {
+	/** FRAME_INTERACTION relationships only, the default. */
+	FRAMES,
+	/** CONTACT relationships only. */
+	CONTACTS,
+	/** Both FRAME_INTERACTION and CONTACT relationships. */
+	BOTH;
+
+	public static final String PROPERTY = "contact_links";
+
+	public boolean hasFrameLinks() {
+		return this != CONTACTS;
+	}
+
+	public boolean hasContacts() {
+		return this != FRAMES;
+	}
+
+	/**
+	 * Throws an IllegalStateException if a RUN node has no FRAME_INTERACTION
+	 * relationships to read.
+	 */
+	public static void checkFrameLinks(Node run) {
+		if (!of(run).hasFrameLinks()) {
+			throw new IllegalStateException("Run[" + run.getId() + "] links its interactions by "
+					+ CONTACTS + " only, without the per-frame links read here");
+		}
+	}
+
+	/**
+	 * Returns the mode of a RUN node.
+	 */
+	public static ContactLinks of(Node run) {
+		return valueOf((String) run.getProperty(PROPERTY, FRAMES.name()));
+	}
+}
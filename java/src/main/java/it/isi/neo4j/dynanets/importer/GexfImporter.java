@@ -0,0 +1,501 @@
+/**
+ * Copyright (C) 2008-2010 Istituto per l'Interscambio Scientifico I.S.I.
+ * You can contact us by email (isi@isi.it) or write to:
+ * ISI Foundation, Viale S. Severo 65, 10133 Torino, Italy.
+ *
+ * This program was written by André Panisson <panisson@gmail.com>
+ *
+ */
+package it.isi.neo4j.dynanets.importer;
+
+import it.isi.neo4j.dynanets.BatchTimelineWriter;
+import it.isi.neo4j.dynanets.FrameBitmap;
+import it.isi.neo4j.dynanets.RollupDelta;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.time.ZoneId;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.PrimitiveIterator;
+import java.util.TimeZone;
+
+import javax.xml.stream.XMLStreamException;
+
+import org.neo4j.graphdb.RelationshipType;
+import org.neo4j.helpers.collection.MapUtil;
+import org.neo4j.index.lucene.unsafe.batchinsert.LuceneBatchInserterIndexProvider;
+import org.neo4j.unsafe.batchinsert.BatchInserter;
+import org.neo4j.unsafe.batchinsert.BatchInserterIndex;
+import org.neo4j.unsafe.batchinsert.BatchInserterIndexProvider;
+import org.neo4j.unsafe.batchinsert.BatchInserters;
+
+/**
+ * Loads a dynamic GEXF file into a store directory, offline, with the batch
+ * inserter. It writes the same RUN/FRAME/ACTOR/INTERACTION graph as
+ * <CODE>load_gexf_to_neo4j.py</CODE>, and puts the frames on a
+ * {@link it.isi.neo4j.dynanets.StructuredTimeline} named after the run,
+ * whose underlying node is the TIMELINE node of the run.
+ *
+ * Spells are not expanded per entity: their start and end events are sorted
+ * by frame, and the frames are swept in time order while the sets of active
+ * actors and interactions are updated incrementally. The work is
+ * proportional to the number of spells and frame memberships, and memory is
+ * bounded by the number of actors and interactions plus the sort buffer.
+ *
+ * Interactions are linked to their frames as set by {@link ContactLinks}:
+ * per frame, per contact (maximal run of consecutive frames, written when the
+ * interaction leaves the active set), or both. The {@link RunRollup} of every
+ * frame is added to the level nodes of the timeline.
+ *
+ * Usage: <CODE>GexfImporter &lt;GEXF file&gt; &lt;run name&gt; &lt;start
+ * time&gt; &lt;frame duration&gt; &lt;store dir&gt; [time zone]</CODE>, with
+ * <CODE>-Dit.isi.neo4j.dynanets.contact_links=FRAMES|CONTACTS|BOTH</CODE>
+ * (default: FRAMES).
+ */
+public class GexfImporter {
+
+	private final BatchInserter inserter;
+	private final String runName;
+	private final long startTime;
+	private final long frameLength;
+	private final String timeZone;
+	private ContactLinks contactLinks = ContactLinks.FRAMES;
+
+	// actors and interactions get dense ids in order of appearance
+	private final Map<Integer, Integer> actorIds = new HashMap<Integer, Integer>();
+	private int[] actors = new int[1024];
+	private final Map<Long, Integer> interactionIds = new HashMap<Long, Integer>();
+	private int[] interactionActors = new int[2048];
+
+	private final SpellEvents events;
+	private long lastFrame = -1;
+
+	private long nodeCount = 0;
+	private long relationshipCount = 0;
+	private int frameCount = 0;
+
+	/**
+	 * @param inserter the inserter of the target store
+	 * @param runName the name of the RUN node
+	 * @param startTime the start of the first frame
+	 * @param frameLength the duration of a frame, in seconds
+	 * @param timeZone the time zone of the frame dates and timeline buckets
+	 */
+	public GexfImporter(BatchInserter inserter, String runName, long startTime, long frameLength, String timeZone) {
+		this(inserter, runName, startTime, frameLength, timeZone, SpellEvents.DEFAULT_BUFFER_SIZE);
+	}
+
+	/**
+	 * @param bufferSize the number of spell events sorted in memory before
+	 *            they are spilled to a temporary file
+	 */
+	public GexfImporter(BatchInserter inserter, String runName, long startTime, long frameLength, String timeZone,
+			int bufferSize) {
+		if (frameLength < 1) {
+			throw new IllegalArgumentException("Frame duration must be positive");
+		}
+		this.inserter = inserter;
+		this.runName = runName;
+		this.startTime = startTime;
+		this.frameLength = frameLength;
+		this.timeZone = timeZone;
+		this.events = new SpellEvents(bufferSize);
+	}
+
+	public void setContactLinks(ContactLinks contactLinks) {
+		this.contactLinks = contactLinks;
+	}
+
+	/**
+	 * Reads the spells of a GEXF file, turning each of them into the start
+	 * and end events of the frames it covers.
+	 */
+	public void read(InputStream gexf) throws XMLStreamException {
+		new GexfReader().read(gexf, new GexfReader.SpellHandler() {
+			public void actorSpell(int actor, long start, long end) {
+				addActorSpell(actor, start, end);
+			}
+
+			public void interactionSpell(int actor1, int actor2, long start, long end) {
+				addInteractionSpell(actor1, actor2, start, end);
+			}
+		});
+	}
+
+	/**
+	 * Adds a spell [start, end) of an actor, as read from a GEXF file; spells
+	 * from other sources can be added the same way before {@link #write()}.
+	 */
+	public void addActorSpell(int actor, long start, long end) {
+		addSpell(SpellEvents.ACTOR, getActorId(actor), start, end);
+	}
+
+	/**
+	 * Adds a spell [start, end) of the interaction between two actors, where
+	 * <CODE>actor1</CODE> is not greater than <CODE>actor2</CODE>.
+	 */
+	public void addInteractionSpell(int actor1, int actor2, long start, long end) {
+		addSpell(SpellEvents.INTERACTION, getInteractionId(actor1, actor2), start, end);
+	}
+
+	private int getActorId(int actor) {
+		Integer id = actorIds.get(actor);
+		if (id == null) {
+			id = actorIds.size();
+			if (id == actors.length) {
+				actors = Arrays.copyOf(actors, id * 2);
+			}
+			actors[id] = actor;
+			actorIds.put(actor, id);
+		}
+		return id;
+	}
+
+	private int getInteractionId(int actor1, int actor2) {
+		Long key = ((long) actor1 << 32) | (actor2 & 0xffffffffL);
+		Integer id = interactionIds.get(key);
+		if (id == null) {
+			id = interactionIds.size();
+			if (2 * id == interactionActors.length) {
+				interactionActors = Arrays.copyOf(interactionActors, id * 4);
+			}
+			interactionActors[2 * id] = getActorId(actor1);
+			interactionActors[2 * id + 1] = getActorId(actor2);
+			interactionIds.put(key, id);
+		}
+		return id;
+	}
+
+	/**
+	 * Adds the events of the spell [start, end): the entity enters the first
+	 * frame overlapping the spell and leaves after the last one. Frames
+	 * before the start time are dropped, but still count for the stop time
+	 * of the run.
+	 */
+	private void addSpell(int kind, int entity, long start, long end) {
+		long first = Math.floorDiv(start - startTime, frameLength);
+		long last = Math.floorDiv(end - startTime - 1, frameLength);
+		if (last < first) return;
+		if (last >= SpellEvents.MAX_FRAME) {
+			throw new IllegalArgumentException("Spell [" + start + ", " + end + ") spans too many frames");
+		}
+		lastFrame = Math.max(lastFrame, last);
+		if (last >= 0) {
+			events.add(SpellEvents.event((int) Math.max(first, 0), kind, true, entity));
+			events.add(SpellEvents.event((int) last + 1, kind, false, entity));
+		}
+	}
+
+	/**
+	 * Writes the run read so far. Frames are written in time order while
+	 * sweeping the sorted spell events, keeping only the set of actors and
+	 * interactions active in the current frame; ACTOR and INTERACTION nodes
+	 * are created the first time they become active, and get the bitmap of
+	 * their active frames once all frames are written.
+	 *
+	 * @return the id of the RUN node
+	 */
+	public long write() throws IOException {
+		frameCount = (int) (lastFrame + 1);
+		long stopTime = startTime + frameCount * frameLength;
+
+		long run = createNode(RunModel.run(runName, contactLinks));
+		long timeline = createNode(RunModel.timeline(startTime, stopTime));
+		createRelationship(run, timeline, RunRelTypes.HAS_TIMELINE);
+
+		BatchTimelineWriter timelineWriter = new BatchTimelineWriter(inserter, timeline, runName, timeZone);
+		if (contactLinks.hasFrameLinks()) {
+			// without frame links the rollup could not count interactions
+			timelineWriter.setRollup(RunRollup.class);
+		}
+		BatchInserterIndexProvider indexProvider = new LuceneBatchInserterIndexProvider(inserter);
+		try {
+			BatchInserterIndex actorIndex = indexProvider.nodeIndex(RunModel.actorIndexName(runName),
+					RunModel.ACTOR_INDEX_CONFIG);
+			long[] actorNodes = new long[actorIds.size()];
+			long[] interactionNodes = new long[interactionIds.size()];
+			Arrays.fill(actorNodes, -1);
+			Arrays.fill(interactionNodes, -1);
+			ActiveSet activeActors = new ActiveSet(actorNodes.length);
+			ActiveSet activeInteractions = new ActiveSet(interactionNodes.length);
+			FrameBitmap[] actorActivity = new FrameBitmap[actorNodes.length];
+			FrameBitmap[] interactionActivity = new FrameBitmap[interactionNodes.length];
+			Map<String, Object> weight = MapUtil.map("weight", 1);
+			// the frame nodes, to link the contacts to their first frame
+			long[] frameNodes = contactLinks.hasContacts() ? new long[frameCount] : null;
+			int[] ended = new int[16];
+
+			ZoneId zone = ZoneId.of(timeZone);
+			PrimitiveIterator.OfLong sorted = events.sorted();
+			long event = sorted.hasNext() ? sorted.nextLong() : -1;
+			long previous = -1;
+			for (int i = 0; i < frameCount; i++) {
+				long timestamp = startTime + i * frameLength;
+				long frame = createNode(RunModel.frame(i + 1, timestamp, frameLength, zone));
+				createRelationship(run, frame, RunRelTypes.RUN_FRAME);
+				timelineWriter.append(frame, timestamp);
+				if (previous < 0) {
+					createRelationship(run, frame, RunRelTypes.RUN_FRAME_FIRST);
+				} else {
+					createRelationship(previous, frame, RunRelTypes.FRAME_NEXT);
+				}
+				previous = frame;
+				if (frameNodes != null) {
+					frameNodes[i] = frame;
+				}
+
+				int endedCount = 0;
+				while (event >= 0 && SpellEvents.frame(event) == i) {
+					boolean isActor = SpellEvents.kind(event) == SpellEvents.ACTOR;
+					ActiveSet active = isActor ? activeActors : activeInteractions;
+					int entity = SpellEvents.entity(event);
+					if (SpellEvents.isStart(event)) {
+						active.enter(entity, i);
+					} else if (active.leave(entity, i)) {
+						addActivity(isActor ? actorActivity : interactionActivity, entity, active.since(entity), i);
+						if (!isActor && frameNodes != null) {
+							if (endedCount == ended.length) {
+								ended = Arrays.copyOf(ended, endedCount * 2);
+							}
+							ended[endedCount++] = entity;
+						}
+					}
+					event = sorted.hasNext() ? sorted.nextLong() : -1;
+				}
+				for (int k = 0; k < endedCount; k++) {
+					// a spell starting where another ended continues the contact
+					int id = ended[k];
+					if (!activeInteractions.isActive(id)) {
+						createContact(interactionNodes[id], frameNodes, activeInteractions.since(id), i);
+					}
+				}
+
+				RollupDelta rollup = new RollupDelta();
+				rollup.add(RunRollup.FRAMES, 1);
+				for (int k = 0; k < activeActors.size(); k++) {
+					long actor = getActorNode(activeActors.get(k), actorNodes, run, actorIndex);
+					createRelationship(frame, actor, RunRelTypes.FRAME_ACTOR);
+					rollup.add(RunRollup.ACTORS, actor, 1);
+				}
+				for (int k = 0; k < activeInteractions.size(); k++) {
+					int id = activeInteractions.get(k);
+					long interaction = interactionNodes[id];
+					if (interaction < 0) {
+						int actor1 = interactionActors[2 * id];
+						int actor2 = interactionActors[2 * id + 1];
+						interaction = createNode(RunModel.interaction(actors[actor1], actors[actor2]));
+						createRelationship(interaction, getActorNode(actor1, actorNodes, run, actorIndex), RunRelTypes.INTERACTION_ACTOR);
+						createRelationship(interaction, getActorNode(actor2, actorNodes, run, actorIndex), RunRelTypes.INTERACTION_ACTOR);
+						createRelationship(run, interaction, RunRelTypes.RUN_INTERACTION);
+						interactionNodes[id] = interaction;
+					}
+					if (contactLinks.hasFrameLinks()) {
+						inserter.createRelationship(frame, interaction, RunRelTypes.FRAME_INTERACTION, weight);
+						relationshipCount++;
+						rollup.add(RunRollup.INTERACTIONS, interaction, 1);
+						rollup.add(RunRollup.WEIGHT, 1);
+					}
+				}
+				if (contactLinks.hasFrameLinks()) {
+					timelineWriter.addToRollups(timestamp, rollup);
+				}
+			}
+			for (int k = 0; k < activeActors.size(); k++) {
+				int id = activeActors.get(k);
+				addActivity(actorActivity, id, activeActors.since(id), frameCount);
+			}
+			for (int k = 0; k < activeInteractions.size(); k++) {
+				int id = activeInteractions.get(k);
+				addActivity(interactionActivity, id, activeInteractions.since(id), frameCount);
+				if (frameNodes != null) {
+					createContact(interactionNodes[id], frameNodes, activeInteractions.since(id), frameCount);
+				}
+			}
+			writeActivity(actorNodes, actorActivity);
+			writeActivity(interactionNodes, interactionActivity);
+			timelineWriter.close();
+			nodeCount += timelineWriter.getNodeCount();
+			relationshipCount += timelineWriter.getRelationshipCount();
+		} finally {
+			indexProvider.shutdown();
+			events.close();
+		}
+		return run;
+	}
+
+	private long getActorNode(int id, long[] actorNodes, long run, BatchInserterIndex actorIndex) {
+		if (actorNodes[id] < 0) {
+			int actorId = actors[id];
+			actorNodes[id] = createNode(RunModel.actor(actorId));
+			actorIndex.add(actorNodes[id], MapUtil.map("actor_id", actorId));
+			createRelationship(run, actorNodes[id], RunRelTypes.RUN_ACTOR);
+		}
+		return actorNodes[id];
+	}
+
+	/**
+	 * Links an interaction to the first of the frames [from, to) of a contact.
+	 */
+	private void createContact(long interaction, long[] frameNodes, int from, int to) {
+		relationshipCount++;
+		inserter.createRelationship(interaction, frameNodes[from], RunRelTypes.CONTACT,
+				RunModel.contact(startTime + from * frameLength, startTime + to * frameLength, to - from));
+	}
+
+	private static void addActivity(FrameBitmap[] activity, int id, int from, int to) {
+		if (activity[id] == null) {
+			activity[id] = new FrameBitmap();
+		}
+		activity[id].addRange(from, to);
+	}
+
+	private void writeActivity(long[] nodes, FrameBitmap[] activity) {
+		for (int id = 0; id < nodes.length; id++) {
+			if (nodes[id] >= 0) {
+				// actors that only appear through their interactions have no spells
+				FrameBitmap frames = (activity[id] != null) ? activity[id] : new FrameBitmap();
+				inserter.setNodeProperty(nodes[id], RunModel.ACTIVITY, frames.toBytes());
+			}
+		}
+	}
+
+	/**
+	 * The actors or interactions active in the current frame. Overlapping
+	 * spells of the same entity are counted, so that it stays active until
+	 * the last of them ends; an entity entering in the frame it left keeps its
+	 * start frame.
+	 */
+	private static class ActiveSet {
+		private final int[] spells;
+		private final int[] positions;
+		private final int[] since;
+		// 1 + the frame each entity last left in
+		private final int[] left;
+		private int[] members = new int[64];
+		private int size = 0;
+
+		ActiveSet(int entities) {
+			spells = new int[entities];
+			positions = new int[entities];
+			since = new int[entities];
+			left = new int[entities];
+		}
+
+		void enter(int entity, int frame) {
+			if (spells[entity]++ > 0) return;
+			if (size == members.length) {
+				members = Arrays.copyOf(members, size * 2);
+			}
+			positions[entity] = size;
+			members[size++] = entity;
+			if (left[entity] != frame + 1) {
+				since[entity] = frame;
+			}
+		}
+
+		/**
+		 * @return whether the entity is no longer active
+		 */
+		boolean leave(int entity, int frame) {
+			if (--spells[entity] > 0) return false;
+			left[entity] = frame + 1;
+			int last = members[--size];
+			members[positions[entity]] = last;
+			positions[last] = positions[entity];
+			return true;
+		}
+
+		/**
+		 * Returns the frame since which an active entity has been active.
+		 */
+		int since(int entity) {
+			return since[entity];
+		}
+
+		boolean isActive(int entity) {
+			return spells[entity] > 0;
+		}
+
+		int size() {
+			return size;
+		}
+
+		int get(int index) {
+			return members[index];
+		}
+	}
+
+	private long createNode(Map<String, Object> properties) {
+		nodeCount++;
+		return inserter.createNode(properties);
+	}
+
+	private void createRelationship(long from, long to, RelationshipType type) {
+		relationshipCount++;
+		inserter.createRelationship(from, to, type, null);
+	}
+
+	public int getFrameCount() {
+		return frameCount;
+	}
+
+	public long getNodeCount() {
+		return nodeCount;
+	}
+
+	public long getRelationshipCount() {
+		return relationshipCount;
+	}
+
+	public long getSpellEventCount() {
+		return events.size();
+	}
+
+	public int getSpilledRunCount() {
+		return events.getRunCount();
+	}
+
+	public static void main(String[] args) throws IOException, XMLStreamException {
+		if (args.length < 5 || args.length > 6) {
+			System.err.println("Usage: GexfImporter <GEXF file> <run name> <start time> <frame duration> <store dir> [time zone]");
+			System.exit(1);
+		}
+		String timeZone = (args.length == 6) ? args[5] : TimeZone.getDefault().getID();
+		BatchInserter inserter = BatchInserters.inserter(new File(args[4]));
+		try {
+			GexfImporter importer = new GexfImporter(inserter, args[1], Long.parseLong(args[2]),
+					Long.parseLong(args[3]), timeZone);
+			importer.setContactLinks(ContactLinks.valueOf(
+					System.getProperty("it.isi.neo4j.dynanets.contact_links", ContactLinks.FRAMES.name())));
+
+			long start = System.nanoTime();
+			InputStream in = new BufferedInputStream(new FileInputStream(args[0]), 1 << 16);
+			try {
+				importer.read(in);
+			} finally {
+				in.close();
+			}
+			long read = System.nanoTime();
+			importer.write();
+			long written = System.nanoTime();
+
+			double readSeconds = (read - start) / 1e9;
+			double writeSeconds = (written - read) / 1e9;
+			double totalSeconds = (written - start) / 1e9;
+			System.out.printf("Read %s in %.1f s (%d spell events, %d sorted runs spilled)%n", args[0], readSeconds,
+					importer.getSpellEventCount(), importer.getSpilledRunCount());
+			System.out.printf("Wrote %d frames, %d nodes and %d relationships in %.1f s%n",
+					importer.getFrameCount(), importer.getNodeCount(), importer.getRelationshipCount(), writeSeconds);
+			System.out.printf("%.0f frames/s, %.0f relationships/s (%.1f s overall)%n",
+					importer.getFrameCount() / totalSeconds, importer.getRelationshipCount() / totalSeconds,
+					totalSeconds);
+		} finally {
+			inserter.shutdown();
+		}
+	}
+}
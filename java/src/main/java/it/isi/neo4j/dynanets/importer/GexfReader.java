@@ -0,0 +1,111 @@
+/**
+ * Copyright (C) 2008-2010 Istituto per l'Interscambio Scientifico I.S.I.
+ * You can contact us by email (isi@isi.it) or write to:
+ * ISI Foundation, Viale S. Severo 65, 10133 Torino, Italy.
+ *
+ * This program was written by André Panisson <panisson@gmail.com>
+ *
+ */
+package it.isi.neo4j.dynanets.importer;
+
+import java.io.InputStream;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * Streams the spells of a dynamic GEXF file with StAX, without building the
+ * document in memory. Like <CODE>load_gexf_to_neo4j.py</CODE>, it supports
+ * spells only and the <CODE>integer</CODE> time format, and it ignores node
+ * and edge attributes. Node ids must be integers.
+ */
+public class GexfReader {
+
+	/**
+	 * Receives the spells in document order.
+	 */
+	public interface SpellHandler {
+
+		void actorSpell(int actor, long start, long end);
+
+		/**
+		 * Edges are undirected: <CODE>actor1</CODE> is never greater than
+		 * <CODE>actor2</CODE>.
+		 */
+		void interactionSpell(int actor1, int actor2, long start, long end);
+	}
+
+	private final XMLInputFactory factory = XMLInputFactory.newInstance();
+
+	public void read(InputStream in, SpellHandler handler) throws XMLStreamException {
+		XMLStreamReader reader = factory.createXMLStreamReader(in);
+		try {
+			boolean inNode = false;
+			boolean inEdge = false;
+			int actor1 = 0;
+			int actor2 = 0;
+			while (reader.hasNext()) {
+				int event = reader.next();
+				if (event == XMLStreamConstants.END_ELEMENT) {
+					String element = reader.getLocalName();
+					if (element.equals("node")) {
+						inNode = false;
+					} else if (element.equals("edge")) {
+						inEdge = false;
+					}
+				} else if (event == XMLStreamConstants.START_ELEMENT) {
+					String element = reader.getLocalName();
+					if (element.equals("graph")) {
+						if (!"dynamic".equals(reader.getAttributeValue(null, "mode"))) {
+							throw new XMLStreamException("GEXF file is not dynamic", reader.getLocation());
+						}
+						if (!"integer".equals(reader.getAttributeValue(null, "timeformat"))) {
+							throw new XMLStreamException("GEXF file does not have an \"integer\" timeformat", reader.getLocation());
+						}
+					} else if (element.equals("node")) {
+						actor1 = getId(reader, "id");
+						inNode = true;
+					} else if (element.equals("edge")) {
+						int source = getId(reader, "source");
+						int target = getId(reader, "target");
+						actor1 = Math.min(source, target);
+						actor2 = Math.max(source, target);
+						inEdge = true;
+					} else if (element.equals("spell")) {
+						long start = getNumber(reader, "start");
+						long end = getNumber(reader, "end");
+						if (inEdge) {
+							handler.interactionSpell(actor1, actor2, start, end);
+						} else if (inNode) {
+							handler.actorSpell(actor1, start, end);
+						}
+					}
+				}
+			}
+		} finally {
+			reader.close();
+		}
+	}
+
+	private static int getId(XMLStreamReader reader, String attribute) throws XMLStreamException {
+		long id = getNumber(reader, attribute);
+		if (id != (int) id) {
+			throw new XMLStreamException("Attribute '" + attribute + "' out of range: " + id, reader.getLocation());
+		}
+		return (int) id;
+	}
+
+	private static long getNumber(XMLStreamReader reader, String attribute) throws XMLStreamException {
+		String value = reader.getAttributeValue(null, attribute);
+		if (value == null) {
+			throw new XMLStreamException("Missing '" + attribute + "' attribute", reader.getLocation());
+		}
+		try {
+			return Long.parseLong(value.trim());
+		} catch (NumberFormatException e) {
+			throw new XMLStreamException("Attribute '" + attribute + "' is not an integer: " + value, reader.getLocation());
+		}
+	}
+}
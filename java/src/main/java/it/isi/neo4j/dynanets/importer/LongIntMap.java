@@ -0,0 +1,156 @@
+/**
+ * Copyright (C) 2008-2010 Istituto per l'Interscambio Scientifico I.S.I.
+ * You can contact us by email (isi@isi.it) or write to:
+ * ISI Foundation, Viale S. Severo 65, 10133 Torino, Italy.
+ *
+ * This program was written by André Panisson <panisson@gmail.com>
+ *
+ */
+package it.isi.neo4j.dynanets.importer;
+
+import java.util.Arrays;
+
+/**
+ * A hash map from non-negative long keys (node ids) to int values, with open
+ * addressing and linear probing, that stores no boxed keys or entries. Keys
+ * whose value drops to zero are removed.
+ */
+class LongIntMap {
+
+	private static final long FREE = -1;
+
+	private long[] keys;
+	private int[] values;
+	private int size = 0;
+
+	LongIntMap() {
+		this(16);
+	}
+
+	LongIntMap(int expectedSize) {
+		int capacity = Integer.highestOneBit(Math.max(4, expectedSize * 2 - 1)) << 1;
+		keys = new long[capacity];
+		values = new int[capacity];
+		Arrays.fill(keys, FREE);
+	}
+
+	int size() {
+		return size;
+	}
+
+	/**
+	 * Returns the value of a key, or 0.
+	 */
+	int get(long key) {
+		int slot = find(key);
+		return (keys[slot] == key) ? values[slot] : 0;
+	}
+
+	boolean containsKey(long key) {
+		return keys[find(key)] == key;
+	}
+
+	/**
+	 * Adds a delta to the value of a key, removing the key if the value
+	 * becomes zero.
+	 *
+	 * @return the new value
+	 */
+	int add(long key, int delta) {
+		int slot = find(key);
+		if (keys[slot] == key) {
+			int value = values[slot] + delta;
+			if (value == 0) {
+				delete(slot);
+			} else {
+				values[slot] = value;
+			}
+			return value;
+		}
+		if (delta != 0) {
+			keys[slot] = key;
+			values[slot] = delta;
+			if (++size * 2 > keys.length) {
+				rehash(keys.length * 2);
+			}
+		}
+		return delta;
+	}
+
+	/**
+	 * Sets the value of a key if it has none.
+	 */
+	void putIfAbsent(long key, int value) {
+		if (!containsKey(key)) add(key, value);
+	}
+
+	void clear() {
+		if (size > 0) {
+			Arrays.fill(keys, FREE);
+			size = 0;
+		}
+	}
+
+	/**
+	 * Returns the keys, in no particular order.
+	 */
+	long[] keys() {
+		long[] result = new long[size];
+		int n = 0;
+		for (long key: keys) {
+			if (key != FREE) result[n++] = key;
+		}
+		return result;
+	}
+
+	private int find(long key) {
+		int mask = keys.length - 1;
+		int slot = hash(key) & mask;
+		while (keys[slot] != FREE && keys[slot] != key) {
+			slot = (slot + 1) & mask;
+		}
+		return slot;
+	}
+
+	private static int hash(long key) {
+		long h = key * 0x9E3779B97F4A7C15L;
+		return (int) (h ^ (h >>> 32));
+	}
+
+	/**
+	 * Frees a slot, shifting back the following entries of its probe
+	 * sequence so that lookups need no tombstones.
+	 */
+	private void delete(int slot) {
+		int mask = keys.length - 1;
+		int hole = slot;
+		int next = (hole + 1) & mask;
+		while (keys[next] != FREE) {
+			int home = hash(keys[next]) & mask;
+			// move the entry if its home slot is not between the hole and it
+			if (((next - home) & mask) >= ((next - hole) & mask)) {
+				keys[hole] = keys[next];
+				values[hole] = values[next];
+				hole = next;
+			}
+			next = (next + 1) & mask;
+		}
+		keys[hole] = FREE;
+		size--;
+	}
+
+	private void rehash(int capacity) {
+		long[] oldKeys = keys;
+		int[] oldValues = values;
+		keys = new long[capacity];
+		values = new int[capacity];
+		Arrays.fill(keys, FREE);
+		for (int i = 0; i < oldKeys.length; i++) {
+			if (oldKeys[i] != FREE) {
+				int slot = find(oldKeys[i]);
+				keys[slot] = oldKeys[i];
+				values[slot] = oldValues[i];
+			}
+		}
+	}
+}
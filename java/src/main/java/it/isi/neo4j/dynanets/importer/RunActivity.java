@@ -0,0 +1,156 @@
+/**
+ * Copyright (C) 2008-2010 Istituto per l'Interscambio Scientifico I.S.I.
+ * You can contact us by email (isi@isi.it) or write to:
+ * ISI Foundation, Viale S. Severo 65, 10133 Torino, Italy.
+ *
+ * This program was written by André Panisson <panisson@gmail.com>
+ *
+ */
+package it.isi.neo4j.dynanets.importer;
+
+import it.isi.neo4j.dynanets.FrameBitmap;
+import it.isi.neo4j.dynanets.StructuredTimeline;
+
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.neo4j.graphdb.Direction;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Relationship;
+
+/**
+ * Answers temporal questions about the actors and interactions of a run from
+ * their activity bitmaps, instead of expanding the FRAME_ACTOR and
+ * FRAME_INTERACTION relationships of every frame in a time range. Frame
+ * <CODE>k</CODE> of the run starts at <CODE>start + k * length</CODE>, so a
+ * time range maps to a range of frame ordinals without reading the timeline.
+ *
+ * All methods must be called within a transaction.
+ */
+public class RunActivity {
+
+	private final long startTime;
+	private final long frameLength;
+	private final ZoneId zone;
+
+	/**
+	 * @param run the RUN node, which must have at least one frame
+	 */
+	public RunActivity(Node run) {
+		Node timelineNode = run.getSingleRelationship(RunRelTypes.HAS_TIMELINE, Direction.OUTGOING).getEndNode();
+		Relationship first = run.getSingleRelationship(RunRelTypes.RUN_FRAME_FIRST, Direction.OUTGOING);
+		if (first == null) {
+			throw new IllegalArgumentException("Run " + run.getProperty("name") + " has no frames");
+		}
+		startTime = ((Number) timelineNode.getProperty("start")).longValue();
+		frameLength = ((Number) first.getEndNode().getProperty("length")).longValue();
+		StructuredTimeline timeline = new StructuredTimeline((String) timelineNode.getProperty("timeline_name"),
+				timelineNode, run.getGraphDatabase());
+		zone = ZoneId.of(timeline.getTimeZone());
+	}
+
+	/**
+	 * Returns the frames an actor or interaction is active in.
+	 */
+	public static FrameBitmap getActivity(Node node) {
+		byte[] stored = (byte[]) node.getProperty(RunModel.ACTIVITY, null);
+		return (stored != null) ? FrameBitmap.fromBytes(stored) : new FrameBitmap();
+	}
+
+	/**
+	 * Returns the ordinal of the first frame starting at or after a time.
+	 */
+	public int getFrame(long timestamp) {
+		long frame = Math.floorDiv(timestamp - startTime + frameLength - 1, frameLength);
+		return (int) Math.max(0, Math.min(frame, Integer.MAX_VALUE));
+	}
+
+	public long getTimestamp(int frame) {
+		return startTime + frame * frameLength;
+	}
+
+	/**
+	 * Tells whether a node is active in the frame holding a time.
+	 */
+	public boolean isActive(Node node, long timestamp) {
+		long frame = Math.floorDiv(timestamp - startTime, frameLength);
+		return frame >= 0 && frame <= Integer.MAX_VALUE && getActivity(node).contains((int) frame);
+	}
+
+	/**
+	 * Tells whether a node is active in a frame starting from
+	 * <CODE>startTime</CODE>, inclusive, to <CODE>endTime</CODE>, exclusive,
+	 * the same frames a timeline query over that range returns.
+	 */
+	public boolean isActiveBetween(Node node, long startTime, long endTime) {
+		return getActivity(node).intersects(getFrame(startTime), getFrame(endTime));
+	}
+
+	/**
+	 * Tells whether a node is active in the day bucket of the timeline.
+	 */
+	public boolean isActiveOnDay(Node node, int year, int month, int day) {
+		LocalDateTime midnight = LocalDateTime.of(year, month, day, 0, 0);
+		return isActiveBetween(node, toEpochSecond(midnight), toEpochSecond(midnight.plusDays(1)));
+	}
+
+	/**
+	 * Tells whether a node is active in the hour bucket of the timeline.
+	 */
+	public boolean isActiveInHour(Node node, int year, int month, int day, int hour) {
+		LocalDateTime start = LocalDateTime.of(year, month, day, hour, 0);
+		return isActiveBetween(node, toEpochSecond(start), toEpochSecond(start.plusHours(1)));
+	}
+
+	/**
+	 * Returns the start times of the frames a node is active in, e.g. when the
+	 * two actors of an interaction were in contact.
+	 */
+	public long[] getActiveTimes(Node node) {
+		int[] frames = getActivity(node).toArray();
+		long[] times = new long[frames.length];
+		for (int i = 0; i < frames.length; i++) {
+			times[i] = getTimestamp(frames[i]);
+		}
+		return times;
+	}
+
+	/**
+	 * Returns the actors with an interaction with the given actor that is
+	 * active between two times, <CODE>endTime</CODE> excluded.
+	 */
+	public List<Node> getActiveNeighbours(Node actor, long startTime, long endTime) {
+		int from = getFrame(startTime);
+		int to = getFrame(endTime);
+		List<Node> neighbours = new ArrayList<Node>();
+		for (Relationship rel: actor.getRelationships(Direction.INCOMING, RunRelTypes.INTERACTION_ACTOR)) {
+			Node interaction = rel.getStartNode();
+			if (getActivity(interaction).intersects(from, to)) {
+				neighbours.add(getOtherActor(interaction, actor));
+			}
+		}
+		return neighbours;
+	}
+
+	/**
+	 * Returns the frames both nodes are active in.
+	 */
+	public static FrameBitmap getCommonActivity(Node node1, Node node2) {
+		return getActivity(node1).and(getActivity(node2));
+	}
+
+	private static Node getOtherActor(Node interaction, Node actor) {
+		for (Relationship rel: interaction.getRelationships(Direction.OUTGOING, RunRelTypes.INTERACTION_ACTOR)) {
+			if (!rel.getEndNode().equals(actor)) return rel.getEndNode();
+		}
+		return actor;
+	}
+
+	private long toEpochSecond(LocalDateTime time) {
+		// a bucket made ambiguous by a DST transition covers both occurrences
+		return ZonedDateTime.of(time, zone).withEarlierOffsetAtOverlap().toEpochSecond();
+	}
+}
@@ -0,0 +1,322 @@
+/**
+ * Copyright (C) 2008-2010 Istituto per l'Interscambio Scientifico I.S.I.
+ * You can contact us by email (isi@isi.it) or write to:
+ * ISI Foundation, Viale S. Severo 65, 10133 Torino, Italy.
+ *
+ * This program was written by André Panisson <panisson@gmail.com>
+ *
+ */
+package it.isi.neo4j.dynanets.importer;
+
+import it.isi.neo4j.dynanets.StructuredTimeline;
+import it.isi.neo4j.dynanets.TimeBucket;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+import org.neo4j.graphdb.Direction;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.graphdb.RelationshipType;
+import org.neo4j.graphdb.Transaction;
+
+/**
+ * Aggregates the frames of a run over a time range in parallel. The range is
+ * split along the hour buckets of the structured timeline of the run; the
+ * buckets are divided among fork/join tasks, each reading its buckets in its
+ * own read transaction, and the partial aggregates are merged as the tasks
+ * join.
+ *
+ * Results can be split into windows of a fixed length, aligned on the start
+ * of the range; each window holds the frames whose timestamp falls in it.
+ */
+public class RunAggregator {
+
+	public static final int DEFAULT_PARALLELISM = Integer.getInteger(
+			"it.isi.neo4j.dynanets.aggregation_threads", Runtime.getRuntime().availableProcessors());
+
+	private static final RelationshipType TIMELINE_INSTANCE = RelationshipType.withName("TIMELINE_INSTANCE");
+
+	// hour buckets read by a single task
+	private static final int BUCKETS_PER_TASK = 4;
+
+	private static ForkJoinPool sharedPool;
+
+	/**
+	 * Returns a pool of {@link #DEFAULT_PARALLELISM} threads shared by all the
+	 * aggregators created without one.
+	 */
+	static synchronized ForkJoinPool getSharedPool() {
+		if (sharedPool == null) {
+			sharedPool = new ForkJoinPool(DEFAULT_PARALLELISM);
+		}
+		return sharedPool;
+	}
+
+	private final GraphDatabaseService graphDb;
+	private final ForkJoinPool pool;
+
+	public RunAggregator(GraphDatabaseService graphDb) {
+		this(graphDb, getSharedPool());
+	}
+
+	public RunAggregator(GraphDatabaseService graphDb, ForkJoinPool pool) {
+		this.graphDb = graphDb;
+		this.pool = pool;
+	}
+
+	/**
+	 * Aggregates the frames of a run with a timestamp in
+	 * [<CODE>startTime</CODE>, <CODE>endTime</CODE>).
+	 */
+	public Aggregate aggregate(Node run, long startTime, long endTime) {
+		return aggregate(run, startTime, endTime, endTime - startTime)[0];
+	}
+
+	/**
+	 * Aggregates the frames of a run with a timestamp in
+	 * [<CODE>startTime</CODE>, <CODE>endTime</CODE>) per window of
+	 * <CODE>windowLength</CODE> seconds.
+	 *
+	 * @return one aggregate per window, in time order
+	 */
+	public Aggregate[] aggregate(Node run, long startTime, long endTime, long windowLength) {
+		if (startTime >= endTime) {
+			throw new IllegalArgumentException("Start time greater or equal to end time");
+		}
+		if (windowLength < 1) {
+			throw new IllegalArgumentException("Window length must be positive");
+		}
+		long windowCount = (endTime - startTime - 1) / windowLength + 1;
+		if (windowCount > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("Too many windows");
+		}
+		List<TimeBucket> buckets;
+		Transaction tx = graphDb.beginTx();
+		try {
+			ContactLinks.checkFrameLinks(run);
+			Node timelineNode = run.getSingleRelationship(RunRelTypes.HAS_TIMELINE, Direction.OUTGOING).getEndNode();
+			StructuredTimeline timeline = new StructuredTimeline((String) timelineNode.getProperty("timeline_name"),
+					timelineNode, graphDb);
+			buckets = timeline.getBuckets(startTime, endTime);
+			tx.success();
+		} finally {
+			tx.close();
+		}
+		Aggregate[] windows = new Aggregate[(int) windowCount];
+		for (int i = 0; i < windows.length; i++) {
+			long windowStart = startTime + i * windowLength;
+			windows[i] = new Aggregate(windowStart, Math.min(windowStart + windowLength, endTime));
+		}
+		if (!buckets.isEmpty()) {
+			pool.invoke(new BucketTask(buckets, 0, buckets.size(), windows, startTime, windowLength)).mergeInto(windows);
+		}
+		return windows;
+	}
+
+	/**
+	 * The counts of the frames of a time window: frames, actor and
+	 * interaction memberships, the sum of the interaction weights, and the
+	 * distinct actors and interactions.
+	 */
+	public static class Aggregate {
+		private final long startTime;
+		private final long endTime;
+		private long frames = 0;
+		private long actorFrames = 0;
+		private long interactionFrames = 0;
+		private long weight = 0;
+		private Set<Long> actors = new HashSet<Long>();
+		private Set<Long> interactions = new HashSet<Long>();
+
+		Aggregate(long startTime, long endTime) {
+			this.startTime = startTime;
+			this.endTime = endTime;
+		}
+
+		void merge(Aggregate other) {
+			frames += other.frames;
+			actorFrames += other.actorFrames;
+			interactionFrames += other.interactionFrames;
+			weight += other.weight;
+			actors = union(actors, other.actors);
+			interactions = union(interactions, other.interactions);
+		}
+
+		private static Set<Long> union(Set<Long> set1, Set<Long> set2) {
+			if (set1.size() < set2.size()) {
+				set2.addAll(set1);
+				return set2;
+			}
+			set1.addAll(set2);
+			return set1;
+		}
+
+		public long getStartTime() {
+			return startTime;
+		}
+
+		public long getEndTime() {
+			return endTime;
+		}
+
+		public long getFrameCount() {
+			return frames;
+		}
+
+		/**
+		 * Returns the number of FRAME_ACTOR relationships of the frames.
+		 */
+		public long getActorFrameCount() {
+			return actorFrames;
+		}
+
+		/**
+		 * Returns the number of FRAME_INTERACTION relationships of the frames,
+		 * i.e. the number of contacts.
+		 */
+		public long getInteractionFrameCount() {
+			return interactionFrames;
+		}
+
+		/**
+		 * Returns the sum of the weights of the FRAME_INTERACTION
+		 * relationships of the frames.
+		 */
+		public long getWeight() {
+			return weight;
+		}
+
+		public int getActorCount() {
+			return actors.size();
+		}
+
+		public int getInteractionCount() {
+			return interactions.size();
+		}
+	}
+
+	/**
+	 * The aggregates of consecutive windows computed by one task.
+	 */
+	private static class Partial {
+		final int firstWindow;
+		final Aggregate[] windows;
+
+		Partial(int firstWindow, Aggregate[] windows) {
+			this.firstWindow = firstWindow;
+			this.windows = windows;
+		}
+
+		/**
+		 * Merges with the partial of the following buckets, which can only
+		 * share its first window with the last window of this one.
+		 */
+		Partial merge(Partial next) {
+			int last = next.firstWindow + next.windows.length;
+			Aggregate[] merged = new Aggregate[last - firstWindow];
+			System.arraycopy(windows, 0, merged, 0, windows.length);
+			for (int i = 0; i < next.windows.length; i++) {
+				int k = next.firstWindow - firstWindow + i;
+				if (merged[k] == null) {
+					merged[k] = next.windows[i];
+				} else {
+					merged[k].merge(next.windows[i]);
+				}
+			}
+			return new Partial(firstWindow, merged);
+		}
+
+		void mergeInto(Aggregate[] result) {
+			for (int i = 0; i < windows.length; i++) {
+				if (windows[i] != null) {
+					result[firstWindow + i].merge(windows[i]);
+				}
+			}
+		}
+	}
+
+	private class BucketTask extends RecursiveTask<Partial> {
+		private static final long serialVersionUID = 1L;
+
+		private final List<TimeBucket> buckets;
+		private final int from;
+		private final int to;
+		private final Aggregate[] windows;
+		private final long startTime;
+		private final long windowLength;
+
+		BucketTask(List<TimeBucket> buckets, int from, int to, Aggregate[] windows, long startTime, long windowLength) {
+			this.buckets = buckets;
+			this.from = from;
+			this.to = to;
+			this.windows = windows;
+			this.startTime = startTime;
+			this.windowLength = windowLength;
+		}
+
+		@Override
+		protected Partial compute() {
+			if (to - from > BUCKETS_PER_TASK) {
+				int mid = (from + to) >>> 1;
+				BucketTask left = new BucketTask(buckets, from, mid, windows, startTime, windowLength);
+				BucketTask right = new BucketTask(buckets, mid, to, windows, startTime, windowLength);
+				right.fork();
+				Partial partial = left.compute();
+				return partial.merge(right.join());
+			}
+			// the transaction is bound to this thread, and is closed before
+			// any join could run another task on it
+			Transaction tx = graphDb.beginTx();
+			try {
+				Partial partial = aggregateBuckets();
+				tx.success();
+				return partial;
+			} finally {
+				tx.close();
+			}
+		}
+
+		private Partial aggregateBuckets() {
+			TimeBucket first = buckets.get(from);
+			TimeBucket last = buckets.get(to - 1);
+			int firstWindow = getWindow(first.getTimestamp(0));
+			Aggregate[] partial = new Aggregate[getWindow(last.getTimestamp(last.size() - 1)) - firstWindow + 1];
+			for (int b = from; b < to; b++) {
+				TimeBucket bucket = buckets.get(b);
+				for (int i = 0; i < bucket.size(); i++) {
+					int k = getWindow(bucket.getTimestamp(i)) - firstWindow;
+					if (partial[k] == null) {
+						partial[k] = new Aggregate(windows[k + firstWindow].getStartTime(), windows[k + firstWindow].getEndTime());
+					}
+					Node timeNode = graphDb.getNodeById(bucket.getTimeNodeId(i));
+					for (Relationship instance: timeNode.getRelationships(Direction.OUTGOING, TIMELINE_INSTANCE)) {
+						addFrame(partial[k], instance.getEndNode());
+					}
+				}
+			}
+			return new Partial(firstWindow, partial);
+		}
+
+		private int getWindow(long timestamp) {
+			return (int) ((timestamp - startTime) / windowLength);
+		}
+	}
+
+	private static void addFrame(Aggregate aggregate, Node frame) {
+		aggregate.frames++;
+		for (Relationship rel: frame.getRelationships(Direction.OUTGOING, RunRelTypes.FRAME_ACTOR)) {
+			aggregate.actorFrames++;
+			aggregate.actors.add(rel.getEndNode().getId());
+		}
+		for (Relationship rel: frame.getRelationships(Direction.OUTGOING, RunRelTypes.FRAME_INTERACTION)) {
+			aggregate.interactionFrames++;
+			aggregate.weight += ((Number) rel.getProperty("weight", 1)).longValue();
+			aggregate.interactions.add(rel.getEndNode().getId());
+		}
+	}
+}
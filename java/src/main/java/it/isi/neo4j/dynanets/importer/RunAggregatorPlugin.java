@@ -0,0 +1,83 @@
+/**
+ * Copyright (C) 2008-2010 Istituto per l'Interscambio Scientifico I.S.I.
+ * You can contact us by email (isi@isi.it) or write to:
+ * ISI Foundation, Viale S. Severo 65, 10133 Torino, Italy.
+ *
+ * This program was written by André Panisson <panisson@gmail.com>
+ *
+ */
+package it.isi.neo4j.dynanets.importer;
+
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.server.plugins.Description;
+import org.neo4j.server.plugins.Name;
+import org.neo4j.server.plugins.Parameter;
+import org.neo4j.server.plugins.PluginTarget;
+import org.neo4j.server.plugins.ServerPlugin;
+import org.neo4j.server.plugins.Source;
+import org.neo4j.server.rest.repr.ListRepresentation;
+import org.neo4j.server.rest.repr.MappingRepresentation;
+import org.neo4j.server.rest.repr.MappingSerializer;
+import org.neo4j.server.rest.repr.Representation;
+
+@Description( "An extension to the Neo4j Server for parallel aggregations over the frames of a run" )
+public class RunAggregatorPlugin extends ServerPlugin
+{
+
+    @Name("get_frame_aggregates")
+    @Description("Returns, per time window, the number of frames, actor and interaction memberships, "
+    		+ "the sum of the interaction weights and the number of distinct actors and interactions. "
+    		+ "The hour buckets of the range are aggregated in parallel.")
+    @PluginTarget( Node.class )
+	public Representation getFrameAggregates(
+			@Source Node run,
+			@Description("The start timestamp (inclusive).") @Parameter(name = "start") Long start,
+			@Description("The end timestamp (exclusive).") @Parameter(name = "end") Long end,
+			@Description("The window length in seconds. Defaults to the whole range.") @Parameter(name = "window", optional = true) Long window) {
+    	GraphDatabaseService graphDb = run.getGraphDatabase();
+    	RunAggregator.Aggregate[] windows = new RunAggregator(graphDb).aggregate(run, start, end,
+    			window == null ? end - start : window);
+    	return new AggregatesRepresentation(windows);
+    }
+
+    /**
+     * The aggregates of the windows, as parallel lists.
+     */
+    private static class AggregatesRepresentation extends MappingRepresentation {
+
+    	private final RunAggregator.Aggregate[] windows;
+
+    	AggregatesRepresentation(RunAggregator.Aggregate[] windows) {
+    		super("frame_aggregates");
+    		this.windows = windows;
+    	}
+
+		@Override
+		protected void serialize(MappingSerializer serializer) {
+			long[] starts = new long[windows.length];
+			long[] frames = new long[windows.length];
+			long[] actorFrames = new long[windows.length];
+			long[] interactionFrames = new long[windows.length];
+			long[] weights = new long[windows.length];
+			long[] actors = new long[windows.length];
+			long[] interactions = new long[windows.length];
+			for (int i = 0; i < windows.length; i++) {
+				starts[i] = windows[i].getStartTime();
+				frames[i] = windows[i].getFrameCount();
+				actorFrames[i] = windows[i].getActorFrameCount();
+				interactionFrames[i] = windows[i].getInteractionFrameCount();
+				weights[i] = windows[i].getWeight();
+				actors[i] = windows[i].getActorCount();
+				interactions[i] = windows[i].getInteractionCount();
+			}
+			serializer.putList("starts", ListRepresentation.numbers(starts));
+			serializer.putList("frames", ListRepresentation.numbers(frames));
+			serializer.putList("actor_frames", ListRepresentation.numbers(actorFrames));
+			serializer.putList("interaction_frames", ListRepresentation.numbers(interactionFrames));
+			serializer.putList("weights", ListRepresentation.numbers(weights));
+			serializer.putList("actors", ListRepresentation.numbers(actors));
+			serializer.putList("interactions", ListRepresentation.numbers(interactions));
+		}
+    }
+}
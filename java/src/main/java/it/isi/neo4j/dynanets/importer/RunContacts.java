@@ -0,0 +1,146 @@
+/**
+ * Copyright (C) 2008-2010 Istituto per l'Interscambio Scientifico I.S.I.
+ * You can contact us by email (isi@isi.it) or write to:
+ * ISI Foundation, Viale S. Severo 65, 10133 Torino, Italy.
+ *
+ * This program was written by André Panisson <panisson@gmail.com>
+ *
+ */
+package it.isi.neo4j.dynanets.importer;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import org.neo4j.graphdb.Direction;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Relationship;
+
+/**
+ * Reads the CONTACT relationships of the interactions of a run (see
+ * {@link ContactLinks}), each standing for a maximal run of consecutive
+ * frames. Contact times are answered from the <CODE>start</CODE> and
+ * <CODE>end</CODE> properties alone; the frames of a contact are only read
+ * when its frames are iterated.
+ *
+ * All methods must be called within a transaction.
+ */
+public class RunContacts {
+
+	private static final Comparator<Relationship> BY_START = new Comparator<Relationship>() {
+		public int compare(Relationship r1, Relationship r2) {
+			return Long.compare(getStart(r1), getStart(r2));
+		}
+	};
+
+	private RunContacts() {
+	}
+
+	public static long getStart(Relationship contact) {
+		return ((Number) contact.getProperty("start")).longValue();
+	}
+
+	/**
+	 * Returns the end of the last frame of a contact.
+	 */
+	public static long getEnd(Relationship contact) {
+		return ((Number) contact.getProperty("end")).longValue();
+	}
+
+	public static int getFrameCount(Relationship contact) {
+		return ((Number) contact.getProperty("frames")).intValue();
+	}
+
+	/**
+	 * Returns the contacts of an interaction, in time order.
+	 */
+	public static List<Relationship> getContacts(Node interaction) {
+		return getContacts(interaction, Long.MIN_VALUE, Long.MAX_VALUE);
+	}
+
+	/**
+	 * Returns the contacts of an interaction overlapping
+	 * [<CODE>startTime</CODE>, <CODE>endTime</CODE>), in time order.
+	 */
+	public static List<Relationship> getContacts(Node interaction, long startTime, long endTime) {
+		List<Relationship> contacts = new ArrayList<Relationship>();
+		for (Relationship rel: interaction.getRelationships(Direction.OUTGOING, RunRelTypes.CONTACT)) {
+			if (getStart(rel) < endTime && getEnd(rel) > startTime) {
+				contacts.add(rel);
+			}
+		}
+		Collections.sort(contacts, BY_START);
+		return contacts;
+	}
+
+	/**
+	 * Returns the contacts of the interactions of an actor overlapping
+	 * [<CODE>startTime</CODE>, <CODE>endTime</CODE>), in time order.
+	 */
+	public static List<Relationship> getActorContacts(Node actor, long startTime, long endTime) {
+		List<Relationship> contacts = new ArrayList<Relationship>();
+		for (Relationship rel: actor.getRelationships(Direction.INCOMING, RunRelTypes.INTERACTION_ACTOR)) {
+			contacts.addAll(getContacts(rel.getStartNode(), startTime, endTime));
+		}
+		Collections.sort(contacts, BY_START);
+		return contacts;
+	}
+
+	/**
+	 * Returns the time, in seconds, an interaction is in contact within
+	 * [<CODE>startTime</CODE>, <CODE>endTime</CODE>), counting whole frames.
+	 */
+	public static long getContactTime(Node interaction, long startTime, long endTime) {
+		long time = 0;
+		for (Relationship rel: interaction.getRelationships(Direction.OUTGOING, RunRelTypes.CONTACT)) {
+			long start = getStart(rel);
+			long end = getEnd(rel);
+			if (start >= endTime || end <= startTime) continue;
+			long frameLength = (end - start) / getFrameCount(rel);
+			// the frames of the contact starting within the range
+			long first = (start >= startTime) ? start : start + (startTime - start + frameLength - 1) / frameLength * frameLength;
+			long last = (end <= endTime) ? end : start + (endTime - start + frameLength - 1) / frameLength * frameLength;
+			time += Math.max(0, last - first);
+		}
+		return time;
+	}
+
+	/**
+	 * Returns the frames of a contact, read lazily along the FRAME_NEXT
+	 * chain from its first frame.
+	 */
+	public static Iterable<Node> getFrames(final Relationship contact) {
+		return new Iterable<Node>() {
+			public Iterator<Node> iterator() {
+				return new Iterator<Node>() {
+					private final int count = getFrameCount(contact);
+					private Node next = contact.getEndNode();
+					private int read = 0;
+
+					public boolean hasNext() {
+						return read < count && next != null;
+					}
+
+					public Node next() {
+						if (!hasNext()) {
+							throw new NoSuchElementException();
+						}
+						Node frame = next;
+						if (++read < count) {
+							Relationship rel = frame.getSingleRelationship(RunRelTypes.FRAME_NEXT, Direction.OUTGOING);
+							next = (rel == null) ? null : rel.getEndNode();
+						}
+						return frame;
+					}
+
+					public void remove() {
+						throw new UnsupportedOperationException();
+					}
+				};
+			}
+		};
+	}
+}
@@ -0,0 +1,88 @@
+/**
+ * Copyright (C) 2008-2010 Istituto per l'Interscambio Scientifico I.S.I.
+ * You can contact us by email (isi@isi.it) or write to:
+ * ISI Foundation, Viale S. Severo 65, 10133 Torino, Italy.
+ *
+ * This program was written by André Panisson <panisson@gmail.com>
+ *
+ */
+package it.isi.neo4j.dynanets.importer;
+
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.Locale;
+import java.util.Map;
+
+import org.neo4j.graphdb.PropertyContainer;
+import org.neo4j.helpers.collection.MapUtil;
+
+/**
+ * The properties of the nodes of a run, shared by the bulk importer and the
+ * live writer so that both build the same graph.
+ */
+final class RunModel {
+
+	static final DateTimeFormatter CTIME =
+			DateTimeFormatter.ofPattern("EEE MMM ppd HH:mm:ss yyyy", Locale.US);
+
+	/**
+	 * The {@link it.isi.neo4j.dynanets.FrameBitmap} of the 0-based ordinals
+	 * of the frames an actor or interaction is linked to.
+	 */
+	static final String ACTIVITY = "activity";
+
+	static final Map<String, String> ACTOR_INDEX_CONFIG =
+			MapUtil.stringMap("type", "fulltext", "provider", "lucene");
+
+	private RunModel() {
+	}
+
+	static String actorIndexName(String runName) {
+		return "actors_" + runName;
+	}
+
+	static Map<String, Object> run(String runName, ContactLinks contactLinks) {
+		return MapUtil.map("name", runName, "type", "RUN", ContactLinks.PROPERTY, contactLinks.name());
+	}
+
+	static Map<String, Object> timeline(long startTime, long stopTime) {
+		return MapUtil.map("name", "TIMELINE", "type", "TIMELINE", "start", startTime, "stop", stopTime);
+	}
+
+	/**
+	 * @param frameId the 1-based frame number
+	 */
+	static Map<String, Object> frame(int frameId, long timestamp, long frameLength, ZoneId zone) {
+		ZonedDateTime date = ZonedDateTime.ofInstant(Instant.ofEpochSecond(timestamp), zone);
+		return MapUtil.map("name", String.format("FRAME_%05d", frameId), "type", "FRAME",
+				"frame_id", frameId, "timestamp", timestamp, "timestamp_end", timestamp + frameLength,
+				"time", CTIME.format(date), "length", frameLength,
+				"year", date.getYear(), "month", date.getMonthValue(), "day", date.getDayOfMonth(),
+				"hour", date.getHour(), "minute", date.getMinute(), "second", date.getSecond());
+	}
+
+	static Map<String, Object> actor(int actor) {
+		return MapUtil.map("name", String.format("ACTOR_%04d", actor), "type", "ACTOR", "actor", actor);
+	}
+
+	static Map<String, Object> interaction(int actor1, int actor2) {
+		return MapUtil.map("name", String.format("INTERACTION_%04d_%04d", actor1, actor2),
+				"type", "INTERACTION", "actor1", actor1, "actor2", actor2);
+	}
+
+	/**
+	 * @param startTime the start of the first frame of the contact
+	 * @param endTime the end of its last frame
+	 */
+	static Map<String, Object> contact(long startTime, long endTime, int frames) {
+		return MapUtil.map("start", startTime, "end", endTime, "frames", frames);
+	}
+
+	static void setProperties(PropertyContainer entity, Map<String, Object> properties) {
+		for (Map.Entry<String, Object> property: properties.entrySet()) {
+			entity.setProperty(property.getKey(), property.getValue());
+		}
+	}
+}
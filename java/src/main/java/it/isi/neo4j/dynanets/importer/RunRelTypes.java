@@ -0,0 +1,28 @@
+/**
+ * Copyright (C) 2008-2010 Istituto per l'Interscambio Scientifico I.S.I.
+ * You can contact us by email (isi@isi.it) or write to:
+ * ISI Foundation, Viale S. Severo 65, 10133 Torino, Italy.
+ *
+ * This program was written by André Panisson <panisson@gmail.com>
+ *
+ */
+package it.isi.neo4j.dynanets.importer;
+
+import org.neo4j.graphdb.RelationshipType;
+
+/**
+ * The relationship types of the RUN/FRAME/ACTOR/INTERACTION model of a
+ * dynamic network, as written by <CODE>load_gexf_to_neo4j.py</CODE>.
+ */
+public enum RunRelTypes implements RelationshipType {
+	HAS_TIMELINE,
+	RUN_FRAME,
+	RUN_FRAME_FIRST,
+	RUN_ACTOR,
+	RUN_INTERACTION,
+	FRAME_NEXT,
+	FRAME_ACTOR,
+	FRAME_INTERACTION,
+	INTERACTION_ACTOR,
+	CONTACT
+}
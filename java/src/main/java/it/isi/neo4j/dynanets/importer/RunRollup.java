@@ -0,0 +1,52 @@
+/**
+ * Copyright (C) 2008-2010 Istituto per l'Interscambio Scientifico I.S.I.
+ * You can contact us by email (isi@isi.it) or write to:
+ * ISI Foundation, Viale S. Severo 65, 10133 Torino, Italy.
+ *
+ * This program was written by André Panisson <panisson@gmail.com>
+ *
+ */
+package it.isi.neo4j.dynanets.importer;
+
+import it.isi.neo4j.dynanets.Rollup;
+import it.isi.neo4j.dynanets.RollupDelta;
+
+import org.neo4j.graphdb.Direction;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Relationship;
+
+/**
+ * The rollup of the frames of a run kept on the hour, day, month and year
+ * nodes of its timeline:
+ * <UL>
+ * <LI>{@link #FRAMES}: the number of frames;</LI>
+ * <LI>{@link #ACTORS}: the number of frames of each actor node, so the
+ * number of active actors is the number of keys;</LI>
+ * <LI>{@link #INTERACTIONS}: the number of frames of each interaction node,
+ * i.e. the aggregated edge list, and the number of active interactions;</LI>
+ * <LI>{@link #WEIGHT}: the sum of the FRAME_INTERACTION weights.</LI>
+ * </UL>
+ * Interactions are counted from FRAME_INTERACTION relationships, so the
+ * frames of runs with CONTACT links only (see {@link ContactLinks}) are
+ * refused.
+ */
+public class RunRollup implements Rollup {
+
+	public static final String FRAMES = "frames";
+	public static final String ACTORS = "actors";
+	public static final String INTERACTIONS = "interactions";
+	public static final String WEIGHT = "weight";
+
+	public void collect(Node frame, RollupDelta delta) {
+		Relationship run = frame.getSingleRelationship(RunRelTypes.RUN_FRAME, Direction.INCOMING);
+		if (run != null) ContactLinks.checkFrameLinks(run.getStartNode());
+		delta.add(FRAMES, 1);
+		for (Relationship rel: frame.getRelationships(Direction.OUTGOING, RunRelTypes.FRAME_ACTOR)) {
+			delta.add(ACTORS, rel.getEndNode().getId(), 1);
+		}
+		for (Relationship rel: frame.getRelationships(Direction.OUTGOING, RunRelTypes.FRAME_INTERACTION)) {
+			delta.add(INTERACTIONS, rel.getEndNode().getId(), 1);
+			delta.add(WEIGHT, ((Number) rel.getProperty("weight", 1)).longValue());
+		}
+	}
+}
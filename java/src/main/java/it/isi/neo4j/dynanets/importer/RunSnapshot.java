@@ -0,0 +1,636 @@
+/**
+ * Copyright (C) 2008-2010 Istituto per l'Interscambio Scientifico I.S.I.
+ * You can contact us by email (isi@isi.it) or write to:
+ * ISI Foundation, Viale S. Severo 65, 10133 Torino, Italy.
+ *
+ * This program was written by André Panisson <panisson@gmail.com>
+ *
+ */
+package it.isi.neo4j.dynanets.importer;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+import org.neo4j.graphdb.Direction;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.graphdb.Transaction;
+
+/**
+ * A read-only, memory-mapped copy of the frames of a run and of their actor
+ * and interaction memberships, for run-wide aggregates that would otherwise
+ * traverse every FRAME_ACTOR or FRAME_INTERACTION relationship.
+ *
+ * Frames are held in time order, and the memberships of frame
+ * <CODE>f</CODE> are the entries from <CODE>offsets[f]</CODE> to
+ * <CODE>offsets[f+1]</CODE> of a flat array of dense actor or interaction
+ * indexes (compressed sparse rows). The membership arrays are written to a
+ * file while walking the run and are only ever mapped, so they do not live
+ * on the heap; only the per-frame, per-actor and per-interaction arrays are
+ * built in memory. Each kind of membership is limited to
+ * {@link #MAX_MEMBERSHIPS} entries, the size of one mapping.
+ *
+ * A snapshot does not see later changes of the run: {@link #refresh(Node)}
+ * builds a new one and replaces it in the per-database cache, and the
+ * {@link RunWriter} of a run drops its cached snapshot after every committed
+ * batch, so that the next lookup builds a new one. Snapshot files
+ * go to the directory named by the
+ * <CODE>it.isi.neo4j.dynanets.snapshot_dir</CODE> system property, by
+ * default the temporary directory, and are deleted when replaced or on exit.
+ */
+public final class RunSnapshot {
+
+	public static final int MAX_MEMBERSHIPS = Integer.MAX_VALUE / 4;
+
+	private static final int MAGIC = 0x444e5353; // DNSS
+	private static final int VERSION = 1;
+
+	// sections of the file, in file order
+	private static final int FRAME_ACTORS = 0;
+	private static final int FRAME_INTERACTIONS = 1;
+	private static final int FRAME_ACTOR_OFFSETS = 2;
+	private static final int FRAME_INTERACTION_OFFSETS = 3;
+	private static final int FRAME_IDS = 4;
+	private static final int FRAME_TIMESTAMPS = 5;
+	private static final int ACTOR_IDS = 6;
+	private static final int ACTOR_NUMBERS = 7;
+	private static final int ACTOR_FRAME_COUNTS = 8;
+	private static final int INTERACTION_IDS = 9;
+	private static final int INTERACTION_ACTORS = 10;
+	private static final int SECTIONS = 11;
+
+	private static final int HEADER = 4 + 4 + 8 + 8 + 5 * 4;
+
+	// the snapshot of each run, or its build in progress; the maps are
+	// guarded by the outer one
+	private static final Map<GraphDatabaseService, Map<Long, FutureTask<RunSnapshot>>> snapshots =
+			new WeakHashMap<GraphDatabaseService, Map<Long, FutureTask<RunSnapshot>>>();
+
+	/**
+	 * Returns the cached snapshot of a run, building it on first use. The
+	 * cache is only locked to look the run up: the first caller builds the
+	 * snapshot and the others asking for the same run wait for it, while
+	 * lookups of other runs go on.
+	 */
+	public static RunSnapshot forRun(Node run) throws IOException {
+		ContactLinks.checkFrameLinks(run);
+		FutureTask<RunSnapshot> task;
+		boolean building = false;
+		synchronized (snapshots) {
+			Map<Long, FutureTask<RunSnapshot>> cache = getCache(run.getGraphDatabase());
+			task = cache.get(run.getId());
+			if (task == null) {
+				task = newBuild(run);
+				cache.put(run.getId(), task);
+				building = true;
+			}
+		}
+		if (building) task.run();
+		return await(run, task);
+	}
+
+	/**
+	 * Builds a new snapshot of a run and caches it in place of the previous
+	 * one, whose file is deleted. Readers still holding the previous snapshot
+	 * can keep using it, and get it from {@link #forRun(Node)} until the new
+	 * one is built.
+	 */
+	public static RunSnapshot refresh(Node run) throws IOException {
+		ContactLinks.checkFrameLinks(run);
+		FutureTask<RunSnapshot> task = newBuild(run);
+		task.run();
+		RunSnapshot snapshot = await(run, task);
+		FutureTask<RunSnapshot> previous;
+		synchronized (snapshots) {
+			previous = getCache(run.getGraphDatabase()).put(run.getId(), task);
+		}
+		deleteFile(previous);
+		return snapshot;
+	}
+
+	/**
+	 * Drops the cached snapshot of a run, whose file is deleted, so that the
+	 * next lookup builds a new one. Readers still holding it can keep using
+	 * it.
+	 */
+	static void evict(Node run) {
+		FutureTask<RunSnapshot> previous;
+		synchronized (snapshots) {
+			previous = getCache(run.getGraphDatabase()).remove(run.getId());
+		}
+		deleteFile(previous);
+	}
+
+	private static void deleteFile(FutureTask<RunSnapshot> task) {
+		// a build still running keeps its file until exit
+		if (task != null && task.isDone()) {
+			try {
+				// the mapping of the file stays valid until collected
+				task.get().file.delete();
+			} catch (ExecutionException e) {
+				// nothing was written
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	private static FutureTask<RunSnapshot> newBuild(final Node run) {
+		return new FutureTask<RunSnapshot>(new Callable<RunSnapshot>() {
+			public RunSnapshot call() throws IOException {
+				File dir = new File(System.getProperty("it.isi.neo4j.dynanets.snapshot_dir",
+						System.getProperty("java.io.tmpdir")));
+				File file = File.createTempFile("run" + run.getId() + "-", ".snapshot", dir);
+				file.deleteOnExit();
+				try {
+					return build(run, file);
+				} catch (IOException e) {
+					file.delete();
+					throw e;
+				} catch (RuntimeException e) {
+					file.delete();
+					throw e;
+				}
+			}
+		});
+	}
+
+	/**
+	 * Waits for the build of a snapshot. A failed build is dropped from the
+	 * cache, so that the next lookup tries again.
+	 */
+	private static RunSnapshot await(Node run, FutureTask<RunSnapshot> task) throws IOException {
+		try {
+			return task.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting for the snapshot of run " + run.getId());
+		} catch (ExecutionException e) {
+			synchronized (snapshots) {
+				Map<Long, FutureTask<RunSnapshot>> cache = getCache(run.getGraphDatabase());
+				if (cache.get(run.getId()) == task) cache.remove(run.getId());
+			}
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException) throw (IOException) cause;
+			if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+			if (cause instanceof Error) throw (Error) cause;
+			throw new IOException(cause);
+		}
+	}
+
+	private static Map<Long, FutureTask<RunSnapshot>> getCache(GraphDatabaseService graphDb) {
+		Map<Long, FutureTask<RunSnapshot>> cache = snapshots.get(graphDb);
+		if (cache == null) {
+			cache = new HashMap<Long, FutureTask<RunSnapshot>>();
+			snapshots.put(graphDb, cache);
+		}
+		return cache;
+	}
+
+	/**
+	 * Writes the snapshot of a run to a file and maps it.
+	 */
+	static RunSnapshot build(Node run, File file) throws IOException {
+		Transaction tx = run.getGraphDatabase().beginTx();
+		try {
+			// actors are indexed in node id order, so that they can be looked up
+			long[] actorIds = new long[16];
+			int actorCount = 0;
+			for (Relationship rel: run.getRelationships(Direction.OUTGOING, RunRelTypes.RUN_ACTOR)) {
+				if (actorCount == actorIds.length) {
+					actorIds = Arrays.copyOf(actorIds, actorCount * 2);
+				}
+				actorIds[actorCount++] = rel.getEndNode().getId();
+			}
+			Arrays.sort(actorIds, 0, actorCount);
+			Map<Long, Integer> actorIndexes = new HashMap<Long, Integer>();
+			int[] actorNumbers = new int[actorCount];
+			for (int index = 0; index < actorCount; index++) {
+				Node actor = run.getGraphDatabase().getNodeById(actorIds[index]);
+				actorNumbers[index] = ((Number) actor.getProperty("actor")).intValue();
+				actorIndexes.put(actorIds[index], index);
+			}
+
+			Map<Long, Integer> interactionIndexes = new HashMap<Long, Integer>();
+			long[] interactionIds = new long[16];
+			int[] interactionActors = new int[32];
+			for (Relationship rel: run.getRelationships(Direction.OUTGOING, RunRelTypes.RUN_INTERACTION)) {
+				Node interaction = rel.getEndNode();
+				int index = interactionIndexes.size();
+				if (index == interactionIds.length) {
+					interactionIds = Arrays.copyOf(interactionIds, index * 2);
+					interactionActors = Arrays.copyOf(interactionActors, index * 4);
+				}
+				interactionIds[index] = interaction.getId();
+				int k = 0;
+				for (Relationship actorRel: interaction.getRelationships(Direction.OUTGOING, RunRelTypes.INTERACTION_ACTOR)) {
+					if (k < 2) {
+						interactionActors[2 * index + k] = getIndex(actorIndexes, actorRel.getEndNode());
+					}
+					k++;
+				}
+				if (k != 2) {
+					throw new IllegalStateException("Interaction " + interaction.getId() + " has " + k + " actors");
+				}
+				interactionIndexes.put(interaction.getId(), index);
+			}
+			int interactionCount = interactionIndexes.size();
+
+			long[] frameIds = new long[1024];
+			long[] frameTimestamps = new long[1024];
+			int[] actorOffsets = new int[1025];
+			int[] interactionOffsets = new int[1025];
+			int[] actorFrameCounts = new int[actorCount];
+			int frameCount = 0;
+			File interactionsFile = File.createTempFile("snapshot", ".tmp", file.getParentFile());
+			try {
+				DataOutputStream actorsOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16));
+				DataOutputStream interactionsOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(interactionsFile), 1 << 16));
+				try {
+					actorsOut.write(new byte[HEADER + 8 * SECTIONS]);
+					Relationship next = run.getSingleRelationship(RunRelTypes.RUN_FRAME_FIRST, Direction.OUTGOING);
+					while (next != null) {
+						Node frame = next.getEndNode();
+						if (frameCount == frameIds.length) {
+							frameIds = Arrays.copyOf(frameIds, frameCount * 2);
+							frameTimestamps = Arrays.copyOf(frameTimestamps, frameCount * 2);
+							actorOffsets = Arrays.copyOf(actorOffsets, frameCount * 2 + 1);
+							interactionOffsets = Arrays.copyOf(interactionOffsets, frameCount * 2 + 1);
+						}
+						long timestamp = ((Number) frame.getProperty("timestamp")).longValue();
+						if (frameCount > 0 && timestamp < frameTimestamps[frameCount-1]) {
+							throw new IllegalStateException("Frame " + frame.getId() + " is out of time order");
+						}
+						frameIds[frameCount] = frame.getId();
+						frameTimestamps[frameCount] = timestamp;
+						int actors = actorOffsets[frameCount];
+						for (Relationship rel: frame.getRelationships(Direction.OUTGOING, RunRelTypes.FRAME_ACTOR)) {
+							int index = getIndex(actorIndexes, rel.getEndNode());
+							actorsOut.writeInt(index);
+							actorFrameCounts[index]++;
+							actors = checkMemberships(actors + 1);
+						}
+						int interactions = interactionOffsets[frameCount];
+						for (Relationship rel: frame.getRelationships(Direction.OUTGOING, RunRelTypes.FRAME_INTERACTION)) {
+							interactionsOut.writeInt(getIndex(interactionIndexes, rel.getEndNode()));
+							interactions = checkMemberships(interactions + 1);
+						}
+						frameCount++;
+						actorOffsets[frameCount] = actors;
+						interactionOffsets[frameCount] = interactions;
+						next = frame.getSingleRelationship(RunRelTypes.FRAME_NEXT, Direction.OUTGOING);
+					}
+					interactionsOut.close();
+					Files.copy(interactionsFile.toPath(), actorsOut);
+					writeInts(actorsOut, actorOffsets, frameCount + 1);
+					writeInts(actorsOut, interactionOffsets, frameCount + 1);
+					writeLongs(actorsOut, frameIds, frameCount);
+					writeLongs(actorsOut, frameTimestamps, frameCount);
+					writeLongs(actorsOut, actorIds, actorCount);
+					writeInts(actorsOut, actorNumbers, actorCount);
+					writeInts(actorsOut, actorFrameCounts, actorCount);
+					writeLongs(actorsOut, interactionIds, interactionCount);
+					writeInts(actorsOut, interactionActors, 2 * interactionCount);
+				} finally {
+					interactionsOut.close();
+					actorsOut.close();
+				}
+			} finally {
+				interactionsFile.delete();
+			}
+
+			ByteBuffer header = ByteBuffer.allocate(HEADER + 8 * SECTIONS);
+			header.putInt(MAGIC).putInt(VERSION).putLong(run.getId()).putLong(System.currentTimeMillis());
+			header.putInt(frameCount).putInt(actorCount).putInt(interactionCount);
+			header.putInt(actorOffsets[frameCount]).putInt(interactionOffsets[frameCount]);
+			for (long offset: sectionOffsets(frameCount, actorCount, interactionCount,
+					actorOffsets[frameCount], interactionOffsets[frameCount])) {
+				header.putLong(offset);
+			}
+			header.flip();
+			RandomAccessFile out = new RandomAccessFile(file, "rw");
+			try {
+				out.getChannel().write(header, 0);
+			} finally {
+				out.close();
+			}
+			tx.success();
+		} finally {
+			tx.close();
+		}
+		return new RunSnapshot(file);
+	}
+
+	private static int getIndex(Map<Long, Integer> indexes, Node node) {
+		Integer index = indexes.get(node.getId());
+		if (index == null) {
+			throw new IllegalStateException("Node " + node.getId() + " is not part of the run");
+		}
+		return index;
+	}
+
+	private static int checkMemberships(int count) {
+		if (count > MAX_MEMBERSHIPS) {
+			throw new IllegalStateException("More than " + MAX_MEMBERSHIPS + " frame memberships");
+		}
+		return count;
+	}
+
+	private static void writeInts(DataOutputStream out, int[] values, int length) throws IOException {
+		for (int i = 0; i < length; i++) {
+			out.writeInt(values[i]);
+		}
+	}
+
+	private static void writeLongs(DataOutputStream out, long[] values, int length) throws IOException {
+		for (int i = 0; i < length; i++) {
+			out.writeLong(values[i]);
+		}
+	}
+
+	/**
+	 * Returns the start of each section, followed by the end of the file.
+	 */
+	private static long[] sectionOffsets(int frames, int actors, int interactions, int frameActors, int frameInteractions) {
+		long[] sizes = new long[SECTIONS];
+		sizes[FRAME_ACTORS] = 4L * frameActors;
+		sizes[FRAME_INTERACTIONS] = 4L * frameInteractions;
+		sizes[FRAME_ACTOR_OFFSETS] = 4L * (frames + 1);
+		sizes[FRAME_INTERACTION_OFFSETS] = 4L * (frames + 1);
+		sizes[FRAME_IDS] = 8L * frames;
+		sizes[FRAME_TIMESTAMPS] = 8L * frames;
+		sizes[ACTOR_IDS] = 8L * actors;
+		sizes[ACTOR_NUMBERS] = 4L * actors;
+		sizes[ACTOR_FRAME_COUNTS] = 4L * actors;
+		sizes[INTERACTION_IDS] = 8L * interactions;
+		sizes[INTERACTION_ACTORS] = 8L * interactions;
+		long[] offsets = new long[SECTIONS];
+		long offset = HEADER + 8 * SECTIONS;
+		for (int i = 0; i < SECTIONS; i++) {
+			offsets[i] = offset;
+			offset += sizes[i];
+		}
+		return offsets;
+	}
+
+	private final File file;
+	private final long runId;
+	private final long created;
+	private final int frameCount;
+	private final int actorCount;
+	private final int interactionCount;
+	private final IntBuffer frameActors;
+	private final IntBuffer frameInteractions;
+	private final IntBuffer frameActorOffsets;
+	private final IntBuffer frameInteractionOffsets;
+	private final LongBuffer frameIds;
+	private final LongBuffer frameTimestamps;
+	private final LongBuffer actorIds;
+	private final IntBuffer actorNumbers;
+	private final IntBuffer actorFrameCounts;
+	private final LongBuffer interactionIds;
+	private final IntBuffer interactionActors;
+
+	/**
+	 * Maps a snapshot file.
+	 */
+	RunSnapshot(File file) throws IOException {
+		this.file = file;
+		RandomAccessFile in = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = in.getChannel();
+			ByteBuffer header = ByteBuffer.allocate(HEADER + 8 * SECTIONS);
+			channel.read(header, 0);
+			header.flip();
+			if (header.getInt() != MAGIC || header.getInt() != VERSION) {
+				throw new IOException(file + " is not a run snapshot");
+			}
+			runId = header.getLong();
+			created = header.getLong();
+			frameCount = header.getInt();
+			actorCount = header.getInt();
+			interactionCount = header.getInt();
+			header.getInt();
+			header.getInt();
+			long[] offsets = new long[SECTIONS + 1];
+			for (int i = 0; i < SECTIONS; i++) {
+				offsets[i] = header.getLong();
+			}
+			offsets[SECTIONS] = channel.size();
+			ByteBuffer[] sections = new ByteBuffer[SECTIONS];
+			for (int i = 0; i < SECTIONS; i++) {
+				sections[i] = channel.map(FileChannel.MapMode.READ_ONLY, offsets[i], offsets[i+1] - offsets[i]);
+			}
+			frameActors = sections[FRAME_ACTORS].asIntBuffer();
+			frameInteractions = sections[FRAME_INTERACTIONS].asIntBuffer();
+			frameActorOffsets = sections[FRAME_ACTOR_OFFSETS].asIntBuffer();
+			frameInteractionOffsets = sections[FRAME_INTERACTION_OFFSETS].asIntBuffer();
+			frameIds = sections[FRAME_IDS].asLongBuffer();
+			frameTimestamps = sections[FRAME_TIMESTAMPS].asLongBuffer();
+			actorIds = sections[ACTOR_IDS].asLongBuffer();
+			actorNumbers = sections[ACTOR_NUMBERS].asIntBuffer();
+			actorFrameCounts = sections[ACTOR_FRAME_COUNTS].asIntBuffer();
+			interactionIds = sections[INTERACTION_IDS].asLongBuffer();
+			interactionActors = sections[INTERACTION_ACTORS].asIntBuffer();
+		} finally {
+			in.close();
+		}
+	}
+
+	public long getRunId() {
+		return runId;
+	}
+
+	/**
+	 * Returns the time the snapshot was taken, in milliseconds.
+	 */
+	public long getCreated() {
+		return created;
+	}
+
+	public int getFrameCount() {
+		return frameCount;
+	}
+
+	public int getActorCount() {
+		return actorCount;
+	}
+
+	public int getInteractionCount() {
+		return interactionCount;
+	}
+
+	public int getFrameActorCount() {
+		return frameActorOffsets.get(frameCount);
+	}
+
+	public int getFrameInteractionCount() {
+		return frameInteractionOffsets.get(frameCount);
+	}
+
+	public long getFrameNodeId(int frame) {
+		return frameIds.get(frame);
+	}
+
+	public long getFrameTimestamp(int frame) {
+		return frameTimestamps.get(frame);
+	}
+
+	/**
+	 * Returns the index of the first frame with a timestamp not lower than
+	 * the given one, or the frame count if there is none.
+	 */
+	public int findFrame(long timestamp) {
+		int low = 0;
+		int high = frameCount;
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (frameTimestamps.get(mid) < timestamp) {
+				low = mid + 1;
+			} else {
+				high = mid;
+			}
+		}
+		return low;
+	}
+
+	public long getActorNodeId(int actor) {
+		return actorIds.get(actor);
+	}
+
+	/**
+	 * Returns the index of an actor node, or -1 if it is not an actor of the
+	 * run.
+	 */
+	public int findActor(long nodeId) {
+		int low = 0;
+		int high = actorCount - 1;
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			long id = actorIds.get(mid);
+			if (id < nodeId) {
+				low = mid + 1;
+			} else if (id > nodeId) {
+				high = mid - 1;
+			} else {
+				return mid;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Returns the <CODE>actor</CODE> property of an actor.
+	 */
+	public int getActorNumber(int actor) {
+		return actorNumbers.get(actor);
+	}
+
+	public long getInteractionNodeId(int interaction) {
+		return interactionIds.get(interaction);
+	}
+
+	/**
+	 * Returns the index of the first (<CODE>which</CODE> = 0) or second actor
+	 * of an interaction.
+	 */
+	public int getInteractionActor(int interaction, int which) {
+		return interactionActors.get(2 * interaction + which);
+	}
+
+	/**
+	 * Returns the indexes of the actors of a frame.
+	 */
+	public int[] getFrameActors(int frame) {
+		return slice(frameActors, frameActorOffsets, frame);
+	}
+
+	/**
+	 * Returns the indexes of the interactions of a frame.
+	 */
+	public int[] getFrameInteractions(int frame) {
+		return slice(frameInteractions, frameInteractionOffsets, frame);
+	}
+
+	/**
+	 * Returns the position of the first interaction of a frame in the flat
+	 * membership array, which is also the end of the previous frame.
+	 */
+	int getFrameInteractionOffset(int frame) {
+		return frameInteractionOffsets.get(frame);
+	}
+
+	/**
+	 * Returns the interaction at a position of the flat membership array.
+	 */
+	int getFrameInteractionAt(int position) {
+		return frameInteractions.get(position);
+	}
+
+	/**
+	 * Returns the number of frames of each actor, by actor index.
+	 */
+	public int[] getActorFrameCounts() {
+		int[] counts = new int[actorCount];
+		actorFrameCounts.duplicate().get(counts);
+		return counts;
+	}
+
+	/**
+	 * Returns the number of frames of each actor with a timestamp from
+	 * <CODE>startTime</CODE>, inclusive, to <CODE>endTime</CODE>,
+	 * exclusive, by actor index.
+	 */
+	public int[] getActorFrameCounts(long startTime, long endTime) {
+		int first = findFrame(startTime);
+		int last = Math.max(first, findFrame(endTime));
+		int from = frameActorOffsets.get(first);
+		int to = frameActorOffsets.get(last);
+		if (from == 0 && to == getFrameActorCount()) {
+			return getActorFrameCounts();
+		}
+		int[] counts = new int[actorCount];
+		for (int i = from; i < to; i++) {
+			counts[frameActors.get(i)]++;
+		}
+		return counts;
+	}
+
+	/**
+	 * Returns the number of interactions of each actor, by actor index.
+	 */
+	public int[] getActorDegrees() {
+		int[] degrees = new int[actorCount];
+		for (int i = 0; i < 2 * interactionCount; i++) {
+			degrees[interactionActors.get(i)]++;
+		}
+		return degrees;
+	}
+
+	private static int[] slice(IntBuffer members, IntBuffer offsets, int frame) {
+		int from = offsets.get(frame);
+		int[] slice = new int[offsets.get(frame + 1) - from];
+		for (int i = 0; i < slice.length; i++) {
+			slice[i] = members.get(from + i);
+		}
+		return slice;
+	}
+}
@@ -0,0 +1,108 @@
+/**
+ * Copyright (C) 2008-2010 Istituto per l'Interscambio Scientifico I.S.I.
+ * You can contact us by email (isi@isi.it) or write to:
+ * ISI Foundation, Viale S. Severo 65, 10133 Torino, Italy.
+ *
+ * This program was written by André Panisson <panisson@gmail.com>
+ *
+ */
+package it.isi.neo4j.dynanets.importer;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+
+import org.neo4j.graphdb.Node;
+import org.neo4j.server.plugins.Description;
+import org.neo4j.server.plugins.Name;
+import org.neo4j.server.plugins.Parameter;
+import org.neo4j.server.plugins.PluginTarget;
+import org.neo4j.server.plugins.ServerPlugin;
+import org.neo4j.server.plugins.Source;
+import org.neo4j.server.rest.repr.ListRepresentation;
+import org.neo4j.server.rest.repr.MappingRepresentation;
+import org.neo4j.server.rest.repr.MappingSerializer;
+import org.neo4j.server.rest.repr.Representation;
+
+@Description( "An extension to the Neo4j Server for run-wide aggregates computed from run snapshots" )
+public class RunSnapshotPlugin extends ServerPlugin
+{
+
+    @Name("refresh_snapshot")
+    @Description("Takes a new snapshot of the run, used by the following aggregate queries.")
+    @PluginTarget( Node.class )
+	public Node refreshSnapshot(
+			@Source Node run) throws IOException {
+    	RunSnapshot.refresh(run);
+    	return run;
+    }
+
+    @Name("get_actor_frame_counts")
+    @Description("Returns the number of frames of each actor, from the most frequent (QUERY4, QUERY5). "
+    		+ "The snapshot of the run is taken on first use.")
+    @PluginTarget( Node.class )
+	public Representation getActorFrameCounts(
+			@Source Node run,
+			@Description("Only count frames from this timestamp (inclusive).") @Parameter(name = "start", optional = true) Long start,
+			@Description("Only count frames up to this timestamp (exclusive).") @Parameter(name = "end", optional = true) Long end,
+			@Description("Only return actors with more frames than this.") @Parameter(name = "min_count", optional = true) Integer minCount) throws IOException {
+    	RunSnapshot snapshot = RunSnapshot.forRun(run);
+    	int[] counts = snapshot.getActorFrameCounts(start == null ? Long.MIN_VALUE : start,
+    			end == null ? Long.MAX_VALUE : end);
+    	return new ActorCountsRepresentation(snapshot, counts, minCount == null ? -1 : minCount);
+    }
+
+    @Name("get_actor_degrees")
+    @Description("Returns the number of interactions of each actor, from the highest (QUERY10). "
+    		+ "The snapshot of the run is taken on first use.")
+    @PluginTarget( Node.class )
+	public Representation getActorDegrees(
+			@Source Node run,
+			@Description("Only return actors with more interactions than this.") @Parameter(name = "min_count", optional = true) Integer minCount) throws IOException {
+    	RunSnapshot snapshot = RunSnapshot.forRun(run);
+    	return new ActorCountsRepresentation(snapshot, snapshot.getActorDegrees(), minCount == null ? -1 : minCount);
+    }
+
+    /**
+     * A count per actor, as parallel lists of actor numbers, actor node ids
+     * and counts, in decreasing count order.
+     */
+    private static class ActorCountsRepresentation extends MappingRepresentation {
+
+    	private final RunSnapshot snapshot;
+    	private final Integer[] actors;
+    	private final int[] counts;
+
+    	ActorCountsRepresentation(RunSnapshot snapshot, final int[] counts, int minCount) {
+    		super("actor_counts");
+    		this.snapshot = snapshot;
+    		this.counts = counts;
+    		int n = 0;
+    		Integer[] selected = new Integer[counts.length];
+    		for (int i = 0; i < counts.length; i++) {
+    			if (counts[i] > minCount) selected[n++] = i;
+    		}
+    		actors = Arrays.copyOf(selected, n);
+    		Arrays.sort(actors, new Comparator<Integer>() {
+				public int compare(Integer a1, Integer a2) {
+					return Integer.compare(counts[a2], counts[a1]);
+				}
+    		});
+    	}
+
+		@Override
+		protected void serialize(MappingSerializer serializer) {
+			long[] numbers = new long[actors.length];
+			long[] nodes = new long[actors.length];
+			long[] values = new long[actors.length];
+			for (int i = 0; i < actors.length; i++) {
+				numbers[i] = snapshot.getActorNumber(actors[i]);
+				nodes[i] = snapshot.getActorNodeId(actors[i]);
+				values[i] = counts[actors[i]];
+			}
+			serializer.putList("actors", ListRepresentation.numbers(numbers));
+			serializer.putList("nodes", ListRepresentation.numbers(nodes));
+			serializer.putList("counts", ListRepresentation.numbers(values));
+		}
+    }
+}
@@ -0,0 +1,595 @@
+/**
+ * Copyright (C) 2008-2010 Istituto per l'Interscambio Scientifico I.S.I.
+ * You can contact us by email (isi@isi.it) or write to:
+ * ISI Foundation, Viale S. Severo 65, 10133 Torino, Italy.
+ *
+ * This program was written by André Panisson <panisson@gmail.com>
+ *
+ */
+package it.isi.neo4j.dynanets.importer;
+
+import it.isi.neo4j.dynanets.FrameBitmap;
+import it.isi.neo4j.dynanets.RollupDelta;
+import it.isi.neo4j.dynanets.StructuredTimeline;
+
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.neo4j.graphdb.Direction;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.graphdb.index.Index;
+
+/**
+ * Ingests a live stream of contact events into an open run. Contacts are
+ * grouped into the frame their timestamp falls in; FRAME, ACTOR and
+ * INTERACTION nodes are created on first sight, frames are appended to the
+ * FRAME_NEXT chain and to the structured timeline of the run (with empty
+ * frames filling any gap, as in the bulk import). The activity bitmaps of
+ * the actors and interactions are updated once per batch. Interactions are
+ * linked to their frames as set by the {@link ContactLinks} of the run: a
+ * contact in the frame right after the end of a CONTACT of its interaction
+ * extends it, and a late contact may join two of them. New frame
+ * memberships are added to the rollups of the timeline, if it has any, and
+ * the cached {@link RunSnapshot} of the run is dropped after every batch.
+ *
+ * {@link #add(long, int, int)} only queues an event and can be called from
+ * any thread. A single writer thread commits the queued events in
+ * micro-batches: a batch is committed as soon as it holds
+ * <CODE>maxBatchSize</CODE> events, or <CODE>maxDelay</CODE> milliseconds
+ * after its first event arrived. An event is therefore queryable at most
+ * <CODE>maxDelay</CODE> plus one batch commit after it arrives, which with
+ * the defaults keeps it under 250 ms once the JVM is warmed up.
+ *
+ * Contacts for a frame older than the current one are added to that frame.
+ * If a batch fails, it is rolled back, the writer thread stops and the error
+ * is rethrown by the next call.
+ */
+public class RunWriter {
+
+	public static final int DEFAULT_MAX_BATCH_SIZE = 1000;
+	public static final long DEFAULT_MAX_DELAY = 150;
+
+	private final GraphDatabaseService graphDb;
+	private final Node run;
+	private final long frameLength;
+	private final int maxBatchSize;
+	private final long maxDelayNanos;
+
+	private final BlockingQueue<Contact> queue = new LinkedBlockingQueue<Contact>();
+	private final Thread writer;
+	private volatile boolean closed = false;
+	private volatile Throwable failure = null;
+
+	// run state, owned by the writer thread
+	private String runName;
+	private long startTime;
+	private ZoneId zone;
+	private StructuredTimeline timeline;
+	private Node timelineNode;
+	private Node lastFrame;
+	private long lastOrdinal;
+	private ContactLinks contactLinks;
+	private final Map<Integer, Long> actors = new HashMap<Integer, Long>();
+	private final Map<Long, Long> interactions = new HashMap<Long, Long>();
+	private final Set<Long> frameActors = new HashSet<Long>();
+	private final Set<Long> frameInteractions = new HashSet<Long>();
+	// activity bitmaps changed by the current batch, by node id
+	private final Map<Long, FrameBitmap> activity = new HashMap<Long, FrameBitmap>();
+	// rollup changes of the current batch, by frame timestamp
+	private final Map<Long, RollupDelta> rollups = new HashMap<Long, RollupDelta>();
+	// the id of the latest CONTACT relationship of each interaction seen
+	private final Map<Long, Long> latestContacts = new HashMap<Long, Long>();
+
+	private final AtomicLong committed = new AtomicLong();
+	private final AtomicLong batches = new AtomicLong();
+	private final AtomicLong maxLatency = new AtomicLong();
+
+	/**
+	 * Creates the RUN and TIMELINE nodes of a new, empty run.
+	 *
+	 * @return the RUN node
+	 */
+	public static Node createRun(GraphDatabaseService graphDb, String runName, long startTime, String timeZone) {
+		return createRun(graphDb, runName, startTime, timeZone, ContactLinks.FRAMES);
+	}
+
+	/**
+	 * Creates the RUN and TIMELINE nodes of a new, empty run, whose
+	 * interactions are linked to their frames as set by
+	 * <CODE>contactLinks</CODE>.
+	 *
+	 * @return the RUN node
+	 */
+	public static Node createRun(GraphDatabaseService graphDb, String runName, long startTime, String timeZone,
+			ContactLinks contactLinks) {
+		Transaction tx = graphDb.beginTx();
+		try {
+			Node run = graphDb.createNode();
+			RunModel.setProperties(run, RunModel.run(runName, contactLinks));
+			Node timelineNode = graphDb.createNode();
+			RunModel.setProperties(timelineNode, RunModel.timeline(startTime, startTime));
+			run.createRelationshipTo(timelineNode, RunRelTypes.HAS_TIMELINE);
+			// without frame links the rollup could not count interactions
+			new StructuredTimeline(runName, timelineNode, timeZone, graphDb)
+					.setRollup(contactLinks.hasFrameLinks() ? new RunRollup() : null);
+			tx.success();
+			return run;
+		} finally {
+			tx.close();
+		}
+	}
+
+	public RunWriter(GraphDatabaseService graphDb, Node run, long frameLength) {
+		this(graphDb, run, frameLength, DEFAULT_MAX_BATCH_SIZE, DEFAULT_MAX_DELAY);
+	}
+
+	/**
+	 * Opens a run for writing and starts the writer thread.
+	 *
+	 * @param graphDb the database
+	 * @param run the RUN node, as created by {@link #createRun} or by an import
+	 * @param frameLength the duration of a frame, in seconds, which must match
+	 *            the frames already in the run
+	 * @param maxBatchSize the maximum number of events committed at once
+	 * @param maxDelay the maximum time an event waits for its batch to be
+	 *            committed, in milliseconds
+	 */
+	public RunWriter(GraphDatabaseService graphDb, Node run, long frameLength, int maxBatchSize, long maxDelay) {
+		if (frameLength < 1 || maxBatchSize < 1 || maxDelay < 0) {
+			throw new IllegalArgumentException("Frame duration and batch size must be positive");
+		}
+		this.graphDb = graphDb;
+		this.run = run;
+		this.frameLength = frameLength;
+		this.maxBatchSize = maxBatchSize;
+		this.maxDelayNanos = TimeUnit.MILLISECONDS.toNanos(maxDelay);
+		load();
+		writer = new Thread(new Runnable() {
+			public void run() {
+				writeLoop();
+			}
+		}, "RunWriter-" + runName);
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	/**
+	 * Queues a contact between two actors.
+	 */
+	public void add(long timestamp, int actor1, int actor2) {
+		checkState();
+		if (actor1 == actor2) {
+			throw new IllegalArgumentException("Contact of actor " + actor1 + " with itself");
+		}
+		if (timestamp < startTime) {
+			throw new IllegalArgumentException("Timestamp " + timestamp + " before the start of the run");
+		}
+		queue.add(new Contact(timestamp, Math.min(actor1, actor2), Math.max(actor1, actor2), null));
+	}
+
+	/**
+	 * Waits until all the events queued so far are committed.
+	 */
+	public void flush() throws InterruptedException {
+		checkState();
+		CountDownLatch done = new CountDownLatch(1);
+		queue.add(new Contact(0, 0, 0, done));
+		while (!done.await(100, TimeUnit.MILLISECONDS)) {
+			checkState();
+		}
+		checkState();
+	}
+
+	/**
+	 * Commits the queued events and stops the writer thread.
+	 */
+	public void close() throws InterruptedException {
+		if (closed) return;
+		closed = true;
+		writer.join();
+		if (failure != null) {
+			throw new IllegalStateException("Run writer failed", failure);
+		}
+	}
+
+	public long getCommittedCount() {
+		return committed.get();
+	}
+
+	public long getBatchCount() {
+		return batches.get();
+	}
+
+	/**
+	 * Returns the longest time from the arrival of an event to the commit of
+	 * its batch, in milliseconds.
+	 */
+	public double getMaxLatencyMillis() {
+		return maxLatency.get() / 1e6;
+	}
+
+	private void checkState() {
+		if (failure != null) {
+			throw new IllegalStateException("Run writer failed", failure);
+		}
+		if (closed) {
+			throw new IllegalStateException("Run writer closed");
+		}
+	}
+
+	private void writeLoop() {
+		List<Contact> batch = new ArrayList<Contact>();
+		List<CountDownLatch> barriers = new ArrayList<CountDownLatch>();
+		try {
+			while (!closed || !queue.isEmpty()) {
+				Contact first = queue.poll(50, TimeUnit.MILLISECONDS);
+				if (first == null) continue;
+				long deadline = first.arrival + maxDelayNanos;
+				Contact contact = first;
+				while (contact != null) {
+					if (contact.barrier != null) {
+						barriers.add(contact.barrier);
+						break;
+					}
+					batch.add(contact);
+					if (batch.size() >= maxBatchSize) break;
+					long wait = deadline - System.nanoTime();
+					contact = (wait > 0) ? queue.poll(wait, TimeUnit.NANOSECONDS) : queue.poll();
+					if (contact == null && closed) {
+						contact = queue.poll();
+					}
+				}
+				if (!batch.isEmpty()) {
+					write(batch);
+					long latency = System.nanoTime() - first.arrival;
+					maxLatency.accumulateAndGet(latency, Math::max);
+					committed.addAndGet(batch.size());
+					batches.incrementAndGet();
+					batch.clear();
+				}
+				for (CountDownLatch barrier: barriers) {
+					barrier.countDown();
+				}
+				barriers.clear();
+			}
+		} catch (Throwable t) {
+			failure = t;
+		}
+	}
+
+	private void write(List<Contact> batch) {
+		try {
+			Transaction tx = graphDb.beginTx();
+			try {
+				Index<Node> actorIndex = graphDb.index().forNodes(RunModel.actorIndexName(runName),
+						RunModel.ACTOR_INDEX_CONFIG);
+				for (Contact contact: batch) {
+					addContact(contact, actorIndex);
+				}
+				for (Map.Entry<Long, FrameBitmap> entry: activity.entrySet()) {
+					graphDb.getNodeById(entry.getKey()).setProperty(RunModel.ACTIVITY, entry.getValue().toBytes());
+				}
+				for (Map.Entry<Long, RollupDelta> entry: rollups.entrySet()) {
+					timeline.addToRollups(entry.getKey(), entry.getValue());
+				}
+				tx.success();
+			} finally {
+				activity.clear();
+				rollups.clear();
+				tx.close();
+			}
+			RunSnapshot.evict(run);
+		} catch (RuntimeException e) {
+			// the cached state may refer to nodes that were rolled back
+			load();
+			throw e;
+		}
+	}
+
+	private void addContact(Contact contact, Index<Node> actorIndex) {
+		long ordinal = Math.floorDiv(contact.timestamp - startTime, frameLength);
+		Node actor1 = getActor(contact.actor1, actorIndex);
+		Node actor2 = getActor(contact.actor2, actorIndex);
+		Node interaction = getInteraction(contact.actor1, contact.actor2, actor1, actor2);
+		boolean newInteractionFrame = markActive(interaction, ordinal);
+		if (ordinal >= lastOrdinal) {
+			while (ordinal > lastOrdinal) {
+				appendFrame();
+			}
+			if (frameActors.add(actor1.getId())) {
+				lastFrame.createRelationshipTo(actor1, RunRelTypes.FRAME_ACTOR);
+				markActive(actor1, ordinal);
+				addToRollup(ordinal, RunRollup.ACTORS, actor1);
+			}
+			if (frameActors.add(actor2.getId())) {
+				lastFrame.createRelationshipTo(actor2, RunRelTypes.FRAME_ACTOR);
+				markActive(actor2, ordinal);
+				addToRollup(ordinal, RunRollup.ACTORS, actor2);
+			}
+			if (contactLinks.hasFrameLinks() && frameInteractions.add(interaction.getId())) {
+				lastFrame.createRelationshipTo(interaction, RunRelTypes.FRAME_INTERACTION).setProperty("weight", 1);
+				addToRollup(ordinal, RunRollup.INTERACTIONS, interaction);
+			}
+			if (contactLinks.hasContacts() && newInteractionFrame) {
+				addToContacts(interaction, ordinal, lastFrame);
+			}
+		} else {
+			Node frame = getFrame(ordinal);
+			if (linkOnce(frame, actor1, RunRelTypes.FRAME_ACTOR)) {
+				markActive(actor1, ordinal);
+				addToRollup(ordinal, RunRollup.ACTORS, actor1);
+			}
+			if (linkOnce(frame, actor2, RunRelTypes.FRAME_ACTOR)) {
+				markActive(actor2, ordinal);
+				addToRollup(ordinal, RunRollup.ACTORS, actor2);
+			}
+			if (contactLinks.hasFrameLinks() && linkOnce(frame, interaction, RunRelTypes.FRAME_INTERACTION)) {
+				addToRollup(ordinal, RunRollup.INTERACTIONS, interaction);
+			}
+			if (contactLinks.hasContacts() && newInteractionFrame) {
+				addToContacts(interaction, ordinal, frame);
+			}
+		}
+	}
+
+	/**
+	 * Adds a new FRAME_ACTOR or FRAME_INTERACTION relationship (of weight 1)
+	 * to the rollups.
+	 */
+	private void addToRollup(long ordinal, String name, Node node) {
+		if (!(timeline.getRollup() instanceof RunRollup)) return;
+		long timestamp = startTime + ordinal * frameLength;
+		RollupDelta delta = rollups.get(timestamp);
+		if (delta == null) {
+			delta = new RollupDelta();
+			rollups.put(timestamp, delta);
+		}
+		delta.add(name, node.getId(), 1);
+		if (name.equals(RunRollup.INTERACTIONS)) {
+			delta.add(RunRollup.WEIGHT, 1);
+		}
+	}
+
+	/**
+	 * @return whether the node was not active in the frame yet
+	 */
+	private boolean markActive(Node node, long ordinal) {
+		FrameBitmap frames = activity.get(node.getId());
+		if (frames == null) {
+			byte[] stored = (byte[]) node.getProperty(RunModel.ACTIVITY, null);
+			frames = (stored != null) ? FrameBitmap.fromBytes(stored) : new FrameBitmap();
+			activity.put(node.getId(), frames);
+		}
+		if (frames.contains((int) ordinal)) return false;
+		frames.add((int) ordinal);
+		return true;
+	}
+
+	/**
+	 * Adds a frame to the contacts of an interaction not active in it yet:
+	 * extends the contact ending where the frame starts and the one starting
+	 * where it ends, joining them if both exist, or else starts a new one.
+	 * Appending to the last frame only looks at the latest contact.
+	 */
+	private void addToContacts(Node interaction, long ordinal, Node frame) {
+		long frameStart = startTime + ordinal * frameLength;
+		long frameEnd = frameStart + frameLength;
+		Relationship before = null;
+		Relationship after = null;
+		Relationship latest = getLatestContact(interaction);
+		if (ordinal == lastOrdinal) {
+			if (latest != null && getEnd(latest) == frameStart) {
+				before = latest;
+			}
+		} else {
+			for (Relationship rel: interaction.getRelationships(Direction.OUTGOING, RunRelTypes.CONTACT)) {
+				if (getEnd(rel) == frameStart) before = rel;
+				if (getStart(rel) == frameEnd) after = rel;
+			}
+		}
+		if (before != null) {
+			long end = (after != null) ? getEnd(after) : frameEnd;
+			int frames = getFrames(before) + 1 + ((after != null) ? getFrames(after) : 0);
+			before.setProperty("end", end);
+			before.setProperty("frames", frames);
+			if (after != null) {
+				deleteContact(interaction, after, before);
+			}
+		} else {
+			long end = (after != null) ? getEnd(after) : frameEnd;
+			int frames = 1 + ((after != null) ? getFrames(after) : 0);
+			Relationship contact = interaction.createRelationshipTo(frame, RunRelTypes.CONTACT);
+			RunModel.setProperties(contact, RunModel.contact(frameStart, end, frames));
+			if (after != null) {
+				deleteContact(interaction, after, contact);
+			} else if (latest == null || getStart(latest) < frameStart) {
+				latestContacts.put(interaction.getId(), contact.getId());
+			}
+		}
+	}
+
+	private Relationship getLatestContact(Node interaction) {
+		Long contactId = latestContacts.get(interaction.getId());
+		if (contactId != null) {
+			return graphDb.getRelationshipById(contactId);
+		}
+		Relationship latest = null;
+		for (Relationship rel: interaction.getRelationships(Direction.OUTGOING, RunRelTypes.CONTACT)) {
+			if (latest == null || getStart(rel) > getStart(latest)) latest = rel;
+		}
+		if (latest != null) {
+			latestContacts.put(interaction.getId(), latest.getId());
+		}
+		return latest;
+	}
+
+	/**
+	 * Deletes a contact merged into another one.
+	 */
+	private void deleteContact(Node interaction, Relationship contact, Relationship mergedInto) {
+		Long latestId = latestContacts.get(interaction.getId());
+		if (latestId != null && latestId == contact.getId()) {
+			latestContacts.put(interaction.getId(), mergedInto.getId());
+		}
+		contact.delete();
+	}
+
+	private static long getStart(Relationship contact) {
+		return ((Number) contact.getProperty("start")).longValue();
+	}
+
+	private static long getEnd(Relationship contact) {
+		return ((Number) contact.getProperty("end")).longValue();
+	}
+
+	private static int getFrames(Relationship contact) {
+		return ((Number) contact.getProperty("frames")).intValue();
+	}
+
+	private void appendFrame() {
+		long ordinal = lastOrdinal + 1;
+		long timestamp = startTime + ordinal * frameLength;
+		Node frame = graphDb.createNode();
+		RunModel.setProperties(frame, RunModel.frame((int) ordinal + 1, timestamp, frameLength, zone));
+		run.createRelationshipTo(frame, RunRelTypes.RUN_FRAME);
+		if (lastFrame == null) {
+			run.createRelationshipTo(frame, RunRelTypes.RUN_FRAME_FIRST);
+		} else {
+			lastFrame.createRelationshipTo(frame, RunRelTypes.FRAME_NEXT);
+		}
+		timeline.appendNode(frame, timestamp);
+		timelineNode.setProperty("stop", timestamp + frameLength);
+		lastFrame = frame;
+		lastOrdinal = ordinal;
+		frameActors.clear();
+		frameInteractions.clear();
+	}
+
+	private Node getFrame(long ordinal) {
+		long timestamp = startTime + ordinal * frameLength;
+		for (Node frame: timeline.getNodes(timestamp)) {
+			return frame;
+		}
+		throw new IllegalStateException("No frame at " + timestamp + " in run " + runName);
+	}
+
+	private static boolean linkOnce(Node frame, Node node, RunRelTypes type) {
+		for (Relationship rel: frame.getRelationships(Direction.OUTGOING, type)) {
+			if (rel.getEndNode().equals(node)) return false;
+		}
+		Relationship rel = frame.createRelationshipTo(node, type);
+		if (type == RunRelTypes.FRAME_INTERACTION) {
+			rel.setProperty("weight", 1);
+		}
+		return true;
+	}
+
+	private Node getActor(int actor, Index<Node> actorIndex) {
+		Long nodeId = actors.get(actor);
+		if (nodeId != null) {
+			return graphDb.getNodeById(nodeId);
+		}
+		Node node = graphDb.createNode();
+		RunModel.setProperties(node, RunModel.actor(actor));
+		actorIndex.add(node, "actor_id", actor);
+		run.createRelationshipTo(node, RunRelTypes.RUN_ACTOR);
+		actors.put(actor, node.getId());
+		return node;
+	}
+
+	private Node getInteraction(int actor1, int actor2, Node actor1Node, Node actor2Node) {
+		long key = ((long) actor1 << 32) | (actor2 & 0xffffffffL);
+		Long nodeId = interactions.get(key);
+		if (nodeId != null) {
+			return graphDb.getNodeById(nodeId);
+		}
+		Node node = graphDb.createNode();
+		RunModel.setProperties(node, RunModel.interaction(actor1, actor2));
+		node.createRelationshipTo(actor1Node, RunRelTypes.INTERACTION_ACTOR);
+		node.createRelationshipTo(actor2Node, RunRelTypes.INTERACTION_ACTOR);
+		run.createRelationshipTo(node, RunRelTypes.RUN_INTERACTION);
+		interactions.put(key, node.getId());
+		return node;
+	}
+
+	/**
+	 * Reads the state of the run from the store: its timeline, its last frame
+	 * and the actors and interactions it already has.
+	 */
+	private void load() {
+		Transaction tx = graphDb.beginTx();
+		try {
+			runName = (String) run.getProperty("name");
+			// created here rather than by the first batch, which would pay for it
+			graphDb.index().forNodes(RunModel.actorIndexName(runName), RunModel.ACTOR_INDEX_CONFIG);
+			timelineNode = run.getSingleRelationship(RunRelTypes.HAS_TIMELINE, Direction.OUTGOING).getEndNode();
+			startTime = ((Number) timelineNode.getProperty("start")).longValue();
+			timeline = new StructuredTimeline((String) timelineNode.getProperty("timeline_name"), timelineNode, graphDb);
+			zone = ZoneId.of(timeline.getTimeZone());
+			contactLinks = ContactLinks.of(run);
+			latestContacts.clear();
+
+			lastFrame = timeline.getLastNode();
+			lastOrdinal = -1;
+			frameActors.clear();
+			frameInteractions.clear();
+			if (lastFrame != null) {
+				long length = ((Number) lastFrame.getProperty("length")).longValue();
+				if (length != frameLength) {
+					throw new IllegalArgumentException("Run " + runName + " has frames of " + length + " s");
+				}
+				lastOrdinal = ((Number) lastFrame.getProperty("frame_id")).longValue() - 1;
+				for (Relationship rel: lastFrame.getRelationships(Direction.OUTGOING, RunRelTypes.FRAME_ACTOR)) {
+					frameActors.add(rel.getEndNode().getId());
+				}
+				for (Relationship rel: lastFrame.getRelationships(Direction.OUTGOING, RunRelTypes.FRAME_INTERACTION)) {
+					frameInteractions.add(rel.getEndNode().getId());
+				}
+			}
+
+			actors.clear();
+			for (Relationship rel: run.getRelationships(Direction.OUTGOING, RunRelTypes.RUN_ACTOR)) {
+				Node actor = rel.getEndNode();
+				actors.put(((Number) actor.getProperty("actor")).intValue(), actor.getId());
+			}
+			interactions.clear();
+			for (Relationship rel: run.getRelationships(Direction.OUTGOING, RunRelTypes.RUN_INTERACTION)) {
+				Node interaction = rel.getEndNode();
+				int actor1 = ((Number) interaction.getProperty("actor1")).intValue();
+				int actor2 = ((Number) interaction.getProperty("actor2")).intValue();
+				interactions.put(((long) actor1 << 32) | (actor2 & 0xffffffffL), interaction.getId());
+			}
+			tx.success();
+		} finally {
+			tx.close();
+		}
+	}
+
+	private static class Contact {
+		final long timestamp;
+		final int actor1;
+		final int actor2;
+		final CountDownLatch barrier;
+		final long arrival = System.nanoTime();
+
+		Contact(long timestamp, int actor1, int actor2, CountDownLatch barrier) {
+			this.timestamp = timestamp;
+			this.actor1 = actor1;
+			this.actor2 = actor2;
+			this.barrier = barrier;
+		}
+	}
+}
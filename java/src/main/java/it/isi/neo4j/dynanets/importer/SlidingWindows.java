@@ -0,0 +1,242 @@
+/**
+ * Copyright (C) 2008-2010 Istituto per l'Interscambio Scientifico I.S.I.
+ * You can contact us by email (isi@isi.it) or write to:
+ * ISI Foundation, Viale S. Severo 65, 10133 Torino, Italy.
+ *
+ * This program was written by André Panisson <panisson@gmail.com>
+ *
+ */
+package it.isi.neo4j.dynanets.importer;
+
+import it.isi.neo4j.dynanets.StructuredTimeline;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import org.neo4j.graphdb.Direction;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Relationship;
+
+/**
+ * The aggregated contact network of a run over a time window sliding frame by
+ * frame. The weight of an edge (an interaction) is the number of frames of
+ * the window in which the interaction is active.
+ *
+ * The windows are produced as a stream, following the FRAME_NEXT chain from
+ * the first frame at or after the start time: each step reads the
+ * FRAME_INTERACTION relationships of the entering frame only, adds them to
+ * the edge weights and subtracts the frames leaving the window, whose
+ * interactions are kept in memory. Each window exposes both the full edge
+ * weights and the edges changed by the step.
+ *
+ * The window of a frame holds the frames starting in the
+ * <CODE>windowLength</CODE> seconds up to the end of that frame; the first
+ * windows are partial, as no frame before the start time is read. The
+ * returned {@link Window} is reused by the following step, and all the
+ * methods must be called within a transaction.
+ */
+public class SlidingWindows implements Iterator<SlidingWindows.Window> {
+
+	private final long endTime;
+	private final long windowLength;
+
+	// interaction node ids of the frames in the window, in time order
+	private final ArrayDeque<long[]> frameInteractions = new ArrayDeque<long[]>();
+	private final ArrayDeque<Long> frameTimestamps = new ArrayDeque<Long>();
+
+	private final LongIntMap weights = new LongIntMap();
+	// weights plus one, before the current step, of the edges it changed
+	private final LongIntMap previousWeights = new LongIntMap();
+	private final Window window = new Window();
+
+	private Node nextFrame;
+
+	/**
+	 * Slides a window over the frames of a run with a timestamp in
+	 * [<CODE>startTime</CODE>, <CODE>endTime</CODE>).
+	 *
+	 * @param windowLength the window length, in seconds
+	 */
+	public SlidingWindows(Node run, long startTime, long endTime, long windowLength) {
+		if (startTime >= endTime) {
+			throw new IllegalArgumentException("Start time greater or equal to end time");
+		}
+		if (windowLength < 1) {
+			throw new IllegalArgumentException("Window length must be positive");
+		}
+		ContactLinks.checkFrameLinks(run);
+		this.endTime = endTime;
+		this.windowLength = windowLength;
+		nextFrame = findFirstFrame(run, startTime);
+		if (nextFrame != null && getTimestamp(nextFrame) >= endTime) {
+			nextFrame = null;
+		}
+	}
+
+	/**
+	 * Returns the first frame of a run starting at or after a time, looked up
+	 * in the structured timeline within one frame length of the time, or else
+	 * found following the frame chain.
+	 */
+	private static Node findFirstFrame(Node run, long startTime) {
+		Relationship first = run.getSingleRelationship(RunRelTypes.RUN_FRAME_FIRST, Direction.OUTGOING);
+		if (first == null || getTimestamp(first.getEndNode()) >= startTime) {
+			return (first == null) ? null : first.getEndNode();
+		}
+		long frameLength = ((Number) first.getEndNode().getProperty("length")).longValue();
+		Node timelineNode = run.getSingleRelationship(RunRelTypes.HAS_TIMELINE, Direction.OUTGOING).getEndNode();
+		StructuredTimeline timeline = new StructuredTimeline((String) timelineNode.getProperty("timeline_name"),
+				timelineNode, run.getGraphDatabase());
+		Node found = null;
+		for (Node frame: timeline.getAllNodesBetween(startTime - 1, startTime + frameLength)) {
+			if (found == null || getTimestamp(frame) < getTimestamp(found)) {
+				found = frame;
+			}
+		}
+		if (found != null) {
+			return found;
+		}
+		Node frame = first.getEndNode();
+		while (frame != null && getTimestamp(frame) < startTime) {
+			frame = getNextFrame(frame);
+		}
+		return frame;
+	}
+
+	private static long getTimestamp(Node frame) {
+		return ((Number) frame.getProperty("timestamp")).longValue();
+	}
+
+	private static Node getNextFrame(Node frame) {
+		Relationship next = frame.getSingleRelationship(RunRelTypes.FRAME_NEXT, Direction.OUTGOING);
+		return (next == null) ? null : next.getEndNode();
+	}
+
+	public boolean hasNext() {
+		return nextFrame != null;
+	}
+
+	/**
+	 * Slides the window to the next frame.
+	 */
+	public Window next() {
+		if (nextFrame == null) {
+			throw new NoSuchElementException();
+		}
+		previousWeights.clear();
+		Node frame = nextFrame;
+		long timestamp = getTimestamp(frame);
+		long frameEnd = timestamp + ((Number) frame.getProperty("length")).longValue();
+		while (!frameTimestamps.isEmpty() && frameTimestamps.peekFirst() < frameEnd - windowLength) {
+			frameTimestamps.pollFirst();
+			for (long interaction: frameInteractions.pollFirst()) {
+				previousWeights.putIfAbsent(interaction, weights.get(interaction) + 1);
+				weights.add(interaction, -1);
+			}
+		}
+		long[] interactions = readInteractions(frame);
+		for (long interaction: interactions) {
+			previousWeights.putIfAbsent(interaction, weights.get(interaction) + 1);
+			weights.add(interaction, 1);
+		}
+		frameInteractions.addLast(interactions);
+		frameTimestamps.addLast(timestamp);
+
+		window.frame = frame;
+		window.endTime = frameEnd;
+		nextFrame = getNextFrame(frame);
+		if (nextFrame != null && getTimestamp(nextFrame) >= endTime) {
+			nextFrame = null;
+		}
+		return window;
+	}
+
+	private static long[] readInteractions(Node frame) {
+		long[] interactions = new long[8];
+		int n = 0;
+		for (Relationship rel: frame.getRelationships(Direction.OUTGOING, RunRelTypes.FRAME_INTERACTION)) {
+			if (n == interactions.length) {
+				interactions = Arrays.copyOf(interactions, n * 2);
+			}
+			interactions[n++] = rel.getEndNode().getId();
+		}
+		return Arrays.copyOf(interactions, n);
+	}
+
+	public void remove() {
+		throw new UnsupportedOperationException();
+	}
+
+	/**
+	 * The aggregated network of the window ending with a frame.
+	 */
+	public class Window {
+		private Node frame;
+		private long endTime;
+
+		/**
+		 * Returns the frame that entered the window in this step.
+		 */
+		public Node getFrame() {
+			return frame;
+		}
+
+		public long getStartTime() {
+			return endTime - windowLength;
+		}
+
+		public long getEndTime() {
+			return endTime;
+		}
+
+		public int getFrameCount() {
+			return frameTimestamps.size();
+		}
+
+		public int getEdgeCount() {
+			return weights.size();
+		}
+
+		/**
+		 * Returns the number of frames of the window in which an interaction
+		 * is active, 0 if it is not an edge of the window.
+		 */
+		public int getWeight(long interactionId) {
+			return weights.get(interactionId);
+		}
+
+		/**
+		 * Returns the interaction node ids of the edges of the window, in no
+		 * particular order.
+		 */
+		public long[] getEdges() {
+			return weights.keys();
+		}
+
+		/**
+		 * Returns the interaction node ids of the edges whose weight changed
+		 * in this step, including the edges that left the window (with
+		 * weight 0 now), in no particular order.
+		 */
+		public long[] getChangedEdges() {
+			long[] touched = previousWeights.keys();
+			int n = 0;
+			for (long interaction: touched) {
+				if (weights.get(interaction) != previousWeights.get(interaction) - 1) {
+					touched[n++] = interaction;
+				}
+			}
+			return Arrays.copyOf(touched, n);
+		}
+
+		/**
+		 * Returns the weight an edge had in the previous window.
+		 */
+		public int getPreviousWeight(long interactionId) {
+			int previous = previousWeights.get(interactionId);
+			return (previous > 0) ? previous - 1 : weights.get(interactionId);
+		}
+	}
+}
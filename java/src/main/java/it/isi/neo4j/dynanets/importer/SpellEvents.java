@@ -0,0 +1,216 @@
+/**
+ * Copyright (C) 2008-2010 Istituto per l'Interscambio Scientifico I.S.I.
+ * You can contact us by email (isi@isi.it) or write to:
+ * ISI Foundation, Viale S. Severo 65, 10133 Torino, Italy.
+ *
+ * This program was written by André Panisson <panisson@gmail.com>
+ *
+ */
+package it.isi.neo4j.dynanets.importer;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PrimitiveIterator;
+import java.util.PriorityQueue;
+
+/**
+ * The start and end events of the spells of a run, sorted by frame with an
+ * external merge sort. An event is packed in a single <CODE>long</CODE>:
+ * frame ordinal, entity kind, start/end flag and dense entity id, so that
+ * sorting the events sorts them by frame. Events are buffered in memory and
+ * spilled to sorted temporary files when the buffer is full, so memory use is
+ * bounded by the buffer size, however many spells there are.
+ */
+class SpellEvents {
+
+	static final int DEFAULT_BUFFER_SIZE = Integer.getInteger(
+			"it.isi.neo4j.dynanets.import_buffer_size", 1 << 22);
+
+	static final int ACTOR = 0;
+	static final int INTERACTION = 1;
+
+	static final int MAX_FRAME = (1 << 30) - 1;
+
+	static long event(int frame, int kind, boolean start, int entity) {
+		return ((long) frame << 33) | ((long) kind << 32) | (start ? 1L << 31 : 0) | entity;
+	}
+
+	static int frame(long event) {
+		return (int) (event >>> 33);
+	}
+
+	static int kind(long event) {
+		return (int) (event >>> 32) & 1;
+	}
+
+	static boolean isStart(long event) {
+		return (event & (1L << 31)) != 0;
+	}
+
+	static int entity(long event) {
+		return (int) event & Integer.MAX_VALUE;
+	}
+
+	private final long[] buffer;
+	private int size = 0;
+	private final List<File> runs = new ArrayList<File>();
+	private long count = 0;
+	private int spilled = 0;
+
+	SpellEvents(int bufferSize) {
+		if (bufferSize < 1) {
+			throw new IllegalArgumentException("Buffer size must be positive");
+		}
+		buffer = new long[bufferSize];
+	}
+
+	void add(long event) {
+		if (size == buffer.length) {
+			spill();
+		}
+		buffer[size++] = event;
+		count++;
+	}
+
+	long size() {
+		return count;
+	}
+
+	int getRunCount() {
+		return spilled;
+	}
+
+	private void spill() {
+		Arrays.sort(buffer, 0, size);
+		try {
+			File run = File.createTempFile("spells", ".run");
+			run.deleteOnExit();
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(run), 1 << 16));
+			try {
+				for (int i = 0; i < size; i++) {
+					out.writeLong(buffer[i]);
+				}
+			} finally {
+				out.close();
+			}
+			runs.add(run);
+			spilled++;
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		size = 0;
+	}
+
+	/**
+	 * Returns the events in frame order. Can only be called once.
+	 */
+	PrimitiveIterator.OfLong sorted() throws IOException {
+		Arrays.sort(buffer, 0, size);
+		if (runs.isEmpty()) {
+			return Arrays.stream(buffer, 0, size).iterator();
+		}
+		final PriorityQueue<Run> queue = new PriorityQueue<Run>();
+		Run buffered = new Run(buffer, size);
+		if (buffered.hasCurrent) queue.add(buffered);
+		for (File file: runs) {
+			Run run = new Run(file);
+			if (run.advance()) queue.add(run);
+		}
+		return new PrimitiveIterator.OfLong() {
+			public boolean hasNext() {
+				return !queue.isEmpty();
+			}
+
+			public long nextLong() {
+				if (!hasNext()) {
+					throw new NoSuchElementException();
+				}
+				Run run = queue.poll();
+				long event = run.current;
+				if (run.advance()) {
+					queue.add(run);
+				}
+				return event;
+			}
+		};
+	}
+
+	/**
+	 * Deletes the temporary files.
+	 */
+	void close() {
+		for (File run: runs) {
+			run.delete();
+		}
+		runs.clear();
+	}
+
+	/**
+	 * A sorted run being merged, either the in-memory buffer or a spilled
+	 * file.
+	 */
+	private static class Run implements Comparable<Run> {
+		private final long[] events;
+		private final int length;
+		private int position = 0;
+		private final DataInputStream in;
+		long current;
+		boolean hasCurrent = false;
+
+		Run(long[] events, int length) {
+			this.events = events;
+			this.length = length;
+			this.in = null;
+			advance();
+		}
+
+		Run(File file) throws IOException {
+			this.events = null;
+			this.length = 0;
+			this.in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16));
+		}
+
+		boolean advance() {
+			if (in == null) {
+				hasCurrent = position < length;
+				if (hasCurrent) current = events[position++];
+				return hasCurrent;
+			}
+			try {
+				current = in.readLong();
+				hasCurrent = true;
+			} catch (EOFException e) {
+				hasCurrent = false;
+				close();
+			} catch (IOException e) {
+				close();
+				throw new UncheckedIOException(e);
+			}
+			return hasCurrent;
+		}
+
+		private void close() {
+			try {
+				in.close();
+			} catch (IOException e) {
+				// nothing left to read
+			}
+		}
+
+		public int compareTo(Run other) {
+			return Long.compare(current, other.current);
+		}
+	}
+}
@@ -0,0 +1,136 @@
+/**
+ * Copyright (C) 2008-2010 Istituto per l'Interscambio Scientifico I.S.I.
+ * You can contact us by email (isi@isi.it) or write to:
+ * ISI Foundation, Viale S. Severo 65, 10133 Torino, Italy.
+ *
+ * This program was written by André Panisson <panisson@gmail.com>
+ *
+ */
+package it.isi.neo4j.dynanets.importer;
+
+import java.io.IOException;
+
+import org.neo4j.graphdb.Direction;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.server.plugins.Description;
+import org.neo4j.server.plugins.Name;
+import org.neo4j.server.plugins.Parameter;
+import org.neo4j.server.plugins.PluginTarget;
+import org.neo4j.server.plugins.ServerPlugin;
+import org.neo4j.server.plugins.Source;
+import org.neo4j.server.rest.repr.ListRepresentation;
+import org.neo4j.server.rest.repr.MappingRepresentation;
+import org.neo4j.server.rest.repr.MappingSerializer;
+import org.neo4j.server.rest.repr.Representation;
+
+@Description( "An extension to the Neo4j Server for time-respecting paths between the actors of a run" )
+public class TemporalPathPlugin extends ServerPlugin
+{
+
+    @Name("get_temporal_reachability")
+    @Description("Returns the actors reachable from this actor by time-respecting paths leaving at or after "
+    		+ "the start timestamp, with their earliest arrival times, by arrival. With fastest=true, also "
+    		+ "returns the departure time and duration of the fastest path to each actor. "
+    		+ "The snapshot of the run is taken on first use.")
+    @PluginTarget( Node.class )
+	public Representation getTemporalReachability(
+			@Source Node actor,
+			@Description("The start timestamp (inclusive).") @Parameter(name = "start") Long start,
+			@Description("The end timestamp (exclusive). Defaults to the end of the run.") @Parameter(name = "end", optional = true) Long end,
+			@Description("Whether to compute the fastest paths.") @Parameter(name = "fastest", optional = true) Boolean fastest) throws IOException {
+    	RunSnapshot snapshot = getSnapshot(actor);
+    	TemporalPaths paths = new TemporalPaths(snapshot, getActorIndex(snapshot, actor), start,
+    			end == null ? Long.MAX_VALUE : end, fastest != null && fastest);
+    	return new ReachabilityRepresentation(snapshot, paths, fastest != null && fastest);
+    }
+
+    @Name("get_temporal_path")
+    @Description("Returns an earliest-arrival time-respecting path from this actor to a target actor, leaving "
+    		+ "at or after the start timestamp, as the actors of the path and their arrival times. "
+    		+ "The lists are empty if the target is not reachable.")
+    @PluginTarget( Node.class )
+	public Representation getTemporalPath(
+			@Source Node actor,
+			@Description("The target actor.") @Parameter(name = "target") Node target,
+			@Description("The start timestamp (inclusive).") @Parameter(name = "start") Long start,
+			@Description("The end timestamp (exclusive). Defaults to the end of the run.") @Parameter(name = "end", optional = true) Long end) throws IOException {
+    	RunSnapshot snapshot = getSnapshot(actor);
+    	TemporalPaths paths = new TemporalPaths(snapshot, getActorIndex(snapshot, actor), start,
+    			end == null ? Long.MAX_VALUE : end, false);
+    	return new ActorTimesRepresentation("temporal_path", snapshot, paths.getPath(getActorIndex(snapshot, target)), paths);
+    }
+
+    private static RunSnapshot getSnapshot(Node actor) throws IOException {
+    	Relationship run = actor.getSingleRelationship(RunRelTypes.RUN_ACTOR, Direction.INCOMING);
+    	if (run == null) {
+    		throw new IllegalArgumentException("Node " + actor.getId() + " is not an actor of a run");
+    	}
+    	return RunSnapshot.forRun(run.getStartNode());
+    }
+
+    private static int getActorIndex(RunSnapshot snapshot, Node actor) {
+    	int index = snapshot.findActor(actor.getId());
+    	if (index < 0) {
+    		throw new IllegalArgumentException("Actor " + actor.getId() + " is not in the snapshot of the run");
+    	}
+    	return index;
+    }
+
+    /**
+     * Actors with their earliest arrival times, as parallel lists of actor
+     * numbers, actor node ids and times.
+     */
+    private static class ActorTimesRepresentation extends MappingRepresentation {
+
+    	protected final RunSnapshot snapshot;
+    	protected final int[] actors;
+    	protected final TemporalPaths paths;
+
+    	ActorTimesRepresentation(String type, RunSnapshot snapshot, int[] actors, TemporalPaths paths) {
+    		super(type);
+    		this.snapshot = snapshot;
+    		this.actors = actors;
+    		this.paths = paths;
+    	}
+
+		@Override
+		protected void serialize(MappingSerializer serializer) {
+			long[] numbers = new long[actors.length];
+			long[] nodes = new long[actors.length];
+			long[] arrivals = new long[actors.length];
+			for (int i = 0; i < actors.length; i++) {
+				numbers[i] = snapshot.getActorNumber(actors[i]);
+				nodes[i] = snapshot.getActorNodeId(actors[i]);
+				arrivals[i] = paths.getArrival(actors[i]);
+			}
+			serializer.putList("actors", ListRepresentation.numbers(numbers));
+			serializer.putList("nodes", ListRepresentation.numbers(nodes));
+			serializer.putList("arrivals", ListRepresentation.numbers(arrivals));
+		}
+    }
+
+    private static class ReachabilityRepresentation extends ActorTimesRepresentation {
+
+    	private final boolean fastest;
+
+    	ReachabilityRepresentation(RunSnapshot snapshot, TemporalPaths paths, boolean fastest) {
+    		super("temporal_reachability", snapshot, paths.getReachable(), paths);
+    		this.fastest = fastest;
+    	}
+
+		@Override
+		protected void serialize(MappingSerializer serializer) {
+			super.serialize(serializer);
+			if (!fastest) return;
+			long[] departures = new long[actors.length];
+			long[] durations = new long[actors.length];
+			for (int i = 0; i < actors.length; i++) {
+				departures[i] = paths.getFastestDeparture(actors[i]);
+				durations[i] = paths.getFastestDuration(actors[i]);
+			}
+			serializer.putList("departures", ListRepresentation.numbers(departures));
+			serializer.putList("durations", ListRepresentation.numbers(durations));
+		}
+    }
+}
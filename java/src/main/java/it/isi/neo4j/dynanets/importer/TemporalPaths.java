@@ -0,0 +1,250 @@
+/**
+ * Copyright (C) 2008-2010 Istituto per l'Interscambio Scientifico I.S.I.
+ * You can contact us by email (isi@isi.it) or write to:
+ * ISI Foundation, Viale S. Severo 65, 10133 Torino, Italy.
+ *
+ * This program was written by André Panisson <panisson@gmail.com>
+ *
+ */
+package it.isi.neo4j.dynanets.importer;
+
+import java.util.Arrays;
+
+/**
+ * The time-respecting paths of a run from one source actor, computed with a
+ * single sweep over the frames of a {@link RunSnapshot} in time order.
+ *
+ * A path is a sequence of contacts (interactions active in a frame) in
+ * strictly increasing frames: a path takes at most one hop per frame, as in
+ * a spreading process where an actor reached in a frame can only pass it on
+ * from the next one. Times are frame timestamps. For every actor the sweep
+ * records:
+ * <UL>
+ * <LI>the earliest arrival time from the source, leaving at or after the
+ * start time, and the predecessor on an earliest-arrival path;</LI>
+ * <LI>optionally, the duration of the fastest path (latest departure for the
+ * arrival time), with the classic one-pass algorithm that keeps, per actor,
+ * the departure/arrival pairs not dominated by another pair.</LI>
+ * </UL>
+ * All state is held in primitive arrays indexed by actor.
+ */
+public class TemporalPaths {
+
+	public static final long UNREACHED = Long.MAX_VALUE;
+
+	private final RunSnapshot snapshot;
+	private final int source;
+	private final long startTime;
+
+	// frame in which each actor was first reached; -1 for the source
+	private final int[] reached;
+	private final int[] predecessors;
+
+	// fastest paths: best duration and its departure frame, per actor
+	private final long[] durations;
+	private final int[] departures;
+
+	/**
+	 * Sweeps the frames of the snapshot with a timestamp in
+	 * [<CODE>startTime</CODE>, <CODE>endTime</CODE>).
+	 *
+	 * @param source the index of the source actor in the snapshot
+	 * @param fastest whether to compute the fastest paths too
+	 */
+	public TemporalPaths(RunSnapshot snapshot, int source, long startTime, long endTime, boolean fastest) {
+		if (source < 0 || source >= snapshot.getActorCount()) {
+			throw new IllegalArgumentException("No actor " + source + " in the snapshot");
+		}
+		this.snapshot = snapshot;
+		this.source = source;
+		this.startTime = startTime;
+		int actors = snapshot.getActorCount();
+		reached = new int[actors];
+		predecessors = new int[actors];
+		Arrays.fill(reached, Integer.MAX_VALUE);
+		Arrays.fill(predecessors, -1);
+		reached[source] = -1;
+		if (fastest) {
+			durations = new long[actors];
+			departures = new int[actors];
+			Arrays.fill(durations, UNREACHED);
+			Arrays.fill(departures, -1);
+			durations[source] = 0;
+		} else {
+			durations = null;
+			departures = null;
+		}
+		sweep(snapshot.findFrame(startTime), snapshot.findFrame(endTime));
+	}
+
+	private void sweep(int firstFrame, int endFrame) {
+		ParetoPairs pairs = (durations != null) ? new ParetoPairs(reached.length) : null;
+		for (int f = firstFrame; f < endFrame; f++) {
+			int end = snapshot.getFrameInteractionOffset(f + 1);
+			for (int k = snapshot.getFrameInteractionOffset(f); k < end; k++) {
+				int interaction = snapshot.getFrameInteractionAt(k);
+				int actor1 = snapshot.getInteractionActor(interaction, 0);
+				int actor2 = snapshot.getInteractionActor(interaction, 1);
+				if (reached[actor1] < f && reached[actor2] == Integer.MAX_VALUE) {
+					reached[actor2] = f;
+					predecessors[actor2] = actor1;
+				} else if (reached[actor2] < f && reached[actor1] == Integer.MAX_VALUE) {
+					reached[actor1] = f;
+					predecessors[actor1] = actor2;
+				}
+				if (pairs != null) {
+					relaxFastest(pairs, actor1, actor2, f);
+					relaxFastest(pairs, actor2, actor1, f);
+				}
+			}
+		}
+	}
+
+	private void relaxFastest(ParetoPairs pairs, int from, int to, int frame) {
+		if (to == source) return;
+		int departure = (from == source) ? frame : pairs.latestDepartureBefore(from, frame);
+		if (departure < 0 || !pairs.add(to, departure, frame)) return;
+		long duration = snapshot.getFrameTimestamp(frame) - snapshot.getFrameTimestamp(departure);
+		if (duration < durations[to]) {
+			durations[to] = duration;
+			departures[to] = departure;
+		}
+	}
+
+	public int getSource() {
+		return source;
+	}
+
+	public boolean isReachable(int actor) {
+		return reached[actor] != Integer.MAX_VALUE;
+	}
+
+	/**
+	 * Returns the earliest arrival time at an actor, the start time for the
+	 * source, or {@link #UNREACHED}.
+	 */
+	public long getArrival(int actor) {
+		if (actor == source) return startTime;
+		return isReachable(actor) ? snapshot.getFrameTimestamp(reached[actor]) : UNREACHED;
+	}
+
+	/**
+	 * Returns the actors reachable from the source, the source included, by
+	 * earliest arrival time.
+	 */
+	public int[] getReachable() {
+		int n = 0;
+		long[] sorted = new long[reached.length];
+		for (int actor = 0; actor < reached.length; actor++) {
+			if (isReachable(actor)) {
+				// frame + 1 keeps the source (-1) first and fits in the high bits
+				sorted[n++] = ((long) (reached[actor] + 1) << 32) | actor;
+			}
+		}
+		Arrays.sort(sorted, 0, n);
+		int[] actors = new int[n];
+		for (int i = 0; i < n; i++) {
+			actors[i] = (int) sorted[i];
+		}
+		return actors;
+	}
+
+	/**
+	 * Returns the actors of an earliest-arrival path from the source to an
+	 * actor, source first, or an empty array if the actor is unreachable.
+	 * Each actor of the path is reached at its earliest arrival time.
+	 */
+	public int[] getPath(int target) {
+		if (!isReachable(target)) return new int[0];
+		int length = 1;
+		for (int actor = target; actor != source; actor = predecessors[actor]) {
+			length++;
+		}
+		int[] path = new int[length];
+		for (int actor = target, i = length - 1; i >= 0; actor = predecessors[actor], i--) {
+			path[i] = actor;
+		}
+		return path;
+	}
+
+	/**
+	 * Returns the duration of the fastest path from the source to an actor,
+	 * in seconds, or {@link #UNREACHED}.
+	 */
+	public long getFastestDuration(int actor) {
+		checkFastest();
+		return durations[actor];
+	}
+
+	/**
+	 * Returns the departure time from the source of the fastest path to an
+	 * actor, or {@link #UNREACHED}.
+	 */
+	public long getFastestDeparture(int actor) {
+		checkFastest();
+		if (actor == source) return startTime;
+		return (departures[actor] < 0) ? UNREACHED : snapshot.getFrameTimestamp(departures[actor]);
+	}
+
+	private void checkFastest() {
+		if (durations == null) {
+			throw new IllegalStateException("Fastest paths were not computed");
+		}
+	}
+
+	/**
+	 * Per actor, the (departure, arrival) frame pairs of the paths reaching
+	 * it that no other pair dominates, i.e. with both a later departure and
+	 * an earlier arrival. Arrivals are added in time order, so the pairs of
+	 * an actor are sorted by both departure and arrival.
+	 */
+	private static class ParetoPairs {
+		private final int[][] departures;
+		private final int[][] arrivals;
+		private final int[] sizes;
+
+		ParetoPairs(int actors) {
+			departures = new int[actors][];
+			arrivals = new int[actors][];
+			sizes = new int[actors];
+		}
+
+		/**
+		 * Returns the latest departure of the paths reaching an actor before a
+		 * frame, or -1.
+		 */
+		int latestDepartureBefore(int actor, int frame) {
+			int size = sizes[actor];
+			if (size == 0) return -1;
+			int pos = Arrays.binarySearch(arrivals[actor], 0, size, frame);
+			// the first pair arriving at or after the frame
+			if (pos < 0) {
+				pos = -(pos + 1);
+			} else {
+				while (pos > 0 && arrivals[actor][pos-1] == frame) pos--;
+			}
+			return (pos == 0) ? -1 : departures[actor][pos-1];
+		}
+
+		/**
+		 * Adds a pair arriving in the current frame.
+		 *
+		 * @return false if the pair is dominated
+		 */
+		boolean add(int actor, int departure, int arrival) {
+			int size = sizes[actor];
+			if (size > 0 && departures[actor][size-1] >= departure) return false;
+			if (departures[actor] == null) {
+				departures[actor] = new int[4];
+				arrivals[actor] = new int[4];
+			} else if (size == departures[actor].length) {
+				departures[actor] = Arrays.copyOf(departures[actor], size * 2);
+				arrivals[actor] = Arrays.copyOf(arrivals[actor], size * 2);
+			}
+			departures[actor][size] = departure;
+			arrivals[actor][size] = arrival;
+			sizes[actor]++;
+			return true;
+		}
+	}
+}
@@ -0,0 +1,328 @@
+/**
+ * Copyright (C) 2008-2010 Istituto per l'Interscambio Scientifico I.S.I.
+ * You can contact us by email (isi@isi.it) or write to:
+ * ISI Foundation, Viale S. Severo 65, 10133 Torino, Italy.
+ *
+ * This program was written by André Panisson <panisson@gmail.com>
+ *
+ */
+package it.isi.neo4j.dynanets;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReference;
+
+import junit.framework.TestCase;
+
+import org.neo4j.graphdb.Direction;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.graphdb.factory.GraphDatabaseFactory;
+import org.neo4j.io.fs.FileUtils;
+import org.neo4j.kernel.DeadlockDetectedException;
+
+/**
+ * Adds and removes nodes from many threads through a shared timeline and
+ * checks the chain, the skip lists, the hour indexes and the rollups.
+ */
+public class TimelineStressTest extends TestCase {
+
+	private static final int THREADS = 8;
+	private static final int OPERATIONS = 400;
+
+	// three days, so that writers meet in the same hours and days but also
+	// create new ones concurrently
+	private static final long START = 1246406400L;
+	private static final long SPAN = 3 * 24 * 3600;
+
+	private File storeDir;
+	private GraphDatabaseService graphDb;
+
+	/**
+	 * Counts the nodes of the timeline and sums their weights.
+	 */
+	public static class CountRollup implements Rollup {
+		public void collect(Node node, RollupDelta delta) {
+			delta.add("nodes", 1);
+			delta.add("weight", (Long) node.getProperty("weight"));
+		}
+	}
+
+	@Override
+	protected void setUp() throws Exception {
+		storeDir = File.createTempFile("timeline-stress", "");
+		storeDir.delete();
+		graphDb = new GraphDatabaseFactory().newEmbeddedDatabase(storeDir);
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		graphDb.shutdown();
+		FileUtils.deleteRecursively(storeDir);
+	}
+
+	public void testConcurrentWriters() throws Exception {
+		Node root;
+		Transaction tx = graphDb.beginTx();
+		try {
+			root = graphDb.createNode();
+			tx.success();
+		} finally {
+			tx.close();
+		}
+		final StructuredTimeline timeline = new StructuredTimeline("stress", root, "UTC", graphDb);
+		timeline.setRollup(new CountRollup());
+
+		final Map<Node, Long> added = new HashMap<Node, Long>();
+		final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+		Thread[] writers = new Thread[THREADS];
+		for (int t = 0; t < THREADS; t++) {
+			final Random random = new Random(t);
+			writers[t] = new Thread("writer-" + t) {
+				public void run() {
+					try {
+						List<Node> own = new ArrayList<Node>();
+						for (int i = 0; i < OPERATIONS; i++) {
+							if (!own.isEmpty() && random.nextInt(4) == 0) {
+								Node node = own.remove(random.nextInt(own.size()));
+								removeNode(timeline, node);
+								synchronized (added) {
+									added.remove(node);
+								}
+							} else {
+								// few distinct timestamps, so that writers also
+								// share time nodes
+								long timestamp = START + random.nextInt((int) (SPAN / 60)) * 60;
+								Node node = addNode(timeline, timestamp, random.nextInt(100));
+								own.add(node);
+								synchronized (added) {
+									added.put(node, timestamp);
+								}
+							}
+						}
+					} catch (Throwable e) {
+						failure.compareAndSet(null, e);
+					}
+				}
+			};
+			writers[t].start();
+		}
+		for (Thread writer: writers) {
+			writer.join();
+		}
+		if (failure.get() != null) {
+			throw new AssertionError(failure.get());
+		}
+
+		tx = graphDb.beginTx();
+		try {
+			List<Node> chain = checkChain(root);
+			checkSkipLists(root, chain);
+			checkHourIndexes(root, chain);
+			checkInstances(chain, added);
+			checkRollups(timeline, added);
+			tx.success();
+		} finally {
+			tx.close();
+		}
+	}
+
+	private Node addNode(StructuredTimeline timeline, long timestamp, long weight) {
+		while (true) {
+			Transaction tx = graphDb.beginTx();
+			try {
+				Node node = graphDb.createNode();
+				node.setProperty("weight", weight);
+				timeline.addNode(node, timestamp);
+				tx.success();
+				tx.close();
+				return node;
+			} catch (DeadlockDetectedException e) {
+				tx.failure();
+				tx.close();
+			}
+		}
+	}
+
+	private void removeNode(StructuredTimeline timeline, Node node) {
+		while (true) {
+			Transaction tx = graphDb.beginTx();
+			try {
+				timeline.removeNode(node);
+				tx.success();
+				tx.close();
+				return;
+			} catch (DeadlockDetectedException e) {
+				tx.failure();
+				tx.close();
+			}
+		}
+	}
+
+	/**
+	 * Walks the circular chain from the underlying node, checking the order
+	 * of the timestamps and that every link is single in both directions.
+	 */
+	private List<Node> checkChain(Node root) {
+		List<Node> chain = new ArrayList<Node>();
+		Node previous = root;
+		long last = Long.MIN_VALUE;
+		while (true) {
+			Relationship next = previous.getSingleRelationship(BaseTimeline.RelTypes.TIMELINE_NEXT_ENTRY, Direction.OUTGOING);
+			assertNotNull("Chain broken after " + previous, next);
+			Node node = next.getEndNode();
+			Relationship back = node.getSingleRelationship(BaseTimeline.RelTypes.TIMELINE_NEXT_ENTRY, Direction.INCOMING);
+			assertEquals("Back link of " + node, previous, back.getStartNode());
+			if (node.equals(root)) break;
+			long timestamp = (Long) node.getProperty(BaseTimeline.TIMESTAMP);
+			assertTrue("Chain out of order at " + node, timestamp > last);
+			assertTrue("Empty time node " + node, node.hasRelationship(Direction.OUTGOING, BaseTimeline.RelTypes.TIMELINE_INSTANCE));
+			last = timestamp;
+			chain.add(node);
+			previous = node;
+		}
+		return chain;
+	}
+
+	/**
+	 * Checks that every skip list level is sorted and only holds time nodes
+	 * of the level below, with no links above the levels of the timeline.
+	 */
+	private void checkSkipLists(Node root, List<Node> chain) {
+		int levels = (Integer) root.getProperty(BaseTimeline.SKIP_LEVELS, 0);
+		Set<Node> below = new HashSet<Node>(chain);
+		for (int level = 1; level <= BaseTimeline.MAX_SKIP_LEVEL; level++) {
+			Set<Node> current = new HashSet<Node>();
+			Node previous = root;
+			long last = Long.MIN_VALUE;
+			while (true) {
+				Relationship next = previous.getSingleRelationship(BaseTimeline.SKIP_TYPES[level], Direction.OUTGOING);
+				if (next == null) break;
+				Node node = next.getEndNode();
+				assertTrue("Skip level " + level + " above the " + levels + " levels of the timeline", level <= levels);
+				assertEquals("Back link of " + node + " at skip level " + level, next,
+						node.getSingleRelationship(BaseTimeline.SKIP_TYPES[level], Direction.INCOMING));
+				assertTrue("Node " + node + " at skip level " + level + " but not below", below.contains(node));
+				long timestamp = (Long) node.getProperty(BaseTimeline.TIMESTAMP);
+				assertTrue("Skip level " + level + " out of order at " + node, timestamp > last);
+				last = timestamp;
+				current.add(node);
+				previous = node;
+			}
+			for (Node node: chain) {
+				if (!current.contains(node)) {
+					assertFalse("Node " + node + " linked at skip level " + level + " out of the list",
+							node.hasRelationship(BaseTimeline.SKIP_TYPES[level]));
+				}
+			}
+			below = current;
+		}
+	}
+
+	/**
+	 * Checks that the child index of every level node is sorted and matches
+	 * its NEXT_LEVEL relationships, and that every time node is the child of
+	 * the hour of its timestamp.
+	 */
+	private void checkHourIndexes(Node root, List<Node> chain) {
+		Set<Node> indexed = new HashSet<Node>();
+		checkLevel(root, 0, indexed);
+		assertEquals(new HashSet<Node>(chain), indexed);
+		TimeBuckets buckets = TimeBuckets.forZone("UTC");
+		for (Node node: chain) {
+			Relationship rel = node.getSingleRelationship(StructuredTimeline.StructuredRelTypes.NEXT_LEVEL, Direction.INCOMING);
+			long timestamp = (Long) node.getProperty(BaseTimeline.TIMESTAMP);
+			assertEquals(timestamp, rel.getProperty("timestamp"));
+			int hourKey = buckets.hourKey(timestamp);
+			Node level = rel.getStartNode();
+			for (String name: new String[] { "hour", "day", "month", "year" }) {
+				Relationship up = level.getSingleRelationship(StructuredTimeline.StructuredRelTypes.NEXT_LEVEL, Direction.INCOMING);
+				int expected = name.equals("hour") ? TimeBuckets.hour(hourKey)
+						: name.equals("day") ? TimeBuckets.day(hourKey)
+						: name.equals("month") ? TimeBuckets.month(hourKey)
+						: TimeBuckets.year(hourKey);
+				assertEquals("Time node " + node + " under the wrong " + name, expected, ((Number) up.getProperty(name)).intValue());
+				level = up.getStartNode();
+			}
+			assertEquals(root, level);
+		}
+	}
+
+	private static final String[] LEVELS = { "year", "month", "day", "hour", "timestamp" };
+
+	private void checkLevel(Node parent, int depth, Set<Node> timeNodes) {
+		String name = LEVELS[depth];
+		Map<Long, Long> children = new HashMap<Long, Long>();
+		for (Relationship rel: parent.getRelationships(Direction.OUTGOING, StructuredTimeline.StructuredRelTypes.NEXT_LEVEL)) {
+			Long previous = children.put(((Number) rel.getProperty(name)).longValue(), rel.getEndNode().getId());
+			assertNull("Two " + name + " children with the same key under " + parent, previous);
+		}
+		long[] keys = (long[]) parent.getProperty(StructuredTimeline.NEXT_LEVEL_KEYS, new long[0]);
+		long[] ids = (long[]) parent.getProperty(StructuredTimeline.NEXT_LEVEL_IDS, new long[0]);
+		assertEquals("Index size of " + parent, children.size(), keys.length);
+		assertEquals("Index size of " + parent, keys.length, ids.length);
+		long[] sorted = keys.clone();
+		Arrays.sort(sorted);
+		assertTrue("Index of " + parent + " out of order", Arrays.equals(sorted, keys));
+		for (int i = 0; i < keys.length; i++) {
+			assertEquals("Index of " + parent + " at " + keys[i], children.get(keys[i]), Long.valueOf(ids[i]));
+			Node child = graphDb.getNodeById(ids[i]);
+			if (depth == LEVELS.length - 1) {
+				timeNodes.add(child);
+			} else {
+				checkLevel(child, depth + 1, timeNodes);
+			}
+		}
+	}
+
+	/**
+	 * Checks that exactly the nodes left in the timeline have an instance,
+	 * at their timestamp.
+	 */
+	private void checkInstances(List<Node> chain, Map<Node, Long> added) {
+		int instances = 0;
+		for (Node timeNode: chain) {
+			for (Relationship rel: timeNode.getRelationships(Direction.OUTGOING, BaseTimeline.RelTypes.TIMELINE_INSTANCE)) {
+				Long timestamp = added.get(rel.getEndNode());
+				assertNotNull("Removed node " + rel.getEndNode() + " still in the timeline", timestamp);
+				assertEquals(timestamp, timeNode.getProperty(BaseTimeline.TIMESTAMP));
+				instances++;
+			}
+		}
+		assertEquals(added.size(), instances);
+	}
+
+	/**
+	 * Checks the rollups written by the writers against a rebuild.
+	 */
+	private void checkRollups(StructuredTimeline timeline, Map<Node, Long> added) {
+		long weight = 0;
+		for (Node node: added.keySet()) {
+			weight += (Long) node.getProperty("weight");
+		}
+		RollupValues year = timeline.getRollupValues(2009);
+		assertEquals(added.size(), year.getSum("nodes"));
+		assertEquals(weight, year.getSum("weight"));
+
+		List<RollupValues> hours = timeline.getRollupValues("hour", START, START + SPAN);
+		long[] written = new long[hours.size()];
+		for (int i = 0; i < written.length; i++) {
+			written[i] = hours.get(i).getSum("weight");
+		}
+		timeline.rebuildRollups();
+		hours = timeline.getRollupValues("hour", START, START + SPAN);
+		assertEquals(written.length, hours.size());
+		for (int i = 0; i < written.length; i++) {
+			assertEquals(hours.get(i).getSum("weight"), written[i]);
+		}
+	}
+}
@@ -0,0 +1,183 @@
+/**
+ * Copyright (C) 2008-2010 Istituto per l'Interscambio Scientifico I.S.I.
+ * You can contact us by email (isi@isi.it) or write to:
+ * ISI Foundation, Viale S. Severo 65, 10133 Torino, Italy.
+ *
+ * This program was written by André Panisson <panisson@gmail.com>
+ *
+ */
+package it.isi.neo4j.dynanets.importer;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.graphdb.factory.GraphDatabaseFactory;
+import org.neo4j.io.fs.FileUtils;
+
+/**
+ * Checks the earliest arrivals and the fastest durations of the temporal
+ * paths, whose Pareto pairs keep only the undominated departures, against
+ * an enumeration of all the time-respecting paths of small runs.
+ */
+public class TemporalPathsTest extends TestCase {
+
+	private static final long START = 1246406400L;
+	private static final long FRAME_LENGTH = 20;
+
+	private File storeDir;
+	private GraphDatabaseService graphDb;
+
+	@Override
+	protected void setUp() throws Exception {
+		storeDir = File.createTempFile("temporal-paths", "");
+		storeDir.delete();
+		graphDb = new GraphDatabaseFactory().newEmbeddedDatabase(storeDir);
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		graphDb.shutdown();
+		FileUtils.deleteRecursively(storeDir);
+	}
+
+	/**
+	 * A chain that is fastest when leaving late: 0-1 in frame 0, 0-2 in
+	 * frame 3, then 1-3 and 2-3 in frame 4 and 3-4 in frame 6. Actor 3 is
+	 * reached earliest through 1, but fastest through 2.
+	 */
+	public void testHandBuiltFrames() throws Exception {
+		int[][][] frames = {
+			{ { 0, 1 } },
+			{},
+			{ { 4, 5 } },
+			{ { 0, 2 } },
+			{ { 1, 3 }, { 2, 3 } },
+			{},
+			{ { 3, 4 } },
+			{ { 0, 1 }, { 1, 5 } },
+		};
+		Node run = writeRun("hand", frames);
+		TemporalPaths paths = check(run, frames, 0, 0);
+		RunSnapshot snapshot = getSnapshot(run);
+		int actor3 = findActor(snapshot, 3);
+		assertEquals(START + 4 * FRAME_LENGTH, paths.getArrival(actor3));
+		assertEquals(FRAME_LENGTH, paths.getFastestDuration(actor3));
+		assertEquals(START + 3 * FRAME_LENGTH, paths.getFastestDeparture(actor3));
+		// 5 meets 4 before 0 reaches 4, so it is only reached through 1 in frame 7
+		assertEquals(START + 7 * FRAME_LENGTH, paths.getArrival(findActor(snapshot, 5)));
+	}
+
+	public void testRandomFrames() throws Exception {
+		Random random = new Random(17);
+		for (int run = 0; run < 6; run++) {
+			int actors = 5 + random.nextInt(3);
+			int[][][] frames = new int[8 + random.nextInt(4)][][];
+			for (int f = 0; f < frames.length; f++) {
+				frames[f] = new int[random.nextInt(3)][];
+				for (int k = 0; k < frames[f].length; k++) {
+					int actor1 = random.nextInt(actors);
+					int actor2 = (actor1 + 1 + random.nextInt(actors - 1)) % actors;
+					frames[f][k] = new int[] { actor1, actor2 };
+				}
+			}
+			check(writeRun("random" + run, frames), frames, random.nextInt(actors), random.nextInt(3));
+		}
+	}
+
+	/**
+	 * Writes frames of (actor, actor) contacts as a run.
+	 */
+	private Node writeRun(String runName, int[][][] frames) throws Exception {
+		Node run = RunWriter.createRun(graphDb, runName, START, "UTC");
+		RunWriter writer = new RunWriter(graphDb, run, FRAME_LENGTH);
+		for (int f = 0; f < frames.length; f++) {
+			for (int[] contact: frames[f]) {
+				writer.add(START + f * FRAME_LENGTH, contact[0], contact[1]);
+			}
+		}
+		writer.close();
+		return run;
+	}
+
+	/**
+	 * Compares the paths of a run from an actor, leaving at or after a frame,
+	 * with the enumeration of all the paths of its frames.
+	 */
+	private TemporalPaths check(Node run, int[][][] frames, int sourceNumber, int startFrame) throws Exception {
+		RunSnapshot snapshot = getSnapshot(run);
+		int source = findActor(snapshot, sourceNumber);
+		if (source < 0) return null;
+		TemporalPaths paths = new TemporalPaths(snapshot, source, START + startFrame * FRAME_LENGTH,
+				Long.MAX_VALUE, true);
+
+		int numbers = 0;
+		for (int[][] frame: frames) {
+			for (int[] contact: frame) {
+				numbers = Math.max(numbers, Math.max(contact[0], contact[1]) + 1);
+			}
+		}
+		long[] arrivals = new long[numbers];
+		long[] durations = new long[numbers];
+		Arrays.fill(arrivals, TemporalPaths.UNREACHED);
+		Arrays.fill(durations, TemporalPaths.UNREACHED);
+		enumerate(frames, sourceNumber, startFrame - 1, -1, arrivals, durations);
+
+		for (int number = 0; number < numbers; number++) {
+			int actor = findActor(snapshot, number);
+			if (actor < 0 || actor == source) continue;
+			String message = "Run[" + run.getId() + "]: actor " + number + " from " + sourceNumber;
+			long arrival = (arrivals[number] == TemporalPaths.UNREACHED) ? TemporalPaths.UNREACHED
+					: START + arrivals[number] * FRAME_LENGTH;
+			long duration = (durations[number] == TemporalPaths.UNREACHED) ? TemporalPaths.UNREACHED
+					: durations[number] * FRAME_LENGTH;
+			assertEquals(message, arrival, paths.getArrival(actor));
+			assertEquals(message, duration, paths.getFastestDuration(actor));
+		}
+		return paths;
+	}
+
+	/**
+	 * Follows every path from an actor reached in a frame, taking one hop
+	 * per later frame, and keeps the earliest arrival and the shortest
+	 * duration, in frames, at every actor.
+	 */
+	private static void enumerate(int[][][] frames, int actor, int frame, int departure,
+			long[] arrivals, long[] durations) {
+		for (int f = frame + 1; f < frames.length; f++) {
+			for (int[] contact: frames[f]) {
+				int next;
+				if (contact[0] == actor) next = contact[1];
+				else if (contact[1] == actor) next = contact[0];
+				else continue;
+				int leaving = (departure < 0) ? f : departure;
+				arrivals[next] = Math.min(arrivals[next], f);
+				durations[next] = Math.min(durations[next], f - leaving);
+				enumerate(frames, next, f, leaving, arrivals, durations);
+			}
+		}
+	}
+
+	private RunSnapshot getSnapshot(Node run) throws Exception {
+		Transaction tx = graphDb.beginTx();
+		try {
+			RunSnapshot snapshot = RunSnapshot.forRun(run);
+			tx.success();
+			return snapshot;
+		} finally {
+			tx.close();
+		}
+	}
+
+	private static int findActor(RunSnapshot snapshot, int number) {
+		for (int actor = 0; actor < snapshot.getActorCount(); actor++) {
+			if (snapshot.getActorNumber(actor) == number) return actor;
+		}
+		return -1;
+	}
+}